@@ -44,9 +44,18 @@ import org.apache.commons.codec.binary.Base64;
  *                        // contents are those of "a" before
  *                        // being modified.
  * </pre>
+ *
+ * <p>To find out what changed in a zip file, copying it is not needed: the cache can store only a
+ * {@link ZipCentralDirectorySnapshot} of the zip instead, with {@link #addZipSnapshot(File)}, and
+ * return it with {@link #getZipSnapshot(File)}.
  */
 public class FileCacheByPath {
 
+    /**
+     * The suffix of the names of the files with the snapshots of zips, after the key of the zip.
+     */
+    private static final String SNAPSHOT_SUFFIX = ".cd";
+
     /**
      * The directory where the cache exists.
      */
@@ -80,6 +89,53 @@ public class FileCacheByPath {
 
         String k = key(f);
         Files.copy(f, new File(directory, k));
+        FileUtils.deleteIfExists(new File(directory, k + SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Adds a snapshot of the central directory of a zip file to the cache, replacing anything
+     * cached for the exact same absolute path. Unlike {@link #add(File)}, only the end of the zip
+     * file is read, and the snapshot is much smaller than the zip.
+     *
+     * @param zip the zip file to add
+     * @throws IOException failed to read the zip file or to write the snapshot
+     */
+    public void addZipSnapshot(@NonNull File zip) throws IOException {
+        Preconditions.checkArgument(zip.isFile(), "!zip.isFile()");
+
+        if (!directory.isDirectory()) {
+            FileUtils.mkdirs(directory);
+        }
+
+        String k = key(zip);
+        ZipCentralDirectorySnapshot.fromZip(zip).writeTo(new File(directory, k + SNAPSHOT_SUFFIX));
+        FileUtils.deleteIfExists(new File(directory, k));
+    }
+
+    /**
+     * Obtains the snapshot of the zip file with the given path. If the zip was added with
+     * {@link #add(File)} instead of {@link #addZipSnapshot(File)}, the snapshot is read from the
+     * cached copy.
+     *
+     * @param zip the path
+     * @return the snapshot, {@code null} if there is nothing in the cache that corresponds to the
+     * given file
+     * @throws IOException failed to read the snapshot
+     */
+    @Nullable
+    public ZipCentralDirectorySnapshot getZipSnapshot(@NonNull File zip) throws IOException {
+        String k = key(zip);
+        File snapshot = new File(directory, k + SNAPSHOT_SUFFIX);
+        if (snapshot.isFile()) {
+            return ZipCentralDirectorySnapshot.readFrom(snapshot);
+        }
+
+        File copy = new File(directory, k);
+        if (copy.isFile()) {
+            return ZipCentralDirectorySnapshot.fromZip(copy);
+        } else {
+            return null;
+        }
     }
 
     /**
@@ -106,10 +162,12 @@ public class FileCacheByPath {
      * @throws IOException failed to remove the file
      */
     public void remove(@NonNull File f) throws IOException {
-        File toRemove = new File(directory, key(f));
+        String k = key(f);
+        File toRemove = new File(directory, k);
         if (toRemove.exists()) {
             FileUtils.delete(toRemove);
         }
+        FileUtils.deleteIfExists(new File(directory, k + SNAPSHOT_SUFFIX));
     }
 
     /**
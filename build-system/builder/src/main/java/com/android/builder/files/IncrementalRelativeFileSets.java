@@ -18,16 +18,12 @@ package com.android.builder.files;
 
 import com.android.annotations.NonNull;
 import com.android.apkzlib.utils.IOExceptionRunnable;
-import com.android.apkzlib.zip.StoredEntry;
-import com.android.apkzlib.zip.StoredEntryType;
-import com.android.apkzlib.zip.ZFile;
 import com.android.ide.common.res2.FileStatus;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.Closer;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
@@ -105,10 +101,11 @@ public final class IncrementalRelativeFileSets {
 
     /**
      * Computes the incremental file set that results from comparing a zip file with a possibly
-     * existing cached file. If the cached file does not exist, then the whole zip is reported
-     * as {@link FileStatus#NEW}. If {@code zip} does not exist and a cached file exists, then
-     * the whole zip is reported as {@link FileStatus#REMOVED}. Otherwise, both zips are compared
-     * and the difference returned.
+     * existing cached snapshot (see {@link FileCacheByPath#getZipSnapshot(File)}). If the cached
+     * snapshot does not exist, then the whole zip is reported as {@link FileStatus#NEW}. If
+     * {@code zip} does not exist and a cached snapshot exists, then the whole zip is reported as
+     * {@link FileStatus#REMOVED}. Otherwise, the central directory of the zip is compared with the
+     * snapshot and the difference returned.
      *
      * @param zip the zip file to read, must be a valid, existing zip file
      * @param cache the cache where to find the old version of the zip
@@ -122,8 +119,8 @@ public final class IncrementalRelativeFileSets {
             @NonNull File zip,
             @NonNull FileCacheByPath cache,
             @NonNull Set<Runnable> cacheUpdates) throws IOException {
-        File oldFile = cache.get(zip);
-        if (oldFile == null) {
+        ZipCentralDirectorySnapshot oldSnapshot = cache.getZipSnapshot(zip);
+        if (oldSnapshot == null) {
             /*
              * No old zip in cache. If the zip also doesn't exist, report all empty.
              */
@@ -131,7 +128,7 @@ public final class IncrementalRelativeFileSets {
                 return ImmutableMap.of();
             }
 
-            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip)));
+            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.addZipSnapshot(zip)));
             return fromZip(zip, FileStatus.NEW);
         }
 
@@ -142,80 +139,49 @@ public final class IncrementalRelativeFileSets {
              */
 
             ImmutableMap.Builder<RelativeFile, FileStatus> builder = ImmutableMap.builder();
-
-            try (ZFile zipReader = new ZFile(oldFile)) {
-                for (StoredEntry entry : zipReader.entries()) {
-                    if (entry.getType() == StoredEntryType.FILE) {
-                        builder.put(
-                                new RelativeFile(zip, entry.getCentralDirectoryHeader().getName()),
-                                FileStatus.REMOVED);
-                    }
-                }
+            for (String path : oldSnapshot.getEntries().keySet()) {
+                builder.put(new RelativeFile(zip, path), FileStatus.REMOVED);
             }
 
-
             cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.remove(zip)));
             return builder.build();
         }
 
         /*
-         * We have both a new and old zip. Compare both.
+         * We have both a new and old zip. Compare both. Only the central directory of the new zip
+         * needs to be read for this.
          */
         Map<RelativeFile, FileStatus> result = Maps.newHashMap();
+        ZipCentralDirectorySnapshot newSnapshot = ZipCentralDirectorySnapshot.fromZip(zip);
 
-        Closer closer = Closer.create();
-        try {
-            ZFile newZipReader = closer.register(new ZFile(zip));
-            ZFile oldZipReader = closer.register(new ZFile(oldFile));
+        /*
+         * Search for new and modified files.
+         */
+        for (ZipCentralDirectorySnapshot.Entry entry : newSnapshot.getEntries().values()) {
+            RelativeFile newRelative = new RelativeFile(zip, entry.getName());
+
+            ZipCentralDirectorySnapshot.Entry oldEntry = oldSnapshot.get(entry.getName());
+            if (oldEntry == null) {
+                result.put(newRelative, FileStatus.NEW);
+            } else if (!oldEntry.hasSameContents(entry)) {
+                result.put(newRelative, FileStatus.CHANGED);
+            }
 
             /*
-             * Search for new and modified files.
+             * Otherwise, the file exists in both unmodified.
              */
-            for (StoredEntry entry : newZipReader.entries()) {
-                String path = entry.getCentralDirectoryHeader().getName();
-                if (entry.getType() == StoredEntryType.FILE) {
-                    RelativeFile newRelative = new RelativeFile(zip, path);
-
-                    StoredEntry oldEntry = oldZipReader.get(path);
-                    if (oldEntry == null || oldEntry.getType() != StoredEntryType.FILE) {
-                        result.put(newRelative, FileStatus.NEW);
-                        continue;
-                    }
-
-                    if (oldEntry.getCentralDirectoryHeader().getCrc32()
-                            != entry.getCentralDirectoryHeader().getCrc32()
-                            || oldEntry.getCentralDirectoryHeader().getUncompressedSize()
-                            != entry.getCentralDirectoryHeader().getUncompressedSize()) {
-                        result.put(newRelative, FileStatus.CHANGED);
-                    }
-
-                    /*
-                     * If we get here, then the file exists in both unmodified.
-                     */
-                }
-            }
+        }
 
-            for (StoredEntry entry : oldZipReader.entries()) {
-                String path = entry.getCentralDirectoryHeader().getName();
-                if (entry.getType() == StoredEntryType.FILE) {
-                    RelativeFile oldRelative = new RelativeFile(zip, path);
-
-                    StoredEntry newEntry = newZipReader.get(path);
-                    if (newEntry == null || newEntry.getType() != StoredEntryType.FILE) {
-                        /*
-                         * File does not exist in new. It has been deleted.
-                         */
-                        result.put(oldRelative, FileStatus.REMOVED);
-                    }
-                }
+        for (String path : oldSnapshot.getEntries().keySet()) {
+            if (newSnapshot.get(path) == null) {
+                /*
+                 * File does not exist in new. It has been deleted.
+                 */
+                result.put(new RelativeFile(zip, path), FileStatus.REMOVED);
             }
-        } catch (Throwable t) {
-            throw closer.rethrow(t, IOException.class);
-        } finally {
-            closer.close();
         }
 
-        cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip)));
+        cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.addZipSnapshot(zip)));
         return ImmutableMap.copyOf(result);
     }
 
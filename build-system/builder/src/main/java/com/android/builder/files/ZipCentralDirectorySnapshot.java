@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.files;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The files of a zip file, as described by its central directory: the name, CRC32, sizes and
+ * offset of each file, without the contents. A snapshot is enough to tell which files of a zip
+ * have been added, removed or changed since the snapshot was taken, and is much smaller than the
+ * zip itself.
+ *
+ * <p>Snapshots are read with {@link #fromZip(Path)}, which only reads the end of the zip file
+ * (where the central directory is), and can be stored with {@link #writeTo(File)}.
+ */
+@Immutable
+public final class ZipCentralDirectorySnapshot {
+
+    /** Signature of the end of central directory record. */
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    /** Signature of the zip64 end of central directory locator. */
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+    /** Signature of the zip64 end of central directory record. */
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+    /** Signature of a central directory file header. */
+    private static final int CD_HEADER_SIGNATURE = 0x02014b50;
+
+    /** Size of the end of central directory record, without the comment. */
+    private static final int EOCD_SIZE = 22;
+
+    /** Size of the zip64 end of central directory locator. */
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+
+    /** Size of the zip64 end of central directory record, without the extensible data. */
+    private static final int ZIP64_EOCD_SIZE = 56;
+
+    /** Size of a central directory file header, without the name, extra field and comment. */
+    private static final int CD_HEADER_SIZE = 46;
+
+    /** Maximum size of the zip file comment. */
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /** Header ID of the zip64 extended information extra field. */
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    /** General purpose flag telling that the file name is encoded in UTF-8. */
+    private static final int UTF8_NAME_FLAG = 1 << 11;
+
+    /** Magic number at the start of the files written by {@link #writeTo(File)}. */
+    private static final int SNAPSHOT_MAGIC = 0x5a434453;
+
+    /** Version of the format of the files written by {@link #writeTo(File)}. */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /** The files in the zip, by name. */
+    @NonNull private final ImmutableMap<String, Entry> entries;
+
+    private ZipCentralDirectorySnapshot(@NonNull ImmutableMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /** Returns the files of the zip, by name. Directories are not included. */
+    @NonNull
+    public ImmutableMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the file of the zip with the given name.
+     *
+     * @param name the name of the file, with sub directories separated by slashes
+     * @return the file, or {@code null} if there is no such file in the zip
+     */
+    @Nullable
+    public Entry get(@NonNull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     *
+     * @param zip the zip file, must be an existing file
+     * @return the snapshot
+     * @throws IOException failed to read the zip file, or the zip file is not valid
+     */
+    @NonNull
+    public static ZipCentralDirectorySnapshot fromZip(@NonNull File zip) throws IOException {
+        return fromZip(zip.toPath());
+    }
+
+    /**
+     * Reads the central directory of a zip file. The names of the files that are not flagged as
+     * UTF-8 are decoded as US-ASCII, like apkzlib does, so that they match the names of the
+     * relative files read from the zips.
+     *
+     * @param zip the zip file, must be an existing file
+     * @return the snapshot
+     * @throws IOException failed to read the zip file, or the zip file is not valid
+     */
+    @NonNull
+    public static ZipCentralDirectorySnapshot fromZip(@NonNull Path zip) throws IOException {
+        return fromZip(zip, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     *
+     * @param zip the zip file, must be an existing file
+     * @param nameCharset the charset of the names of the files that are not flagged as UTF-8
+     * @return the snapshot
+     * @throws IOException failed to read the zip file, or the zip file is not valid
+     */
+    @NonNull
+    public static ZipCentralDirectorySnapshot fromZip(
+            @NonNull Path zip, @NonNull Charset nameCharset) throws IOException {
+        try (SeekableByteChannel file = Files.newByteChannel(zip)) {
+            long length = file.size();
+
+            // Find the end of central directory record, which is followed by a comment of up to
+            // 64k bytes
+            int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = read(file, length - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE
+                        && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) <= tailSize) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd == -1) {
+                throw new IOException("No end of central directory record in " + zip);
+            }
+
+            long entryCount = tail.getShort(eocd + 10) & 0xffff;
+            long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+            // Large zips store these values in the zip64 end of central directory record instead
+            long eocdOffset = length - tailSize + eocd;
+            if ((entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL)
+                    && eocdOffset >= ZIP64_EOCD_LOCATOR_SIZE) {
+                ByteBuffer locator =
+                        read(file, eocdOffset - ZIP64_EOCD_LOCATOR_SIZE, ZIP64_EOCD_LOCATOR_SIZE);
+                if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                    ByteBuffer zip64Eocd = read(file, locator.getLong(8), ZIP64_EOCD_SIZE);
+                    if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                        throw new IOException("Invalid zip64 end of central directory in " + zip);
+                    }
+                    entryCount = zip64Eocd.getLong(32);
+                    cdSize = zip64Eocd.getLong(40);
+                    cdOffset = zip64Eocd.getLong(48);
+                }
+            }
+
+            if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > length
+                    || cdSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid central directory in " + zip);
+            }
+
+            ByteBuffer cd = read(file, cdOffset, (int) cdSize);
+            ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+            for (long i = 0; i < entryCount; i++) {
+                Entry entry = readEntry(cd, zip, nameCharset);
+                if (!entry.getName().endsWith("/")) {
+                    entries.put(entry.getName(), entry);
+                }
+            }
+            return new ZipCentralDirectorySnapshot(entries.build());
+        } catch (IndexOutOfBoundsException
+                | BufferUnderflowException
+                | IllegalArgumentException e) {
+            throw new IOException("Invalid central directory in " + zip, e);
+        }
+    }
+
+    /** Reads the central directory file header at the position of the given buffer. */
+    @NonNull
+    private static Entry readEntry(
+            @NonNull ByteBuffer cd, @NonNull Path zip, @NonNull Charset nameCharset)
+            throws IOException {
+        int header = cd.position();
+        if (cd.getInt(header) != CD_HEADER_SIGNATURE) {
+            throw new IOException("Invalid central directory file header in " + zip);
+        }
+        int flags = cd.getShort(header + 8) & 0xffff;
+        long crc32 = cd.getInt(header + 16) & 0xffffffffL;
+        long compressedSize = cd.getInt(header + 20) & 0xffffffffL;
+        long uncompressedSize = cd.getInt(header + 24) & 0xffffffffL;
+        int nameLength = cd.getShort(header + 28) & 0xffff;
+        int extraLength = cd.getShort(header + 30) & 0xffff;
+        int commentLength = cd.getShort(header + 32) & 0xffff;
+        long offset = cd.getInt(header + 42) & 0xffffffffL;
+
+        byte[] nameBytes = new byte[nameLength];
+        cd.position(header + CD_HEADER_SIZE);
+        cd.get(nameBytes);
+        Charset charset = (flags & UTF8_NAME_FLAG) != 0 ? StandardCharsets.UTF_8 : nameCharset;
+        String name = new String(nameBytes, charset);
+
+        // The zip64 extra field holds the values too large for the header, in this order
+        int extra = cd.position();
+        int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = cd.getShort(extra) & 0xffff;
+            int size = cd.getShort(extra + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_FIELD_ID) {
+                int value = extra + 4;
+                if (uncompressedSize == 0xffffffffL && value + 8 <= extra + 4 + size) {
+                    uncompressedSize = cd.getLong(value);
+                    value += 8;
+                }
+                if (compressedSize == 0xffffffffL && value + 8 <= extra + 4 + size) {
+                    compressedSize = cd.getLong(value);
+                    value += 8;
+                }
+                if (offset == 0xffffffffL && value + 8 <= extra + 4 + size) {
+                    offset = cd.getLong(value);
+                }
+            }
+            extra += 4 + size;
+        }
+
+        cd.position(extraEnd + commentLength);
+        return new Entry(name, crc32, compressedSize, uncompressedSize, offset);
+    }
+
+    /**
+     * Reads {@code size} bytes of the given file, from the given position.
+     *
+     * @throws EOFException if the file ends before
+     */
+    @NonNull
+    private static ByteBuffer read(@NonNull SeekableByteChannel file, long position, int size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        file.position(position);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeTo(File)}.
+     *
+     * @param file the file with the snapshot
+     * @return the snapshot
+     * @throws IOException failed to read the file, or the file is not a snapshot
+     */
+    @NonNull
+    public static ZipCentralDirectorySnapshot readFrom(@NonNull File file) throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Invalid zip snapshot " + file);
+            }
+            int entryCount = in.readInt();
+            ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry =
+                        new Entry(
+                                in.readUTF(),
+                                in.readLong(),
+                                in.readLong(),
+                                in.readLong(),
+                                in.readLong());
+                entries.put(entry.getName(), entry);
+            }
+            return new ZipCentralDirectorySnapshot(entries.build());
+        }
+    }
+
+    /**
+     * Writes this snapshot to a file, which can then be read with {@link #readFrom(File)}.
+     *
+     * @param file the file to write, replaced if it exists
+     * @throws IOException failed to write the file
+     */
+    public void writeTo(@NonNull File file) throws IOException {
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getCrc32());
+                out.writeLong(entry.getCompressedSize());
+                out.writeLong(entry.getUncompressedSize());
+                out.writeLong(entry.getOffset());
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return entries.equals(((ZipCentralDirectorySnapshot) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("entries", entries.size()).toString();
+    }
+
+    /** A file of the zip, as described by its central directory file header. */
+    @Immutable
+    public static final class Entry {
+
+        @NonNull private final String name;
+
+        private final long crc32;
+
+        private final long compressedSize;
+
+        private final long uncompressedSize;
+
+        private final long offset;
+
+        private Entry(
+                @NonNull String name,
+                long crc32,
+                long compressedSize,
+                long uncompressedSize,
+                long offset) {
+            this.name = name;
+            this.crc32 = crc32;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.offset = offset;
+        }
+
+        /** Returns the name of the file, with sub directories separated by slashes. */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        public long getCrc32() {
+            return crc32;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getUncompressedSize() {
+            return uncompressedSize;
+        }
+
+        /** Returns the offset of the local header of the file in the zip. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns whether the given file most likely has the same contents as this one, that is,
+         * whether they have the same CRC32 and size. Where they are in their zips does not matter.
+         */
+        public boolean hasSameContents(@NonNull Entry other) {
+            return crc32 == other.crc32 && uncompressedSize == other.uncompressedSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Entry entry = (Entry) o;
+            return crc32 == entry.crc32
+                    && compressedSize == entry.compressedSize
+                    && uncompressedSize == entry.uncompressedSize
+                    && offset == entry.offset
+                    && name.equals(entry.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(name, crc32, compressedSize, uncompressedSize, offset);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("name", name)
+                    .add("crc32", crc32)
+                    .add("compressedSize", compressedSize)
+                    .add("uncompressedSize", uncompressedSize)
+                    .add("offset", offset)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.ILogger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A {@link ShardedTestCallable.DeviceShardProvider} handing out test classes to the devices as they
+ * become free, instead of a fixed share of the tests to each device.
+ *
+ * <p>The tests are listed by the first device ready. Their classes are then handed out longest
+ * first, according to the {@link TestTimings} of previous runs, in batches of about a fraction of
+ * the share of each device, so that a slow device or a slow class does not hold back the run.
+ *
+ * <p>The tests of a batch that fail, or that do not run because the instrumentation or the device
+ * crashed, are run again on another device if there is one, up to the given number of retries.
+ * The attempts of tests that eventually passed are listed by {@link #getSupersededTests()}, so
+ * that they can be removed from the reports of the shards they did not pass in.
+ */
+public class DynamicShardProvider implements ShardedTestCallable.DeviceShardProvider {
+
+    /** Lists the tests to run, using a device with the test APKs installed. */
+    public interface TestCollector {
+
+        @NonNull
+        Collection<TestIdentifier> collectTests(@NonNull DeviceConnector device) throws Exception;
+    }
+
+    /** Average number of batches run by each device. */
+    private static final int BATCHES_PER_DEVICE = 4;
+
+    /** Estimated duration of the tests in milliseconds, when no duration is known at all. */
+    private static final long DEFAULT_TEST_DURATION_MS = 1000;
+
+    @NonNull private final TestCollector collector;
+
+    @NonNull private final TestTimings timings;
+
+    @NonNull private final ILogger logger;
+
+    private final int expectedDevices;
+
+    private final int maxRetries;
+
+    /** Names of the devices taking part in the run. */
+    @NonNull private final Set<String> devices = new HashSet<>();
+
+    private boolean collecting;
+
+    private boolean collected;
+
+    private long targetBatchDuration;
+
+    /** Test classes not handed out yet, longest first. */
+    @NonNull private final Deque<TestClass> pendingClasses = new ArrayDeque<>();
+
+    /** Tests to run again, in the order they failed. */
+    @NonNull private final List<Batch> retries = new ArrayList<>();
+
+    @NonNull private final Map<Integer, Batch> runningBatches = new HashMap<>();
+
+    @NonNull private final Set<TestIdentifier> failedTests = new LinkedHashSet<>();
+
+    /** Names of the devices the shards handed out so far ran on. */
+    @NonNull private final Map<Integer, String> shardDevices = new HashMap<>();
+
+    /** Tests that passed when run again, by shard of the attempts they did not pass in. */
+    @NonNull private final Map<Integer, Set<TestIdentifier>> supersededTests = new TreeMap<>();
+
+    private int nextShard;
+
+    public DynamicShardProvider(
+            @NonNull TestCollector collector,
+            @NonNull TestTimings timings,
+            int expectedDevices,
+            int maxRetries,
+            @NonNull ILogger logger) {
+        this.collector = collector;
+        this.timings = timings;
+        this.expectedDevices = expectedDevices;
+        this.maxRetries = maxRetries;
+        this.logger = logger;
+    }
+
+    /** Returns the number of shards handed out so far. */
+    public synchronized int getStartedShardCount() {
+        return nextShard;
+    }
+
+    @Nullable
+    @Override
+    public Integer getNextShard(@NonNull DeviceConnector device) throws Exception {
+        String deviceName = device.getName();
+        if (startCollecting(deviceName)) {
+            Collection<TestIdentifier> tests;
+            try {
+                tests = collector.collectTests(device);
+            } catch (Exception e) {
+                synchronized (this) {
+                    // let another device try.
+                    collecting = false;
+                    notifyAll();
+                }
+                throw e;
+            }
+            setTests(tests);
+        }
+        return getNextShard(deviceName);
+    }
+
+    /**
+     * Registers the device, and returns whether it has to list the tests. Otherwise waits until
+     * another device listed them.
+     */
+    private synchronized boolean startCollecting(@NonNull String deviceName)
+            throws InterruptedException {
+        devices.add(deviceName);
+        while (!collected) {
+            if (!collecting) {
+                collecting = true;
+                return true;
+            }
+            wait();
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    synchronized void setTests(@NonNull Collection<TestIdentifier> tests) {
+        Map<String, List<TestIdentifier>> testsByClass = new LinkedHashMap<>();
+        for (TestIdentifier test : tests) {
+            testsByClass.computeIfAbsent(test.getClassName(), k -> new ArrayList<>()).add(test);
+        }
+
+        long averageDuration = timings.getAverageDuration();
+        if (averageDuration < 0) {
+            averageDuration = DEFAULT_TEST_DURATION_MS;
+        }
+        List<TestClass> classes = new ArrayList<>(testsByClass.size());
+        long totalDuration = 0;
+        for (Map.Entry<String, List<TestIdentifier>> entry : testsByClass.entrySet()) {
+            long duration = 0;
+            for (TestIdentifier test : entry.getValue()) {
+                long testDuration = timings.getDuration(test);
+                duration += testDuration >= 0 ? testDuration : averageDuration;
+            }
+            classes.add(new TestClass(entry.getKey(), entry.getValue(), duration));
+            totalDuration += duration;
+        }
+        classes.sort(
+                Comparator.comparingLong((TestClass testClass) -> testClass.duration)
+                        .reversed()
+                        .thenComparing(testClass -> testClass.name));
+
+        pendingClasses.addAll(classes);
+        targetBatchDuration = totalDuration / (Math.max(expectedDevices, 1) * BATCHES_PER_DEVICE);
+        collected = true;
+        collecting = false;
+        logger.verbose(
+                "Scheduling %d tests in %d classes, %d ms per batch",
+                tests.size(), classes.size(), targetBatchDuration);
+        notifyAll();
+    }
+
+    @VisibleForTesting
+    @Nullable
+    synchronized Integer getNextShard(@NonNull String deviceName) throws InterruptedException {
+        devices.add(deviceName);
+        while (true) {
+            Batch batch = takeRetry(deviceName);
+            if (batch == null && !pendingClasses.isEmpty()) {
+                batch = takeClasses();
+            }
+            if (batch != null) {
+                int shard = nextShard++;
+                batch.device = deviceName;
+                runningBatches.put(shard, batch);
+                shardDevices.put(shard, deviceName);
+                return shard;
+            }
+            if (runningBatches.isEmpty() && retries.isEmpty()) {
+                devices.remove(deviceName);
+                return null;
+            }
+            // running batches may still need a retry.
+            wait();
+        }
+    }
+
+    @Nullable
+    private Batch takeRetry(@NonNull String deviceName) {
+        Iterator<Batch> iterator = retries.iterator();
+        while (iterator.hasNext()) {
+            Batch batch = iterator.next();
+            // a test may fail on one device only, but with a single device left it is that one or
+            // no retry.
+            if (!deviceName.equals(batch.excludedDevice) || devices.size() == 1) {
+                iterator.remove();
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private Batch takeClasses() {
+        List<String> classNames = new ArrayList<>();
+        List<TestIdentifier> tests = new ArrayList<>();
+        long duration = 0;
+        do {
+            TestClass testClass = pendingClasses.poll();
+            classNames.add(testClass.name);
+            tests.addAll(testClass.tests);
+            duration += testClass.duration;
+        } while (!pendingClasses.isEmpty()
+                && duration + pendingClasses.peek().duration <= targetBatchDuration);
+        return new Batch(classNames, tests, 0, null, Collections.emptyList());
+    }
+
+    @Override
+    public void configureShard(int shard, @NonNull RemoteAndroidTestRunner runner) {
+        Batch batch;
+        synchronized (this) {
+            batch = runningBatches.get(shard);
+        }
+        if (batch.classNames != null) {
+            runner.setClassNames(batch.classNames.toArray(new String[0]));
+        } else {
+            String[] methods = new String[batch.tests.size()];
+            for (int i = 0; i < methods.length; i++) {
+                TestIdentifier test = batch.tests.get(i);
+                methods[i] = test.getClassName() + "#" + test.getTestName();
+            }
+            runner.setClassNames(methods);
+        }
+    }
+
+    @Override
+    public boolean shardFinished(
+            int shard, @NonNull DeviceConnector device, @NonNull TestRunResult result) {
+        return shardFinished(shard, device.getName(), result);
+    }
+
+    @VisibleForTesting
+    synchronized boolean shardFinished(
+            int shard, @NonNull String deviceName, @NonNull TestRunResult result) {
+        Batch batch = runningBatches.remove(shard);
+        notifyAll();
+        Map<TestIdentifier, TestResult> results = result.getTestResults();
+
+        boolean success = true;
+        List<TestIdentifier> notPassed = new ArrayList<>();
+        for (TestIdentifier test : batch.tests) {
+            if (!hasPassed(results.get(test))) {
+                notPassed.add(test);
+            }
+        }
+        // tests not listed beforehand, like parameterized ones, cannot be picked out for a retry.
+        Set<TestIdentifier> batchTests = new HashSet<>(batch.tests);
+        for (Map.Entry<TestIdentifier, TestResult> entry : results.entrySet()) {
+            if (!batchTests.contains(entry.getKey()) && !hasPassed(entry.getValue())) {
+                failedTests.add(entry.getKey());
+                success = false;
+            }
+        }
+
+        for (int failedShard : batch.failedShards) {
+            for (TestIdentifier test : batch.tests) {
+                if (!notPassed.contains(test)) {
+                    supersededTests
+                            .computeIfAbsent(failedShard, k -> new LinkedHashSet<>())
+                            .add(test);
+                }
+            }
+        }
+
+        if (notPassed.isEmpty()) {
+            return success;
+        }
+        if (batch.attempt < maxRetries) {
+            logger.warning(
+                    "%d test(s) did not pass on %s, running them again",
+                    notPassed.size(), deviceName);
+            retries.add(
+                    new Batch(
+                            null,
+                            notPassed,
+                            batch.attempt + 1,
+                            deviceName,
+                            withShard(batch.failedShards, shard)));
+            return success;
+        }
+        failedTests.addAll(notPassed);
+        return false;
+    }
+
+    /**
+     * Hands the tests the device was running to the other devices. Tests that no device is left to
+     * run count as failed, see {@link #hasFailedTests()}.
+     */
+    @Override
+    public boolean deviceFailed(@NonNull DeviceConnector device) {
+        deviceFailed(device.getName());
+        return true;
+    }
+
+    @VisibleForTesting
+    synchronized void deviceFailed(@NonNull String deviceName) {
+        devices.remove(deviceName);
+        Iterator<Map.Entry<Integer, Batch>> iterator = runningBatches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Batch> entry = iterator.next();
+            Batch batch = entry.getValue();
+            if (deviceName.equals(batch.device)) {
+                iterator.remove();
+                // the tests did not get a chance to run, so this is not a retry. Some of them may
+                // be in the report of the shard though.
+                retries.add(
+                        new Batch(
+                                batch.classNames,
+                                batch.tests,
+                                batch.attempt,
+                                deviceName,
+                                withShard(batch.failedShards, entry.getKey())));
+            }
+        }
+        notifyAll();
+    }
+
+    /** Returns whether tests failed for good, or never ran because no device was left. */
+    public synchronized boolean hasFailedTests() {
+        return !collected
+                || !failedTests.isEmpty()
+                || !pendingClasses.isEmpty()
+                || !retries.isEmpty()
+                || !runningBatches.isEmpty();
+    }
+
+    @NonNull
+    public synchronized Set<TestIdentifier> getFailedTests() {
+        return new LinkedHashSet<>(failedTests);
+    }
+
+    /**
+     * Returns the tests that did not pass in a shard but passed when run again, by shard. Their
+     * results in the report of the shard are superseded by the ones of the later attempt.
+     */
+    @NonNull
+    public synchronized Map<Integer, Set<TestIdentifier>> getSupersededTests() {
+        Map<Integer, Set<TestIdentifier>> tests = new TreeMap<>();
+        for (Map.Entry<Integer, Set<TestIdentifier>> entry : supersededTests.entrySet()) {
+            tests.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+        }
+        return tests;
+    }
+
+    /** Returns the name of the device a shard was handed out to. */
+    @Nullable
+    public synchronized String getShardDevice(int shard) {
+        return shardDevices.get(shard);
+    }
+
+    @NonNull
+    private static List<Integer> withShard(@NonNull List<Integer> shards, int shard) {
+        List<Integer> result = new ArrayList<>(shards.size() + 1);
+        result.addAll(shards);
+        result.add(shard);
+        return result;
+    }
+
+    private static boolean hasPassed(@Nullable TestResult result) {
+        if (result == null) {
+            return false;
+        }
+        switch (result.getStatus()) {
+            case PASSED:
+            case IGNORED:
+            case ASSUMPTION_FAILURE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static final class TestClass {
+
+        @NonNull private final String name;
+
+        @NonNull private final List<TestIdentifier> tests;
+
+        private final long duration;
+
+        TestClass(@NonNull String name, @NonNull List<TestIdentifier> tests, long duration) {
+            this.name = name;
+            this.tests = tests;
+            this.duration = duration;
+        }
+    }
+
+    private static final class Batch {
+
+        /** Classes to run, or null to run the tests one by one. */
+        @Nullable private final List<String> classNames;
+
+        @NonNull private final List<TestIdentifier> tests;
+
+        private final int attempt;
+
+        @Nullable private final String excludedDevice;
+
+        /** Shards of the previous attempts at running the tests. */
+        @NonNull private final List<Integer> failedShards;
+
+        @Nullable private String device;
+
+        Batch(
+                @Nullable List<String> classNames,
+                @NonNull List<TestIdentifier> tests,
+                int attempt,
+                @Nullable String excludedDevice,
+                @NonNull List<Integer> failedShards) {
+            this.classNames = classNames;
+            this.tests = tests;
+            this.attempt = attempt;
+            this.excludedDevice = excludedDevice;
+            this.failedShards = failedShards;
+        }
+    }
+}
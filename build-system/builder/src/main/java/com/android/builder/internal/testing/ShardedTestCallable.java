@@ -74,7 +74,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
     private final ILogger logger;
 
     @NonNull
-    private final ShardProvider shardProvider;
+    private final DeviceShardProvider shardProvider;
 
     private final int timeoutInMs;
 
@@ -90,7 +90,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
             @NonNull File coverageDir,
             int timeoutInMs,
             @NonNull ILogger logger,
-            @NonNull ShardProvider shardProvider) {
+            @NonNull DeviceShardProvider shardProvider) {
         this.projectName = projectName;
         this.device = device;
         this.flavorName = flavorName;
@@ -165,7 +165,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
             isInstalled = true;
             Integer shard;
 
-            while ((shard = shardProvider.getNextShard()) != null) {
+            while ((shard = shardProvider.getNextShard(device)) != null) {
                 logger.verbose("Running shard %d on %s", shard, deviceName);
                 RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
                         testData.getApplicationId(),
@@ -184,9 +184,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
                     runner.addInstrumentationArg("coverageFile",
                             coverageFileLocation + coverageFileName);
                 }
-                runner.addInstrumentationArg("shardIndex", String.valueOf(shard));
-                runner.addInstrumentationArg("numShards",
-                        String.valueOf(shardProvider.getTotalShards()));
+                shardProvider.configureShard(shard, runner);
 
                 runner.setRunName(deviceName);
                 runner.setMaxtimeToOutputResponse(timeoutInMs);
@@ -201,19 +199,21 @@ public class ShardedTestCallable implements Callable<Boolean> {
                     // just show a warning since it is OK to have 0 tests in sharded runner.
                     logger.warning("shard %d  has 0 tests. This might be OK", shard);
                 }
-                failed |= testRunResult.hasFailedTests() || testRunResult.isRunFailure();
+                failed |= !shardProvider.shardFinished(shard, device, testRunResult);
                 logger.verbose("done running shard %d on %s", shard, deviceName);
             }
             return !failed;
         } catch (Exception e) {
+            boolean handedOver = shardProvider.deviceFailed(device);
             Map<String, String> emptyMetrics = Collections.emptyMap();
 
-            // create a fake test output
+            // create a fake test output, unless the tests are run again on other devices, whose
+            // reports then tell whether they passed.
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             PrintWriter pw = new PrintWriter(baos, true);
             e.printStackTrace(pw);
             TestIdentifier fakeTest = new TestIdentifier(device.getClass().getName(), "runTests");
-            if (runListener != null) {
+            if (runListener != null && !handedOver) {
                 runListener.testStarted(fakeTest);
                 runListener.testFailed(fakeTest, baos.toString());
                 runListener.testEnded(fakeTest, emptyMetrics);
@@ -291,12 +291,78 @@ public class ShardedTestCallable implements Callable<Boolean> {
         }
     }
 
-    public interface ShardProvider {
+    /** Hands out the shards to run to the devices of a sharded test run. */
+    public interface DeviceShardProvider {
+
+        /**
+         * Returns the next shard to run on the given device, or null if there is none left. May
+         * block until there is work for the device.
+         */
+        @Nullable
+        Integer getNextShard(@NonNull DeviceConnector device) throws Exception;
+
+        /** Selects the tests of the shard to run with the given runner. */
+        void configureShard(int shard, @NonNull RemoteAndroidTestRunner runner);
+
+        /**
+         * Called when a shard ran on a device. Returns false if the run failed for good, true if
+         * it succeeded or if its failed tests will be run again.
+         */
+        boolean shardFinished(
+                int shard, @NonNull DeviceConnector device, @NonNull TestRunResult result);
+
+        /**
+         * Called when a device stops running tests because of an error. Returns true if the tests
+         * of the device are handed to other devices, in which case the error is not reported as a
+         * failed test of the shard the device was running.
+         */
+        boolean deviceFailed(@NonNull DeviceConnector device);
+    }
+
+    /**
+     * Hands out a fixed number of shards to whichever device asks first, the instrumentation
+     * selecting the tests of each shard from its index.
+     */
+    public interface ShardProvider extends DeviceShardProvider {
 
         @Nullable
         Integer getNextShard();
 
         int getTotalShards();
+
+        @Nullable
+        @Override
+        default Integer getNextShard(@NonNull DeviceConnector device) {
+            return getNextShard();
+        }
+
+        @Override
+        default void configureShard(int shard, @NonNull RemoteAndroidTestRunner runner) {
+            runner.addInstrumentationArg("shardIndex", String.valueOf(shard));
+            runner.addInstrumentationArg("numShards", String.valueOf(getTotalShards()));
+        }
+
+        @Override
+        default boolean shardFinished(
+                int shard, @NonNull DeviceConnector device, @NonNull TestRunResult result) {
+            return !result.hasFailedTests() && !result.isRunFailure();
+        }
+
+        @Override
+        default boolean deviceFailed(@NonNull DeviceConnector device) {
+            return false;
+        }
+    }
+
+    /** Returns the name of the XML report of a shard, within the results directory. */
+    @NonNull
+    public static String getResultFileName(
+            int shard,
+            @NonNull String deviceName,
+            @NonNull String projectName,
+            @NonNull String flavorName) {
+        return "TEST-" + deviceName + "-" + projectName + "-" + flavorName
+                + "-shard-" + shard + ".xml";
     }
 
     private static final class ShardedTestListener extends CustomTestRunListener {
@@ -308,8 +374,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
         public ShardedTestListener(int shard, @NonNull String deviceName,
                 @NonNull String projectName, @NonNull String flavorName, @Nullable ILogger logger) {
             super(deviceName, projectName, flavorName, logger);
-            name = "TEST-" + deviceName + "-" + projectName + "-" + flavorName
-                    + "-shard-" + shard + ".xml";
+            name = getResultFileName(shard, deviceName, projectName, flavorName);
         }
 
         public void setProgressListener(
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.XmlUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Durations of instrumentation tests in previous runs, used to balance the tests between devices.
+ *
+ * <p>The durations are read from the XML reports of the runs, and persisted as lines of
+ * {@code <duration in ms> <class>#<method>}.
+ */
+public final class TestTimings {
+
+    @NonNull private final Map<String, Long> durations = new TreeMap<>();
+
+    /**
+     * Loads the timings saved in a file. Returns empty timings if there is no such file, or if it
+     * cannot be read.
+     */
+    @NonNull
+    public static TestTimings load(@Nullable File file) {
+        TestTimings timings = new TestTimings();
+        if (file == null || !file.isFile()) {
+            return timings;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    timings.durations.put(
+                            line.substring(separator + 1),
+                            Long.parseLong(line.substring(0, separator)));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // stale or corrupted timings only make the balancing worse.
+            timings.durations.clear();
+        }
+        return timings;
+    }
+
+    public void save(@NonNull File file) throws IOException {
+        List<String> lines = new ArrayList<>(durations.size());
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            lines.add(entry.getValue() + " " + entry.getKey());
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the duration of the test in milliseconds, or -1 if it is not known. */
+    public long getDuration(@NonNull TestIdentifier test) {
+        Long duration = durations.get(getKey(test.getClassName(), test.getTestName()));
+        return duration != null ? duration : -1;
+    }
+
+    /** Returns the average duration of the known tests in milliseconds, or -1 if there are none. */
+    public long getAverageDuration() {
+        if (durations.isEmpty()) {
+            return -1;
+        }
+        long total = 0;
+        for (long duration : durations.values()) {
+            total += duration;
+        }
+        return total / durations.size();
+    }
+
+    public void setDuration(@NonNull TestIdentifier test, long durationMs) {
+        durations.put(getKey(test.getClassName(), test.getTestName()), durationMs);
+    }
+
+    /**
+     * Records the durations of the tests in the {@code TEST-*.xml} reports of a directory. A test
+     * that ran several times keeps its longest duration.
+     */
+    public void addReports(@NonNull File resultsDir) {
+        File[] reports = resultsDir.listFiles(
+                (dir, name) -> name.startsWith("TEST-") && name.endsWith(".xml"));
+        if (reports == null) {
+            return;
+        }
+        Map<String, Long> reported = new TreeMap<>();
+        for (File report : reports) {
+            NodeList testCases;
+            try {
+                testCases =
+                        XmlUtils.parseUtfXmlFile(report, false).getElementsByTagName("testcase");
+            } catch (IOException | ParserConfigurationException | SAXException e) {
+                continue;
+            }
+            for (int i = 0; i < testCases.getLength(); i++) {
+                Element testCase = (Element) testCases.item(i);
+                String time = testCase.getAttribute("time");
+                if (time.isEmpty()) {
+                    continue;
+                }
+                long duration;
+                try {
+                    duration = Math.round(Double.parseDouble(time) * 1000);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                reported.merge(
+                        getKey(testCase.getAttribute("classname"), testCase.getAttribute("name")),
+                        duration,
+                        Math::max);
+            }
+        }
+        durations.putAll(reported);
+    }
+
+    @NonNull
+    private static String getKey(@NonNull String className, @NonNull String testName) {
+        return className + "#" + testName;
+    }
+}
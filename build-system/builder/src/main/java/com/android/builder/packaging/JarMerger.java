@@ -18,26 +18,55 @@ package com.android.builder.packaging;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.builder.files.ZipCentralDirectorySnapshot;
 import com.android.utils.PathUtils;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
-/** Jar Merger class. */
+/**
+ * Jar Merger class.
+ *
+ * <p>The entries of the jars added with {@link #addJar(Path)} are copied as they are, without
+ * decompressing and compressing them again. The other entries are compressed in parallel, but are
+ * written in the order they were added, so that the same inputs always give the same jar, byte for
+ * byte: all entries have the same timestamp ({@link #ZERO_TIME}), and the entries of directories
+ * are sorted.
+ */
 public class JarMerger implements Closeable {
 
     public interface Transformer {
@@ -60,12 +89,60 @@ public class JarMerger implements Closeable {
 
     public static final FileTime ZERO_TIME = FileTime.fromMillis(0);
 
-    private final byte[] buffer = new byte[8192];
+    /** Maximum number of entries being compressed before waiting for the first one. */
+    private static final int MAX_PENDING_ENTRIES = 256;
+
+    /** Maximum size of the entries being compressed before waiting for the first one. */
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /** General purpose flag telling that the entry is encrypted. */
+    private static final int ENCRYPTED_FLAG = 1;
 
-    @NonNull private final JarOutputStream jarOutputStream;
+    /** General purpose flag telling that the file name is encoded in UTF-8. */
+    private static final int UTF8_NAME_FLAG = 1 << 11;
+
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+
+    /** MS-DOS time and date of {@link #ZERO_TIME}, which is before the MS-DOS epoch. */
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    /**
+     * Extended timestamp extra field setting the last modification time to {@link #ZERO_TIME}, as
+     * MS-DOS times cannot represent it.
+     */
+    private static final byte[] TIMESTAMP_EXTRA_FIELD = {0x55, 0x54, 5, 0, 1, 0, 0, 0, 0};
+
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+
+    @NonNull private final CountingOutputStream outputStream;
 
     @Nullable private final ZipEntryFilter filter;
 
+    @NonNull private final ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    /** The entries being compressed, in the order they are written. */
+    @NonNull private final Deque<Future<CompressedEntry>> pendingEntries = new ArrayDeque<>();
+
+    /** The uncompressed size of {@link #pendingEntries}. */
+    private long pendingBytes;
+
+    /** The entries written, for the central directory. */
+    @NonNull private final List<WrittenEntry> writtenEntries = new ArrayList<>();
+
+    /** The names of all the entries added. */
+    @NonNull private final Set<String> entryNames = new HashSet<>();
+
     public JarMerger(@NonNull Path jarFile) throws IOException {
         this(jarFile, null);
     }
@@ -73,8 +150,9 @@ public class JarMerger implements Closeable {
     public JarMerger(@NonNull Path jarFile, @Nullable ZipEntryFilter filter) throws IOException {
         this.filter = filter;
         Files.createDirectories(jarFile.getParent());
-        jarOutputStream =
-                new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarFile)));
+        outputStream =
+                new CountingOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(jarFile)));
     }
 
     public void addDirectory(@NonNull Path directory) throws IOException {
@@ -119,10 +197,10 @@ public class JarMerger implements Closeable {
                 if (transformer != null) {
                     @Nullable InputStream is2 = transformer.filter(entryPath, is);
                     if (is2 != null) {
-                        write(new JarEntry(entryPath), is2);
+                        write(entryPath, is2, ZipEntry.DEFLATED);
                     }
                 } else {
-                    write(new JarEntry(entryPath), is);
+                    write(entryPath, is, ZipEntry.DEFLATED);
                 }
             }
         }
@@ -137,6 +215,45 @@ public class JarMerger implements Closeable {
             @Nullable ZipEntryFilter filterOverride,
             @Nullable Relocator relocator)
             throws IOException {
+        ZipCentralDirectorySnapshot centralDirectory;
+        try {
+            // Names not flagged as UTF-8 are decoded as UTF-8 anyway, like ZipInputStream does
+            centralDirectory = ZipCentralDirectorySnapshot.fromZip(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Let ZipInputStream read what it can of jars whose central directory can't be read
+            addJarEntries(file, filterOverride, relocator);
+            return;
+        }
+
+        // The entries are copied right away, so the entries before them need to be written first
+        writePendingEntries(0, 0);
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            for (ZipCentralDirectorySnapshot.Entry entry :
+                    centralDirectory.getEntries().values()) {
+                // Filter out files, e.g. META-INF folder, not classes.
+                String name = entry.getName();
+                if (!checkEntry(filterOverride, name)) {
+                    continue;
+                }
+
+                if (relocator != null) {
+                    name = relocator.relocate(name);
+                }
+
+                copyEntry(name, entry, channel, file);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries of a jar by decompressing them, see {@link #addJar(Path, ZipEntryFilter,
+     * Relocator)}.
+     */
+    private void addJarEntries(
+            @NonNull Path file,
+            @Nullable ZipEntryFilter filterOverride,
+            @Nullable Relocator relocator)
+            throws IOException {
         try (ZipInputStream zis =
                 new ZipInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
 
@@ -150,54 +267,338 @@ public class JarMerger implements Closeable {
 
                 // Filter out files, e.g. META-INF folder, not classes.
                 String name = entry.getName();
-                try {
-                    if (filterOverride != null && !filterOverride.checkEntry(name)) {
-                        continue;
-                    }
-                } catch (ZipAbortException e) {
-                    throw new IOException(e);
+                if (!checkEntry(filterOverride, name)) {
+                    continue;
                 }
 
                 if (relocator != null) {
                     name = relocator.relocate(name);
                 }
 
-                JarEntry newEntry = new JarEntry(name);
-                newEntry.setMethod(entry.getMethod());
-                if (newEntry.getMethod() == ZipEntry.STORED) {
-                    newEntry.setSize(entry.getSize());
-                    newEntry.setCompressedSize(entry.getCompressedSize());
-                    newEntry.setCrc(entry.getCrc());
-                }
-                newEntry.setLastModifiedTime(FileTime.fromMillis(0));
-
                 // read the content of the entry from the input stream, and write it into the
                 // archive.
-                write(newEntry, zis);
+                write(name, zis, entry.getMethod());
             }
         }
     }
 
     public void addFile(@NonNull String entryPath, @NonNull Path file) throws IOException {
         try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
-            write(new JarEntry(entryPath), is);
+            write(entryPath, is, ZipEntry.DEFLATED);
         }
     }
 
     @Override
     public void close() throws IOException {
-        jarOutputStream.close();
+        try (OutputStream out = outputStream) {
+            writePendingEntries(0, 0);
+            writeCentralDirectory();
+        }
+    }
+
+    private static boolean checkEntry(@Nullable ZipEntryFilter filter, @NonNull String name)
+            throws IOException {
+        try {
+            return filter == null || filter.checkEntry(name);
+        } catch (ZipAbortException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the given stream, and compresses it in the background as the next entry.
+     *
+     * @param method {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+     */
+    private void write(@NonNull String name, @NonNull InputStream from, int method)
+            throws IOException {
+        addEntryName(name);
+        byte[] data = ByteStreams.toByteArray(from);
+        pendingEntries.add(forkJoinPool.submit(() -> CompressedEntry.compress(name, data, method)));
+        pendingBytes += data.length;
+        writePendingEntries(MAX_PENDING_ENTRIES, MAX_PENDING_BYTES);
     }
 
-    private void write(@NonNull JarEntry entry, @NonNull InputStream from) throws IOException {
-        entry.setLastModifiedTime(ZERO_TIME);
-        entry.setLastAccessTime(ZERO_TIME);
-        entry.setCreationTime(ZERO_TIME);
-        jarOutputStream.putNextEntry(entry);
-        int count;
-        while ((count = from.read(buffer)) != -1) {
-            jarOutputStream.write(buffer, 0, count);
+    private void addEntryName(@NonNull String name) throws ZipException {
+        if (!entryNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+    }
+
+    /**
+     * Writes the entries being compressed, in order, until there are at most the given number and
+     * size of entries left.
+     */
+    private void writePendingEntries(int maxEntries, long maxBytes) throws IOException {
+        while (!pendingEntries.isEmpty()
+                && (pendingEntries.size() > maxEntries || pendingBytes > maxBytes)) {
+            CompressedEntry entry;
+            try {
+                entry = pendingEntries.remove().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            pendingBytes -= entry.uncompressedSize;
+            WrittenEntry writtenEntry =
+                    new WrittenEntry(
+                            entry.name,
+                            entry.method,
+                            entry.crc32,
+                            entry.data.length,
+                            entry.uncompressedSize,
+                            outputStream.getCount());
+            writeLocalHeader(writtenEntry);
+            outputStream.write(entry.data);
+        }
+    }
+
+    /** Copies the compressed data of an entry of the given jar. */
+    private void copyEntry(
+            @NonNull String name,
+            @NonNull ZipCentralDirectorySnapshot.Entry entry,
+            @NonNull SeekableByteChannel channel,
+            @NonNull Path file)
+            throws IOException {
+        // The central directory does not tell where the data starts, but the local header does
+        ByteBuffer localHeader = newBuffer(LOCAL_HEADER_SIZE);
+        channel.position(entry.getOffset());
+        while (localHeader.hasRemaining()) {
+            if (channel.read(localHeader) < 0) {
+                break;
+            }
+        }
+        if (localHeader.hasRemaining() || localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header of " + entry.getName() + " in " + file);
+        }
+        int flags = localHeader.getShort(6) & 0xffff;
+        int method = localHeader.getShort(8) & 0xffff;
+        if ((flags & ENCRYPTED_FLAG) != 0) {
+            throw new ZipException("encrypted ZIP entry not supported: " + entry.getName());
+        }
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+            throw new ZipException(
+                    "invalid compression method " + method + " of " + entry.getName());
+        }
+
+        addEntryName(name);
+        WrittenEntry writtenEntry =
+                new WrittenEntry(
+                        name,
+                        method,
+                        entry.getCrc32(),
+                        entry.getCompressedSize(),
+                        entry.getUncompressedSize(),
+                        outputStream.getCount());
+        writeLocalHeader(writtenEntry);
+        channel.position(
+                entry.getOffset()
+                        + LOCAL_HEADER_SIZE
+                        + (localHeader.getShort(26) & 0xffff)
+                        + (localHeader.getShort(28) & 0xffff));
+        long copied =
+                ByteStreams.copy(
+                        ByteStreams.limit(
+                                Channels.newInputStream(channel), entry.getCompressedSize()),
+                        outputStream);
+        if (copied != entry.getCompressedSize()) {
+            throw new ZipException("Truncated entry " + entry.getName() + " in " + file);
+        }
+    }
+
+    private void writeLocalHeader(@NonNull WrittenEntry entry) throws IOException {
+        writtenEntries.add(entry);
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 =
+                entry.compressedSize >= ZIP64_MAGIC || entry.uncompressedSize >= ZIP64_MAGIC;
+        ByteBuffer header =
+                newBuffer(
+                        LOCAL_HEADER_SIZE
+                                + name.length
+                                + TIMESTAMP_EXTRA_FIELD.length
+                                + (zip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) (zip64 ? ZIP64_VERSION : VERSION));
+        header.putShort((short) UTF8_NAME_FLAG);
+        header.putShort((short) entry.method);
+        header.putShort((short) DOS_TIME);
+        header.putShort((short) DOS_DATE);
+        header.putInt((int) entry.crc32);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.uncompressedSize));
+        header.putShort((short) name.length);
+        header.putShort((short) (TIMESTAMP_EXTRA_FIELD.length + (zip64 ? 20 : 0)));
+        header.put(name);
+        header.put(TIMESTAMP_EXTRA_FIELD);
+        if (zip64) {
+            header.putShort((short) 1);
+            header.putShort((short) 16);
+            header.putLong(entry.uncompressedSize);
+            header.putLong(entry.compressedSize);
+        }
+        outputStream.write(header.array());
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = outputStream.getCount();
+        for (WrittenEntry entry : writtenEntries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+
+            // Values too large for the header go to the zip64 extra field, in this order
+            ByteBuffer zip64Values = newBuffer(24);
+            if (entry.uncompressedSize >= ZIP64_MAGIC) {
+                zip64Values.putLong(entry.uncompressedSize);
+            }
+            if (entry.compressedSize >= ZIP64_MAGIC) {
+                zip64Values.putLong(entry.compressedSize);
+            }
+            if (entry.offset >= ZIP64_MAGIC) {
+                zip64Values.putLong(entry.offset);
+            }
+            int zip64Size = zip64Values.position() > 0 ? 4 + zip64Values.position() : 0;
+
+            ByteBuffer header =
+                    newBuffer(46 + name.length + TIMESTAMP_EXTRA_FIELD.length + zip64Size);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) (zip64Size > 0 ? ZIP64_VERSION : VERSION));
+            header.putShort((short) (zip64Size > 0 ? ZIP64_VERSION : VERSION));
+            header.putShort((short) UTF8_NAME_FLAG);
+            header.putShort((short) entry.method);
+            header.putShort((short) DOS_TIME);
+            header.putShort((short) DOS_DATE);
+            header.putInt((int) entry.crc32);
+            header.putInt((int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+            header.putInt((int) Math.min(entry.uncompressedSize, ZIP64_MAGIC));
+            header.putShort((short) name.length);
+            header.putShort((short) (TIMESTAMP_EXTRA_FIELD.length + zip64Size));
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) Math.min(entry.offset, ZIP64_MAGIC));
+            header.put(name);
+            header.put(TIMESTAMP_EXTRA_FIELD);
+            if (zip64Size > 0) {
+                header.putShort((short) 1);
+                header.putShort((short) zip64Values.position());
+                header.put(zip64Values.array(), 0, zip64Values.position());
+            }
+            outputStream.write(header.array());
+        }
+        long centralDirectoryEnd = outputStream.getCount();
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+        int count = writtenEntries.size();
+
+        if (count >= ZIP64_MAGIC_COUNT
+                || centralDirectorySize >= ZIP64_MAGIC
+                || centralDirectoryOffset >= ZIP64_MAGIC) {
+            ByteBuffer zip64End = newBuffer(56 + 20);
+            zip64End.putInt(ZIP64_EOCD_SIGNATURE);
+            zip64End.putLong(44); // size of the rest of the record
+            zip64End.putShort((short) ZIP64_VERSION);
+            zip64End.putShort((short) ZIP64_VERSION);
+            zip64End.putInt(0); // disk number
+            zip64End.putInt(0); // disk with the central directory
+            zip64End.putLong(count);
+            zip64End.putLong(count);
+            zip64End.putLong(centralDirectorySize);
+            zip64End.putLong(centralDirectoryOffset);
+            zip64End.putInt(ZIP64_EOCD_LOCATOR_SIGNATURE);
+            zip64End.putInt(0); // disk with the zip64 end of central directory
+            zip64End.putLong(centralDirectoryEnd);
+            zip64End.putInt(1); // number of disks
+            outputStream.write(zip64End.array());
+        }
+
+        ByteBuffer end = newBuffer(22);
+        end.putInt(EOCD_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with the central directory
+        end.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        end.putShort((short) 0); // comment length
+        outputStream.write(end.array());
+    }
+
+    @NonNull
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** An entry compressed in memory, ready to be written. */
+    private static final class CompressedEntry {
+        @NonNull private final String name;
+        private final int method;
+        private final long crc32;
+        private final long uncompressedSize;
+        @NonNull private final byte[] data;
+
+        private CompressedEntry(
+                @NonNull String name,
+                int method,
+                long crc32,
+                long uncompressedSize,
+                @NonNull byte[] data) {
+            this.name = name;
+            this.method = method;
+            this.crc32 = crc32;
+            this.uncompressedSize = uncompressedSize;
+            this.data = data;
+        }
+
+        @NonNull
+        static CompressedEntry compress(@NonNull String name, @NonNull byte[] data, int method)
+                throws IOException {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            if (method == ZipEntry.STORED) {
+                return new CompressedEntry(name, method, crc32.getValue(), data.length, data);
+            }
+
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+                try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                    out.write(data);
+                }
+                return new CompressedEntry(
+                        name,
+                        ZipEntry.DEFLATED,
+                        crc32.getValue(),
+                        data.length,
+                        compressed.toByteArray());
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /** An entry written to the jar, as needed in the central directory. */
+    private static final class WrittenEntry {
+        @NonNull private final String name;
+        private final int method;
+        private final long crc32;
+        private final long compressedSize;
+        private final long uncompressedSize;
+        private final long offset;
+
+        private WrittenEntry(
+                @NonNull String name,
+                int method,
+                long crc32,
+                long compressedSize,
+                long uncompressedSize,
+                long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc32 = crc32;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.offset = offset;
         }
-        jarOutputStream.closeEntry();
     }
 }
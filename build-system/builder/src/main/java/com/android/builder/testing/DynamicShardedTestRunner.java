@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.builder.internal.testing.DynamicShardProvider;
+import com.android.builder.internal.testing.ShardedTestCallable;
+import com.android.builder.internal.testing.TestTimings;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.builder.testing.api.DeviceException;
+import com.android.builder.testing.api.TestException;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.ide.common.process.ProcessExecutor;
+import com.android.utils.ILogger;
+import com.android.utils.XmlUtils;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link TestRunner} that uses all connected devices to execute tests in parallel, handing out
+ * test classes to the devices as they become free.
+ *
+ * <p>The durations of the tests are kept in a timings file between runs to balance the work, and
+ * tests that fail are retried once on another device. The failures of tests that pass when
+ * retried are removed from the report of their first attempt. A device that stops with an error
+ * is not reported as a failed test either, its tests being run by the other devices.
+ *
+ * @see DynamicShardProvider
+ */
+public class DynamicShardedTestRunner extends BaseTestRunner {
+
+    private static final int MAX_RETRIES = 1;
+
+    @Nullable private final File timingsFile;
+
+    @Nullable private DynamicShardProvider shardProvider;
+
+    /**
+     * @param timingsFile file keeping the durations of the tests between runs, outside of the
+     *     results directory which is cleaned before each run.
+     */
+    public DynamicShardedTestRunner(
+            @Nullable File splitSelectExec,
+            @NonNull ProcessExecutor processExecutor,
+            @Nullable File timingsFile) {
+        super(splitSelectExec, processExecutor);
+        this.timingsFile = timingsFile;
+    }
+
+    @Override
+    public boolean runTests(
+            @NonNull String projectName,
+            @NonNull String variantName,
+            @NonNull TestData testData,
+            @NonNull Set<File> helperApks,
+            @NonNull List<? extends DeviceConnector> deviceList,
+            int timeoutInMs,
+            @NonNull Collection<String> installOptions,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            @NonNull ILogger logger)
+            throws TestException, NoAuthorizedDeviceFoundException, InterruptedException {
+        shardProvider = null;
+        boolean success =
+                super.runTests(
+                        projectName,
+                        variantName,
+                        testData,
+                        helperApks,
+                        deviceList,
+                        timeoutInMs,
+                        installOptions,
+                        resultsDir,
+                        coverageDir,
+                        logger);
+        if (shardProvider == null) {
+            return success;
+        }
+
+        for (Map.Entry<Integer, Set<TestIdentifier>> entry :
+                shardProvider.getSupersededTests().entrySet()) {
+            String deviceName = shardProvider.getShardDevice(entry.getKey());
+            File report =
+                    new File(
+                            resultsDir,
+                            ShardedTestCallable.getResultFileName(
+                                    entry.getKey(), deviceName, projectName, variantName));
+            if (!report.isFile()) {
+                continue;
+            }
+            try {
+                removeTestCases(report, entry.getValue());
+            } catch (IOException e) {
+                logger.warning("Unable to update test report %s: %s", report, e);
+            }
+        }
+
+        if (timingsFile != null) {
+            TestTimings timings = TestTimings.load(timingsFile);
+            timings.addReports(resultsDir);
+            try {
+                timings.save(timingsFile);
+            } catch (IOException e) {
+                logger.warning("Unable to save test timings to %s: %s", timingsFile, e);
+            }
+        }
+        return success && !shardProvider.hasFailedTests();
+    }
+
+    @Override
+    @NonNull
+    protected WaitableExecutor scheduleTests(
+            @NonNull String projectName,
+            @NonNull String variantName,
+            @NonNull TestData testData,
+            @NonNull Map<DeviceConnector, ImmutableList<File>> apksForDevice,
+            @NonNull Set<File> helperApks,
+            int timeoutInMs,
+            @NonNull Collection<String> installOptions,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            @NonNull ILogger logger) {
+        WaitableExecutor executor =
+                WaitableExecutor.useNewFixedSizeThreadPool(apksForDevice.keySet().size());
+
+        DynamicShardProvider shardProvider =
+                new DynamicShardProvider(
+                        device -> collectTests(device, testData, timeoutInMs),
+                        TestTimings.load(timingsFile),
+                        apksForDevice.size(),
+                        MAX_RETRIES,
+                        logger);
+        this.shardProvider = shardProvider;
+
+        ShardedTestCallable.ProgressListener progressListener =
+                new ShardedTestCallable.ProgressListener(apksForDevice.size(), logger);
+        for (Map.Entry<DeviceConnector, ImmutableList<File>> runners : apksForDevice.entrySet()) {
+            DeviceConnector device = runners.getKey();
+            ShardedTestCallable shardedTestCallable =
+                    new ShardedTestCallable(
+                            device,
+                            projectName,
+                            variantName,
+                            runners.getValue(),
+                            testData,
+                            resultsDir,
+                            coverageDir,
+                            timeoutInMs,
+                            logger,
+                            shardProvider);
+            shardedTestCallable.setProgressListener(progressListener);
+            executor.execute(
+                    () -> {
+                        try {
+                            return shardedTestCallable.call();
+                        } catch (Exception e) {
+                            // the tests of the device were handed to the others, whether they
+                            // all ran is checked at the end.
+                            logger.error(e, "Tests stopped on device '%s'", device.getName());
+                            return true;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Removes the results of the given tests from an XML report, and updates the test and failure
+     * counts of the report accordingly.
+     */
+    @VisibleForTesting
+    static void removeTestCases(@NonNull File report, @NonNull Set<TestIdentifier> tests)
+            throws IOException {
+        Document document;
+        try {
+            document = XmlUtils.parseUtfXmlFile(report, true);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e);
+        }
+        Element suite = document.getDocumentElement();
+        int removedTests = 0;
+        int removedFailures = 0;
+        for (Element testCase : XmlUtils.getSubTagsAsList(suite)) {
+            if (!"testcase".equals(testCase.getLocalName())
+                    || !tests.contains(
+                            new TestIdentifier(
+                                    testCase.getAttribute("classname"),
+                                    testCase.getAttribute("name")))) {
+                continue;
+            }
+            if (XmlUtils.getFirstSubTagByName(testCase, "failure") != null
+                    || XmlUtils.getFirstSubTagByName(testCase, "error") != null) {
+                removedFailures++;
+            }
+            suite.removeChild(testCase);
+            removedTests++;
+        }
+        if (removedTests == 0) {
+            return;
+        }
+        decrementAttribute(suite, "tests", removedTests);
+        decrementAttribute(suite, "failures", removedFailures);
+        Files.write(report.toPath(), XmlUtils.toXml(document).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void decrementAttribute(@NonNull Element element, @NonNull String name, int n) {
+        try {
+            int value = Integer.parseInt(element.getAttribute(name));
+            element.setAttribute(name, Integer.toString(Math.max(value - n, 0)));
+        } catch (NumberFormatException e) {
+            // leave counts that are not numbers alone.
+        }
+    }
+
+    /** Lists the tests of the test APK installed on the device, without running them. */
+    @NonNull
+    private static Collection<TestIdentifier> collectTests(
+            @NonNull DeviceConnector device, @NonNull TestData testData, int timeoutInMs)
+            throws Exception {
+        RemoteAndroidTestRunner runner =
+                new RemoteAndroidTestRunner(
+                        testData.getApplicationId(), testData.getInstrumentationRunner(), device);
+        for (Map.Entry<String, String> argument :
+                testData.getInstrumentationRunnerArguments().entrySet()) {
+            runner.addInstrumentationArg(argument.getKey(), argument.getValue());
+        }
+        runner.setTestCollection(true);
+        runner.setRunName(device.getName());
+        runner.setMaxtimeToOutputResponse(timeoutInMs);
+
+        TestRunResult result = new TestRunResult();
+        runner.run(result);
+        if (result.isRunFailure()) {
+            throw new DeviceException(
+                    "Unable to list the tests on " + device.getName() + ": "
+                            + result.getRunFailureMessage());
+        }
+        return result.getTestResults().keySet();
+    }
+}
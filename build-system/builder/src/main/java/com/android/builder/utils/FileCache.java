@@ -16,6 +16,7 @@
 
 package com.android.builder.utils;
 
+import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
@@ -24,23 +25,55 @@ import com.android.utils.FileUtils;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.io.FileWriteMode;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  * A cache for already-created files/directories.
@@ -79,11 +112,31 @@ import java.util.stream.Stream;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>Every time a cache entry is used, the cache appends the time of use and the size of the
+ * cached output file/directory (recorded when the cache entry was created) to an access index
+ * placed next to the cache directory. The cache can then be kept within a size budget by deleting
+ * the least recently used cache entries (see {@link #deleteLeastRecentlyUsedCacheEntries(long)}).
+ * The index is compacted in the background once it grows large. The number of hits, misses and
+ * bytes saved are also counted for each {@link Command} (see {@link #getStatistics()}).
+ *
+ * <p>By default, output files/directories are copied into and out of the cache. A cache created
+ * with {@link MaterializationMode#HARD_LINK} (see {@link
+ * #withMaterializationMode(MaterializationMode)}) hard-links them instead where possible.
+ *
+ * <p>A cache can also have a remote tier shared by several machines (see {@link
+ * #withRemoteCache(RemoteCache, String)}). Cache entries missing locally are then looked up in the
+ * remote cache before being created, and the cache entries created locally are uploaded to it in
+ * the background. Remote cache entries are transferred as zip archives of the cache entry
+ * directories, and are verified like local ones before they are used. Errors of the remote cache
+ * never fail a query; the cache entry is then created locally. Once the remote cache cannot be
+ * reached, it is no longer used by the {@code FileCache} instance.
+ *
  * <p>This class is thread-safe.
  */
-@Immutable
 public class FileCache {
 
+    @NonNull private static final Logger LOGGER = Logger.getLogger(FileCache.class.getName());
+
     /** The scope of the locking facility. */
     private enum LockingScope {
 
@@ -104,13 +157,84 @@ public class FileCache {
 
     @NonNull private final LockingScope lockingScope;
 
+    @NonNull private final MaterializationMode materializationMode;
+
+    @Nullable private final RemoteCache remoteCache;
+
+    /**
+     * The version of the producer of the cache entries (e.g., the plugin version), which is part
+     * of the remote cache keys.
+     */
+    @NonNull private final String remoteCacheVersion;
+
+    /**
+     * The version of the format of the archives in the remote cache, which is part of the remote
+     * cache keys. It must be increased whenever the archives or the cache entry directories change
+     * in an incompatible way.
+     */
+    private static final int REMOTE_CACHE_FORMAT_VERSION = 1;
+
+    /**
+     * The extension of the access index file next to the cache directory, to which a line of the
+     * form {@code <cache entry key> <timestamp> <size>} is appended every time a cache entry is
+     * used.
+     */
+    @NonNull private static final String ACCESS_INDEX_FILE_EXTENSION = ".access-index";
+
+    /** The size of the access index file above which the index is compacted in the background. */
+    private static final long ACCESS_INDEX_COMPACTION_THRESHOLD = 1024 * 1024;
+
+    /** The executor compacting the access index files in the background. */
+    @NonNull
+    private static final ExecutorService compactionExecutor =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("file-cache-compaction-%d")
+                            .build());
+
+    /** The executor uploading cache entries to the remote caches in the background. */
+    @NonNull
+    private static final ExecutorService uploadExecutor =
+            Executors.newFixedThreadPool(
+                    2,
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("file-cache-upload-%d")
+                            .build());
+
+    /** The uploads to the remote cache that have not completed yet. */
+    @NonNull
+    private final Set<CompletableFuture<Void>> pendingUploads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the remote cache could not be reached, in which case it is not used for the lifetime
+     * of this instance rather than delaying every cache miss.
+     */
+    @NonNull private final AtomicBoolean remoteCacheUnavailable = new AtomicBoolean(false);
+
+    /** Whether a compaction of the access index is already pending. */
+    @NonNull private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+
+    @NonNull
+    private final ConcurrentHashMap<Command, CommandStatistics> statistics =
+            new ConcurrentHashMap<>();
+
     // Additional fields used for testing only
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
 
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            @NonNull MaterializationMode materializationMode,
+            @Nullable RemoteCache remoteCache,
+            @NonNull String remoteCacheVersion) {
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.materializationMode = materializationMode;
+        this.remoteCache = remoteCache;
+        this.remoteCacheVersion = remoteCacheVersion;
     }
 
     /**
@@ -137,7 +261,8 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(
+                cacheDirectory, LockingScope.MULTI_PROCESS, MaterializationMode.COPY, null, "");
     }
 
     /**
@@ -156,7 +281,40 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(
+                cacheDirectory, LockingScope.SINGLE_PROCESS, MaterializationMode.COPY, null, "");
+    }
+
+    /**
+     * Returns a {@code FileCache} instance for the same cache directory and with the same locking
+     * scope as this instance, which materializes output files/directories in the given way.
+     *
+     * <p>The cache entries are shared by instances with different materialization modes.
+     *
+     * @param materializationMode how output files/directories are copied into and out of the cache
+     */
+    @NonNull
+    public FileCache withMaterializationMode(@NonNull MaterializationMode materializationMode) {
+        return new FileCache(
+                cacheDirectory, lockingScope, materializationMode, remoteCache, remoteCacheVersion);
+    }
+
+    /**
+     * Returns a {@code FileCache} instance for the same cache directory and with the same settings
+     * as this instance, which uses the given remote cache as a second tier.
+     *
+     * <p>The remote cache keys include the given version and the version of the archive format, so
+     * that producers of different versions do not share cache entries through the remote cache
+     * (their local caches are usually in different directories).
+     *
+     * @param remoteCache the remote cache, or null to use the local cache only
+     * @param version the version of the producer of the cache entries (e.g., the plugin version),
+     *     which must only contain characters allowed in the keys of the remote cache
+     */
+    @NonNull
+    public FileCache withRemoteCache(@Nullable RemoteCache remoteCache, @NonNull String version) {
+        return new FileCache(
+                cacheDirectory, lockingScope, materializationMode, remoteCache, version);
     }
 
     @NonNull
@@ -164,6 +322,16 @@ public class FileCache {
         return cacheDirectory;
     }
 
+    @NonNull
+    public MaterializationMode getMaterializationMode() {
+        return materializationMode;
+    }
+
+    @Nullable
+    public RemoteCache getRemoteCache() {
+        return remoteCache;
+    }
+
     /**
      * Creates an output file/directory by either copying it from the cache, or creating it first
      * via the given file creator callback function and caching it if the cached file/directory does
@@ -408,6 +576,8 @@ public class FileCache {
                             if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                                 hitCount.incrementAndGet();
                                 actionIfCacheHit.call();
+                                recordAccess(
+                                        inputs, cacheEntryDir, readCachedSize(cacheEntryDir), true);
                             }
                             return result;
                         });
@@ -427,6 +597,7 @@ public class FileCache {
                     if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                         hitCount.incrementAndGet();
                         actionIfCacheHit.call();
+                        recordAccess(inputs, cacheEntryDir, readCachedSize(cacheEntryDir), true);
                         return result;
                     }
 
@@ -435,6 +606,15 @@ public class FileCache {
                         FileUtils.deletePath(cacheEntryDir);
                     }
 
+                    // If the cache entry can be downloaded from the remote cache, use it as a HIT
+                    if (isRemoteCacheAvailable() && loadFromRemoteCache(inputs, cacheEntryDir)) {
+                        hitCount.incrementAndGet();
+                        getCommandStatistics(inputs).remoteHits.incrementAndGet();
+                        actionIfCacheHit.call();
+                        recordAccess(inputs, cacheEntryDir, readCachedSize(cacheEntryDir), true);
+                        return new QueryResult(QueryEvent.HIT);
+                    }
+
                     // If the cache entry is MISSED or CORRUPTED, create or recreate the cache entry
                     missCount.incrementAndGet();
                     FileUtils.mkdirs(cacheEntryDir);
@@ -448,11 +628,21 @@ public class FileCache {
                     // the cache entry anyway.
                     actionIfCacheMissedOrCorrupted.call();
 
+                    // Record the size of the cached output once, so that later uses of the cache
+                    // entry need not measure it again
+                    long size = getSizeInBytes(getCachedFile(cacheEntryDir));
+                    Files.asCharSink(getSizeFile(cacheEntryDir), StandardCharsets.UTF_8)
+                            .write(Long.toString(size));
+
                     // Write the inputs to the inputs file for diagnostic purposes. We also use it
                     // to check whether a cache entry is corrupted or not.
                     Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
                             .write(inputs.toString());
 
+                    recordAccess(inputs, cacheEntryDir, size, false);
+                    if (isRemoteCacheAvailable()) {
+                        scheduleUpload(inputs, cacheEntryDir);
+                    }
                     return result;
                 });
             });
@@ -511,6 +701,303 @@ public class FileCache {
         }
     }
 
+    /**
+     * Counts a hit or miss of the given cache entry and appends its use to the access index.
+     * Failing to update the index does not fail the query; the use is then only missing from the
+     * index.
+     *
+     * <p>The cache entry directory should have been guarded with a READ or WRITE lock and the
+     * cache directory with a READ lock when this method is invoked (see method queryCacheEntry).
+     *
+     * @param size the size of the cached output file/directory
+     */
+    private void recordAccess(
+            @NonNull Inputs inputs, @NonNull File cacheEntryDir, long size, boolean hit) {
+        CommandStatistics commandStatistics = getCommandStatistics(inputs);
+        if (hit) {
+            commandStatistics.hits.incrementAndGet();
+            commandStatistics.bytesSaved.addAndGet(size);
+        } else {
+            commandStatistics.misses.incrementAndGet();
+        }
+
+        long indexSize;
+        try {
+            indexSize =
+                    getSynchronizedFile(getAccessIndexFile())
+                            .write(
+                                    indexFile -> {
+                                        Files.asCharSink(
+                                                        indexFile,
+                                                        StandardCharsets.UTF_8,
+                                                        FileWriteMode.APPEND)
+                                                .write(
+                                                        cacheEntryDir.getName()
+                                                                + " "
+                                                                + System.currentTimeMillis()
+                                                                + " "
+                                                                + size
+                                                                + "\n");
+                                        return indexFile.length();
+                                    });
+        } catch (ExecutionException | RuntimeException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Unable to update the access index of the build cache at " + cacheDirectory,
+                    e);
+            return;
+        }
+        if (indexSize > ACCESS_INDEX_COMPACTION_THRESHOLD
+                && compactionPending.compareAndSet(false, true)) {
+            compactionExecutor.execute(
+                    () -> {
+                        compactionPending.set(false);
+                        compactAccessIndex();
+                    });
+        }
+    }
+
+    @NonNull
+    private CommandStatistics getCommandStatistics(@NonNull Inputs inputs) {
+        return statistics.computeIfAbsent(inputs.command, command -> new CommandStatistics());
+    }
+
+    /** Returns {@code true} if this cache has a remote tier that has not failed to be reached. */
+    private boolean isRemoteCacheAvailable() {
+        return remoteCache != null && !remoteCacheUnavailable.get();
+    }
+
+    /** Returns the key of the given cache entry in the remote cache. */
+    @NonNull
+    private String getRemoteCacheKey(@NonNull Inputs inputs) {
+        return remoteCacheVersion + "-" + REMOTE_CACHE_FORMAT_VERSION + "-" + inputs.getKey();
+    }
+
+    /**
+     * Counts a failed transfer from or to the remote cache, and stops using the remote cache if it
+     * could not be reached, since every later transfer would then likely wait for a timeout too.
+     */
+    private void onRemoteCacheFailure(@NonNull Inputs inputs, @NonNull IOException exception) {
+        getCommandStatistics(inputs).remoteFailures.incrementAndGet();
+        if (isConnectionFailure(exception) && remoteCacheUnavailable.compareAndSet(false, true)) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Unable to reach the remote build cache "
+                            + remoteCache
+                            + ", it will not be used by the build cache at "
+                            + cacheDirectory,
+                    exception);
+        }
+    }
+
+    private static boolean isConnectionFailure(@NonNull IOException exception) {
+        for (Throwable cause : Throwables.getCausalChain(exception)) {
+            if (cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof SocketTimeoutException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Downloads the cache entry from the remote cache into the given (non-existent) cache entry
+     * directory, and checks it.
+     *
+     * <p>The cache entry directory should have been guarded with a WRITE lock when this method is
+     * invoked (see method queryCacheEntry).
+     *
+     * @return {@code true} if the remote cache had a valid cache entry, or {@code false} if the
+     *     cache entry needs to be created
+     */
+    private boolean loadFromRemoteCache(@NonNull Inputs inputs, @NonNull File cacheEntryDir)
+            throws IOException {
+        Path archive = java.nio.file.Files.createTempFile("file-cache", ".zip");
+        try {
+            try {
+                if (!Verify.verifyNotNull(remoteCache)
+                        .load(getRemoteCacheKey(inputs), archive.toFile())) {
+                    return false;
+                }
+            } catch (IOException e) {
+                // The remote cache could not be reached or failed to respond, create the cache
+                // entry locally instead
+                onRemoteCacheFailure(inputs, e);
+                return false;
+            }
+
+            try {
+                FileUtils.mkdirs(cacheEntryDir);
+                unzipCacheEntry(archive.toFile(), cacheEntryDir);
+            } catch (IOException | UncheckedIOException e) {
+                // The remote cache sent a damaged archive, create the cache entry locally instead
+                getCommandStatistics(inputs).remoteFailures.incrementAndGet();
+                FileUtils.deletePath(cacheEntryDir);
+                return false;
+            }
+
+            if (!checkCacheEntry(inputs, cacheEntryDir).getQueryEvent().equals(QueryEvent.HIT)) {
+                getCommandStatistics(inputs).remoteFailures.incrementAndGet();
+                FileUtils.deletePath(cacheEntryDir);
+                return false;
+            }
+            return true;
+        } finally {
+            java.nio.file.Files.deleteIfExists(archive);
+        }
+    }
+
+    /**
+     * Uploads the given cache entry to the remote cache in the background (see {@link
+     * #waitForRemoteUploads()}).
+     */
+    private void scheduleUpload(@NonNull Inputs inputs, @NonNull File cacheEntryDir) {
+        String key = getRemoteCacheKey(inputs);
+        CompletableFuture<Void> upload =
+                CompletableFuture.runAsync(
+                        () -> {
+                            // Skip the uploads queued before the remote cache became unavailable
+                            if (!isRemoteCacheAvailable()) {
+                                return;
+                            }
+                            try {
+                                uploadToRemoteCache(key, cacheEntryDir);
+                            } catch (IOException e) {
+                                onRemoteCacheFailure(inputs, e);
+                            } catch (Exception e) {
+                                getCommandStatistics(inputs).remoteFailures.incrementAndGet();
+                            }
+                        },
+                        uploadExecutor);
+        pendingUploads.add(upload);
+        upload.whenComplete((result, throwable) -> pendingUploads.remove(upload));
+    }
+
+    /**
+     * Archives the given cache entry under a READ lock, and uploads the archive to the remote
+     * cache. Cache entries deleted in the meantime are not uploaded.
+     */
+    private void uploadToRemoteCache(@NonNull String key, @NonNull File cacheEntryDir)
+            throws ExecutionException, IOException {
+        Path archive = java.nio.file.Files.createTempFile("file-cache", ".zip");
+        try {
+            boolean archived =
+                    getSynchronizedFile(cacheDirectory).read(sameCacheDirectory ->
+                            getSynchronizedFile(cacheEntryDir).read(sameCacheEntryDir -> {
+                                if (!getInputsFile(cacheEntryDir).isFile()) {
+                                    return false;
+                                }
+                                zipCacheEntry(cacheEntryDir, archive.toFile());
+                                return true;
+                            }));
+            if (archived) {
+                Verify.verifyNotNull(remoteCache).store(key, archive.toFile());
+            }
+        } finally {
+            java.nio.file.Files.deleteIfExists(archive);
+        }
+    }
+
+    /**
+     * Waits until the cache entries created so far by this instance have been uploaded to the
+     * remote cache (or failed to). Uploads happen in the background, so this should be called
+     * before the process exits.
+     */
+    public void waitForRemoteUploads() throws InterruptedException {
+        for (CompletableFuture<Void> upload : ImmutableList.copyOf(pendingUploads)) {
+            try {
+                upload.get();
+            } catch (ExecutionException e) {
+                // Failed uploads are counted in the statistics
+            }
+        }
+    }
+
+    /** Writes the contents of the given cache entry directory to a zip archive. */
+    private static void zipCacheEntry(@NonNull File cacheEntryDir, @NonNull File archive)
+            throws IOException {
+        Path root = cacheEntryDir.toPath();
+        try (ZipOutputStream zip =
+                        new ZipOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(archive)));
+                Stream<Path> entries = java.nio.file.Files.walk(root)) {
+            for (Path entry : (Iterable<Path>) entries.sorted()::iterator) {
+                if (entry.equals(root)) {
+                    continue;
+                }
+                String name = FileUtils.toSystemIndependentPath(root.relativize(entry).toString());
+                if (java.nio.file.Files.isDirectory(entry)) {
+                    zip.putNextEntry(new ZipEntry(name + "/"));
+                    zip.closeEntry();
+                } else if (java.nio.file.Files.isRegularFile(entry)) {
+                    zip.putNextEntry(new ZipEntry(name));
+                    java.nio.file.Files.copy(entry, zip);
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts a zip archive written by {@link #zipCacheEntry(File, File)} into the given cache
+     * entry directory.
+     *
+     * @throws IOException if the archive is damaged or has entries outside of the directory
+     */
+    private static void unzipCacheEntry(@NonNull File archive, @NonNull File cacheEntryDir)
+            throws IOException {
+        Path root = cacheEntryDir.toPath().normalize();
+        try (ZipInputStream zip =
+                new ZipInputStream(new BufferedInputStream(new FileInputStream(archive)))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Path target = root.resolve(entry.getName()).normalize();
+                if (!target.startsWith(root) || target.equals(root)) {
+                    throw new IOException("Invalid entry " + entry.getName() + " in " + archive);
+                }
+                if (entry.isDirectory()) {
+                    FileUtils.mkdirs(target.toFile());
+                } else {
+                    Files.createParentDirs(target.toFile());
+                    java.nio.file.Files.copy(zip, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the access index so that it contains only the last use of each existing cache entry.
+     *
+     * <p>This method may block if the cache is being accessed by another thread/process.
+     */
+    @VisibleForTesting
+    void compactAccessIndex() {
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        try {
+            getSynchronizedFile(cacheDirectory).read(sameCacheDirectory -> {
+                if (!cacheDirectory.exists()) {
+                    return null;
+                }
+                return getSynchronizedFile(getAccessIndexFile()).write(indexFile -> {
+                    Map<String, AccessIndexEntry> index = readAccessIndex(indexFile);
+                    index.keySet()
+                            .removeIf(key -> !getInputsFile(getCacheEntryDir(key)).isFile());
+                    writeAccessIndex(indexFile, index.values());
+                    return null;
+                });
+            });
+        } catch (ExecutionException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
     /**
      * Checks the cache entry to see if it exists (and whether it is corrupted). If it is corrupted,
      * the returned result also contains its cause.
@@ -574,7 +1061,25 @@ public class FileCache {
      */
     @NonNull
     private File getCacheEntryDir(@NonNull Inputs inputs) {
-        return new File(cacheDirectory, inputs.getKey());
+        return getCacheEntryDir(inputs.getKey());
+    }
+
+    /** Returns the path of the cache entry directory for the given cache entry key. */
+    @NonNull
+    private File getCacheEntryDir(@NonNull String key) {
+        return new File(cacheDirectory, key);
+    }
+
+    /**
+     * Returns the path of the access index file, which is placed next to the cache directory (so
+     * that the cache directory only contains the cache entries).
+     */
+    @NonNull
+    private File getAccessIndexFile() {
+        File absoluteCacheDirectory = cacheDirectory.getAbsoluteFile();
+        return new File(
+                absoluteCacheDirectory.getParentFile(),
+                absoluteCacheDirectory.getName() + ACCESS_INDEX_FILE_EXTENSION);
     }
 
     /** Returns the path of the cached output file/directory inside the cache entry directory. */
@@ -592,6 +1097,15 @@ public class FileCache {
         return new File(cacheEntryDir, "inputs");
     }
 
+    /**
+     * Returns the path of the file inside the cache entry directory recording the size of the
+     * cached output file/directory.
+     */
+    @NonNull
+    private static File getSizeFile(@NonNull File cacheEntryDir) {
+        return new File(cacheEntryDir, "size");
+    }
+
     /**
      * Returns the path of the cached output file/directory that is unique to the given list of
      * inputs (different lists of inputs correspond to different cached files/directories).
@@ -656,6 +1170,171 @@ public class FileCache {
         }
     }
 
+    /**
+     * Deletes the least recently used cache entries until the total size of the cached output
+     * files/directories is at most the given size.
+     *
+     * <p>The time a cache entry was last used and its size are taken from the access index. Cache
+     * entries missing from the index (e.g., created by an older version of this class) are
+     * considered last used when they were last modified, and are measured here.
+     *
+     * <p>This method may block if the cache is being accessed by another thread/process.
+     *
+     * @param maxSizeInBytes the size of the cache to stay within
+     */
+    public void deleteLeastRecentlyUsedCacheEntries(long maxSizeInBytes) {
+        Preconditions.checkArgument(maxSizeInBytes >= 0, "Cache size must not be negative");
+        // Check the parent directory of the cache directory, similarly to FileCache.delete()
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        try {
+            getSynchronizedFile(cacheDirectory).write(sameCacheDirectory -> {
+                if (!cacheDirectory.exists()) {
+                    return null;
+                }
+                return getSynchronizedFile(getAccessIndexFile()).write(indexFile -> {
+                    Map<String, AccessIndexEntry> index = readAccessIndex(indexFile);
+                    List<AccessIndexEntry> entries = new ArrayList<>();
+                    long totalSize = 0;
+                    for (File fileInDir : Verify.verifyNotNull(cacheDirectory.listFiles())) {
+                        if (fileInDir.isDirectory() && getInputsFile(fileInDir).isFile()) {
+                            AccessIndexEntry entry = index.get(fileInDir.getName());
+                            if (entry == null) {
+                                entry =
+                                        new AccessIndexEntry(
+                                                fileInDir.getName(),
+                                                fileInDir.lastModified(),
+                                                readCachedSize(fileInDir));
+                            }
+                            entries.add(entry);
+                            totalSize += entry.size;
+                        }
+                    }
+
+                    entries.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+                    Iterator<AccessIndexEntry> iterator = entries.iterator();
+                    while (totalSize > maxSizeInBytes && iterator.hasNext()) {
+                        AccessIndexEntry entry = iterator.next();
+                        File cacheEntryDir = getCacheEntryDir(entry.key);
+                        FileUtils.deletePath(cacheEntryDir);
+                        // Also delete the lock file in the case of MULTI_PROCESS locking
+                        if (lockingScope == LockingScope.MULTI_PROCESS) {
+                            FileUtils.deleteIfExists(SynchronizedFile.getLockFile(cacheEntryDir));
+                        }
+                        iterator.remove();
+                        totalSize -= entry.size;
+                    }
+
+                    writeAccessIndex(indexFile, entries);
+                    return null;
+                });
+            });
+        } catch (ExecutionException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Returns the number of hits, misses and bytes saved of this {@code FileCache} instance for
+     * each command that has used it.
+     */
+    @NonNull
+    public Map<Command, CommandStatistics> getStatistics() {
+        return ImmutableMap.copyOf(statistics);
+    }
+
+    /**
+     * Reads the access index, keeping only the last use of each cache entry. Malformed lines (e.g.,
+     * from a process killed while appending to the index) are ignored.
+     */
+    @NonNull
+    private static Map<String, AccessIndexEntry> readAccessIndex(@NonNull File indexFile)
+            throws IOException {
+        Map<String, AccessIndexEntry> index = new HashMap<>();
+        if (!indexFile.isFile()) {
+            return index;
+        }
+        for (String line : Files.readLines(indexFile, StandardCharsets.UTF_8)) {
+            List<String> fields = Splitter.on(' ').splitToList(line);
+            if (fields.size() != 3) {
+                continue;
+            }
+            try {
+                AccessIndexEntry entry =
+                        new AccessIndexEntry(
+                                fields.get(0),
+                                Long.parseLong(fields.get(1)),
+                                Long.parseLong(fields.get(2)));
+                index.merge(entry.key, entry, FileCache::getLastAccessed);
+            } catch (NumberFormatException e) {
+                // Skip the malformed line
+            }
+        }
+        return index;
+    }
+
+    /** Returns the later of two uses of the same cache entry. */
+    @NonNull
+    private static AccessIndexEntry getLastAccessed(
+            @NonNull AccessIndexEntry previous, @NonNull AccessIndexEntry next) {
+        return next.lastAccess >= previous.lastAccess ? next : previous;
+    }
+
+    /** Replaces the contents of the access index with the given entries. */
+    private static void writeAccessIndex(
+            @NonNull File indexFile, @NonNull Collection<AccessIndexEntry> entries)
+            throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (AccessIndexEntry entry : entries) {
+            contents.append(entry.key)
+                    .append(' ')
+                    .append(entry.lastAccess)
+                    .append(' ')
+                    .append(entry.size)
+                    .append('\n');
+        }
+        Files.asCharSink(indexFile, StandardCharsets.UTF_8).write(contents);
+    }
+
+    /**
+     * Returns the size of the cached output file/directory of the given cache entry, as recorded
+     * when the cache entry was created. The size of cache entries created by older versions of
+     * this class, which did not record it, is measured instead.
+     */
+    private static long readCachedSize(@NonNull File cacheEntryDir) throws IOException {
+        File sizeFile = getSizeFile(cacheEntryDir);
+        if (sizeFile.isFile()) {
+            try {
+                return Long.parseLong(
+                        Files.asCharSource(sizeFile, StandardCharsets.UTF_8).read().trim());
+            } catch (NumberFormatException e) {
+                // Measure the size instead
+            }
+        }
+        return getSizeInBytes(getCachedFile(cacheEntryDir));
+    }
+
+    /**
+     * Returns the total size of the regular files in the given file/directory, or 0 if it does not
+     * exist.
+     */
+    private static long getSizeInBytes(@NonNull File fileOrDirectory) throws IOException {
+        if (fileOrDirectory.isFile()) {
+            return fileOrDirectory.length();
+        } else if (!fileOrDirectory.isDirectory()) {
+            return 0;
+        }
+        try (Stream<Path> entries = java.nio.file.Files.walk(fileOrDirectory.toPath())) {
+            return entries.filter(java.nio.file.Files::isRegularFile)
+                    .mapToLong(entry -> entry.toFile().length())
+                    .sum();
+        }
+    }
+
     /**
      * Deletes the cache directory and its contents.
      *
@@ -678,6 +1357,7 @@ public class FileCache {
                     .write(
                             sameCacheDirectory -> {
                                 FileUtils.deletePath(cacheDirectory);
+                                FileUtils.deleteIfExists(getAccessIndexFile());
                                 return null;
                             });
         } catch (ExecutionException exception) {
@@ -730,30 +1410,113 @@ public class FileCache {
         return MoreObjects.toStringHelper(this)
                 .add("cacheDirectory", cacheDirectory)
                 .add("lockingScope", lockingScope)
+                .add("materializationMode", materializationMode)
+                .add("remoteCache", remoteCache)
+                .add("remoteCacheVersion", remoteCacheVersion)
                 .toString();
     }
 
     /**
      * Copies a file or a directory's contents to another file or directory, which can have a
-     * different name. The target file/directory is replaced if it already exists.
+     * different name, or hard-links the regular files if the materialization mode of this cache is
+     * {@link MaterializationMode#HARD_LINK}. The target file/directory is replaced if it already
+     * exists.
      *
      * <p>The source file/directory must exist and must not reside in, contain, or be identical to
      * the target file/directory.
      */
-    private static void copyFileOrDirectory(@NonNull File from, @NonNull File to)
-            throws IOException {
+    private void copyFileOrDirectory(@NonNull File from, @NonNull File to) throws IOException {
         Preconditions.checkArgument(
                 from.exists(), "Source path " + from.getAbsolutePath() + " does not exist");
         Preconditions.checkArgument(!FileUtils.isFileInDirectory(from, to));
         Preconditions.checkArgument(!FileUtils.isFileInDirectory(to, from));
         Preconditions.checkArgument(!FileUtils.isSameFile(from, to));
 
+        boolean linking = materializationMode.isLinking();
         if (from.isFile()) {
             Files.createParentDirs(to);
-            FileUtils.copyFile(from, to);
+            if (linking) {
+                linkFile(from, to);
+            } else {
+                copyFile(from, to);
+            }
         } else if (from.isDirectory()) {
             FileUtils.deletePath(to);
-            FileUtils.copyDirectory(from, to);
+            FileUtils.mkdirs(to);
+            Path fromPath = from.toPath();
+            Path toPath = to.toPath();
+            try (Stream<Path> entries = java.nio.file.Files.walk(fromPath)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) {
+                    File target = toPath.resolve(fromPath.relativize(entry)).toFile();
+                    if (java.nio.file.Files.isDirectory(entry)) {
+                        FileUtils.mkdirs(target);
+                    } else if (java.nio.file.Files.isRegularFile(entry)) {
+                        if (linking) {
+                            linkFile(entry.toFile(), target);
+                        } else {
+                            copyFile(entry.toFile(), target);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hard-links the given regular file to the given (non-existent) path and makes the shared file
+     * read-only, so that changes made through the output path do not corrupt the cache. Falls back
+     * to copying the file if it cannot be linked (e.g., if the two paths are on different file
+     * systems).
+     */
+    private static void linkFile(@NonNull File from, @NonNull File to) throws IOException {
+        try {
+            java.nio.file.Files.createLink(to.toPath(), from.toPath());
+            //noinspection ResultOfMethodCallIgnored - The protection is best-effort
+            from.setWritable(false, false);
+        } catch (IOException | UnsupportedOperationException e) {
+            copyFile(from, to);
+        }
+    }
+
+    /**
+     * Copies the given regular file, making the copy writable if the source file was made
+     * read-only when it was linked (possibly by another {@code FileCache} instance).
+     */
+    private static void copyFile(@NonNull File from, @NonNull File to) throws IOException {
+        FileUtils.copyFile(from, to);
+        if (isReadOnly(from)) {
+            //noinspection ResultOfMethodCallIgnored
+            to.setWritable(true);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the owner write permission of the given file is not set. Unlike
+     * {@link File#canWrite()}, this does not depend on the privileges of the current user.
+     */
+    private static boolean isReadOnly(@NonNull File file) throws IOException {
+        try {
+            return !java.nio.file.Files.getPosixFilePermissions(file.toPath())
+                    .contains(PosixFilePermission.OWNER_WRITE);
+        } catch (UnsupportedOperationException e) {
+            return !file.canWrite();
+        }
+    }
+
+    /** The last use of a cache entry, as recorded in the access index. */
+    @Immutable
+    private static final class AccessIndexEntry {
+
+        @NonNull private final String key;
+
+        private final long lastAccess;
+
+        private final long size;
+
+        AccessIndexEntry(@NonNull String key, long lastAccess, long size) {
+            this.key = key;
+            this.lastAccess = lastAccess;
+            this.size = size;
         }
     }
 
@@ -1114,6 +1877,29 @@ public class FileCache {
         PATH_SIZE_TIMESTAMP,
     }
 
+    /** How output files/directories are copied into and out of the cache. */
+    public enum MaterializationMode {
+
+        /** Output files/directories are copied. */
+        COPY,
+
+        /**
+         * The regular files of output files/directories are hard-linked to the cached files when
+         * the file system supports it, and copied otherwise. The linked files are made read-only
+         * to protect the cache entries, so clients must delete output files rather than write to
+         * them in place.
+         *
+         * <p>This saves time and disk space when the outputs are large. Since deleting read-only
+         * files fails on Windows, this mode behaves like {@link #COPY} there.
+         */
+        HARD_LINK;
+
+        private boolean isLinking() {
+            return this == HARD_LINK
+                    && SdkConstants.currentPlatform() != SdkConstants.PLATFORM_WINDOWS;
+        }
+    }
+
     /** Properties of a directory to be used when constructing the cache inputs. */
     public enum DirectoryProperties {
 
@@ -1215,6 +2001,77 @@ public class FileCache {
         }
     }
 
+    /**
+     * The number of hits, misses and bytes saved by the queries of a {@link Command} on a {@link
+     * FileCache}. The counters keep being updated as the cache is used.
+     */
+    public static final class CommandStatistics {
+
+        @NonNull private final AtomicInteger hits = new AtomicInteger(0);
+
+        @NonNull private final AtomicInteger misses = new AtomicInteger(0);
+
+        @NonNull private final AtomicLong bytesSaved = new AtomicLong(0);
+
+        @NonNull private final AtomicInteger remoteHits = new AtomicInteger(0);
+
+        @NonNull private final AtomicInteger remoteFailures = new AtomicInteger(0);
+
+        private CommandStatistics() {}
+
+        /** Returns the number of queries for which the cache entry existed. */
+        public int getHits() {
+            return hits.get();
+        }
+
+        /**
+         * Returns the number of queries for which the cache entry was missing or corrupted, and
+         * had to be created.
+         */
+        public int getMisses() {
+            return misses.get();
+        }
+
+        /** Returns the total size of the cached output files/directories that were reused. */
+        public long getBytesSaved() {
+            return bytesSaved.get();
+        }
+
+        /**
+         * Returns the number of hits for which the cache entry was downloaded from the remote
+         * cache. These are included in {@link #getHits()}.
+         */
+        public int getRemoteHits() {
+            return remoteHits.get();
+        }
+
+        /**
+         * Returns the number of downloads and uploads that failed, or downloaded cache entries
+         * which turned out to be invalid.
+         */
+        public int getRemoteFailures() {
+            return remoteFailures.get();
+        }
+
+        /** Returns the fraction of the queries for which the cache entry existed. */
+        public double getHitRate() {
+            int hitCount = getHits();
+            int total = hitCount + getMisses();
+            return total == 0 ? 0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("hits", getHits())
+                    .add("misses", getMisses())
+                    .add("bytesSaved", getBytesSaved())
+                    .add("remoteHits", getRemoteHits())
+                    .add("remoteFailures", getRemoteFailures())
+                    .toString();
+        }
+    }
+
     /**
      * The event that happens when the client queries a cache entry: the cache entry may be hit,
      * missed, or corrupted.
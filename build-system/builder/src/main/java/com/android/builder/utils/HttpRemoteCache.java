@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.base.MoreObjects;
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URL;
+
+/**
+ * A {@link RemoteCache} backed by an HTTP server, which stores the archive of a key with a {@code
+ * PUT} request to {@code <base URI>/<key>} and returns it on a {@code GET} request to the same URI.
+ * This is the protocol of common build cache servers and of plain WebDAV servers.
+ *
+ * <p>This class is thread-safe.
+ */
+@Immutable
+public final class HttpRemoteCache implements RemoteCache {
+
+    /** Timeout for connecting to and reading from the server, in milliseconds. */
+    private static final int TIMEOUT = 10_000;
+
+    @NonNull private final URI baseUri;
+
+    private final boolean push;
+
+    /**
+     * Creates an {@code HttpRemoteCache}.
+     *
+     * @param baseUri the URI under which the archives are stored
+     * @param push whether archives are uploaded, or only downloaded
+     */
+    public HttpRemoteCache(@NonNull URI baseUri, boolean push) {
+        String path = baseUri.getPath();
+        this.baseUri =
+                path != null && path.endsWith("/")
+                        ? baseUri
+                        : URI.create(baseUri.toString() + "/");
+        this.push = push;
+    }
+
+    @Override
+    public boolean load(@NonNull String key, @NonNull File archive) throws IOException {
+        HttpURLConnection connection = openConnection(key);
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            checkResponseCode(connection, responseCode);
+            try (InputStream in = connection.getInputStream();
+                    OutputStream out = new FileOutputStream(archive)) {
+                ByteStreams.copy(in, out);
+            }
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void store(@NonNull String key, @NonNull File archive) throws IOException {
+        if (!push) {
+            return;
+        }
+        try {
+            put(key, archive);
+        } catch (SocketException e) {
+            // The server may have closed a kept-alive connection, which HttpURLConnection does not
+            // retry for streamed requests, so try again once on a new connection
+            put(key, archive);
+        }
+    }
+
+    private void put(@NonNull String key, @NonNull File archive) throws IOException {
+        HttpURLConnection connection = openConnection(key);
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/zip");
+            connection.setFixedLengthStreamingMode(archive.length());
+            try (InputStream in = new FileInputStream(archive);
+                    OutputStream out = connection.getOutputStream()) {
+                ByteStreams.copy(in, out);
+            }
+            checkResponseCode(connection, connection.getResponseCode());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NonNull
+    private HttpURLConnection openConnection(@NonNull String key) throws IOException {
+        URL url = baseUri.resolve(key).toURL();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private static void checkResponseCode(
+            @NonNull HttpURLConnection connection, int responseCode) throws IOException {
+        if (responseCode / 100 != 2) {
+            throw new IOException(
+                    String.format(
+                            "Unexpected response %1$d (%2$s) from %3$s %4$s",
+                            responseCode,
+                            connection.getResponseMessage(),
+                            connection.getRequestMethod(),
+                            connection.getURL()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("baseUri", baseUri)
+                .add("push", push)
+                .toString();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A remote tier for a {@link FileCache}, shared by several machines (see {@link
+ * FileCache#withRemoteCache(RemoteCache, String)}).
+ *
+ * <p>A remote cache stores opaque archives of cache entries under keys derived from {@link
+ * FileCache.Inputs#getKey()}, which are prefixed with the version of their producer and of the
+ * archive format. The {@link FileCache} creates and verifies these archives; the remote cache only
+ * needs to transfer them.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface RemoteCache {
+
+    /**
+     * Downloads the archive stored under the given key to the given file, replacing its contents.
+     *
+     * @return {@code true} if the archive was downloaded, or {@code false} if the remote cache does
+     *     not contain the key
+     * @throws IOException if the remote cache cannot be reached or the download fails
+     */
+    boolean load(@NonNull String key, @NonNull File archive) throws IOException;
+
+    /**
+     * Uploads the given archive to be stored under the given key. Implementations may choose to
+     * ignore uploads (e.g., for read-only clients).
+     *
+     * @throws IOException if the remote cache cannot be reached or the upload fails
+     */
+    void store(@NonNull String key, @NonNull File archive) throws IOException;
+}
@@ -17,16 +17,22 @@
 package com.android.builder.files;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.android.utils.FileUtils;
 import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -198,4 +204,42 @@ public class FileCacheByPathTest {
         File ff = cache.get(f);
         assertNotNull(ff);
     }
+
+    @Test
+    public void addAndFindZipSnapshot() throws Exception {
+        File zip = new File(randomFilesDir, "zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("a"));
+            out.write(new byte[] {1, 2, 3});
+            out.closeEntry();
+        }
+
+        assertNull(cache.getZipSnapshot(zip));
+
+        // Snapshots can be read from copies of the zip
+        cache.add(zip);
+        ZipCentralDirectorySnapshot snapshot = cache.getZipSnapshot(zip);
+        assertNotNull(snapshot);
+        assertEquals(ZipCentralDirectorySnapshot.fromZip(zip), snapshot);
+
+        // Adding a snapshot replaces the copy
+        cache.addZipSnapshot(zip);
+        assertNull(cache.get(zip));
+        assertEquals(snapshot, cache.getZipSnapshot(zip));
+
+        cache.remove(zip);
+        assertNull(cache.getZipSnapshot(zip));
+
+        // Adding a copy replaces the snapshot
+        cache.addZipSnapshot(zip);
+        Files.write(new byte[] {4, 5, 6}, zip);
+        cache.add(zip);
+        assertNotNull(cache.get(zip));
+        try {
+            cache.getZipSnapshot(zip);
+            fail();
+        } catch (IOException e) {
+            // Expected, the copy is not a zip
+        }
+    }
 }
@@ -432,4 +432,42 @@ public class IncrementalRelativeFileSetsTest {
         m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
         assertEquals(0, m.size());
     }
+
+    @Test
+    public void makingFromCacheUpdatedZipSnapshot() throws Exception {
+        File cacheDir = temporaryFolder.newFolder();
+        FileCacheByPath cache = new FileCacheByPath(cacheDir);
+
+        File foo = new File(temporaryFolder.getRoot(), "foo");
+        try (ZFile zffooz = new ZFile(foo)) {
+            zffooz.add("f0z", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f1z", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f2z", new ByteArrayInputStream(new byte[0]));
+        }
+
+        cache.addZipSnapshot(foo);
+        assertThat(cache.get(foo)).isNull();
+
+        try (ZFile zffooz = new ZFile(foo)) {
+            zffooz.add("f0z", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+            zffooz.add("f3z", new ByteArrayInputStream(new byte[0]));
+            zffooz.get("f1z").delete();
+        }
+
+        Set<Runnable> updates = new HashSet<>();
+        ImmutableMap<RelativeFile, FileStatus> m =
+                IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertThat(m)
+                .containsExactly(
+                        new RelativeFile(foo, "f0z"),
+                        FileStatus.CHANGED,
+                        new RelativeFile(foo, "f1z"),
+                        FileStatus.REMOVED,
+                        new RelativeFile(foo, "f3z"),
+                        FileStatus.NEW);
+
+        updates.forEach(Runnable::run);
+        m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(0, m.size());
+    }
 }
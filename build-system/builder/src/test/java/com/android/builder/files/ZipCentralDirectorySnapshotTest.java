@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.files;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link ZipCentralDirectorySnapshot}. */
+public class ZipCentralDirectorySnapshotTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readZip() throws Exception {
+        File zip = temporaryFolder.newFile("foo.zip");
+        byte[] contents = "Some text".getBytes(StandardCharsets.UTF_8);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.setComment("Some comment");
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("dir/a"));
+            out.write(contents);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("b"));
+            out.closeEntry();
+        }
+
+        ZipCentralDirectorySnapshot snapshot = ZipCentralDirectorySnapshot.fromZip(zip);
+        assertThat(snapshot.getEntries().keySet()).containsExactly("dir/a", "b");
+
+        ZipCentralDirectorySnapshot.Entry a = snapshot.get("dir/a");
+        assertThat(a).isNotNull();
+        CRC32 crc32 = new CRC32();
+        crc32.update(contents);
+        assertThat(a.getCrc32()).isEqualTo(crc32.getValue());
+        assertThat(a.getUncompressedSize()).isEqualTo(contents.length);
+        assertThat(a.getOffset()).isGreaterThan(0L);
+        assertThat(a.hasSameContents(snapshot.get("b"))).isFalse();
+    }
+
+    @Test
+    public void readZip64() throws Exception {
+        // A zip with the zip64 end of central directory record, and zip64 extra fields for all the
+        // sizes and offsets, as written by tools that always use zip64
+        File zip = temporaryFolder.newFile("foo.zip");
+        byte[] a = "Some text".getBytes(StandardCharsets.UTF_8);
+        byte[] b = new byte[1000];
+        byte[] deflatedA = deflate(a);
+        byte[] deflatedB = deflate(b);
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        int offsetA = buffer.position();
+        writeZip64LocalHeader(buffer, "a", a, deflatedA);
+        int offsetB = buffer.position();
+        writeZip64LocalHeader(buffer, "dir/b", b, deflatedB);
+        int cdOffset = buffer.position();
+        writeZip64CentralDirectoryHeader(buffer, "a", a, deflatedA, offsetA);
+        writeZip64CentralDirectoryHeader(buffer, "dir/b", b, deflatedB, offsetB);
+        int cdSize = buffer.position() - cdOffset;
+
+        // Zip64 end of central directory record
+        int zip64EocdOffset = buffer.position();
+        buffer.putInt(0x06064b50);
+        buffer.putLong(44);
+        buffer.putShort((short) 45);
+        buffer.putShort((short) 45);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putLong(2);
+        buffer.putLong(2);
+        buffer.putLong(cdSize);
+        buffer.putLong(cdOffset);
+
+        // Zip64 end of central directory locator
+        buffer.putInt(0x07064b50);
+        buffer.putInt(0);
+        buffer.putLong(zip64EocdOffset);
+        buffer.putInt(1);
+
+        // End of central directory record, pointing to the zip64 one
+        buffer.putInt(0x06054b50);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0xffff);
+        buffer.putShort((short) 0xffff);
+        buffer.putInt(0xffffffff);
+        buffer.putInt(0xffffffff);
+        buffer.putShort((short) 0);
+        Files.write(Arrays.copyOf(buffer.array(), buffer.position()), zip);
+
+        // The fixture is a valid zip
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertThat(zipFile.size()).isEqualTo(2);
+            assertThat(ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("dir/b"))))
+                    .isEqualTo(b);
+        }
+
+        ZipCentralDirectorySnapshot snapshot = ZipCentralDirectorySnapshot.fromZip(zip);
+        assertThat(snapshot.getEntries().keySet()).containsExactly("a", "dir/b");
+
+        ZipCentralDirectorySnapshot.Entry entryA = snapshot.get("a");
+        assertThat(entryA.getCrc32()).isEqualTo(crc32(a));
+        assertThat(entryA.getCompressedSize()).isEqualTo(deflatedA.length);
+        assertThat(entryA.getUncompressedSize()).isEqualTo(a.length);
+        assertThat(entryA.getOffset()).isEqualTo(offsetA);
+
+        ZipCentralDirectorySnapshot.Entry entryB = snapshot.get("dir/b");
+        assertThat(entryB.getCrc32()).isEqualTo(crc32(b));
+        assertThat(entryB.getCompressedSize()).isEqualTo(deflatedB.length);
+        assertThat(entryB.getUncompressedSize()).isEqualTo(b.length);
+        assertThat(entryB.getOffset()).isEqualTo(offsetB);
+    }
+
+    /** Writes the local header and the contents of a deflated file, with a zip64 extra field. */
+    private static void writeZip64LocalHeader(
+            @NonNull ByteBuffer buffer,
+            @NonNull String name,
+            @NonNull byte[] contents,
+            @NonNull byte[] deflated) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(0x04034b50);
+        buffer.putShort((short) 45);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) ZipEntry.DEFLATED);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0x21);
+        buffer.putInt((int) crc32(contents));
+        buffer.putInt(0xffffffff);
+        buffer.putInt(0xffffffff);
+        buffer.putShort((short) nameBytes.length);
+        buffer.putShort((short) 20);
+        buffer.put(nameBytes);
+        buffer.putShort((short) 0x0001);
+        buffer.putShort((short) 16);
+        buffer.putLong(contents.length);
+        buffer.putLong(deflated.length);
+        buffer.put(deflated);
+    }
+
+    /**
+     * Writes the central directory file header of a deflated file, with its sizes and offset in a
+     * zip64 extra field.
+     */
+    private static void writeZip64CentralDirectoryHeader(
+            @NonNull ByteBuffer buffer,
+            @NonNull String name,
+            @NonNull byte[] contents,
+            @NonNull byte[] deflated,
+            int offset) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(0x02014b50);
+        buffer.putShort((short) 45);
+        buffer.putShort((short) 45);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) ZipEntry.DEFLATED);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0x21);
+        buffer.putInt((int) crc32(contents));
+        buffer.putInt(0xffffffff);
+        buffer.putInt(0xffffffff);
+        buffer.putShort((short) nameBytes.length);
+        buffer.putShort((short) 28);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putInt(0xffffffff);
+        buffer.put(nameBytes);
+        buffer.putShort((short) 0x0001);
+        buffer.putShort((short) 24);
+        buffer.putLong(contents.length);
+        buffer.putLong(deflated.length);
+        buffer.putLong(offset);
+    }
+
+    @NonNull
+    private static byte[] deflate(@NonNull byte[] contents) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(contents);
+        deflater.finish();
+        byte[] buffer = new byte[contents.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static long crc32(@NonNull byte[] contents) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(contents);
+        return crc32.getValue();
+    }
+
+    @Test
+    public void writeAndReadSnapshot() throws Exception {
+        File zip = temporaryFolder.newFile("foo.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (int i = 0; i < 10; i++) {
+                out.putNextEntry(new ZipEntry("dir/\u00e9" + i));
+                out.write(new byte[i * 100]);
+                out.closeEntry();
+            }
+        }
+
+        ZipCentralDirectorySnapshot snapshot = ZipCentralDirectorySnapshot.fromZip(zip);
+        File snapshotFile = temporaryFolder.newFile("foo.cd");
+        snapshot.writeTo(snapshotFile);
+        assertThat(snapshotFile.length()).isLessThan(zip.length());
+        assertThat(ZipCentralDirectorySnapshot.readFrom(snapshotFile)).isEqualTo(snapshot);
+        assertThat(snapshot.get("dir/\u00e95").getUncompressedSize()).isEqualTo(500);
+    }
+
+    @Test
+    public void readInvalidFiles() throws Exception {
+        File file = temporaryFolder.newFile("foo.zip");
+        Files.write("Not a zip", file, StandardCharsets.UTF_8);
+
+        try {
+            ZipCentralDirectorySnapshot.fromZip(file);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+
+        try {
+            ZipCentralDirectorySnapshot.readFrom(file);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
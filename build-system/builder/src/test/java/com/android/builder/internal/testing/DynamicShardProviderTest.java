@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.NullLogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DynamicShardProviderTest {
+
+    private static final TestIdentifier SLOW = new TestIdentifier("Slow", "test");
+    private static final TestIdentifier MEDIUM_1 = new TestIdentifier("Medium", "test1");
+    private static final TestIdentifier MEDIUM_2 = new TestIdentifier("Medium", "test2");
+    private static final TestIdentifier FAST_1 = new TestIdentifier("Fast1", "test");
+    private static final TestIdentifier FAST_2 = new TestIdentifier("Fast2", "test");
+    private static final TestIdentifier FAST_3 = new TestIdentifier("Fast3", "test");
+
+    @Test
+    public void batchesLongestClassesFirst() throws Exception {
+        TestTimings timings = new TestTimings();
+        timings.setDuration(SLOW, 8000);
+        timings.setDuration(MEDIUM_1, 1000);
+        timings.setDuration(MEDIUM_2, 1000);
+        timings.setDuration(FAST_1, 500);
+        timings.setDuration(FAST_2, 500);
+        // FAST_3 is new, and estimated to take the average duration of 2200 ms.
+        DynamicShardProvider provider = createProvider(timings, 1, 1);
+        provider.setTests(ImmutableList.of(FAST_1, FAST_2, FAST_3, MEDIUM_1, MEDIUM_2, SLOW));
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard("device"));
+        assertEquals("-e class 'Slow'", getArgs(provider, 0));
+        assertEquals(Integer.valueOf(1), provider.getNextShard("device"));
+        assertEquals("-e class 'Fast3'", getArgs(provider, 1));
+        assertEquals(Integer.valueOf(2), provider.getNextShard("device"));
+        assertEquals("-e class 'Medium,Fast1,Fast2'", getArgs(provider, 2));
+
+        assertTrue(provider.shardFinished(0, "device", createResult(ImmutableList.of(SLOW))));
+        assertTrue(provider.shardFinished(1, "device", createResult(ImmutableList.of(FAST_3))));
+        assertTrue(provider.hasFailedTests());
+        assertTrue(
+                provider.shardFinished(
+                        2,
+                        "device",
+                        createResult(ImmutableList.of(MEDIUM_1, MEDIUM_2, FAST_1, FAST_2))));
+        assertNull(provider.getNextShard("device"));
+        assertFalse(provider.hasFailedTests());
+        assertEquals(3, provider.getStartedShardCount());
+        assertTrue(provider.getSupersededTests().isEmpty());
+    }
+
+    @Test
+    public void retriesFailedTestsOnAnotherDevice() throws Exception {
+        DynamicShardProvider provider = createProvider(new TestTimings(), 2, 1);
+        provider.setTests(ImmutableList.of(MEDIUM_1, MEDIUM_2, SLOW));
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard("a"));
+        assertEquals(Integer.valueOf(1), provider.getNextShard("b"));
+        assertTrue(provider.shardFinished(1, "b", createResult(ImmutableList.of(SLOW))));
+        assertTrue(
+                provider.shardFinished(
+                        0, "a", createResult(ImmutableList.of(MEDIUM_1), MEDIUM_2)));
+        assertTrue(provider.hasFailedTests());
+
+        assertEquals(Integer.valueOf(2), provider.getNextShard("b"));
+        assertEquals("-e class 'Medium#test2'", getArgs(provider, 2));
+        assertTrue(provider.shardFinished(2, "b", createResult(ImmutableList.of(MEDIUM_2))));
+
+        assertNull(provider.getNextShard("a"));
+        assertNull(provider.getNextShard("b"));
+        assertFalse(provider.hasFailedTests());
+        // the failure of MEDIUM_2 in shard 0 is superseded by its success in shard 2.
+        assertEquals(
+                ImmutableMap.of(0, ImmutableSet.of(MEDIUM_2)), provider.getSupersededTests());
+        assertEquals("a", provider.getShardDevice(0));
+    }
+
+    @Test
+    public void retriesOnSameDeviceWhenAlone() throws Exception {
+        DynamicShardProvider provider = createProvider(new TestTimings(), 1, 1);
+        provider.setTests(ImmutableList.of(MEDIUM_1, MEDIUM_2));
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard("device"));
+        assertTrue(
+                provider.shardFinished(
+                        0, "device", createResult(ImmutableList.of(MEDIUM_1), MEDIUM_2)));
+        assertEquals(Integer.valueOf(1), provider.getNextShard("device"));
+        assertFalse(
+                provider.shardFinished(
+                        1, "device", createResult(ImmutableList.of(), MEDIUM_2)));
+
+        assertNull(provider.getNextShard("device"));
+        assertTrue(provider.hasFailedTests());
+        assertEquals(ImmutableSet.of(MEDIUM_2), provider.getFailedTests());
+        assertTrue(provider.getSupersededTests().isEmpty());
+    }
+
+    @Test
+    public void missingTestsCountAsFailed() throws Exception {
+        DynamicShardProvider provider = createProvider(new TestTimings(), 1, 0);
+        provider.setTests(ImmutableList.of(MEDIUM_1, MEDIUM_2));
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard("device"));
+        // the instrumentation crashed after the first test.
+        assertFalse(
+                provider.shardFinished(0, "device", createResult(ImmutableList.of(MEDIUM_1))));
+        assertEquals(ImmutableSet.of(MEDIUM_2), provider.getFailedTests());
+    }
+
+    @Test
+    public void movesTestsOfFailedDevice() throws Exception {
+        DynamicShardProvider provider = createProvider(new TestTimings(), 2, 0);
+        provider.setTests(ImmutableList.of(SLOW));
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard("a"));
+        provider.deviceFailed("a");
+
+        assertEquals(Integer.valueOf(1), provider.getNextShard("b"));
+        assertEquals("-e class 'Slow'", getArgs(provider, 1));
+        assertTrue(provider.shardFinished(1, "b", createResult(ImmutableList.of(SLOW))));
+        assertNull(provider.getNextShard("b"));
+        assertFalse(provider.hasFailedTests());
+    }
+
+    @Test
+    public void waitsForRetries() throws Exception {
+        DynamicShardProvider provider = createProvider(new TestTimings(), 2, 1);
+        provider.setTests(ImmutableList.of(SLOW));
+        assertEquals(Integer.valueOf(0), provider.getNextShard("a"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> next = executor.submit(() -> provider.getNextShard("b"));
+            try {
+                next.get(100, TimeUnit.MILLISECONDS);
+                fail("b should wait for the test running on a");
+            } catch (TimeoutException e) {
+                // expected.
+            }
+
+            assertTrue(provider.shardFinished(0, "a", createResult(ImmutableList.of(), SLOW)));
+            assertEquals(Integer.valueOf(1), next.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void collectsTestsOnce() throws Exception {
+        int[] collections = new int[1];
+        DynamicShardProvider provider =
+                new DynamicShardProvider(
+                        device -> {
+                            collections[0]++;
+                            return ImmutableList.of(SLOW);
+                        },
+                        new TestTimings(),
+                        1,
+                        1,
+                        NullLogger.getLogger());
+        assertTrue(provider.hasFailedTests());
+
+        assertEquals(Integer.valueOf(0), provider.getNextShard(createDevice("a")));
+        assertTrue(provider.shardFinished(0, "a", createResult(ImmutableList.of(SLOW))));
+        assertNull(provider.getNextShard(createDevice("b")));
+        assertEquals(1, collections[0]);
+        assertFalse(provider.hasFailedTests());
+    }
+
+    private static DynamicShardProvider createProvider(
+            TestTimings timings, int devices, int maxRetries) {
+        return new DynamicShardProvider(
+                device -> {
+                    throw new AssertionError("tests are set directly");
+                },
+                timings,
+                devices,
+                maxRetries,
+                NullLogger.getLogger());
+    }
+
+    private static DeviceConnector createDevice(String name) {
+        DeviceConnector device = Mockito.mock(DeviceConnector.class);
+        when(device.getName()).thenReturn(name);
+        return device;
+    }
+
+    private static String getArgs(DynamicShardProvider provider, int shard) {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner("package", "runner", null);
+        provider.configureShard(shard, runner);
+        String command = runner.getAmInstrumentCommand();
+        return command.substring(command.indexOf("-e "), command.lastIndexOf(" package/runner"));
+    }
+
+    private static TestRunResult createResult(
+            List<TestIdentifier> passed, TestIdentifier... failed) {
+        Map<String, String> metrics = Collections.emptyMap();
+        TestRunResult result = new TestRunResult();
+        result.testRunStarted("run", passed.size() + failed.length);
+        for (TestIdentifier test : passed) {
+            result.testStarted(test);
+            result.testEnded(test, metrics);
+        }
+        for (TestIdentifier test : failed) {
+            result.testStarted(test);
+            result.testFailed(test, "trace");
+            result.testEnded(test, metrics);
+        }
+        result.testRunEnded(0, metrics);
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.testing.StubTestData;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.testutils.MockLog;
+import com.android.utils.XmlUtils;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class ShardedTestCallableTest {
+    private static final int TIMEOUT = 4000;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private DeviceConnector deviceConnector;
+    private File resultsDir;
+
+    @Before
+    public void setUpMocks() throws Exception {
+        deviceConnector = Mockito.mock(DeviceConnector.class);
+        when(deviceConnector.getName()).thenReturn("device");
+        doThrow(new IOException("device offline"))
+                .when(deviceConnector)
+                .executeShellCommand(
+                        anyString(),
+                        any(IShellOutputReceiver.class),
+                        anyLong(),
+                        anyLong(),
+                        any(TimeUnit.class));
+        resultsDir = temporaryFolder.newFolder();
+    }
+
+    @Test
+    public void deviceErrorReportedAsFailedTest() throws Exception {
+        ShardedTestCallable.ShardProvider shardProvider =
+                new ShardedTestCallable.ShardProvider() {
+                    private int nextShard;
+
+                    @Nullable
+                    @Override
+                    public Integer getNextShard() {
+                        return nextShard < getTotalShards() ? nextShard++ : null;
+                    }
+
+                    @Override
+                    public int getTotalShards() {
+                        return 1;
+                    }
+                };
+        call(shardProvider);
+
+        Element runTests = findTestCase(getReport(), "runTests");
+        assertNotNull(runTests);
+        assertEquals(1, runTests.getElementsByTagName("failure").getLength());
+    }
+
+    @Test
+    public void deviceErrorNotReportedWhenTestsHandedOver() throws Exception {
+        DynamicShardProvider shardProvider =
+                new DynamicShardProvider(
+                        device -> ImmutableList.of(new TestIdentifier("Foo", "test")),
+                        new TestTimings(),
+                        2,
+                        1,
+                        new MockLog());
+        call(shardProvider);
+
+        Element suite = getReport();
+        assertNull(findTestCase(suite, "runTests"));
+        assertEquals(0, suite.getElementsByTagName("failure").getLength());
+        // the tests of the shard are left to the other device.
+        assertTrue(shardProvider.hasFailedTests());
+    }
+
+    private void call(@NonNull ShardedTestCallable.DeviceShardProvider shardProvider)
+            throws Exception {
+        StubTestData testData =
+                new StubTestData(
+                        "com.example.app", "android.support.test.runner.AndroidJUnitRunner");
+        testData.setTestApk(new File(temporaryFolder.newFolder(), "test.apk"));
+        ShardedTestCallable callable =
+                new ShardedTestCallable(
+                        deviceConnector,
+                        "project",
+                        "flavor",
+                        ImmutableList.of(),
+                        testData,
+                        resultsDir,
+                        temporaryFolder.newFolder(),
+                        TIMEOUT,
+                        new MockLog(),
+                        shardProvider);
+        try {
+            callable.call();
+            fail("Expected the device error to be thrown");
+        } catch (IOException e) {
+            assertEquals("device offline", e.getMessage());
+        }
+    }
+
+    @NonNull
+    private Element getReport() throws Exception {
+        File report =
+                new File(
+                        resultsDir,
+                        ShardedTestCallable.getResultFileName(0, "device", "project", "flavor"));
+        assertTrue(report.isFile());
+        return XmlUtils.parseUtfXmlFile(report, false).getDocumentElement();
+    }
+
+    @Nullable
+    private static Element findTestCase(@NonNull Element suite, @NonNull String name) {
+        NodeList testCases = suite.getElementsByTagName("testcase");
+        for (int i = 0; i < testCases.getLength(); i++) {
+            Element testCase = (Element) testCases.item(i);
+            if (name.equals(testCase.getAttribute("name"))) {
+                return testCase;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTimingsTest {
+
+    private static final TestIdentifier FIRST = new TestIdentifier("com.example.Foo", "first");
+    private static final TestIdentifier SECOND = new TestIdentifier("com.example.Foo", "second");
+    private static final TestIdentifier OTHER = new TestIdentifier("com.example.Bar", "other");
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void addReports() throws Exception {
+        File resultsDir = temporaryFolder.newFolder("results");
+        writeReport(
+                new File(resultsDir, "TEST-device1-project-flavor-shard-0.xml"),
+                "<testcase name=\"first\" classname=\"com.example.Foo\" time=\"1.5\" />",
+                "<testcase name=\"second\" classname=\"com.example.Foo\" time=\"0.25\" />");
+        writeReport(
+                new File(resultsDir, "TEST-device2-project-flavor-shard-1.xml"),
+                "<testcase name=\"second\" classname=\"com.example.Foo\" time=\"0.5\" />");
+        writeReport(
+                new File(resultsDir, "coverage.xml"),
+                "<testcase name=\"other\" classname=\"com.example.Bar\" time=\"9\" />");
+
+        TestTimings timings = new TestTimings();
+        timings.setDuration(OTHER, 100);
+        timings.addReports(resultsDir);
+
+        assertEquals(1500, timings.getDuration(FIRST));
+        assertEquals(500, timings.getDuration(SECOND));
+        assertEquals(100, timings.getDuration(OTHER));
+        assertEquals(700, timings.getAverageDuration());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "timings/timings.txt");
+        TestTimings timings = new TestTimings();
+        timings.setDuration(FIRST, 1500);
+        timings.setDuration(OTHER, 42);
+        timings.save(file);
+
+        TestTimings loaded = TestTimings.load(file);
+        assertEquals(1500, loaded.getDuration(FIRST));
+        assertEquals(42, loaded.getDuration(OTHER));
+        assertEquals(-1, loaded.getDuration(SECOND));
+    }
+
+    @Test
+    public void loadMissingOrCorrupted() throws Exception {
+        assertEquals(-1, TestTimings.load(null).getAverageDuration());
+        File file = temporaryFolder.newFile("timings.txt");
+        assertEquals(-1, TestTimings.load(file).getAverageDuration());
+
+        Files.write(
+                file.toPath(),
+                Collections.singletonList("not a duration"),
+                StandardCharsets.UTF_8);
+        assertEquals(-1, TestTimings.load(file).getDuration(FIRST));
+    }
+
+    private static void writeReport(File file, String... testCases) throws Exception {
+        StringBuilder report = new StringBuilder("<?xml version='1.0' encoding='UTF-8' ?>\n");
+        report.append("<testsuite name=\"suite\" tests=\"").append(testCases.length).append("\">");
+        for (String testCase : testCases) {
+            report.append(testCase);
+        }
+        report.append("</testsuite>");
+        Files.write(file.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
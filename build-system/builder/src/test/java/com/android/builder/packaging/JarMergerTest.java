@@ -20,9 +20,11 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.android.annotations.NonNull;
+import com.android.builder.files.ZipCentralDirectorySnapshot;
 import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import com.google.common.jimfs.Configuration;
@@ -33,14 +35,19 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import java.util.jar.JarOutputStream;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 import org.junit.Test;
 
 public class JarMergerTest {
@@ -243,6 +250,109 @@ public class JarMergerTest {
                         "stored.txt[stored]", RESOURCE_CONTENT, "deflated.txt", RESOURCE_CONTENT_2);
     }
 
+    @Test
+    public void copiesJarEntriesAsTheyAre() throws IOException {
+        Path root = Jimfs.newFileSystem(Configuration.unix()).getPath("/");
+        Path out = root.resolve("/out/output.jar");
+        Path jar = root.resolve("/in/jar.jar");
+
+        // Entries deflated without compression would be smaller if they were compressed again
+        Files.createDirectories(jar.getParent());
+        try (JarOutputStream jos =
+                new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)))) {
+            jos.setLevel(Deflater.NO_COMPRESSION);
+            jos.putNextEntry(new ZipEntry("resource.txt"));
+            jos.write(RESOURCE_CONTENT.data);
+            jos.closeEntry();
+        }
+
+        try (JarMerger merger = new JarMerger(out)) {
+            merger.addJar(jar);
+        }
+
+        assertThat(getEntries(out)).containsExactly("resource.txt", RESOURCE_CONTENT);
+        assertThat(ZipCentralDirectorySnapshot.fromZip(out).get("resource.txt").getCompressedSize())
+                .isEqualTo(
+                        ZipCentralDirectorySnapshot.fromZip(jar)
+                                .get("resource.txt")
+                                .getCompressedSize());
+    }
+
+    @Test
+    public void unflaggedNonAsciiNames() throws IOException {
+        Path root = Jimfs.newFileSystem(Configuration.unix()).getPath("/");
+        Path out = root.resolve("/out/output.jar");
+        Path jar = root.resolve("/in/jar.jar");
+
+        // A UTF-8 name without the UTF-8 flag, as written by some older tools
+        String name = "dir/\u00e9.txt";
+        Files.createDirectories(jar.getParent());
+        try (ZipOutputStream zos =
+                new ZipOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(jar)),
+                        StandardCharsets.ISO_8859_1)) {
+            zos.putNextEntry(
+                    new ZipEntry(
+                            new String(
+                                    name.getBytes(StandardCharsets.UTF_8),
+                                    StandardCharsets.ISO_8859_1)));
+            zos.write(RESOURCE_CONTENT.data);
+            zos.closeEntry();
+        }
+        assertThat(ZipCentralDirectorySnapshot.fromZip(jar).get(name)).isNull();
+
+        try (JarMerger merger = new JarMerger(out)) {
+            merger.addJar(jar);
+        }
+
+        assertThat(getEntries(out)).containsExactly(name, RESOURCE_CONTENT);
+    }
+
+    @Test
+    public void deterministicOutput() throws IOException {
+        Path root = Jimfs.newFileSystem(Configuration.unix()).getPath("/");
+        Path dir = createDirectoryWithClassAndResource(root.resolve("dir"));
+        Path jar = createJarWithClass();
+        Path out1 = root.resolve("/out/output1.jar");
+        Path out2 = root.resolve("/out/output2.jar");
+
+        for (Path out : ImmutableList.of(out1, out2)) {
+            try (JarMerger merger = new JarMerger(out)) {
+                merger.addDirectory(dir);
+                merger.addJar(jar);
+                merger.addFile("extra.txt", dir.resolve("resource.txt"));
+            }
+            Files.setLastModifiedTime(dir.resolve("resource.txt"), FileTime.fromMillis(1000));
+        }
+
+        assertThat(Files.readAllBytes(out2)).isEqualTo(Files.readAllBytes(out1));
+        try (ZipInputStream zipInputStream =
+                new ZipInputStream(new BufferedInputStream(Files.newInputStream(out1)))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                assertThat(entry.getLastModifiedTime()).isEqualTo(JarMerger.ZERO_TIME);
+            }
+        }
+    }
+
+    @Test
+    public void duplicateEntries() throws IOException {
+        Path out = Jimfs.newFileSystem(Configuration.unix()).getPath("/out/output.jar");
+        Path jar = createJarWithClass();
+
+        try (JarMerger merger = new JarMerger(out)) {
+            merger.addJar(jar);
+            try {
+                merger.addJar(jar);
+                fail("Expected ZipException");
+            } catch (ZipException e) {
+                assertThat(e).hasMessage("duplicate entry: com/example/lib/LibClass.class");
+            }
+        }
+        assertThat(getEntries(out))
+                .containsExactly("com/example/lib/LibClass.class", LIBCLASS_CONTENT);
+    }
+
     private static Path createDirectoryWithClassAndResource() throws IOException {
         return createDirectoryWithClassAndResource(
                 Jimfs.newFileSystem(Configuration.unix()).getPath("test", "dir"));
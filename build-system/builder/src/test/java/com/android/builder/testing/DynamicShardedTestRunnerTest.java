@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.XmlUtils;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+
+public class DynamicShardedTestRunnerTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void removeTestCases() throws Exception {
+        File report = temporaryFolder.newFile("TEST-device-project-flavor-shard-0.xml");
+        Files.write(
+                report.toPath(),
+                ("<?xml version='1.0' encoding='UTF-8' ?>\n"
+                                + "<testsuite name=\"suite\" tests=\"3\" failures=\"2\">"
+                                + "<properties />"
+                                + "<testcase name=\"passed\" classname=\"Foo\" time=\"1\" />"
+                                + "<testcase name=\"flaky\" classname=\"Foo\" time=\"1\">"
+                                + "<failure>trace</failure></testcase>"
+                                + "<testcase name=\"broken\" classname=\"Foo\" time=\"1\">"
+                                + "<failure>trace</failure></testcase>"
+                                + "</testsuite>")
+                        .getBytes(StandardCharsets.UTF_8));
+
+        DynamicShardedTestRunner.removeTestCases(
+                report, ImmutableSet.of(new TestIdentifier("Foo", "flaky")));
+
+        Element suite = XmlUtils.parseUtfXmlFile(report, false).getDocumentElement();
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("failures"));
+        assertEquals(2, suite.getElementsByTagName("testcase").getLength());
+        assertEquals(1, suite.getElementsByTagName("failure").getLength());
+        assertEquals(
+                "broken",
+                ((Element) suite.getElementsByTagName("testcase").item(1)).getAttribute("name"));
+    }
+}
@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.repository.Revision;
 import com.android.testutils.concurrency.ConcurrencyTester;
@@ -34,10 +35,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -885,6 +894,355 @@ public class FileCacheTest {
         assertThat(cacheDir).doesNotExist();
     }
 
+    @Test
+    public void testDeleteLeastRecentlyUsedCacheEntries() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir);
+        FileCache.Inputs inputs1 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo1")
+                        .build();
+        FileCache.Inputs inputs2 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo2")
+                        .build();
+        FileCache.Inputs inputs3 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo3")
+                        .build();
+
+        // Create three cache entries of 100, 200 and 300 bytes
+        fileCache.createFileInCacheIfAbsent(
+                inputs1, (outputFile) -> Files.write(new byte[100], outputFile));
+        Thread.sleep(10);
+        fileCache.createFileInCacheIfAbsent(
+                inputs2, (outputFile) -> Files.write(new byte[200], outputFile));
+        Thread.sleep(10);
+        fileCache.createFileInCacheIfAbsent(
+                inputs3, (outputFile) -> Files.write(new byte[300], outputFile));
+        Thread.sleep(10);
+        File cacheEntryDir2 = fileCache.getFileInCache(inputs2).getParentFile();
+        File lockFile2 = SynchronizedFile.getLockFile(cacheEntryDir2);
+
+        // Use the first cache entry again so that the second one is the least recently used
+        File outputFile = new File(outputDir, "output");
+        fileCache.createFile(outputFile, inputs1, () -> fail("expected a cache hit"));
+        assertThat(outputFile).exists();
+
+        // The cache is within the budget, nothing should be deleted
+        fileCache.deleteLeastRecentlyUsedCacheEntries(600);
+        assertThat(checkNotNull(cacheDir.listFiles()).length).isEqualTo(6);
+
+        // Delete the least recently used cache entry and its lock file only
+        fileCache.deleteLeastRecentlyUsedCacheEntries(500);
+        assertThat(cacheEntryDir2).doesNotExist();
+        assertThat(lockFile2).doesNotExist();
+        assertThat(checkNotNull(cacheDir.listFiles()).length).isEqualTo(4);
+        assertThat(fileCache.cacheEntryExists(inputs1)).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs3)).isTrue();
+
+        // Cache entries missing from the access index are considered used when last modified
+        File cacheEntryDir1 = fileCache.getFileInCache(inputs1).getParentFile();
+        cacheEntryDir1.setLastModified(System.currentTimeMillis() - Duration.ofDays(1).toMillis());
+        FileUtils.delete(new File(cacheDir.getParentFile(), cacheDir.getName() + ".access-index"));
+        fileCache.deleteLeastRecentlyUsedCacheEntries(300);
+        assertThat(cacheEntryDir1).doesNotExist();
+        assertThat(fileCache.cacheEntryExists(inputs3)).isTrue();
+
+        fileCache.deleteLeastRecentlyUsedCacheEntries(0);
+        assertThat(fileCache.cacheEntryExists(inputs3)).isFalse();
+
+        // Check that deleting cache entries in a non-existent cache directory does not throw an
+        // exception
+        FileUtils.deletePath(cacheDir);
+        fileCache.deleteLeastRecentlyUsedCacheEntries(0);
+        assertThat(cacheDir).doesNotExist();
+    }
+
+    @Test
+    public void testCompactAccessIndex() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs1 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo1")
+                        .build();
+        FileCache.Inputs inputs2 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo2")
+                        .build();
+        File accessIndexFile =
+                new File(cacheDir.getParentFile(), cacheDir.getName() + ".access-index");
+
+        for (int i = 0; i < 3; i++) {
+            fileCache.createFileInCacheIfAbsent(
+                    inputs1, (outputFile) -> Files.write(new byte[10], outputFile));
+        }
+        fileCache.createFileInCacheIfAbsent(inputs2, (outputFile) -> {});
+        assertThat(Files.readLines(accessIndexFile, StandardCharsets.UTF_8)).hasSize(4);
+
+        FileUtils.deletePath(fileCache.getFileInCache(inputs2).getParentFile());
+        fileCache.compactAccessIndex();
+        List<String> lines = Files.readLines(accessIndexFile, StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(1);
+        assertThat(lines.get(0))
+                .startsWith(fileCache.getFileInCache(inputs1).getParentFile().getName() + " ");
+        assertThat(lines.get(0)).endsWith(" 10");
+
+        fileCache.delete();
+        assertThat(accessIndexFile).doesNotExist();
+    }
+
+    @Test
+    public void testGetStatistics() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo")
+                        .build();
+        assertThat(fileCache.getStatistics()).isEmpty();
+
+        File outputFile = new File(outputDir, "output");
+        for (int i = 0; i < 3; i++) {
+            fileCache.createFile(outputFile, inputs, () -> Files.write(new byte[42], outputFile));
+        }
+        fileCache.createFileInCacheIfAbsent(
+                new FileCache.Inputs.Builder(FileCache.Command.PREDEX_LIBRARY)
+                        .putString("input", "foo")
+                        .build(),
+                (cachedFile) -> {});
+
+        assertThat(fileCache.getStatistics().keySet())
+                .containsExactly(FileCache.Command.TEST, FileCache.Command.PREDEX_LIBRARY);
+        FileCache.CommandStatistics statistics =
+                fileCache.getStatistics().get(FileCache.Command.TEST);
+        assertThat(statistics.getHits()).isEqualTo(2);
+        assertThat(statistics.getMisses()).isEqualTo(1);
+        assertThat(statistics.getBytesSaved()).isEqualTo(84);
+        assertThat(statistics.getHitRate()).isWithin(0.001).of(2.0 / 3);
+        statistics = fileCache.getStatistics().get(FileCache.Command.PREDEX_LIBRARY);
+        assertThat(statistics.getHits()).isEqualTo(0);
+        assertThat(statistics.getMisses()).isEqualTo(1);
+        assertThat(statistics.getBytesSaved()).isEqualTo(0);
+    }
+
+    @Test
+    public void testGetStatistics_SizeRecordedOnCreation() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo")
+                        .build();
+        File outputFile = new File(outputDir, "output");
+        fileCache.createFile(outputFile, inputs, () -> Files.write(new byte[42], outputFile));
+        File cachedFile = fileCache.getFileInCache(inputs);
+        assertThat(new File(cachedFile.getParentFile(), "size")).hasContents("42");
+
+        // The size is not measured again when the cache entry is used
+        Files.write(new byte[100], cachedFile);
+        fileCache.createFile(outputFile, inputs, () -> fail("expected a cache hit"));
+        assertThat(fileCache.getStatistics().get(FileCache.Command.TEST).getBytesSaved())
+                .isEqualTo(42);
+
+        // Cache entries which did not record their size are measured instead
+        FileUtils.delete(new File(cachedFile.getParentFile(), "size"));
+        fileCache.createFile(outputFile, inputs, () -> fail("expected a cache hit"));
+        assertThat(fileCache.getStatistics().get(FileCache.Command.TEST).getBytesSaved())
+                .isEqualTo(142);
+    }
+
+    @Test
+    public void testAccessIndexNotWritable() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo")
+                        .build();
+        // A directory in place of the access index cannot be appended to
+        FileUtils.mkdirs(new File(cacheDir.getParentFile(), cacheDir.getName() + ".access-index"));
+
+        File outputFile = new File(outputDir, "output");
+        fileCache.createFile(outputFile, inputs, () -> Files.write(new byte[42], outputFile));
+        fileCache.createFile(outputFile, inputs, () -> fail("expected a cache hit"));
+        assertThat(outputFile).contains(new byte[42]);
+        FileCache.CommandStatistics statistics =
+                fileCache.getStatistics().get(FileCache.Command.TEST);
+        assertThat(statistics.getHits()).isEqualTo(1);
+        assertThat(statistics.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCreateFile_HardLinks() throws Exception {
+        Assume.assumeFalse(SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS);
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                        .withMaterializationMode(FileCache.MaterializationMode.HARD_LINK);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo")
+                        .build();
+
+        File outputDir1 = new File(outputDir, "dir1");
+        File outputDir2 = new File(outputDir, "dir2");
+        fileCache.createFile(
+                outputDir1,
+                inputs,
+                () -> {
+                    File outputFile = new File(outputDir1, "sub/file");
+                    Files.createParentDirs(outputFile);
+                    writeStringToFile("Some text", outputFile);
+                });
+        fileCache.createFile(outputDir2, inputs, () -> fail("expected a cache hit"));
+
+        // All the outputs share the same read-only file with the cache
+        File cachedFile = new File(fileCache.getFileInCache(inputs), "sub/file");
+        assertThat(getFileKey(new File(outputDir1, "sub/file"))).isEqualTo(getFileKey(cachedFile));
+        assertThat(getFileKey(new File(outputDir2, "sub/file"))).isEqualTo(getFileKey(cachedFile));
+        assertThat(java.nio.file.Files.getPosixFilePermissions(cachedFile.toPath()))
+                .doesNotContain(PosixFilePermission.OWNER_WRITE);
+
+        // A cache that copies its outputs produces writable copies of the same cache entry
+        File outputDir3 = new File(outputDir, "dir3");
+        FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                .createFile(outputDir3, inputs, () -> fail("expected a cache hit"));
+        File copiedFile = new File(outputDir3, "sub/file");
+        assertThat(copiedFile).hasContents("Some text");
+        assertThat(getFileKey(copiedFile)).isNotEqualTo(getFileKey(cachedFile));
+        assertThat(java.nio.file.Files.getPosixFilePermissions(copiedFile.toPath()))
+                .contains(PosixFilePermission.OWNER_WRITE);
+
+        // The linked outputs and the cache can still be deleted
+        fileCache.createFile(outputDir2, inputs, () -> fail("expected a cache hit"));
+        fileCache.delete();
+        assertThat(cacheDir).doesNotExist();
+    }
+
+    @NonNull
+    private static Object getFileKey(@NonNull File file) throws IOException {
+        return java.nio.file.Files.readAttributes(file.toPath(), BasicFileAttributes.class)
+                .fileKey();
+    }
+
+    @Test
+    public void testCreateFile_RemoteCache() throws Exception {
+        Map<String, byte[]> archives = new ConcurrentHashMap<>();
+        RemoteCache remoteCache =
+                new RemoteCache() {
+                    @Override
+                    public boolean load(@NonNull String key, @NonNull File archive)
+                            throws IOException {
+                        byte[] contents = archives.get(key);
+                        if (contents == null) {
+                            return false;
+                        }
+                        Files.write(contents, archive);
+                        return true;
+                    }
+
+                    @Override
+                    public void store(@NonNull String key, @NonNull File archive)
+                            throws IOException {
+                        archives.put(key, Files.toByteArray(archive));
+                    }
+                };
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("input", "foo")
+                        .build();
+        // The remote keys include the given version and the version of the archive format
+        String remoteKey = "1.0-1-" + inputs.getKey();
+
+        // A cache miss is uploaded to the remote cache
+        FileCache fileCache1 =
+                FileCache.getInstanceWithSingleProcessLocking(temporaryFolder.newFolder())
+                        .withRemoteCache(remoteCache, "1.0");
+        File outputDir1 = new File(outputDir, "dir1");
+        fileCache1.createFile(
+                outputDir1,
+                inputs,
+                () -> {
+                    File outputFile = new File(outputDir1, "sub/file");
+                    Files.createParentDirs(outputFile);
+                    writeStringToFile("Some text", outputFile);
+                });
+        fileCache1.waitForRemoteUploads();
+        assertThat(fileCache1.getMisses()).isEqualTo(1);
+        assertThat(archives).containsKey(remoteKey);
+
+        // Another cache downloads it instead of creating the output again
+        FileCache fileCache2 =
+                FileCache.getInstanceWithSingleProcessLocking(temporaryFolder.newFolder())
+                        .withRemoteCache(remoteCache, "1.0");
+        File outputDir2 = new File(outputDir, "dir2");
+        FileCache.QueryResult result =
+                fileCache2.createFile(outputDir2, inputs, () -> fail("expected a cache hit"));
+        assertThat(result.getQueryEvent()).isEqualTo(FileCache.QueryEvent.HIT);
+        assertThat(new File(outputDir2, "sub/file")).hasContents("Some text");
+        assertThat(new File(fileCache2.getFileInCache(inputs), "sub/file")).exists();
+        FileCache.CommandStatistics statistics =
+                fileCache2.getStatistics().get(FileCache.Command.TEST);
+        assertThat(statistics.getHits()).isEqualTo(1);
+        assertThat(statistics.getRemoteHits()).isEqualTo(1);
+
+        // A damaged archive is a cache miss, and is replaced by the new cache entry
+        archives.put(remoteKey, "Damaged".getBytes(StandardCharsets.UTF_8));
+        FileCache fileCache3 =
+                FileCache.getInstanceWithSingleProcessLocking(temporaryFolder.newFolder())
+                        .withRemoteCache(remoteCache, "1.0");
+        File outputFile3 = new File(outputDir, "file3");
+        result =
+                fileCache3.createFile(
+                        outputFile3, inputs, () -> writeStringToFile("Other text", outputFile3));
+        fileCache3.waitForRemoteUploads();
+        assertThat(result.getQueryEvent()).isEqualTo(FileCache.QueryEvent.MISSED);
+        assertThat(outputFile3).hasContents("Other text");
+        statistics = fileCache3.getStatistics().get(FileCache.Command.TEST);
+        assertThat(statistics.getRemoteHits()).isEqualTo(0);
+        assertThat(statistics.getRemoteFailures()).isEqualTo(1);
+        assertThat(archives.get(remoteKey).length).isGreaterThan("Damaged".length());
+    }
+
+    @Test
+    public void testCreateFile_RemoteCacheUnavailable() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AtomicInteger stores = new AtomicInteger(0);
+        RemoteCache remoteCache =
+                new RemoteCache() {
+                    @Override
+                    public boolean load(@NonNull String key, @NonNull File archive)
+                            throws IOException {
+                        loads.incrementAndGet();
+                        throw new ConnectException("Connection refused");
+                    }
+
+                    @Override
+                    public void store(@NonNull String key, @NonNull File archive) {
+                        stores.incrementAndGet();
+                    }
+                };
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                        .withRemoteCache(remoteCache, "1.0");
+
+        // The first miss tries the remote cache, the later ones no longer wait for it
+        for (int i = 0; i < 3; i++) {
+            File outputFile = new File(outputDir, "file" + i);
+            FileCache.Inputs inputs =
+                    new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                            .putLong("input", i)
+                            .build();
+            FileCache.QueryResult result =
+                    fileCache.createFile(
+                            outputFile, inputs, () -> writeStringToFile("Some text", outputFile));
+            assertThat(result.getQueryEvent()).isEqualTo(FileCache.QueryEvent.MISSED);
+            assertThat(outputFile).hasContents("Some text");
+        }
+        fileCache.waitForRemoteUploads();
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(stores.get()).isEqualTo(0);
+        assertThat(fileCache.getMisses()).isEqualTo(3);
+        assertThat(fileCache.getStatistics().get(FileCache.Command.TEST).getRemoteFailures())
+                .isEqualTo(1);
+    }
+
     @Test
     public void testDeleteFileCache() throws IOException {
         FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
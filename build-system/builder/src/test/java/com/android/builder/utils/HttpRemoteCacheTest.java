@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import static com.android.testutils.truth.FileSubject.assertThat;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test cases for {@link HttpRemoteCache}, against a local HTTP server. */
+public class HttpRemoteCacheTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Map<String, byte[]> archives = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+
+    private URI baseUri;
+
+    @Before
+    public void setUp() throws IOException {
+        server =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/cache/", this::handle);
+        server.start();
+        baseUri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/cache");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String key = exchange.getRequestURI().getPath().substring("/cache/".length());
+            if (exchange.getRequestMethod().equals("PUT")) {
+                archives.put(key, ByteStreams.toByteArray(exchange.getRequestBody()));
+                exchange.sendResponseHeaders(201, -1);
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                byte[] archive = archives.get(key);
+                if (archive == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, archive.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(archive);
+                    }
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        HttpRemoteCache remoteCache = new HttpRemoteCache(baseUri, true);
+        File archive = temporaryFolder.newFile();
+        File downloadedArchive = temporaryFolder.newFile();
+
+        // Missing keys are not errors
+        assertThat(remoteCache.load("key", downloadedArchive)).isFalse();
+
+        Files.write("Some archive", archive, StandardCharsets.UTF_8);
+        remoteCache.store("key", archive);
+        assertThat(archives).containsKey("key");
+
+        assertThat(remoteCache.load("key", downloadedArchive)).isTrue();
+        assertThat(downloadedArchive).hasContents("Some archive");
+    }
+
+    @Test
+    public void testStore_NoPush() throws IOException {
+        HttpRemoteCache remoteCache = new HttpRemoteCache(baseUri, false);
+        File archive = temporaryFolder.newFile();
+        Files.write("Some archive", archive, StandardCharsets.UTF_8);
+
+        remoteCache.store("key", archive);
+        assertThat(archives).isEmpty();
+    }
+
+    @Test
+    public void testLoad_ServerError() throws IOException {
+        server.removeContext("/cache/");
+        server.createContext(
+                "/cache/",
+                exchange -> {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                });
+        HttpRemoteCache remoteCache = new HttpRemoteCache(baseUri, true);
+        try {
+            remoteCache.load("key", temporaryFolder.newFile());
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("500");
+        }
+    }
+}
@@ -22,10 +22,12 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.model.Version;
 import com.android.builder.utils.FileCache;
+import com.android.builder.utils.HttpRemoteCache;
 import com.android.builder.utils.SynchronizedFile;
 import com.android.ide.common.repository.GradleVersion;
 import com.android.prefs.AndroidLocation;
@@ -35,7 +37,9 @@ import com.google.common.base.Verify;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.URI;
 import java.time.Duration;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.gradle.api.Project;
@@ -45,6 +49,9 @@ import org.gradle.api.Project;
  */
 public final class BuildCacheUtils {
 
+    @NonNull
+    private static final LoggerWrapper LOGGER = LoggerWrapper.getLogger(BuildCacheUtils.class);
+
     @NonNull public static final String BUILD_CACHE_TROUBLESHOOTING_MESSAGE =
             "To troubleshoot the issue or learn how to disable the build cache,"
                     + " go to https://d.android.com/r/tools/build-cache.html.\n"
@@ -93,7 +100,15 @@ public final class BuildCacheUtils {
      * user-defined directory, or a default directory if the user-defined directory is not provided.
      *
      * <p>Cache eviction may be performed in this method at regular intervals (see {@link
-     * BuildCacheUtils#DAYS_BETWEEN_CACHE_EVICTION_RUNS}}).
+     * BuildCacheUtils#DAYS_BETWEEN_CACHE_EVICTION_RUNS}}). If a maximum size is set for the build
+     * cache (see {@link LongOption#BUILD_CACHE_MAX_SIZE}), the least recently used cache entries
+     * are also deleted at the end of every build to stay within that size. If a remote cache is set
+     * (see {@link StringOption#BUILD_CACHE_REMOTE_URL}), cache misses are looked up in it, and new
+     * cache entries are uploaded to it before the build finishes.
+     *
+     * <p>If hard links are enabled (see {@link BooleanOption#ENABLE_BUILD_CACHE_HARD_LINKS}), the
+     * outputs taken from the build cache share read-only files with it, so tasks must delete them
+     * rather than modify them in place. This option has no effect on Windows.
      */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Nullable
@@ -112,12 +127,24 @@ public final class BuildCacheUtils {
             }
         };
 
-        FileCache buildCache =
+        FileCache localBuildCache =
                 createBuildCache(
                         projectOptions.get(StringOption.BUILD_CACHE_DIR),
                         project.getRootProject()::file,
                         defaultBuildCacheDirSupplier,
-                        Version.ANDROID_GRADLE_PLUGIN_VERSION);
+                        Version.ANDROID_GRADLE_PLUGIN_VERSION,
+                        projectOptions.get(BooleanOption.ENABLE_BUILD_CACHE_HARD_LINKS));
+
+        // Share the cache entries with other machines through a remote cache, if one is set
+        String remoteUrl = projectOptions.get(StringOption.BUILD_CACHE_REMOTE_URL);
+        FileCache buildCache =
+                remoteUrl != null
+                        ? localBuildCache.withRemoteCache(
+                                new HttpRemoteCache(
+                                        URI.create(remoteUrl),
+                                        projectOptions.get(BooleanOption.BUILD_CACHE_REMOTE_PUSH)),
+                                Version.ANDROID_GRADLE_PLUGIN_VERSION)
+                        : localBuildCache;
 
         // Get the shared directory containing the build caches for different plugin versions.
         // In AGP 3.0.x and earlier, this directory contains the cache entries directly.
@@ -202,6 +229,43 @@ public final class BuildCacheUtils {
                                             Duration.ofDays(CACHE_DIRECTORY_DAYS_TO_LIVE)));
         }
 
+        // Let the cache entries created by this project finish uploading to the remote cache
+        if (buildCache.getRemoteCache() != null) {
+            BuildSessionImpl.getSingleton()
+                    .executeOnceWhenBuildFinished(
+                            actionGroup,
+                            "waitForRemoteUploads:" + project.getPath(),
+                            () -> {
+                                try {
+                                    buildCache.waitForRemoteUploads();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    throw new RuntimeException(e);
+                                }
+                            });
+        }
+
+        // Keep the current cache within its size budget. This is done at the end of the build, as
+        // it requires a WRITE lock on the cache directory which would block the tasks using the
+        // cache.
+        Long maxSizeInMegabytes = projectOptions.get(LongOption.BUILD_CACHE_MAX_SIZE);
+        if (maxSizeInMegabytes != null) {
+            BuildSessionImpl.getSingleton()
+                    .executeOnceWhenBuildFinished(
+                            actionGroup,
+                            "deleteLeastRecentlyUsedCacheEntries",
+                            () ->
+                                    buildCache.deleteLeastRecentlyUsedCacheEntries(
+                                            maxSizeInMegabytes * 1024 * 1024));
+        }
+
+        // Report how well the cache was used by this project
+        BuildSessionImpl.getSingleton()
+                .executeOnceWhenBuildFinished(
+                        actionGroup,
+                        "logStatistics:" + project.getPath(),
+                        () -> logStatistics(project.getPath(), buildCache));
+
         // Mark that the current cache was last used at this point
         updateMarkerFile(new File(buildCache.getCacheDirectory(), CACHE_USE_MARKER_FILE_NAME));
 
@@ -214,15 +278,20 @@ public final class BuildCacheUtils {
             @Nullable String buildCacheDir,
             @NonNull Function<Object, File> pathToFileResolver,
             @NonNull Supplier<File> defaultBuildCacheDirSupplier,
-            @NonNull String pluginVersion) {
+            @NonNull String pluginVersion,
+            boolean useHardLinks) {
         File sharedBuildCacheDir =
                 buildCacheDir != null
                         ? pathToFileResolver.apply(buildCacheDir)
                         : defaultBuildCacheDirSupplier.get();
         // The actual build cache directory for a given plugin version is
         // <shared-build-cache-dir>/<plugin-version>
-        return FileCache.getInstanceWithMultiProcessLocking(
-                new File(sharedBuildCacheDir, pluginVersion));
+        FileCache buildCache =
+                FileCache.getInstanceWithMultiProcessLocking(
+                        new File(sharedBuildCacheDir, pluginVersion));
+        return useHardLinks
+                ? buildCache.withMaterializationMode(FileCache.MaterializationMode.HARD_LINK)
+                : buildCache;
     }
 
     /**
@@ -322,6 +391,29 @@ public final class BuildCacheUtils {
         }
     }
 
+    /**
+     * Logs the number of hits, misses and bytes saved for each command that used the given build
+     * cache, to help choose the size of the cache.
+     */
+    private static void logStatistics(@NonNull String projectPath, @NonNull FileCache buildCache) {
+        for (Map.Entry<FileCache.Command, FileCache.CommandStatistics> entry :
+                buildCache.getStatistics().entrySet()) {
+            FileCache.CommandStatistics statistics = entry.getValue();
+            LOGGER.info(
+                    "Build cache statistics for %1$s, %2$s: %3$d hits, %4$d misses"
+                            + " (%5$.0f%% hit rate), %6$d bytes saved, %7$d remote hits,"
+                            + " %8$d remote failures",
+                    projectPath,
+                    entry.getKey(),
+                    statistics.getHits(),
+                    statistics.getMisses(),
+                    statistics.getHitRate() * 100,
+                    statistics.getBytesSaved(),
+                    statistics.getRemoteHits(),
+                    statistics.getRemoteFailures());
+        }
+    }
+
     /**
      * Updates the timestamp of the given marker file to the current system timestamp, creating it
      * first if it does not yet exist.
@@ -30,6 +30,7 @@ import com.android.builder.files.FileCacheByPath;
 import com.android.builder.files.IncrementalRelativeFileSets;
 import com.android.builder.files.RelativeFile;
 import com.android.builder.files.RelativeFiles;
+import com.android.builder.files.ZipCentralDirectorySnapshot;
 import com.android.builder.merge.IncrementalFileMergerInput;
 import com.android.builder.merge.LazyIncrementalFileMergerInput;
 import com.android.builder.merge.LazyIncrementalFileMergerInputs;
@@ -72,7 +73,7 @@ public final class IncrementalFileMergerTransformUtils {
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
         File jarFile = jarInput.getFile();
         if (jarFile.isFile()) {
-            cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.add(jarFile)));
+            cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.addZipSnapshot(jarFile)));
         } else {
             cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.remove(jarFile)));
         }
@@ -139,7 +140,7 @@ public final class IncrementalFileMergerTransformUtils {
             return null;
         }
 
-        cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.add(jarFile)));
+        cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.addZipSnapshot(jarFile)));
 
         IncrementalFileMergerInput input =
                 LazyIncrementalFileMergerInputs.fromNew(
@@ -201,13 +202,20 @@ public final class IncrementalFileMergerTransformUtils {
                             jarInput.getFile(),
                             FileStatus.NEW);
                 case REMOVED:
-                    File cached = zipCache.get(jarInput.getFile());
+                    ZipCentralDirectorySnapshot cached =
+                            zipCache.getZipSnapshot(jarInput.getFile());
                     if (cached == null) {
                         throw new RuntimeException("File '" + jarInput.getFile() + "' was "
                                 + "deleted, but previous version not found in cache");
                     }
 
-                    return IncrementalRelativeFileSets.fromZip(cached, FileStatus.REMOVED);
+                    ImmutableMap.Builder<RelativeFile, FileStatus> removed =
+                            ImmutableMap.builder();
+                    for (String path : cached.getEntries().keySet()) {
+                        removed.put(
+                                new RelativeFile(jarInput.getFile(), path), FileStatus.REMOVED);
+                    }
+                    return removed.build();
                 case CHANGED:
                     return IncrementalRelativeFileSets.fromZip(
                             jarInput.getFile(),
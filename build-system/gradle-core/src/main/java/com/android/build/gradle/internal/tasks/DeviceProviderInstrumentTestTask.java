@@ -39,6 +39,7 @@ import com.android.build.gradle.options.ProjectOptions;
 import com.android.builder.internal.testing.SimpleTestCallable;
 import com.android.builder.sdk.TargetInfo;
 import com.android.builder.testing.ConnectedDeviceProvider;
+import com.android.builder.testing.DynamicShardedTestRunner;
 import com.android.builder.testing.OnDeviceOrchestratorTestRunner;
 import com.android.builder.testing.ShardedTestRunner;
 import com.android.builder.testing.SimpleTestRunner;
@@ -392,15 +393,31 @@ public class DeviceProviderInstrumentTestTask extends AndroidBuilderTask
                     scope.getGlobalScope().getAndroidBuilder().getProcessExecutor());
 
             boolean shardBetweenDevices = projectOptions.get(BooleanOption.ENABLE_TEST_SHARDING);
+            boolean dynamicSharding =
+                    projectOptions.get(BooleanOption.ENABLE_DYNAMIC_TEST_SHARDING);
 
             switch (scope.getGlobalScope().getExtension().getTestOptions().getExecutionEnum()) {
                 case ANDROID_TEST_ORCHESTRATOR:
                     Preconditions.checkArgument(
-                            !shardBetweenDevices, "Sharding is not supported with Odo.");
+                            !shardBetweenDevices && !dynamicSharding,
+                            "Sharding is not supported with Odo.");
                     task.testRunnerFactory = OnDeviceOrchestratorTestRunner::new;
                     break;
                 case HOST:
-                    if (shardBetweenDevices) {
+                    if (dynamicSharding) {
+                        // the results directory is cleaned before each run.
+                        File timingsFile =
+                                FileUtils.join(
+                                        scope.getGlobalScope().getIntermediatesDir(),
+                                        "androidTest-timings",
+                                        deviceProvider.getName(),
+                                        scope.getDirName(),
+                                        "timings.txt");
+                        task.testRunnerFactory =
+                                (splitSelect, processExecutor) ->
+                                        new DynamicShardedTestRunner(
+                                                splitSelect, processExecutor, timingsFile);
+                    } else if (shardBetweenDevices) {
                         Integer numShards =
                                 projectOptions.get(IntegerOption.ANDROID_TEST_SHARD_COUNT);
                         task.testRunnerFactory =
@@ -25,9 +25,12 @@ public enum BooleanOption implements Option<Boolean> {
     ENABLE_AAPT2("android.enableAapt2", true, DeprecationReporter.DeprecationTarget.AAPT),
 
     ENABLE_BUILD_CACHE("android.enableBuildCache", true),
+    ENABLE_BUILD_CACHE_HARD_LINKS("android.enableBuildCacheHardLinks", false),
+    BUILD_CACHE_REMOTE_PUSH("android.buildCacheRemotePush", true),
     ENABLE_PROFILE_JSON("android.enableProfileJson", false),
     ENABLE_SDK_DOWNLOAD("android.builder.sdkDownload", true),
     ENABLE_TEST_SHARDING("android.androidTest.shardBetweenDevices"),
+    ENABLE_DYNAMIC_TEST_SHARDING("android.androidTest.dynamicSharding"),
     ENABLE_DEX_ARCHIVE("android.useDexArchive", true),
 
     ENABLE_IMPROVED_DEPENDENCY_RESOLUTION("android.enableImprovedDependenciesResolution", true),
@@ -22,6 +22,12 @@ import com.android.build.gradle.internal.errors.DeprecationReporter;
 
 public enum LongOption implements Option<Long> {
     DEPRECATED_NDK_COMPILE_LEASE("android.deprecatedNdkCompileLease"),
+
+    /**
+     * The size in megabytes that the build cache is kept within, by deleting its least recently
+     * used entries at the end of the build.
+     */
+    BUILD_CACHE_MAX_SIZE("android.buildCacheMaxSize"),
     ;
 
     @NonNull private final String propertyName;
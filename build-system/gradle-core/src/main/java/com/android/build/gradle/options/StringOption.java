@@ -23,6 +23,7 @@ import com.android.builder.model.AndroidProject;
 
 public enum StringOption implements Option<String> {
     BUILD_CACHE_DIR("android.buildCacheDir"),
+    BUILD_CACHE_REMOTE_URL("android.buildCacheRemoteUrl"),
 
     IDE_BUILD_TARGET_DENSITY(AndroidProject.PROPERTY_BUILD_DENSITY),
     IDE_BUILD_TARGET_ABI(AndroidProject.PROPERTY_BUILD_ABI),
@@ -691,7 +691,7 @@ public abstract class PackageAndroidArtifact extends IncrementalTask {
                 .forEach(
                         (File f) -> {
                             try {
-                                cacheByPath.add(f);
+                                cacheByPath.addZipSnapshot(f);
                             } catch (IOException e) {
                                 throw new IOExceptionWrapper(e);
                             }
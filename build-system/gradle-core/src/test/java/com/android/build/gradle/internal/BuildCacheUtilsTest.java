@@ -66,9 +66,12 @@ public class BuildCacheUtilsTest {
                         buildCacheDir.getPath(),
                         pathToFileResolver,
                         defaultBuildCacheDirSupplier,
-                        fakePluginVersion);
+                        fakePluginVersion,
+                        false);
         assertThat(buildCache.getCacheDirectory())
                 .isEqualTo(new File(buildCacheDir, fakePluginVersion));
+        assertThat(buildCache.getMaterializationMode())
+                .isEqualTo(FileCache.MaterializationMode.COPY);
     }
 
     @Test
@@ -83,9 +86,32 @@ public class BuildCacheUtilsTest {
 
         FileCache buildCache =
                 BuildCacheUtils.createBuildCache(
-                        null, pathToFileResolver, defaultBuildCacheDirSupplier, fakePluginVersion);
+                        null,
+                        pathToFileResolver,
+                        defaultBuildCacheDirSupplier,
+                        fakePluginVersion,
+                        false);
+        assertThat(buildCache.getCacheDirectory())
+                .isEqualTo(new File(defaultBuildCacheDir, fakePluginVersion));
+    }
+
+    @Test
+    public void testCreateBuildCache_HardLinks() throws IOException {
+        File defaultBuildCacheDir = testDir.newFolder();
+        FileCache buildCache =
+                BuildCacheUtils.createBuildCache(
+                        null,
+                        (path) -> {
+                            fail("This should not run");
+                            return null;
+                        },
+                        () -> defaultBuildCacheDir,
+                        fakePluginVersion,
+                        true);
         assertThat(buildCache.getCacheDirectory())
                 .isEqualTo(new File(defaultBuildCacheDir, fakePluginVersion));
+        assertThat(buildCache.getMaterializationMode())
+                .isEqualTo(FileCache.MaterializationMode.HARD_LINK);
     }
 
     @Test
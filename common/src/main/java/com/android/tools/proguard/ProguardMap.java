@@ -16,13 +16,18 @@
 
 package com.android.tools.proguard;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -100,6 +105,9 @@ public class ProguardMap {
     private Map<String, ClassData> mClassesFromClearName = new HashMap<String, ClassData>();
     private Map<String, ClassData> mClassesFromObfuscatedName = new HashMap<String, ClassData>();
 
+    // Hash of all the mapping lines read so far, null if none were read.
+    private HashCode mContentHash;
+
     public static class Frame {
         public Frame(String methodName, String signature, String filename, int line) {
             this.methodName = methodName;
@@ -131,7 +139,8 @@ public class ProguardMap {
     // Read in proguard mapping information from the given Reader.
     public void readFromReader(Reader mapReader) throws IOException, ParseException {
         BufferedReader reader = new BufferedReader(mapReader);
-        String line = reader.readLine();
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        String line = readLine(reader, hasher);
         while (line != null) {
             // Class lines are of the form:
             //   'clear.class.name -> obfuscated_class_name:'
@@ -148,7 +157,7 @@ public class ProguardMap {
 
             // After the class line comes zero or more field/method lines of the form:
             //   '    type clearName -> obfuscatedName'
-            line = reader.readLine();
+            line = readLine(reader, hasher);
             while (line != null && line.startsWith("    ")) {
                 String trimmed = line.trim();
                 int ws = trimmed.indexOf(' ');
@@ -207,10 +216,29 @@ public class ProguardMap {
                             obfuscatedLine, clearLine);
                 }
 
-                line = reader.readLine();
+                line = readLine(reader, hasher);
             }
         }
         reader.close();
+
+        HashCode hash = hasher.hash();
+        mContentHash = mContentHash == null
+                ? hash
+                : Hashing.combineOrdered(Arrays.asList(mContentHash, hash));
+    }
+
+    private static String readLine(BufferedReader reader, Hasher hasher) throws IOException {
+        String line = reader.readLine();
+        if (line != null) {
+            hasher.putString(line, StandardCharsets.UTF_8).putChar('\n');
+        }
+        return line;
+    }
+
+    // Returns a hash of the mapping information read so far, "none" if none was read. Maps
+    // read from the same mapping files have the same hash.
+    public String getContentHash() {
+        return mContentHash == null ? "none" : mContentHash.toString();
     }
 
     // Returns the deobfuscated version of the given class name. If no
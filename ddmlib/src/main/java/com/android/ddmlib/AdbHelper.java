@@ -19,6 +19,11 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
@@ -27,21 +32,25 @@ import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /**
  * Helper class to handle requests and connections to adb.
  * <p>{@link AndroidDebugBridge} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p>I/O on non-blocking channels goes through the {@link AdbSocketMultiplexer} shared by all
+ * connections, which waits for the channels with selectors instead of spinning.
  */
 final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    // how often long running services waiting for output check whether their receiver was
+    // cancelled, in ms. Output is handed to the receiver as soon as it arrives regardless.
+    static final int CANCEL_CHECK_TIME = 250;
 
     static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
@@ -96,6 +105,7 @@ final class AdbHelper {
                 throw new AdbCommandRejectedException(resp.message);
             }
 
+            release(adbChan);
             adbChan.configureBlocking(true);
         } catch (TimeoutException e) {
             adbChan.close();
@@ -145,6 +155,7 @@ final class AdbHelper {
                 throw new AdbCommandRejectedException(resp.message);
             }
 
+            release(adbChan);
             adbChan.configureBlocking(true);
         } catch (TimeoutException e) {
             adbChan.close();
@@ -269,8 +280,23 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device, long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, timeout, unit, null);
+    }
+
+    /**
+     * Retrieves the frame buffer from the device, reading it into an existing image.
+     * <p>The header of <var>image</var> is overwritten, and its data array is reused if it has the
+     * size of the frame buffer.
+     *
+     * @param image the image to read into, or <code>null</code> to create a new one.
+     * @return the image, or <code>null</code> if the protocol is not supported.
+     */
+    @Nullable
+    static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device, long timeout,
+            TimeUnit unit, @Nullable RawImage image)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
 
-        RawImage imageParams = new RawImage();
+        RawImage imageParams = image != null ? image : new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
@@ -324,7 +350,10 @@ final class AdbHelper {
 
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
+            reply = imageParams.data;
+            if (reply == null || reply.length != imageParams.size) {
+                reply = new byte[imageParams.size];
+            }
             read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
 
             imageParams.data = reply;
@@ -533,52 +562,53 @@ final class AdbHelper {
 
             ByteBuffer buf = ByteBuffer.wrap(data);
             buf.clear();
-            long timeToResponseCount = 0;
             while (true) {
-                int count;
-
                 if (rcvr != null && rcvr.isCancelled()) {
                     Log.v("ddms", "execute: cancelled");
                     break;
                 }
 
-                count = adbChan.read(buf);
+                // Wait for output until the earliest of the two timeouts.
+                long readTimeoutMs = maxTimeToOutputMs;
+                if (maxTimeoutMs > 0) {
+                    long remainingMs = maxTimeoutMs - (System.currentTimeMillis() - startTime);
+                    if (remainingMs <= 0) {
+                        throw new TimeoutException(String.format(
+                                "executeRemoteCommand timed out after %sms", maxTimeoutMs));
+                    }
+                    readTimeoutMs = readTimeoutMs > 0
+                            ? Math.min(readTimeoutMs, remainingMs) : remainingMs;
+                }
+
+                int count;
+                try {
+                    count = readAvailable(adbChan, buf, readTimeoutMs,
+                            rcvr != null ? rcvr::isCancelled : null,
+                            "executeRemoteCommand interrupted with immediate timeout via interruption.");
+                } catch (TimeoutException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    if (maxTimeoutMs > 0
+                            && System.currentTimeMillis() - startTime >= maxTimeoutMs) {
+                        throw new TimeoutException(String.format(
+                                "executeRemoteCommand timed out after %sms", maxTimeoutMs));
+                    }
+                    throw new ShellCommandUnresponsiveException();
+                }
                 if (count < 0) {
                     // we're at the end, we flush the output
                     rcvr.flush();
                     Log.v("ddms", "execute '" + command + "' on '" + device + "' : EOF hit. Read: "
                             + count);
                     break;
-                } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
-                            throw new ShellCommandUnresponsiveException();
-                        }
-                        Thread.sleep(wait);
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                        throw new TimeoutException("executeRemoteCommand interrupted with immediate timeout via interruption.");
-                    }
-                } else {
-                    // reset timeout
-                    timeToResponseCount = 0;
-
+                } else if (count > 0) {
                     // send data to receiver if present
                     if (rcvr != null) {
                         rcvr.addOutput(buf.array(), buf.arrayOffset(), buf.position());
                     }
                     buf.rewind();
                 }
-                // if the overall timeout exists and is exceeded, we throw timeout exception.
-                if (maxTimeoutMs > 0 && System.currentTimeMillis() - startTime > maxTimeoutMs) {
-                    throw new TimeoutException(
-                            String.format(
-                                    "executeRemoteCommand timed out after %sms", maxTimeoutMs));
-                }
             }
         } finally {
             if (adbChan != null) {
@@ -636,6 +666,190 @@ final class AdbHelper {
                 is);
     }
 
+    /**
+     * Executes a remote command on the device without blocking the calling thread. The output is
+     * handed to <var>rcvr</var> as it arrives, on a thread of the {@link AdbSocketMultiplexer},
+     * so the receiver must not block. Cancelling the returned future closes the connection.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param adbService the {@link com.android.ddmlib.AdbHelper.AdbService} to use to run the
+     *     command.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *     command. Whether it is cancelled is checked whenever it is handed output.
+     * @param maxTimeToOutputResponse max time between command output. If more time passes between
+     *     command output, the future fails with {@link ShellCommandUnresponsiveException}. A value
+     *     of 0 means waiting forever for command output.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return a future completed once the command exits, or failed with the exceptions
+     *     {@link #executeRemoteCommand} would throw.
+     */
+    static ListenableFuture<Void> executeRemoteCommandAsync(
+            InetSocketAddress adbSockAddr,
+            AdbService adbService,
+            String command,
+            IDevice device,
+            IShellOutputReceiver rcvr,
+            long maxTimeToOutputResponse,
+            TimeUnit maxTimeUnits) {
+        long maxTimeToOutputMs = 0;
+        if (maxTimeToOutputResponse > 0) {
+            if (maxTimeUnits == null) {
+                throw new NullPointerException("Time unit must not be null for non-zero max.");
+            }
+            maxTimeToOutputMs = maxTimeUnits.toMillis(maxTimeToOutputResponse);
+        }
+
+        Log.v("ddms", "execute async: running " + command);
+        try {
+            AsyncRemoteCommand remoteCommand = new AsyncRemoteCommand(
+                    AdbSocketMultiplexer.getDefault(), device, rcvr, maxTimeToOutputMs);
+            remoteCommand.start(adbSockAddr,
+                    adbService.name().toLowerCase() + ":" + command); //$NON-NLS-1$
+            return remoteCommand.mResult;
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * The steps of {@link #executeRemoteCommandAsync}, each one started by the completion of the
+     * previous one on a thread of the {@link AdbSocketMultiplexer}.
+     */
+    private static final class AsyncRemoteCommand {
+
+        private interface Step<T> {
+            void run(T result) throws Exception;
+        }
+
+        private final AdbSocketMultiplexer mMultiplexer;
+        private final IDevice mDevice;
+        private final IShellOutputReceiver mReceiver;
+        private final long mMaxTimeToOutputMs;
+        private final SettableFuture<Void> mResult = SettableFuture.create();
+        private final ByteBuffer mData = ByteBuffer.allocate(16384);
+
+        private volatile SocketChannel mChannel;
+        private boolean mReadingOutput;
+
+        AsyncRemoteCommand(AdbSocketMultiplexer multiplexer, IDevice device,
+                IShellOutputReceiver rcvr, long maxTimeToOutputMs) {
+            mMultiplexer = multiplexer;
+            mDevice = device;
+            mReceiver = rcvr;
+            mMaxTimeToOutputMs = maxTimeToOutputMs;
+        }
+
+        void start(InetSocketAddress adbSockAddr, final String request) {
+            mResult.addListener(this::close, MoreExecutors.directExecutor());
+            then(mMultiplexer.connect(adbSockAddr, DdmPreferences.getTimeOut()), chan -> {
+                mChannel = chan;
+                if (mResult.isDone()) {
+                    close();
+                    return;
+                }
+                // if the device is not -1, then we first tell adb we're looking to talk
+                // to a specific device
+                if (mDevice != null) {
+                    sendRequest("host:transport:" + mDevice.getSerialNumber(), //$NON-NLS-1$
+                            true /*errorDuringDeviceSelection*/,
+                            () -> sendRequest(request, false, this::readOutput));
+                } else {
+                    sendRequest(request, false, this::readOutput);
+                }
+            });
+        }
+
+        private void sendRequest(String request, final boolean errorDuringDeviceSelection,
+                final Runnable next) {
+            final ByteBuffer reply = ByteBuffer.allocate(4);
+            then(mMultiplexer.write(mChannel, ByteBuffer.wrap(formAdbRequest(request)),
+                    DdmPreferences.getTimeOut()),
+                    ignored -> then(mMultiplexer.read(mChannel, reply, DdmPreferences.getTimeOut()),
+                            ignored2 -> {
+                                if (isOkay(reply.array())) {
+                                    next.run();
+                                } else {
+                                    readFailure(errorDuringDeviceSelection);
+                                }
+                            }));
+        }
+
+        private void readFailure(final boolean errorDuringDeviceSelection) {
+            final ByteBuffer lenBuf = ByteBuffer.allocate(4);
+            then(mMultiplexer.read(mChannel, lenBuf, DdmPreferences.getTimeOut()), ignored -> {
+                int len = Integer.parseInt(replyToString(lenBuf.array()), 16);
+                final ByteBuffer msg = ByteBuffer.allocate(len);
+                then(mMultiplexer.read(mChannel, msg, DdmPreferences.getTimeOut()), ignored2 -> {
+                    String message = replyToString(msg.array());
+                    Log.e("ddms", "ADB rejected shell command: " + message);
+                    mResult.setException(
+                            new AdbCommandRejectedException(message, errorDuringDeviceSelection));
+                });
+            });
+        }
+
+        private void readOutput() {
+            mReadingOutput = true;
+            mData.clear();
+            then(mMultiplexer.readAvailable(mChannel, mData, mMaxTimeToOutputMs), count -> {
+                if (count < 0) {
+                    // we're at the end, we flush the output
+                    if (mReceiver != null) {
+                        mReceiver.flush();
+                    }
+                    mResult.set(null);
+                    return;
+                }
+                if (mReceiver != null) {
+                    mReceiver.addOutput(mData.array(), mData.arrayOffset(), mData.position());
+                    if (mReceiver.isCancelled()) {
+                        Log.v("ddms", "execute async: cancelled");
+                        mResult.set(null);
+                        return;
+                    }
+                }
+                readOutput();
+            });
+        }
+
+        private <T> void then(ListenableFuture<T> future, final Step<T> next) {
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    if (mResult.isDone()) {
+                        return;
+                    }
+                    try {
+                        next.run(result);
+                    } catch (Exception e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable t) {
+                    if (t instanceof TimeoutException && mReadingOutput) {
+                        t = new ShellCommandUnresponsiveException();
+                    }
+                    mResult.setException(t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void close() {
+            SocketChannel chan = mChannel;
+            if (chan != null) {
+                try {
+                    chan.close();
+                } catch (IOException e) {
+                    // the command is over anyway.
+                }
+            }
+        }
+    }
+
     /**
      * Runs the Event log service on the {@link Device}, and provides its output to the
      * {@link LogReceiver}.
@@ -686,25 +900,16 @@ final class AdbHelper {
             byte[] data = new byte[16384];
             ByteBuffer buf = ByteBuffer.wrap(data);
             while (true) {
-                int count;
-
                 if (rcvr != null && rcvr.isCancelled()) {
                     break;
                 }
 
-                count = adbChan.read(buf);
+                int count = readAvailable(adbChan, buf, 0,
+                        rcvr != null ? rcvr::isCancelled : null,
+                        "runLogService interrupted with immediate timeout via interruption.");
                 if (count < 0) {
                     break;
-                } else if (count == 0) {
-                    try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                        throw new TimeoutException("runLogService interrupted with immediate timeout via interruption.");
-                    }
-                } else {
+                } else if (count > 0) {
                     if (rcvr != null) {
                         rcvr.parseNewData(buf.array(), buf.arrayOffset(), buf.position());
                     }
@@ -851,35 +1056,66 @@ final class AdbHelper {
      */
     static void read(SocketChannel chan, byte[] data, int length, long timeout) throws TimeoutException, IOException {
         ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
-
-        while (buf.position() != buf.limit()) {
-            int count;
-
-            count = chan.read(buf);
-            if (count < 0) {
-                Log.d("ddms", "read: channel EOF");
-                throw new IOException("EOF");
-            } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "read: timeout");
-                    throw new TimeoutException();
-                }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
+
+        if (chan.isBlocking()) {
+            while (buf.position() != buf.limit()) {
+                if (chan.read(buf) < 0) {
+                    Log.d("ddms", "read: channel EOF");
+                    throw new IOException("EOF");
                 }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Read interrupted with immediate timeout via interruption.");
+            }
+            return;
+        }
+
+        try {
+            await(AdbSocketMultiplexer.getDefault().read(chan, buf, timeout),
+                    "Read interrupted with immediate timeout via interruption.");
+        } catch (TimeoutException e) {
+            Log.d("ddms", "read: timeout");
+            throw e;
+        }
+    }
+
+    /**
+     * Reads whatever data the socket has into the buffer, waiting for some until the timeout
+     * expires or {@code isCancelled} returns true. Cancellation is checked every
+     * {@link #CANCEL_CHECK_TIME} ms while waiting, data is returned as soon as it arrives.
+     * Returns the number of bytes read, 0 if cancelled, or -1 at the end of the channel.
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking mode.
+     * @param buf the buffer to store the read data into.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     * @param isCancelled whether the caller stopped waiting for data, or null if it never does.
+     * @param interruptionMessage the message of the exception thrown if the thread is interrupted
+     * @throws TimeoutException if no data came in time, or the thread was interrupted.
+     */
+    private static int readAvailable(SocketChannel chan, ByteBuffer buf, long timeout,
+            @Nullable BooleanSupplier isCancelled, String interruptionMessage)
+            throws TimeoutException, IOException {
+        ListenableFuture<Integer> read =
+                AdbSocketMultiplexer.getDefault().readAvailable(chan, buf, timeout);
+        while (isCancelled != null && !read.isDone()) {
+            try {
+                read.get(CANCEL_CHECK_TIME, TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                if (isCancelled.getAsBoolean()) {
+                    read.cancel(false);
+                    if (!read.isCancelled()) {
+                        // Completed in the meantime.
+                        break;
+                    }
+                    return 0;
                 }
-                numWaits++;
-            } else {
-                numWaits = 0;
+            } catch (InterruptedException e) {
+                // Handled by await below.
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // Rethrown by await below.
+                break;
             }
         }
+        return await(read, interruptionMessage);
     }
 
     /**
@@ -906,35 +1142,66 @@ final class AdbHelper {
      * @throws IOException in case of I/O error on the connection.
      */
     static void write(SocketChannel chan, byte[] data, int length, int timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
-
-        while (buf.position() != buf.limit()) {
-            int count;
-
-            count = chan.write(buf);
-            if (count < 0) {
-                Log.d("ddms", "write: channel EOF");
-                throw new IOException("channel EOF");
-            } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "write: timeout");
-                    throw new TimeoutException();
-                }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Write interrupted with immediate timeout via interruption.");
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
+        write(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
+
+    /**
+     * Write until the remaining bytes of the buffer are written, the timeout expires, or the
+     * connection fails.
+     * @param chan the opened socket to write to.
+     * @param buf the buffer to send, from its position to its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void write(SocketChannel chan, ByteBuffer buf, int timeout) throws TimeoutException, IOException {
+        if (chan.isBlocking()) {
+            while (buf.position() != buf.limit()) {
+                chan.write(buf);
+            }
+            return;
+        }
+
+        try {
+            await(AdbSocketMultiplexer.getDefault().write(chan, buf, timeout),
+                    "Write interrupted with immediate timeout via interruption.");
+        } catch (TimeoutException e) {
+            Log.d("ddms", "write: timeout");
+            throw e;
+        }
+    }
+
+    /**
+     * Unregisters a channel from the {@link AdbSocketMultiplexer}, so that it can be put back in
+     * blocking mode.
+     */
+    private static void release(SocketChannel chan) throws TimeoutException, IOException {
+        await(AdbSocketMultiplexer.getDefault().release(chan),
+                "Release interrupted with immediate timeout via interruption.");
+    }
+
+    /**
+     * Waits for an operation of the {@link AdbSocketMultiplexer}, and rethrows its failure.
+     *
+     * @param interruptionMessage the message of the exception thrown if the thread is interrupted
+     */
+    private static <T> T await(ListenableFuture<T> future, String interruptionMessage)
+            throws TimeoutException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException(interruptionMessage);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new TimeoutException();
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            throw new IOException(cause);
         }
     }
 
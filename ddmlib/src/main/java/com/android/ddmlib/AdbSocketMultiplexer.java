@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking I/O on the sockets connected to adb, shared by all the requests made to adb.
+ *
+ * <p>Reads and writes are performed by a small pool of selector threads and completed through
+ * futures, so waiting for adb neither spins nor holds a thread per connection. All the operations
+ * on a channel are run by the same selector thread, one read and one write at a time. Callbacks
+ * added to the futures with a direct executor run on that thread, and must not block.
+ *
+ * <p>Operations fail with a {@link TimeoutException} if the channel makes no progress for the
+ * given timeout, a timeout of zero meaning "wait forever", and with an {@link IOException} if the
+ * channel is closed or fails.
+ */
+final class AdbSocketMultiplexer {
+
+    private static final int SELECTOR_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static AdbSocketMultiplexer sInstance;
+
+    @NonNull
+    private final SelectorThread[] mSelectorThreads;
+
+    private AdbSocketMultiplexer(int selectorCount) throws IOException {
+        mSelectorThreads = new SelectorThread[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            mSelectorThreads[i] = new SelectorThread("AdbSocketMultiplexer-" + i);
+            mSelectorThreads[i].start();
+        }
+    }
+
+    /**
+     * Returns the multiplexer shared by all the connections to adb, starting its threads the
+     * first time.
+     */
+    @NonNull
+    static synchronized AdbSocketMultiplexer getDefault() throws IOException {
+        if (sInstance == null) {
+            sInstance = new AdbSocketMultiplexer(SELECTOR_COUNT);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens a non-blocking channel connected to the given address.
+     */
+    @NonNull
+    ListenableFuture<SocketChannel> connect(@NonNull InetSocketAddress address, long timeoutMs) {
+        final SocketChannel chan;
+        try {
+            chan = SocketChannel.open();
+            chan.configureBlocking(false);
+            chan.socket().setTcpNoDelay(true);
+            if (chan.connect(address)) {
+                return Futures.immediateFuture(chan);
+            }
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        return submit(new Operation<SocketChannel>(chan, SelectionKey.OP_CONNECT, timeoutMs) {
+            @Override
+            boolean perform() throws IOException {
+                if (!mChannel.finishConnect()) {
+                    return false;
+                }
+                mFuture.set(mChannel);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reads from the channel until the buffer is full. Fails if the channel reaches its end
+     * before.
+     */
+    @NonNull
+    ListenableFuture<Void> read(@NonNull SocketChannel chan, @NonNull final ByteBuffer buffer,
+            long timeoutMs) {
+        return submit(new Operation<Void>(chan, SelectionKey.OP_READ, timeoutMs) {
+            @Override
+            boolean perform() throws IOException {
+                while (buffer.hasRemaining()) {
+                    int count = mChannel.read(buffer);
+                    if (count < 0) {
+                        Log.d("ddms", "read: channel EOF");
+                        throw new IOException("EOF");
+                    } else if (count == 0) {
+                        return false;
+                    }
+                    resetDeadline();
+                }
+                mFuture.set(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reads whatever the channel has available into the buffer, waiting for at least one byte.
+     * The future returns the number of bytes read, or -1 at the end of the channel.
+     */
+    @NonNull
+    ListenableFuture<Integer> readAvailable(@NonNull SocketChannel chan,
+            @NonNull final ByteBuffer buffer, long timeoutMs) {
+        return submit(new Operation<Integer>(chan, SelectionKey.OP_READ, timeoutMs) {
+            @Override
+            boolean perform() throws IOException {
+                int count = mChannel.read(buffer);
+                if (count == 0 && buffer.hasRemaining()) {
+                    return false;
+                }
+                mFuture.set(count);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Writes the remaining content of the buffer to the channel.
+     */
+    @NonNull
+    ListenableFuture<Void> write(@NonNull SocketChannel chan, @NonNull final ByteBuffer buffer,
+            long timeoutMs) {
+        return submit(new Operation<Void>(chan, SelectionKey.OP_WRITE, timeoutMs) {
+            @Override
+            boolean perform() throws IOException {
+                while (buffer.hasRemaining()) {
+                    int count = mChannel.write(buffer);
+                    if (count == 0) {
+                        return false;
+                    }
+                    resetDeadline();
+                }
+                mFuture.set(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Unregisters the channel from its selector, so that it can be put back in blocking mode.
+     * There must be no pending operation on the channel.
+     */
+    @NonNull
+    ListenableFuture<Void> release(@NonNull SocketChannel chan) {
+        return submit(new Operation<Void>(chan, 0, 0) {
+            @Override
+            boolean perform() {
+                mFuture.set(null);
+                return true;
+            }
+        });
+    }
+
+    @NonNull
+    private <T> ListenableFuture<T> submit(@NonNull Operation<T> operation) {
+        int index = (System.identityHashCode(operation.mChannel) & Integer.MAX_VALUE)
+                % mSelectorThreads.length;
+        mSelectorThreads[index].submit(operation);
+        return operation.mFuture;
+    }
+
+    /**
+     * An I/O operation on a channel, performed whenever the channel is ready for it.
+     */
+    private abstract static class Operation<T> {
+
+        @NonNull
+        final SocketChannel mChannel;
+
+        final int mInterestOp;
+
+        private final long mTimeoutNs;
+
+        long mDeadlineNs;
+
+        @NonNull
+        final SettableFuture<T> mFuture = SettableFuture.create();
+
+        Operation(@NonNull SocketChannel channel, int interestOp, long timeoutMs) {
+            mChannel = channel;
+            mInterestOp = interestOp;
+            mTimeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            resetDeadline();
+        }
+
+        /**
+         * Does as much of the operation as the channel allows without blocking. Returns true and
+         * sets the future once the operation is done.
+         */
+        abstract boolean perform() throws IOException;
+
+        /** Restarts the timeout, after the channel made some progress. */
+        final void resetDeadline() {
+            mDeadlineNs = mTimeoutNs > 0 ? System.nanoTime() + mTimeoutNs : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The operations in progress on a channel registered with a selector.
+     */
+    private static final class ChannelOperations {
+        Operation<?> mRead;
+        Operation<?> mWrite;
+    }
+
+    private static final class SelectorThread extends Thread {
+
+        @NonNull
+        private final Selector mSelector;
+
+        @NonNull
+        private final Queue<Operation<?>> mSubmitted = new ConcurrentLinkedQueue<Operation<?>>();
+
+        //  Keys of the registered channels. Unlike the selector's own key set, this still has the
+        //  keys of closed channels until their operations have been failed.
+        @NonNull
+        private final Set<SelectionKey> mKeys = new HashSet<SelectionKey>();
+
+        //  How long to wait for the next deadline, 0 if there is none.
+        private long mSelectTimeoutMs;
+
+        SelectorThread(@NonNull String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        void submit(@NonNull Operation<?> operation) {
+            mSubmitted.add(operation);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    mSelector.select(mSelectTimeoutMs);
+                    performReadyOperations();
+                    registerSubmittedOperations();
+                    expireOperations();
+                } catch (Exception e) {
+                    Log.e("ddms", "Exception in adb socket multiplexer");
+                    Log.e("ddms", e);
+                }
+            }
+        }
+
+        private void performReadyOperations() {
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                ChannelOperations operations = (ChannelOperations) key.attachment();
+                if (key.isReadable()) {
+                    operations.mRead = perform(operations.mRead);
+                }
+                if (key.isValid() && (key.isWritable() || key.isConnectable())) {
+                    operations.mWrite = perform(operations.mWrite);
+                }
+                updateInterestOps(key, operations);
+            }
+        }
+
+        private void registerSubmittedOperations() throws IOException {
+            Operation<?> operation;
+            while ((operation = mSubmitted.poll()) != null) {
+                if (operation.mFuture.isDone()) {
+                    continue;
+                }
+                SelectionKey key = operation.mChannel.keyFor(mSelector);
+                if (operation.mInterestOp == 0) {
+                    if (key != null) {
+                        mKeys.remove(key);
+                        key.cancel();
+                        // Deregisters the channel.
+                        mSelector.selectNow();
+                    }
+                    operation.perform();
+                    continue;
+                }
+
+                try {
+                    if (key != null && !key.isValid()) {
+                        // Cancelled, but not yet deregistered.
+                        mSelector.selectNow();
+                        key = null;
+                    }
+                    if (key == null) {
+                        key = operation.mChannel.register(mSelector, 0, new ChannelOperations());
+                        mKeys.add(key);
+                    }
+                } catch (ClosedChannelException e) {
+                    operation.mFuture.setException(e);
+                    continue;
+                } catch (RuntimeException e) {
+                    // e.g. a blocking channel.
+                    operation.mFuture.setException(e);
+                    continue;
+                }
+
+                // Most operations complete right away, without waiting for the selector.
+                ChannelOperations operations = (ChannelOperations) key.attachment();
+                if (operation.mInterestOp == SelectionKey.OP_READ) {
+                    operations.mRead = replace(operations.mRead, operation);
+                } else {
+                    operations.mWrite = replace(operations.mWrite, operation);
+                }
+                updateInterestOps(key, operations);
+            }
+        }
+
+        private Operation<?> replace(Operation<?> current, @NonNull Operation<?> operation) {
+            if (current != null && !current.mFuture.isDone()) {
+                operation.mFuture.setException(new IllegalStateException(
+                        "An operation of the same kind is already in progress on the channel"));
+                return current;
+            }
+            return perform(operation);
+        }
+
+        private void expireOperations() {
+            long now = System.nanoTime();
+            long nextDeadline = Long.MAX_VALUE;
+            Iterator<SelectionKey> keys = mKeys.iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                ChannelOperations operations = (ChannelOperations) key.attachment();
+                if (!key.isValid()) {
+                    // The channel was closed.
+                    fail(operations.mRead, new ClosedChannelException());
+                    fail(operations.mWrite, new ClosedChannelException());
+                    keys.remove();
+                    continue;
+                }
+                operations.mRead = expire(operations.mRead, now);
+                operations.mWrite = expire(operations.mWrite, now);
+                if (operations.mRead != null) {
+                    nextDeadline = Math.min(nextDeadline, operations.mRead.mDeadlineNs);
+                }
+                if (operations.mWrite != null) {
+                    nextDeadline = Math.min(nextDeadline, operations.mWrite.mDeadlineNs);
+                }
+                updateInterestOps(key, operations);
+            }
+            mSelectTimeoutMs = nextDeadline == Long.MAX_VALUE ? 0
+                    : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - now));
+        }
+
+        private static Operation<?> perform(Operation<?> operation) {
+            if (operation == null || operation.mFuture.isDone()) {
+                return null;
+            }
+            try {
+                return operation.perform() ? null : operation;
+            } catch (IOException e) {
+                operation.mFuture.setException(e);
+                return null;
+            }
+        }
+
+        private static Operation<?> expire(Operation<?> operation, long now) {
+            if (operation == null || operation.mFuture.isDone()) {
+                return null;
+            }
+            if (operation.mDeadlineNs <= now) {
+                operation.mFuture.setException(new TimeoutException());
+                return null;
+            }
+            return operation;
+        }
+
+        private static void fail(Operation<?> operation, @NonNull Exception e) {
+            if (operation != null) {
+                operation.mFuture.setException(e);
+            }
+        }
+
+        private static void updateInterestOps(@NonNull SelectionKey key,
+                @NonNull ChannelOperations operations) {
+            if (!key.isValid()) {
+                return;
+            }
+            int interestOps = 0;
+            if (operations.mRead != null) {
+                interestOps |= operations.mRead.mInterestOp;
+            }
+            if (operations.mWrite != null) {
+                interestOps |= operations.mWrite.mInterestOp;
+            }
+            key.interestOps(interestOps);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
@@ -79,6 +80,8 @@ final class Device implements IDevice {
 
     private ClientTracker mClientTracer;
 
+    private final SyncStats mSyncStats = new SyncStats();
+
     private static final String LOG_TAG = "Device";
     private static final char SEPARATOR = '-';
     private static final String UNKNOWN_PACKAGE = "";   //$NON-NLS-1$
@@ -524,6 +527,12 @@ final class Device implements IDevice {
         return null;
     }
 
+    @NonNull
+    @Override
+    public SyncStats getSyncStats() {
+        return mSyncStats;
+    }
+
     /*
      * (non-Javadoc)
      * @see com.android.ddmlib.IDevice#getFileListingService()
@@ -545,6 +554,18 @@ final class Device implements IDevice {
         return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this, timeout, unit);
     }
 
+    @NonNull
+    @Override
+    public ScreenCapture startScreenCapture(int fps, @NonNull ScreenCapture.Listener listener) {
+        // unlike screenshots, frames reuse the image of the previous one.
+        ScreenCapture capture = new ScreenCapture(getSerialNumber(),
+                image -> AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this,
+                        DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS, image),
+                fps, listener);
+        capture.start();
+        return capture;
+    }
+
     @Override
     public void startScreenRecorder(
             @NonNull String remoteFilePath,
@@ -642,6 +663,14 @@ final class Device implements IDevice {
                 maxTimeUnits);
     }
 
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(String command,
+            IShellOutputReceiver receiver, long maxTimeToOutputResponse, TimeUnit maxTimeUnits) {
+        return AdbHelper.executeRemoteCommandAsync(AndroidDebugBridge.getSocketAddress(),
+                AdbHelper.AdbService.SHELL, command, this, receiver, maxTimeToOutputResponse,
+                maxTimeUnits);
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
@@ -16,11 +16,22 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.SyncService.DirectoryEntry;
+import com.android.ddmlib.SyncService.FileStat;
+import java.io.File;
 import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -84,6 +95,12 @@ public final class FileListingService {
 
     private static final String FILE_ROOT = "/"; //$NON-NLS-1$
 
+    /**
+     * Sizes listed by the sync protocol are 32-bit values, so sizes from this value onward may
+     * have been truncated.
+     */
+    private static final long SYNC_SIZE_LIMIT = 1L << 31;
+
 
     /**
      * Regexp pattern to parse the result from ls.
@@ -153,6 +170,18 @@ public final class FileListingService {
          */
         long fetchTime = 0;
 
+        /**
+         * The last modification time of the entry in seconds, as reported by the sync service,
+         * or 0 if unknown.
+         */
+        int lastModified = 0;
+
+        /**
+         * The last modification time of the directory when its children were listed by
+         * {@link FileListingService#getTreeSync(FileEntry, boolean)}, or 0 if they were not.
+         */
+        int listedTime = 0;
+
         final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
 
         /**
@@ -162,7 +191,7 @@ public final class FileListingService {
          * @param type entry type. Can be one of the following: {@link FileListingService#TYPE_FILE},
          * {@link FileListingService#TYPE_DIRECTORY}, {@link FileListingService#TYPE_OTHER}.
          */
-        private FileEntry(FileEntry parent, String name, int type, boolean isRoot) {
+        FileEntry(FileEntry parent, String name, int type, boolean isRoot) {
             this.parent = parent;
             this.name = name;
             this.type = type;
@@ -186,10 +215,10 @@ public final class FileListingService {
         }
 
         /**
-         * Returns the size of the entry.
+         * Returns the size of the entry. Sizes of 2 GB or more do not fit and wrap around.
          */
         public int getSizeValue() {
-            return Integer.parseInt(size);
+            return (int) Long.parseLong(size);
         }
 
         /**
@@ -206,6 +235,14 @@ public final class FileListingService {
             return time;
         }
 
+        /**
+         * Returns the last modification time of the entry in seconds since the epoch, or 0 if it
+         * was not listed by {@link FileListingService#getTreeSync(FileEntry, boolean)}.
+         */
+        public int getLastModified() {
+            return lastModified;
+        }
+
         /**
          * Returns the permission string of the entry, as returned by <code>ls</code>.
          */
@@ -631,6 +668,77 @@ public final class FileListingService {
         }
     }
 
+    /**
+     * The differences between a local directory and a remote directory, as computed by
+     * {@link FileListingService#diff(FileEntry, File)}.
+     * <p>Paths are relative to the compared directories, and use
+     * {@link FileListingService#FILE_SEPARATOR} as separator.
+     */
+    public static final class TreeDiff {
+        private final List<String> mAdded = new ArrayList<String>();
+        private final List<String> mChanged = new ArrayList<String>();
+        private final List<String> mRemoved = new ArrayList<String>();
+        private final File mLocalDir;
+        private final String mRemoteDir;
+
+        TreeDiff(@NonNull File localDir, @NonNull String remoteDir) {
+            mLocalDir = localDir;
+            mRemoteDir = remoteDir;
+        }
+
+        /**
+         * Returns the local files which do not exist on the device.
+         */
+        @NonNull
+        public List<String> getAdded() {
+            return mAdded;
+        }
+
+        /**
+         * Returns the local files whose size or modification time differ on the device.
+         */
+        @NonNull
+        public List<String> getChanged() {
+            return mChanged;
+        }
+
+        /**
+         * Returns the remote files which do not exist locally.
+         */
+        @NonNull
+        public List<String> getRemoved() {
+            return mRemoved;
+        }
+
+        /**
+         * Returns whether the local and remote directories have the same files.
+         */
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty();
+        }
+
+        /**
+         * Returns the added and changed files, as local paths mapped to remote paths, to be
+         * given to {@link SyncService#pushFiles(Map, SyncService.ISyncProgressMonitor)}.
+         */
+        @NonNull
+        public Map<String, String> getFilesToPush() {
+            Map<String, String> files = new LinkedHashMap<String, String>();
+            addFilesToPush(mAdded, files);
+            addFilesToPush(mChanged, files);
+            return files;
+        }
+
+        private void addFilesToPush(@NonNull List<String> paths,
+                @NonNull Map<String, String> files) {
+            String remoteDir = mRemoteDir.endsWith(FILE_SEPARATOR)
+                    ? mRemoteDir : mRemoteDir + FILE_SEPARATOR;
+            for (String path : paths) {
+                files.put(new File(mLocalDir, path).getPath(), remoteDir + path);
+            }
+        }
+    }
+
     /**
      * Classes which implement this interface provide a method that deals with asynchronous
      * result from <code>ls</code> command on the device.
@@ -813,6 +921,268 @@ public final class FileListingService {
         return entry.getCachedChildren();
     }
 
+    /**
+     * Lists the whole tree under a {@link FileEntry} over a sync connection, and returns all its
+     * descendants.
+     * <p>
+     * The directories are listed with the <code>LIST</code> request of the sync protocol, one
+     * round-trip to the device per depth level rather than one <code>ls</code> command per
+     * directory. Symbolic links are not followed.
+     * <p>
+     * If <var>useCache</var> is <code>true</code>, the directories listed by a previous call are
+     * only listed again if their modification time changed. Note that modifying a file in place
+     * does not change the modification time of its directory: its cached size and time are then
+     * out of date.
+     *
+     * @param entry The directory to list.
+     * @param useCache A flag to reuse the unmodified directories of previous listings.
+     * @return The descendants of the directory, each directory followed by its children.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command.
+     * @throws SyncException if the directories could not be listed.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    @NonNull
+    public FileEntry[] getTreeSync(@NonNull FileEntry entry, boolean useCache)
+            throws TimeoutException, AdbCommandRejectedException, SyncException, IOException {
+        SyncService sync = mDevice.getSyncService();
+        if (sync == null) {
+            throw new IOException("Unable to open sync connection!");
+        }
+        try {
+            listTree(entry, useCache, sync);
+        } finally {
+            sync.close();
+        }
+
+        ArrayList<FileEntry> tree = new ArrayList<FileEntry>();
+        fillTree(entry, tree);
+        return tree.toArray(new FileEntry[tree.size()]);
+    }
+
+    /**
+     * Compares a remote directory listed by {@link #getTreeSync(FileEntry, boolean)} with a local
+     * directory.
+     * <p>
+     * This uses the cached listing of the remote directory. A file is considered changed when its
+     * size or its modification time, in seconds, differ. Files of 2 GB or more are only compared by
+     * modification time, since the sync protocol only lists 32-bit sizes. Files pushed by
+     * {@link SyncService} keep their local modification time, so that they are not changed
+     * anymore once pushed.
+     *
+     * @param remoteDir The listed remote directory.
+     * @param localDir The local directory.
+     * @return The differences between the directories.
+     */
+    @NonNull
+    public TreeDiff diff(@NonNull FileEntry remoteDir, @NonNull File localDir) {
+        TreeDiff diff = new TreeDiff(localDir, remoteDir.getFullPath());
+        diff(remoteDir, localDir, "", diff); //$NON-NLS-1$
+        return diff;
+    }
+
+    private static void diff(@NonNull FileEntry remoteDir, @NonNull File localDir,
+            @NonNull String prefix, @NonNull TreeDiff diff) {
+        HashMap<String, FileEntry> remoteChildren = new HashMap<String, FileEntry>();
+        for (FileEntry child : remoteDir.mChildren) {
+            remoteChildren.put(child.name, child);
+        }
+
+        File[] localChildren = localDir.listFiles();
+        if (localChildren != null) {
+            for (File local : localChildren) {
+                String path = prefix + local.getName();
+                FileEntry remote = remoteChildren.remove(local.getName());
+                if (local.isDirectory()) {
+                    if (remote != null && remote.type != TYPE_DIRECTORY) {
+                        diff.mRemoved.add(path);
+                        remote = null;
+                    }
+                    if (remote == null) {
+                        // compare with an empty directory to add the whole local directory.
+                        remote = new FileEntry(remoteDir, local.getName(), TYPE_DIRECTORY, false);
+                    }
+                    diff(remote, local, path + FILE_SEPARATOR, diff);
+                } else if (local.isFile()) {
+                    if (remote == null) {
+                        diff.mAdded.add(path);
+                    } else if (remote.type != TYPE_FILE
+                            || remote.lastModified != (int) (local.lastModified() / 1000)
+                            || isSizeChanged(local.length(), remote.size)) {
+                        diff.mChanged.add(path);
+                    }
+                }
+            }
+        }
+
+        ArrayList<String> removed = new ArrayList<String>();
+        for (FileEntry remote : remoteChildren.values()) {
+            if (remote.type == TYPE_DIRECTORY) {
+                ArrayList<FileEntry> tree = new ArrayList<FileEntry>();
+                fillTree(remote, tree);
+                for (FileEntry entry : tree) {
+                    if (entry.type != TYPE_DIRECTORY) {
+                        removed.add(prefix + getRelativePath(remote.parent, entry));
+                    }
+                }
+            } else {
+                removed.add(prefix + remote.name);
+            }
+        }
+        Collections.sort(removed);
+        diff.mRemoved.addAll(removed);
+    }
+
+    /**
+     * Returns whether a remote size differs from a local size. Local files of 2 GB or more are
+     * only compared by modification time, as their listed size may have been truncated.
+     */
+    @VisibleForTesting
+    static boolean isSizeChanged(long localSize, @Nullable String remoteSize) {
+        if (localSize >= SYNC_SIZE_LIMIT) {
+            return false;
+        }
+        return !Long.toString(localSize).equals(remoteSize);
+    }
+
+    @NonNull
+    private static String getRelativePath(@NonNull FileEntry ancestor, @NonNull FileEntry entry) {
+        StringBuilder path = new StringBuilder(entry.name);
+        for (FileEntry parent = entry.parent; parent != ancestor; parent = parent.parent) {
+            path.insert(0, FILE_SEPARATOR).insert(0, parent.name);
+        }
+        return path.toString();
+    }
+
+    private static void fillTree(@NonNull FileEntry entry, @NonNull ArrayList<FileEntry> tree) {
+        for (FileEntry child : entry.mChildren) {
+            tree.add(child);
+            if (child.type == TYPE_DIRECTORY) {
+                fillTree(child, tree);
+            }
+        }
+    }
+
+    /**
+     * Lists the tree under an entry, one depth level at a time.
+     */
+    static void listTree(@NonNull FileEntry entry, boolean useCache, @NonNull SyncService sync)
+            throws TimeoutException, SyncException, IOException {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd"); //$NON-NLS-1$
+        DateFormat timeFormat = new SimpleDateFormat("HH:mm"); //$NON-NLS-1$
+
+        // the directories of the current level whose modification time is up to date, because
+        // they were just listed in their parent, and the ones whose time must be checked.
+        List<FileEntry> level = new ArrayList<FileEntry>();
+        List<FileEntry> unchecked = Collections.singletonList(entry);
+        while (!level.isEmpty() || !unchecked.isEmpty()) {
+            if (!unchecked.isEmpty()) {
+                List<FileStat> stats = sync.statFiles(getPaths(unchecked));
+                for (int i = 0; i < unchecked.size(); i++) {
+                    FileEntry dir = unchecked.get(i);
+                    dir.lastModified = (int) (stats.get(i).getLastModified().getTime() / 1000);
+                    level.add(dir);
+                }
+            }
+
+            List<FileEntry> toList = new ArrayList<FileEntry>();
+            List<FileEntry> nextLevel = new ArrayList<FileEntry>();
+            List<FileEntry> nextUnchecked = new ArrayList<FileEntry>();
+            for (FileEntry dir : level) {
+                if (useCache && dir.listedTime != 0 && dir.listedTime == dir.lastModified) {
+                    // the children are the same, but their own children may have changed.
+                    for (FileEntry child : dir.mChildren) {
+                        if (child.type == TYPE_DIRECTORY) {
+                            nextUnchecked.add(child);
+                        }
+                    }
+                } else {
+                    toList.add(dir);
+                }
+            }
+
+            List<List<DirectoryEntry>> listings = toList.isEmpty()
+                    ? Collections.<List<DirectoryEntry>>emptyList()
+                    : sync.listDirectories(getPaths(toList));
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < toList.size(); i++) {
+                FileEntry dir = toList.get(i);
+                ArrayList<FileEntry> children = new ArrayList<FileEntry>();
+                for (DirectoryEntry listed : listings.get(i)) {
+                    int type = SyncService.getFileType(listed.getMode());
+                    FileEntry child = dir.findChild(listed.getName());
+                    if (child == null || child.type != type) {
+                        child = new FileEntry(dir, listed.getName(), type, false /* isRoot */);
+                    }
+                    child.permissions = getPermissions(listed.getMode());
+                    child.size = Long.toString(listed.getSize() & 0xFFFFFFFFL);
+                    child.date = dateFormat.format(listed.getLastModified());
+                    child.time = timeFormat.format(listed.getLastModified());
+                    child.lastModified = (int) (listed.getLastModified().getTime() / 1000);
+                    children.add(child);
+                }
+                Collections.sort(children, FileEntry.sEntryComparator);
+                dir.setChildren(children);
+                for (FileEntry child : children) {
+                    if (child.type == TYPE_DIRECTORY) {
+                        nextLevel.add(child);
+                    }
+                }
+                dir.fetchTime = now;
+                dir.listedTime = dir.lastModified;
+            }
+
+            level = nextLevel;
+            unchecked = nextUnchecked;
+        }
+    }
+
+    @NonNull
+    private static List<String> getPaths(@NonNull List<FileEntry> entries) {
+        List<String> paths = new ArrayList<String>(entries.size());
+        for (FileEntry entry : entries) {
+            paths.add(entry.getFullPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the permission string of a file mode, as returned by <code>ls</code>.
+     */
+    @NonNull
+    private static String getPermissions(int mode) {
+        char[] permissions = "?rwxrwxrwx".toCharArray(); //$NON-NLS-1$
+        switch (SyncService.getFileType(mode)) {
+            case TYPE_FILE:
+                permissions[0] = '-';
+                break;
+            case TYPE_DIRECTORY:
+                permissions[0] = 'd';
+                break;
+            case TYPE_LINK:
+                permissions[0] = 'l';
+                break;
+            case TYPE_BLOCK:
+                permissions[0] = 'b';
+                break;
+            case TYPE_CHARACTER:
+                permissions[0] = 'c';
+                break;
+            case TYPE_SOCKET:
+                permissions[0] = 's';
+                break;
+            case TYPE_FIFO:
+                permissions[0] = 'p';
+                break;
+        }
+        for (int i = 0; i < 9; i++) {
+            if ((mode & (0400 >> i)) == 0) {
+                permissions[i + 1] = '-';
+            }
+        }
+        return new String(permissions);
+    }
+
     private void doLs(FileEntry entry) {
         try {
             doLsAndThrow(entry);
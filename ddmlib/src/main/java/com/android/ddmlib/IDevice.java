@@ -20,6 +20,8 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 import com.android.sdklib.AndroidVersion;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.File;
 import java.io.IOException;
@@ -317,6 +319,16 @@ public interface IDevice extends IShellEnabledDevice {
     SyncService getSyncService()
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Returns the cumulative statistics of the {@link SyncService} transfers to and from this
+     * device.
+     * <p>The default implementation does not track transfers and returns <code>null</code>.
+     */
+    @Nullable
+    default SyncStats getSyncStats() {
+        return null;
+    }
+
     /**
      * Returns a {@link FileListingService} for this device.
      */
@@ -336,6 +348,25 @@ public interface IDevice extends IShellEnabledDevice {
     RawImage getScreenshot(long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Starts capturing the screen of the device continuously, at the given frame rate.
+     * <p>The frames are sent to the listener on a thread dedicated to the capture, until the
+     * returned {@link ScreenCapture} is closed or a frame cannot be fetched.
+     * <p>The default implementation takes a new screenshot with {@link #getScreenshot()} for each
+     * frame.
+     *
+     * @param fps the target number of frames per second.
+     * @param listener the listener receiving the frames.
+     * @return the running capture.
+     */
+    @NonNull
+    default ScreenCapture startScreenCapture(int fps, @NonNull ScreenCapture.Listener listener) {
+        ScreenCapture capture =
+                new ScreenCapture(getSerialNumber(), image -> getScreenshot(), fps, listener);
+        capture.start();
+        return capture;
+    }
+
     /**
      * Initiates screen recording on the device if the device supports {@link Feature#SCREEN_RECORD}.
      */
@@ -374,6 +405,35 @@ public interface IDevice extends IShellEnabledDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Executes a shell command on the device without blocking the calling thread, and sends the
+     * result to a <var>receiver</var> as it arrives.
+     * <p>The receiver is called from the threads doing I/O for all the devices, so it must not
+     * block. Whether it is cancelled is checked whenever it receives output. Cancelling the
+     * returned future stops the command.
+     * <p>The default implementation runs the command with
+     * {@link #executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)}, on the calling
+     * thread.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is allowed
+     *            to not output any response. A value of 0 means waiting forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return a future completed when the command exits, or failed with the exceptions
+     *            {@link #executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)} throws.
+     */
+    default ListenableFuture<Void> executeShellCommandAsync(String command,
+            IShellOutputReceiver receiver, long maxTimeToOutputResponse, TimeUnit maxTimeUnits) {
+        try {
+            executeShellCommand(command, receiver, maxTimeToOutputResponse, maxTimeUnits);
+            return Futures.immediateFuture(null);
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous capture of the screen of a device at a target frame rate, started with
+ * {@link IDevice#startScreenCapture(int, Listener)}.
+ * <p>The frames are read into a {@link RawImage} reused for the whole capture, and handed to a
+ * {@link Listener} on the capture thread. A listener keeping a frame after it returns must copy
+ * its data.
+ * <p>When fetching a frame takes longer than the frame period, the frames which could not be
+ * captured in time are skipped rather than captured late.
+ */
+public final class ScreenCapture implements Closeable {
+
+    /**
+     * Receives the frames of a {@link ScreenCapture}.
+     */
+    public interface Listener {
+        /**
+         * Called with each captured frame.
+         *
+         * @param frame the frame, whose data is only valid until this method returns.
+         * @param latencyNanos the time taken to fetch the frame from the device, in nanoseconds.
+         */
+        void frameCaptured(@NonNull RawImage frame, long latencyNanos);
+
+        /**
+         * Called when the capture stops because a frame could not be fetched.
+         */
+        void captureFailed(@NonNull Exception e);
+    }
+
+    /**
+     * Fetches one frame of the screen.
+     */
+    interface FrameGrabber {
+        /**
+         * @param image the image of the previous frame to read into if possible, or
+         *            <code>null</code>.
+         * @return the frame, or <code>null</code> if the device cannot send it.
+         */
+        @Nullable
+        RawImage grab(@Nullable RawImage image)
+                throws TimeoutException, AdbCommandRejectedException, IOException;
+    }
+
+    @NonNull
+    private final FrameGrabber mGrabber;
+
+    @NonNull
+    private final Listener mListener;
+
+    private final long mFramePeriodNanos;
+
+    @NonNull
+    private final Thread mThread;
+
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    // statistics, guarded by this.
+    private long mStartTime;
+    private long mLastFrameTime;
+    private int mFrameCount;
+    private int mSkippedFrameCount;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    ScreenCapture(@NonNull String name, @NonNull FrameGrabber grabber, int fps,
+            @NonNull Listener listener) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + fps);
+        }
+        mGrabber = grabber;
+        mListener = listener;
+        mFramePeriodNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        mThread = new Thread(this::run, "Screen Capture " + name); //$NON-NLS-1$
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        synchronized (this) {
+            mStartTime = System.nanoTime();
+        }
+        mThread.start();
+    }
+
+    private void run() {
+        RawImage image = null;
+        long nextFrame = System.nanoTime();
+        try {
+            while (!isStopped()) {
+                long start = System.nanoTime();
+                image = mGrabber.grab(image);
+                long end = System.nanoTime();
+                if (image == null) {
+                    throw new IOException("Unsupported frame buffer protocol");
+                }
+                if (isStopped()) {
+                    break;
+                }
+                recordFrame(end - start, end);
+                mListener.frameCaptured(image, end - start);
+
+                nextFrame += mFramePeriodNanos;
+                long late = System.nanoTime() - nextFrame;
+                if (late >= mFramePeriodNanos) {
+                    long skipped = late / mFramePeriodNanos;
+                    nextFrame += skipped * mFramePeriodNanos;
+                    recordSkippedFrames(skipped);
+                }
+                if (late < 0 && mStopped.await(-late, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (!isStopped()) {
+                Log.e("ScreenCapture", e); //$NON-NLS-1$
+                mListener.captureFailed(e);
+            }
+        }
+    }
+
+    private boolean isStopped() {
+        return mStopped.getCount() == 0;
+    }
+
+    private synchronized void recordFrame(long latency, long time) {
+        mFrameCount++;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+        mLastFrameTime = time;
+    }
+
+    private synchronized void recordSkippedFrames(long count) {
+        mSkippedFrameCount += (int) count;
+    }
+
+    /**
+     * Stops the capture. When called outside of the listener, waits for the frame being fetched,
+     * so that the listener is not called anymore once this returns.
+     */
+    @Override
+    public void close() {
+        mStopped.countDown();
+        if (Thread.currentThread() != mThread) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames captured so far.
+     */
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of frames skipped so far because fetching the previous ones took too
+     * long for the frame rate.
+     */
+    public synchronized int getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    /**
+     * Returns the average time taken to fetch a frame, or 0 if there was no frame yet.
+     */
+    public synchronized long getAverageLatency(@NonNull TimeUnit unit) {
+        return mFrameCount == 0 ? 0 : unit.convert(mTotalLatency / mFrameCount,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time taken to fetch a frame.
+     */
+    public synchronized long getMaxLatency(@NonNull TimeUnit unit) {
+        return unit.convert(mMaxLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of frames captured per second, from the start of the capture to the last
+     * frame.
+     */
+    public synchronized double getFrameRate() {
+        long duration = mLastFrameTime - mStartTime;
+        return mFrameCount == 0 || duration <= 0
+                ? 0 : mFrameCount * (double) TimeUnit.SECONDS.toNanos(1) / duration;
+    }
+}
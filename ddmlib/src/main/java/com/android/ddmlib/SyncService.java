@@ -28,14 +28,23 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
  * <p>
  * To get a {@link SyncService} object, use {@link Device#getSyncService()}.
+ * <p>
+ * Pushes are pipelined: the requests and data of consecutive files are batched in one buffer and
+ * sent without waiting for the result of the previous file, which is read back later. The
+ * transfers are accounted in the {@link SyncStats} of the device.
  */
 public class SyncService {
 
@@ -46,8 +55,8 @@ public class SyncService {
     private static final byte[] ID_DATA = { 'D', 'A', 'T', 'A' };
     private static final byte[] ID_DONE = { 'D', 'O', 'N', 'E' };
     private static final byte[] ID_SEND = { 'S', 'E', 'N', 'D' };
-//    private final static byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
-//    private final static byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
+    private static final byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
+    private static final byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
 
     private static final NullSyncProgressMonitor sNullSyncProgressMonitor =
             new NullSyncProgressMonitor();
@@ -80,6 +89,13 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /** Size of the buffer batching the push messages, enough for several full data chunks. */
+    private static final int SEND_BUFFER_SIZE = 4 * (SYNC_DATA_MAX + 8);
+    /** Maximum number of pushed files whose result has not been read back yet. */
+    private static final int MAX_PENDING_PUSHES = 64;
+    /** Maximum number of list or stat requests whose reply has not been read back yet. */
+    private static final int MAX_PENDING_REQUESTS = 64;
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -135,6 +151,23 @@ public class SyncService {
       }
     }
 
+    /**
+     * An entry of a remote directory, as listed by {@link SyncService#listDirectories(List)}.
+     */
+    public static class DirectoryEntry extends FileStat {
+        private final String mName;
+
+        public DirectoryEntry(@NonNull String name, int mode, int size, int lastModifiedSecs) {
+            super(mode, size, lastModifiedSecs);
+            mName = name;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+    }
+
     /**
      * A Sync progress monitor that does nothing
      */
@@ -163,10 +196,23 @@ public class SyncService {
     private SocketChannel mChannel;
 
     /**
-     * Buffer used to send data. Allocated when needed and reused afterward.
+     * Buffer used to receive data. Allocated when needed and reused afterward.
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffer used to batch the push messages. Allocated when needed and reused afterward.
+     */
+    private ByteBuffer mSendBuffer;
+
+    /** Number of files pushed whose result has not been read back yet. */
+    private int mPendingPushes;
+
+    /** Start time, file and byte counts of the current transfer, for the {@link SyncStats}. */
+    private long mTransferStart;
+    private int mTransferFiles;
+    private long mTransferBytes;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -288,7 +334,9 @@ public class SyncService {
         // start the monitor
         monitor.start(total);
 
+        startTransfer();
         doPull(entries, localPath, fls, monitor);
+        mDevice.getSyncStats().recordPull(mTransferBytes, mTransferFiles, getTransferTime());
 
         monitor.stop();
     }
@@ -311,7 +359,9 @@ public class SyncService {
         int total = remote.getSizeValue();
         monitor.start(total);
 
+        startTransfer();
         doPullFile(remote.getFullPath(), localFilename, monitor);
+        mDevice.getSyncStats().recordPull(mTransferBytes, mTransferFiles, getTransferTime());
 
         monitor.stop();
     }
@@ -343,7 +393,9 @@ public class SyncService {
         monitor.start(0);
         //TODO: use the {@link FileListingService} to get the file size.
 
+        startTransfer();
         doPullFile(remoteFilepath, localFilename, monitor);
+        mDevice.getSyncStats().recordPull(mTransferBytes, mTransferFiles, getTransferTime());
 
         monitor.stop();
     }
@@ -375,7 +427,10 @@ public class SyncService {
 
         monitor.start(total);
 
+        startTransfer();
         doPush(fileArray, remote.getFullPath(), monitor);
+        finishPushes();
+        mDevice.getSyncStats().recordPush(mTransferBytes, mTransferFiles, getTransferTime());
 
         monitor.stop();
     }
@@ -403,7 +458,52 @@ public class SyncService {
 
         monitor.start((int)f.length());
 
-        doPushFile(local, remote, monitor);
+        startTransfer();
+        queuePushFile(f, remote, monitor);
+        finishPushes();
+        mDevice.getSyncStats().recordPush(mTransferBytes, mTransferFiles, getTransferTime());
+
+        monitor.stop();
+    }
+
+    /**
+     * Pushes several files over this connection, without waiting for the device to acknowledge
+     * each of them before sending the next one.
+     * @param files the local file paths mapped to their remote file paths (length max is 1024),
+     *      pushed in the iteration order of the map.
+     * @param monitor The progress monitor. Cannot be null.
+     *
+     * @throws SyncException if a file could not be pushed. The files before it may have been
+     *      pushed.
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pushFiles(@NonNull Map<String, String> files, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        long total = 0;
+        for (String local : files.keySet()) {
+            File f = new File(local);
+            if (!f.exists()) {
+                throw new SyncException(SyncError.NO_LOCAL_FILE);
+            }
+            if (f.isDirectory()) {
+                throw new SyncException(SyncError.LOCAL_IS_DIRECTORY);
+            }
+            total += f.length();
+        }
+
+        monitor.start((int) total);
+
+        startTransfer();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            monitor.startSubTask(entry.getValue());
+            queuePushFile(new File(entry.getKey()), entry.getValue(), monitor);
+        }
+        finishPushes();
+        mDevice.getSyncStats().recordPush(mTransferBytes, mTransferFiles, getTransferTime());
 
         monitor.stop();
     }
@@ -544,7 +644,7 @@ public class SyncService {
             fos = new FileOutputStream(f);
 
             // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            byte[] data = getBuffer();
 
             // loop to get data until we're done.
             while (true) {
@@ -578,10 +678,12 @@ public class SyncService {
                 // write the content in the file
                 fos.write(data, 0, length);
 
+                mTransferBytes += length;
                 monitor.advance(length);
             }
 
             fos.flush();
+            mTransferFiles++;
         } catch (IOException e) {
             Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
                     f.getAbsolutePath(), e.toString()));
@@ -623,15 +725,17 @@ public class SyncService {
                     // append the name of the file to the remote path
                     String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
                     monitor.startSubTask(remoteFile);
-                    doPushFile(f.getAbsolutePath(), remoteFile, monitor);
+                    queuePushFile(f, remoteFile, monitor);
                 }
             }
         }
     }
 
     /**
-     * Push a single file
-     * @param localPath the local file to push
+     * Queues the push of a single file. The request and data are batched in the send buffer,
+     * which is only written once full, and the result is read back by {@link #finishPushes()}
+     * or once too many files are pending.
+     * @param f the local file to push
      * @param remotePath the remote file (length max is 1024)
      * @param monitor the monitor. The monitor must be started already.
      *
@@ -639,33 +743,24 @@ public class SyncService {
      * @throws IOException in case of I/O error on the connection.
      * @throws TimeoutException in case of a timeout reading responses from the device.
      */
-    private void doPushFile(String localPath, String remotePath,
+    private void queuePushFile(File f, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-        FileInputStream fis = null;
-        byte[] msg;
+        byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_CHARSET);
 
-        final int timeOut = DdmPreferences.getTimeOut();
-        File f = new File(localPath);
+        if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
+            throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+        }
 
+        // create the stream to read the file
+        FileInputStream fis = new FileInputStream(f);
         try {
-            byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_CHARSET);
-
-            if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
-                throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
-            }
-
-            // create the stream to read the file
-            fis = new FileInputStream(f);
+            FileChannel fileChannel = fis.getChannel();
 
             int permissions = FilePermissionUtil.getFilePosixPermission(f);
-            // create the header for the action
-            msg = createSendFileReq(ID_SEND, remotePathContent, permissions);
-
-            // and send it. We use a custom try/catch block to make the difference between
-            // file and network IO exceptions.
-            AdbHelper.write(mChannel, msg, -1, timeOut);
+            // create the header for the action and queue it.
+            queueMessage(createSendFileReq(ID_SEND, remotePathContent, permissions));
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            ByteBuffer buffer = getSendBuffer();
 
             // look while there is something to read
             while (true) {
@@ -674,49 +769,115 @@ public class SyncService {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
+                // make room for a full data chunk
+                if (buffer.remaining() < SYNC_DATA_MAX + 8) {
+                    flushSendBuffer();
+                }
+
+                // read up to SYNC_DATA_MAX after the header of the chunk
+                int header = buffer.position();
+                buffer.position(header + 8);
+                buffer.limit(header + 8 + SYNC_DATA_MAX);
+                int readCount = fileChannel.read(buffer);
+                buffer.limit(buffer.capacity());
 
                 if (readCount == -1) {
                     // we reached the end of the file
+                    buffer.position(header);
                     break;
                 }
 
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                // now fill the header with the amount read
+                for (int i = 0; i < ID_DATA.length; i++) {
+                    buffer.put(header + i, ID_DATA[i]);
+                }
+                buffer.putInt(header + 4, readCount);
 
                 // and advance the monitor
+                mTransferBytes += readCount;
                 monitor.advance(readCount);
             }
         } finally {
             // close the local file
-            if (fis != null) {
-                fis.close();
-            }
+            fis.close();
         }
 
-        // create the DONE message
+        // queue the DONE message
         long time = f.lastModified() / 1000;
-        msg = createReq(ID_DONE, (int)time);
+        queueMessage(createReq(ID_DONE, (int)time));
 
-        // and send it.
-        AdbHelper.write(mChannel, msg, -1, timeOut);
+        mTransferFiles++;
+        mPendingPushes++;
+        if (mPendingPushes > MAX_PENDING_PUSHES) {
+            flushSendBuffer();
+            readPushResult();
+        }
+    }
+
+    /**
+     * Sends the queued push messages and reads the results of all the pending pushes.
+     *
+     * @throws SyncException if a file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void finishPushes() throws SyncException, IOException, TimeoutException {
+        flushSendBuffer();
+        while (mPendingPushes > 0) {
+            readPushResult();
+        }
+    }
+
+    /**
+     * Reads the result of the oldest pending push.
+     */
+    private void readPushResult() throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
 
         // read the result, in a byte array containing 2 ints
         // (id, size)
         byte[] result = new byte[8];
         AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
+        mPendingPushes--;
 
         if (!checkResult(result, ID_OKAY)) {
+            // the device ends the sync session on failure, so no more result is coming.
+            mPendingPushes = 0;
             throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
                     readErrorMessage(result, timeOut));
         }
     }
 
+    private void queueMessage(byte[] msg) throws IOException, TimeoutException {
+        ByteBuffer buffer = getSendBuffer();
+        if (buffer.remaining() < msg.length) {
+            flushSendBuffer();
+        }
+        buffer.put(msg);
+    }
+
+    private void flushSendBuffer() throws IOException, TimeoutException {
+        ByteBuffer buffer = getSendBuffer();
+        buffer.flip();
+        try {
+            AdbHelper.write(mChannel, buffer, DdmPreferences.getTimeOut());
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void startTransfer() {
+        mTransferStart = System.nanoTime();
+        mTransferFiles = 0;
+        mTransferBytes = 0;
+        mPendingPushes = 0;
+        getSendBuffer().clear();
+    }
+
+    private long getTransferTime() {
+        return System.nanoTime() - mTransferStart;
+    }
+
     /**
      * Reads an error message from the opened {@link #mChannel}.
      * @param result the current adb result. Must contain both FAIL and the length of the message.
@@ -774,6 +935,114 @@ public class SyncService {
         return new FileStat(mode, size, lastModifiedSecs);
     }
 
+    /**
+     * Returns the stat info of several remote files.
+     * <p>The requests are pipelined, so that the whole batch costs about one round-trip to the
+     * device instead of one per file.
+     * @param paths the remote files
+     * @return the stat info of the files, in the order of the paths. Files that do not exist have
+     *      a mode of 0.
+     * @throws SyncException if a path is too long or the device replies with an error.
+     * @throws IOException
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    @NonNull
+    public List<FileStat> statFiles(@NonNull List<String> paths)
+            throws SyncException, TimeoutException, IOException {
+        return sendRequests(ID_STAT, paths, this::readStat);
+    }
+
+    /**
+     * Lists the entries of several remote directories, without their "." and ".." entries.
+     * <p>The requests are pipelined, so that the whole batch costs about one round-trip to the
+     * device instead of one per directory.
+     * @param paths the remote directories
+     * @return the entries of the directories, in the order of the paths. Directories that cannot
+     *      be read have no entries.
+     * @throws SyncException if a path is too long or the device replies with an error.
+     * @throws IOException
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    @NonNull
+    public List<List<DirectoryEntry>> listDirectories(@NonNull List<String> paths)
+            throws SyncException, TimeoutException, IOException {
+        return sendRequests(ID_LIST, paths, this::readDirectoryEntries);
+    }
+
+    /** Reads the reply to a request from the sync connection. */
+    private interface ReplyReader<T> {
+        T read() throws SyncException, TimeoutException, IOException;
+    }
+
+    /**
+     * Sends one request per path, keeping up to {@link #MAX_PENDING_REQUESTS} requests ahead of
+     * the replies read.
+     */
+    @NonNull
+    private <T> List<T> sendRequests(@NonNull byte[] id, @NonNull List<String> paths,
+            @NonNull ReplyReader<T> reader) throws SyncException, TimeoutException, IOException {
+        List<T> replies = new ArrayList<T>(paths.size());
+        getSendBuffer().clear();
+        int sent = 0;
+        while (replies.size() < paths.size()) {
+            while (sent < paths.size() && sent - replies.size() < MAX_PENDING_REQUESTS) {
+                byte[] path = paths.get(sent++).getBytes(AdbHelper.DEFAULT_CHARSET);
+                if (path.length > REMOTE_PATH_MAX_LENGTH) {
+                    throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+                }
+                queueMessage(createFileReq(id, path));
+            }
+            flushSendBuffer();
+            replies.add(reader.read());
+        }
+        return replies;
+    }
+
+    @NonNull
+    private FileStat readStat() throws SyncException, TimeoutException, IOException {
+        // (id, mode, size, time)
+        byte[] statResult = getBuffer();
+        AdbHelper.read(mChannel, statResult, 16, DdmPreferences.getTimeOut());
+        if (!checkResult(statResult, ID_STAT)) {
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+        }
+
+        return new FileStat(ArrayHelper.swap32bitFromArray(statResult, 4),
+                ArrayHelper.swap32bitFromArray(statResult, 8),
+                ArrayHelper.swap32bitFromArray(statResult, 12));
+    }
+
+    @NonNull
+    private List<DirectoryEntry> readDirectoryEntries()
+            throws SyncException, TimeoutException, IOException {
+        final int timeOut = DdmPreferences.getTimeOut();
+        byte[] buffer = getBuffer();
+        List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        while (true) {
+            // (id, mode, size, time, name length), then the name.
+            AdbHelper.read(mChannel, buffer, 20, timeOut);
+            if (checkResult(buffer, ID_DONE)) {
+                return entries;
+            }
+            if (!checkResult(buffer, ID_DENT)) {
+                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+            }
+
+            int mode = ArrayHelper.swap32bitFromArray(buffer, 4);
+            int size = ArrayHelper.swap32bitFromArray(buffer, 8);
+            int time = ArrayHelper.swap32bitFromArray(buffer, 12);
+            int nameLength = ArrayHelper.swap32bitFromArray(buffer, 16);
+            if (nameLength < 0 || nameLength > buffer.length) {
+                throw new SyncException(SyncError.BUFFER_OVERRUN);
+            }
+            AdbHelper.read(mChannel, buffer, nameLength, timeOut);
+            String name = new String(buffer, 0, nameLength, AdbHelper.DEFAULT_CHARSET);
+            if (!".".equals(name) && !"..".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+                entries.add(new DirectoryEntry(name, mode, size, time));
+            }
+        }
+    }
+
     /**
      * Create a command with a code and an int values
      * @param command
@@ -847,7 +1116,7 @@ public class SyncService {
 
     }
 
-    private static int getFileType(int mode) {
+    static int getFileType(int mode) {
         if ((mode & S_ISOCK) == S_ISOCK) {
             return FileListingService.TYPE_SOCKET;
         }
@@ -891,4 +1160,16 @@ public class SyncService {
         }
         return mBuffer;
     }
+
+    /**
+     * Retrieve the direct send buffer, allocating if necessary
+     */
+    private ByteBuffer getSendBuffer() {
+        if (mSendBuffer == null) {
+            mSendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+            // sync message lengths are little endian.
+            mSendBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mSendBuffer;
+    }
 }
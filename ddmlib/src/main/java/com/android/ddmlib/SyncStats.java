@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cumulative statistics of the {@link SyncService} transfers to and from one device.
+ * <p>Only completed transfers are counted. This object can be read from any thread.
+ */
+public final class SyncStats {
+
+    private long mBytesPushed;
+    private long mFilesPushed;
+    private long mPushNanos;
+
+    private long mBytesPulled;
+    private long mFilesPulled;
+    private long mPullNanos;
+
+    synchronized void recordPush(long bytes, int files, long nanos) {
+        mBytesPushed += bytes;
+        mFilesPushed += files;
+        mPushNanos += nanos;
+    }
+
+    synchronized void recordPull(long bytes, int files, long nanos) {
+        mBytesPulled += bytes;
+        mFilesPulled += files;
+        mPullNanos += nanos;
+    }
+
+    /** Returns the number of bytes of file content pushed to the device. */
+    public synchronized long getBytesPushed() {
+        return mBytesPushed;
+    }
+
+    /** Returns the number of files pushed to the device. */
+    public synchronized long getFilesPushed() {
+        return mFilesPushed;
+    }
+
+    /** Returns the time spent pushing files, in the given unit. */
+    public synchronized long getPushTime(TimeUnit unit) {
+        return unit.convert(mPushNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the average push throughput, in bytes per second, or 0 if nothing was pushed. */
+    public synchronized double getPushThroughput() {
+        return throughput(mBytesPushed, mPushNanos);
+    }
+
+    /** Returns the number of bytes of file content pulled from the device. */
+    public synchronized long getBytesPulled() {
+        return mBytesPulled;
+    }
+
+    /** Returns the number of files pulled from the device. */
+    public synchronized long getFilesPulled() {
+        return mFilesPulled;
+    }
+
+    /** Returns the time spent pulling files, in the given unit. */
+    public synchronized long getPullTime(TimeUnit unit) {
+        return unit.convert(mPullNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the average pull throughput, in bytes per second, or 0 if nothing was pulled. */
+    public synchronized double getPullThroughput() {
+        return throughput(mBytesPulled, mPullNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("pushed %1$d files (%2$d bytes, %3$.0f B/s), "
+                        + "pulled %4$d files (%5$d bytes, %6$.0f B/s)",
+                mFilesPushed, mBytesPushed, getPushThroughput(),
+                mFilesPulled, mBytesPulled, getPullThroughput());
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
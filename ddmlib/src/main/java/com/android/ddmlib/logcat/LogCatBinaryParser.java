@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to parse raw output of {@code adb logcat -B}, a stream of {@code logger_entry}
+ * structures, to {@link LogCatMessage} objects.
+ * <p>Entries are decoded straight from the received bytes, without going through lines of text.
+ * Tags are interned, and consecutive entries with the same metadata share one
+ * {@link LogCatHeader}. Like {@link LogCatMessageParser}, a message spanning several lines gives
+ * one {@link LogCatMessage} per line.
+ * <p>The binary format has the time of the entries in seconds since the epoch; they are converted
+ * to timestamps in the time zone of the host.
+ */
+public final class LogCatBinaryParser {
+
+    /** Size of the header of version 1 entries, which have no header size field. */
+    private static final int V1_HEADER_SIZE = 20;
+
+    /** Number of slots of the tag cache. Must be a power of 2. */
+    private static final int TAG_CACHE_SIZE = 1024;
+
+    private static final LogLevel[] LOG_LEVELS = new LogLevel[] {
+            LogLevel.VERBOSE, // ANDROID_LOG_UNKNOWN
+            LogLevel.VERBOSE, // ANDROID_LOG_DEFAULT
+            LogLevel.VERBOSE,
+            LogLevel.DEBUG,
+            LogLevel.INFO,
+            LogLevel.WARN,
+            LogLevel.ERROR,
+            LogLevel.ASSERT, // ANDROID_LOG_FATAL
+    };
+
+    @NonNull
+    private final ZoneId mZone;
+
+    /** Start of an entry split across two calls, in little endian. */
+    @NonNull
+    private ByteBuffer mPending = newBuffer(V1_HEADER_SIZE + 4096);
+
+    /** Copy of the payload of entries from buffers without a backing array. */
+    @NonNull
+    private byte[] mScratch = new byte[0];
+
+    /** Direct-mapped cache of the decoded tags, keyed by their bytes. */
+    private final byte[][] mTagBytes = new byte[TAG_CACHE_SIZE][];
+    private final String[] mTags = new String[TAG_CACHE_SIZE];
+
+    private long mLastSecond = -1;
+    private LocalDateTime mLastSecondTime;
+    private LogCatTimestamp mLastTimestamp;
+    private int mLastMilli;
+
+    @Nullable
+    private LogCatHeader mPrevHeader;
+
+    public LogCatBinaryParser() {
+        this(ZoneId.systemDefault());
+    }
+
+    @VisibleForTesting
+    LogCatBinaryParser(@NonNull ZoneId zone) {
+        mZone = zone;
+    }
+
+    /**
+     * Parses the log entries in the remaining bytes of a buffer. An entry cut at the end of the
+     * buffer is kept and completed by the next call, so the output of logcat can be fed as it
+     * comes.
+     *
+     * @param data   raw bytes obtained from logcat -B. The whole buffer is consumed.
+     * @param device device from which these log messages have been received
+     * @return list of LogMessage objects parsed from the input
+     */
+    @NonNull
+    public List<LogCatMessage> processEntries(@NonNull ByteBuffer data, @Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        ByteBuffer in = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(data.limit());
+
+        if (mPending.position() > 0) {
+            completePendingEntry(in, device, messages);
+        }
+
+        while (true) {
+            int start = in.position();
+            int size = getEntrySize(in, start, in.limit());
+            if (size < 0 || start + size > in.limit()) {
+                break;
+            }
+            processEntry(in, start, device, messages);
+            in.position(start + size);
+        }
+
+        if (in.hasRemaining()) {
+            mPending = ensureCapacity(mPending, in.remaining());
+            mPending.put(in);
+        }
+
+        return messages;
+    }
+
+    private void completePendingEntry(@NonNull ByteBuffer in, @Nullable IDevice device,
+            @NonNull List<LogCatMessage> messages) {
+        // first get the size fields, then the rest of the entry.
+        int size = getEntrySize(mPending, 0, mPending.position());
+        if (size < 0) {
+            if (!transfer(in, 4 - mPending.position())) {
+                return;
+            }
+            size = getEntrySize(mPending, 0, mPending.position());
+        }
+        mPending = ensureCapacity(mPending, size - mPending.position());
+        if (!transfer(in, size - mPending.position())) {
+            return;
+        }
+
+        processEntry(mPending, 0, device, messages);
+        mPending.clear();
+    }
+
+    /**
+     * Moves up to the given number of bytes from the input to the pending entry, and returns
+     * whether all were available.
+     */
+    private boolean transfer(@NonNull ByteBuffer in, int count) {
+        int available = Math.min(count, in.remaining());
+        ByteBuffer chunk = in.duplicate();
+        chunk.limit(chunk.position() + available);
+        mPending.put(chunk);
+        in.position(in.position() + available);
+        return available == count;
+    }
+
+    /**
+     * Returns the total size of the entry starting at the given position, or -1 if its size fields
+     * are not all there.
+     */
+    private static int getEntrySize(@NonNull ByteBuffer buffer, int start, int limit) {
+        if (limit - start < 4) {
+            return -1;
+        }
+        int payloadSize = buffer.getShort(start) & 0xFFFF;
+        int headerSize = buffer.getShort(start + 2) & 0xFFFF;
+        if (headerSize == 0) {
+            // version 1 entries have padding in place of the header size.
+            headerSize = V1_HEADER_SIZE;
+        }
+        return headerSize + payloadSize;
+    }
+
+    private void processEntry(@NonNull ByteBuffer buffer, int start, @Nullable IDevice device,
+            @NonNull List<LogCatMessage> messages) {
+        int payloadSize = buffer.getShort(start) & 0xFFFF;
+        int headerSize = buffer.getShort(start + 2) & 0xFFFF;
+        if (headerSize == 0) {
+            headerSize = V1_HEADER_SIZE;
+        }
+        int pid = buffer.getInt(start + 4);
+        int tid = buffer.getInt(start + 8);
+        long seconds = buffer.getInt(start + 12) & 0xFFFFFFFFL;
+        int nanos = buffer.getInt(start + 16);
+
+        if (payloadSize == 0) {
+            return;
+        }
+
+        // the payload is the priority, then the tag and the message, both null terminated.
+        byte[] payload;
+        int offset;
+        int payloadStart = start + headerSize;
+        if (buffer.hasArray()) {
+            payload = buffer.array();
+            offset = buffer.arrayOffset() + payloadStart;
+        } else {
+            if (mScratch.length < payloadSize) {
+                mScratch = new byte[Math.max(payloadSize, 2 * mScratch.length)];
+            }
+            ByteBuffer source = buffer.duplicate();
+            source.position(payloadStart);
+            source.get(mScratch, 0, payloadSize);
+            payload = mScratch;
+            offset = 0;
+        }
+        int end = offset + payloadSize;
+
+        int priority = payload[offset];
+        LogLevel logLevel = priority >= 0 && priority < LOG_LEVELS.length
+                ? LOG_LEVELS[priority] : LogLevel.WARN;
+
+        int tagStart = offset + 1;
+        int tagEnd = indexOf(payload, tagStart, end, (byte) 0);
+        String tag = internTag(payload, tagStart, tagEnd - tagStart);
+
+        int messageStart = Math.min(tagEnd + 1, end);
+        int messageEnd = indexOf(payload, messageStart, end, (byte) 0);
+
+        LogCatHeader header = getHeader(logLevel, pid, tid, tag,
+                getTimestamp(seconds, nanos), device);
+
+        // one message per non empty line.
+        int lineStart = messageStart;
+        while (lineStart < messageEnd) {
+            int lineEnd = indexOf(payload, lineStart, messageEnd, (byte) '\n');
+            if (lineEnd > lineStart) {
+                messages.add(new LogCatMessage(header,
+                        new String(payload, lineStart, lineEnd - lineStart,
+                                StandardCharsets.UTF_8)));
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    @NonNull
+    private LogCatHeader getHeader(@NonNull LogLevel logLevel, int pid, int tid,
+            @NonNull String tag, @NonNull LogCatTimestamp timestamp, @Nullable IDevice device) {
+        LogCatHeader prevHeader = mPrevHeader;
+        if (prevHeader != null
+                && prevHeader.getPid() == pid
+                && prevHeader.getTid() == tid
+                && prevHeader.getLogLevel() == logLevel
+                && prevHeader.getTag() == tag
+                && prevHeader.getTimestamp() == timestamp) {
+            return prevHeader;
+        }
+
+        String pkgName = null;
+        if (device != null) {
+            pkgName = device.getClientName(pid);
+        }
+        if (pkgName == null || pkgName.isEmpty()) {
+            pkgName = "?"; //$NON-NLS-1$
+        }
+
+        mPrevHeader = new LogCatHeader(logLevel, pid, tid, pkgName, tag, timestamp);
+        return mPrevHeader;
+    }
+
+    /**
+     * Returns the timestamp of an entry, reusing the previous one if it has the same time to the
+     * millisecond.
+     */
+    @NonNull
+    private LogCatTimestamp getTimestamp(long seconds, int nanos) {
+        int milli = Math.min(Math.max(nanos / 1000000, 0), 999);
+        if (seconds != mLastSecond) {
+            mLastSecond = seconds;
+            mLastSecondTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(seconds), mZone);
+            mLastTimestamp = null;
+        }
+        if (mLastTimestamp == null || mLastMilli != milli) {
+            LocalDateTime time = mLastSecondTime;
+            mLastMilli = milli;
+            mLastTimestamp = new LogCatTimestamp(time.getMonthValue(), time.getDayOfMonth(),
+                    time.getHour(), time.getMinute(), Math.min(time.getSecond(), 59), milli);
+        }
+        return mLastTimestamp;
+    }
+
+    @NonNull
+    private String internTag(@NonNull byte[] data, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
+
+        byte[] cached = mTagBytes[slot];
+        if (cached != null && cached.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = cached[i] == data[start + i];
+            }
+            if (same) {
+                return mTags[slot];
+            }
+        }
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, start, bytes, 0, length);
+        String tag = new String(bytes, StandardCharsets.UTF_8);
+        mTagBytes[slot] = bytes;
+        mTags[slot] = tag;
+        return tag;
+    }
+
+    /** Returns the index of the first given byte in the range, or its end if there is none. */
+    private static int indexOf(@NonNull byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    @NonNull
+    private static ByteBuffer ensureCapacity(@NonNull ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        ByteBuffer larger = newBuffer(Math.max(buffer.position() + extra, 2 * buffer.capacity()));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    @NonNull
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
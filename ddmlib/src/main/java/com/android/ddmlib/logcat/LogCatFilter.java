@@ -20,7 +20,6 @@ import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -192,40 +191,47 @@ public final class LogCatFilter {
      * @return true if the message matches the filter's conditions.
      */
     public boolean matches(LogCatMessage m) {
-        /* filter out messages of a lower priority */
-        if (m.getLogLevel().getPriority() < mLogLevel.getPriority()) {
-            return false;
-        }
+        return matchesLogLevel(m.getLogLevel())
+                && matchesPid(m.getPid())
+                && matchesAppName(m.getAppName())
+                && matchesTag(m.getTag())
+                && matchesText(m.getMessage());
+    }
 
-        /* if pid filter is enabled, filter out messages whose pid does not match
-         * the filter's pid */
-        if (mCheckPid && !Integer.toString(m.getPid()).equals(mPid)) {
-            return false;
-        }
+    /* filter out messages of a lower priority */
+    boolean matchesLogLevel(@NonNull LogLevel logLevel) {
+        return logLevel.getPriority() >= mLogLevel.getPriority();
+    }
 
-        /* if app name filter is enabled, filter out messages not matching the app name */
-        if (mCheckAppName) {
-            Matcher matcher = mAppNamePattern.matcher(m.getAppName());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+    /* if pid filter is enabled, filter out messages whose pid does not match
+     * the filter's pid */
+    boolean matchesPid(int pid) {
+        return !mCheckPid || Integer.toString(pid).equals(mPid);
+    }
 
-        /* if tag filter is enabled, filter out messages not matching the tag */
-        if (mCheckTag) {
-            Matcher matcher = mTagPattern.matcher(m.getTag());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+    /* if app name filter is enabled, filter out messages not matching the app name */
+    boolean matchesAppName(@NonNull String appName) {
+        return !mCheckAppName || mAppNamePattern.matcher(appName).find();
+    }
 
-        if (mCheckText) {
-            Matcher matcher = mTextPattern.matcher(m.getMessage());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+    /* if tag filter is enabled, filter out messages not matching the tag */
+    boolean matchesTag(@NonNull String tag) {
+        return !mCheckTag || mTagPattern.matcher(tag).find();
+    }
+
+    boolean matchesText(@NonNull String text) {
+        return !mCheckText || mTextPattern.matcher(text).find();
+    }
+
+    boolean checksPid() {
+        return mCheckPid;
+    }
+
+    boolean checksTag() {
+        return mCheckTag;
+    }
 
-        return true;
+    boolean checksText() {
+        return mCheckText;
     }
 }
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded store of the most recent logcat messages of a device, which can be queried with
+ * {@link LogCatFilter}s.
+ * <p>Register one store per device with {@link LogCatReceiverTask#addLogCatListener}. The message
+ * texts are kept in a direct buffer of a fixed byte budget, and the other fields in fixed size
+ * arrays, so memory stays constant however long the session: once either is full, the oldest
+ * messages are dropped.
+ * <p>The messages are indexed by pid, tid, tag and log level. A query walks the smallest index
+ * matching the filter, and only decodes the text of the candidate messages.
+ * <p>This class is thread-safe.
+ */
+public final class LogCatMessageStore implements LogCatListener {
+
+    /** Estimated average size of the text of a message, used to size the default arrays. */
+    private static final int AVERAGE_MESSAGE_SIZE = 64;
+
+    private static final LogLevel[] LOG_LEVELS = LogLevel.values();
+
+    /** Direct buffer holding the UTF-8 text of the messages, used as a ring. */
+    @NonNull
+    private final ByteBuffer mText;
+
+    /** Fields of the messages, indexed by {@code sequence % mMaxMessages}. */
+    private final int mMaxMessages;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final int[] mPids;
+    private final int[] mTids;
+    private final int[] mTagIds;
+    private final int[] mAppNameIds;
+    private final byte[] mLogLevels;
+    private final long[] mTimestamps;
+
+    /** Sequence numbers of the oldest message and of the next one. */
+    private long mFirst;
+    private long mNext;
+
+    /** Position in {@link #mText} where the next message goes. */
+    private int mWritePosition;
+
+    private final StringTable mTags = new StringTable();
+    private final StringTable mAppNames = new StringTable();
+
+    private final Map<Integer, SequenceList> mPidIndex = new HashMap<Integer, SequenceList>();
+    private final Map<Integer, SequenceList> mTidIndex = new HashMap<Integer, SequenceList>();
+    private final Map<Integer, SequenceList> mTagIndex = new HashMap<Integer, SequenceList>();
+    private final SequenceList[] mLogLevelIndex = new SequenceList[LOG_LEVELS.length];
+
+    private byte[] mScratch = new byte[AVERAGE_MESSAGE_SIZE];
+
+    /**
+     * Creates a store for the messages whose text fits in the given number of bytes.
+     */
+    public LogCatMessageStore(int byteBudget) {
+        this(byteBudget, Math.max(1, byteBudget / AVERAGE_MESSAGE_SIZE));
+    }
+
+    /**
+     * Creates a store for at most the given number of messages, whose text fits in the given
+     * number of bytes.
+     */
+    public LogCatMessageStore(int byteBudget, int maxMessages) {
+        if (byteBudget <= 0 || maxMessages <= 0) {
+            throw new IllegalArgumentException("The store must have room for messages");
+        }
+        mText = ByteBuffer.allocateDirect(byteBudget);
+        mMaxMessages = maxMessages;
+        mOffsets = new int[maxMessages];
+        mLengths = new int[maxMessages];
+        mPids = new int[maxMessages];
+        mTids = new int[maxMessages];
+        mTagIds = new int[maxMessages];
+        mAppNameIds = new int[maxMessages];
+        mLogLevels = new byte[maxMessages];
+        mTimestamps = new long[maxMessages];
+        for (int i = 0; i < mLogLevelIndex.length; i++) {
+            mLogLevelIndex[i] = new SequenceList();
+        }
+    }
+
+    @Override
+    public synchronized void log(List<LogCatMessage> msgList) {
+        for (LogCatMessage message : msgList) {
+            add(message);
+        }
+    }
+
+    /**
+     * Returns the number of messages in the store.
+     */
+    public synchronized int size() {
+        return (int) (mNext - mFirst);
+    }
+
+    /**
+     * Returns all the messages in the store, oldest first.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages() {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(size());
+        for (long seq = mFirst; seq < mNext; seq++) {
+            messages.add(getMessage(seq));
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the messages in the store matching a filter, oldest first.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> find(@NonNull LogCatFilter filter) {
+        return find(filter, -1);
+    }
+
+    /**
+     * Returns the messages of a thread in the store matching a filter, oldest first.
+     *
+     * @param filter the filter to match
+     * @param tid the id of the thread, or -1 for all the threads
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> find(@NonNull LogCatFilter filter, int tid) {
+        boolean[] matchingTags = mTags.match(filter, true);
+        boolean[] matchingAppNames = mAppNames.match(filter, false);
+
+        // pick the smallest index that covers the filter.
+        long[] candidates = null;
+        int candidateCount = size();
+        if (filter.checksPid()) {
+            SequenceList pidList = getPidList(filter);
+            if (pidList == null) {
+                return new ArrayList<LogCatMessage>();
+            }
+            candidates = pidList.toArray();
+            candidateCount = candidates.length;
+        }
+        if (tid != -1) {
+            SequenceList tidList = mTidIndex.get(tid);
+            if (tidList == null) {
+                return new ArrayList<LogCatMessage>();
+            }
+            if (tidList.size() < candidateCount) {
+                candidates = tidList.toArray();
+                candidateCount = candidates.length;
+            }
+        }
+        if (filter.checksTag()) {
+            List<SequenceList> tagLists = new ArrayList<SequenceList>();
+            for (int tagId = 0; tagId < matchingTags.length; tagId++) {
+                SequenceList tagList = mTagIndex.get(tagId);
+                if (matchingTags[tagId] && tagList != null) {
+                    tagLists.add(tagList);
+                }
+            }
+            if (countAll(tagLists) < candidateCount) {
+                candidates = union(tagLists);
+                candidateCount = candidates.length;
+            }
+        }
+        List<SequenceList> levelLists = new ArrayList<SequenceList>();
+        for (LogLevel logLevel : LOG_LEVELS) {
+            if (filter.matchesLogLevel(logLevel)) {
+                levelLists.add(mLogLevelIndex[logLevel.ordinal()]);
+            }
+        }
+        if (countAll(levelLists) < candidateCount) {
+            candidates = union(levelLists);
+        }
+
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        if (candidates == null) {
+            for (long seq = mFirst; seq < mNext; seq++) {
+                addIfMatches(seq, filter, tid, matchingTags, matchingAppNames, messages);
+            }
+        } else {
+            for (long seq : candidates) {
+                addIfMatches(seq, filter, tid, matchingTags, matchingAppNames, messages);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Removes all the messages from the store.
+     */
+    public synchronized void clear() {
+        while (mFirst < mNext) {
+            removeFirst();
+        }
+        mWritePosition = 0;
+    }
+
+    private void add(@NonNull LogCatMessage message) {
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, mText.capacity());
+
+        if (mNext - mFirst == mMaxMessages) {
+            removeFirst();
+        }
+        int position = allocate(length);
+
+        ByteBuffer destination = mText.duplicate();
+        destination.position(position);
+        destination.put(text, 0, length);
+        mWritePosition = position + length;
+
+        long seq = mNext++;
+        int slot = getSlot(seq);
+        int tagId = mTags.getId(message.getTag());
+        mOffsets[slot] = position;
+        mLengths[slot] = length;
+        mPids[slot] = message.getPid();
+        mTids[slot] = message.getTid();
+        mTagIds[slot] = tagId;
+        mAppNameIds[slot] = mAppNames.getId(message.getAppName());
+        mLogLevels[slot] = (byte) message.getLogLevel().ordinal();
+        mTimestamps[slot] = message.getTimestamp().toPackedValue();
+
+        getList(mPidIndex, message.getPid()).add(seq);
+        getList(mTidIndex, message.getTid()).add(seq);
+        getList(mTagIndex, tagId).add(seq);
+        mLogLevelIndex[message.getLogLevel().ordinal()].add(seq);
+    }
+
+    /**
+     * Returns where to write the text of a new message of the given length, dropping the oldest
+     * messages in the way.
+     */
+    private int allocate(int length) {
+        int position = mWritePosition;
+        if (position + length > mText.capacity()) {
+            // wrap around, dropping the oldest messages at the end of the buffer first.
+            while (mFirst < mNext && mOffsets[getSlot(mFirst)] >= position) {
+                removeFirst();
+            }
+            position = 0;
+        }
+        // the messages after the write position are the oldest ones. Those before it are newer,
+        // and mean that the buffer is free up to its end.
+        while (mFirst < mNext) {
+            int offset = mOffsets[getSlot(mFirst)];
+            if (offset < position || offset >= position + length) {
+                break;
+            }
+            removeFirst();
+        }
+        return position;
+    }
+
+    private void removeFirst() {
+        long seq = mFirst++;
+        int slot = getSlot(seq);
+        removeHead(mPidIndex, mPids[slot]);
+        removeHead(mTidIndex, mTids[slot]);
+        removeHead(mTagIndex, mTagIds[slot]);
+        mLogLevelIndex[mLogLevels[slot]].removeFirst();
+    }
+
+    private void addIfMatches(long seq, @NonNull LogCatFilter filter, int tid,
+            @NonNull boolean[] matchingTags, @NonNull boolean[] matchingAppNames,
+            @NonNull List<LogCatMessage> messages) {
+        int slot = getSlot(seq);
+        if (!filter.matchesLogLevel(LOG_LEVELS[mLogLevels[slot]])
+                || !filter.matchesPid(mPids[slot])
+                || (tid != -1 && mTids[slot] != tid)
+                || !matchingTags[mTagIds[slot]]
+                || !matchingAppNames[mAppNameIds[slot]]) {
+            return;
+        }
+        String text = getText(slot);
+        if (filter.checksText() && !filter.matchesText(text)) {
+            return;
+        }
+        messages.add(new LogCatMessage(getHeader(slot), text));
+    }
+
+    @NonNull
+    private LogCatMessage getMessage(long seq) {
+        int slot = getSlot(seq);
+        return new LogCatMessage(getHeader(slot), getText(slot));
+    }
+
+    @NonNull
+    private LogCatHeader getHeader(int slot) {
+        return new LogCatHeader(LOG_LEVELS[mLogLevels[slot]], mPids[slot], mTids[slot],
+                mAppNames.getString(mAppNameIds[slot]), mTags.getString(mTagIds[slot]),
+                LogCatTimestamp.fromPackedValue(mTimestamps[slot]));
+    }
+
+    @NonNull
+    private String getText(int slot) {
+        int length = mLengths[slot];
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, 2 * mScratch.length)];
+        }
+        ByteBuffer source = mText.duplicate();
+        source.position(mOffsets[slot]);
+        source.get(mScratch, 0, length);
+        return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private SequenceList getPidList(@NonNull LogCatFilter filter) {
+        try {
+            int pid = Integer.parseInt(filter.getPid());
+            return filter.matchesPid(pid) ? mPidIndex.get(pid) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private int getSlot(long seq) {
+        return (int) (seq % mMaxMessages);
+    }
+
+    @NonNull
+    private static SequenceList getList(@NonNull Map<Integer, SequenceList> index, int key) {
+        SequenceList list = index.get(key);
+        if (list == null) {
+            list = new SequenceList();
+            index.put(key, list);
+        }
+        return list;
+    }
+
+    private static void removeHead(@NonNull Map<Integer, SequenceList> index, int key) {
+        SequenceList list = index.get(key);
+        list.removeFirst();
+        if (list.size() == 0) {
+            index.remove(key);
+        }
+    }
+
+    private static int countAll(@NonNull List<SequenceList> lists) {
+        int count = 0;
+        for (SequenceList list : lists) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    @NonNull
+    private static long[] union(@NonNull List<SequenceList> lists) {
+        long[] union = new long[countAll(lists)];
+        int count = 0;
+        for (SequenceList list : lists) {
+            count = list.copyTo(union, count);
+        }
+        if (lists.size() > 1) {
+            Arrays.sort(union);
+        }
+        return union;
+    }
+
+    /**
+     * Sequence numbers of messages, in increasing order. New ones are added at the end, and old
+     * ones removed from the start.
+     */
+    private static final class SequenceList {
+
+        private long[] mValues = new long[8];
+        private int mStart;
+        private int mSize;
+
+        void add(long seq) {
+            if (mSize == mValues.length) {
+                long[] values = new long[2 * mValues.length];
+                copyTo(values, 0);
+                mValues = values;
+                mStart = 0;
+            }
+            mValues[(mStart + mSize) % mValues.length] = seq;
+            mSize++;
+        }
+
+        void removeFirst() {
+            mStart = (mStart + 1) % mValues.length;
+            mSize--;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        @NonNull
+        long[] toArray() {
+            long[] values = new long[mSize];
+            copyTo(values, 0);
+            return values;
+        }
+
+        /**
+         * Copies the sequence numbers to an array, and returns the index after the last one.
+         */
+        int copyTo(@NonNull long[] destination, int index) {
+            int firstPart = Math.min(mSize, mValues.length - mStart);
+            System.arraycopy(mValues, mStart, destination, index, firstPart);
+            System.arraycopy(mValues, 0, destination, index + firstPart, mSize - firstPart);
+            return index + mSize;
+        }
+    }
+
+    /**
+     * Ids of the distinct tags or application names seen, which repeat a lot.
+     */
+    private static final class StringTable {
+
+        private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+        private final List<String> mStrings = new ArrayList<String>();
+
+        int getId(@NonNull String string) {
+            Integer id = mIds.get(string);
+            if (id == null) {
+                id = mStrings.size();
+                mIds.put(string, id);
+                mStrings.add(string);
+            }
+            return id;
+        }
+
+        @NonNull
+        String getString(int id) {
+            return mStrings.get(id);
+        }
+
+        /**
+         * Returns which of the strings match the tag or application name part of a filter.
+         */
+        @NonNull
+        boolean[] match(@NonNull LogCatFilter filter, boolean tags) {
+            boolean[] matches = new boolean[mStrings.size()];
+            for (int id = 0; id < matches.length; id++) {
+                String string = mStrings.get(id);
+                matches[id] = tags ? filter.matchesTag(string) : filter.matchesAppName(string);
+            }
+            return matches;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -35,6 +36,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String LOGCAT_BINARY_COMMAND = "logcat -B"; //$NON-NLS-1$
+    /**
+     * First API level whose shell commands do not run in a terminal, which would mangle the
+     * binary output of logcat.
+     */
+    private static final int BINARY_MIN_API_LEVEL = 24;
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -48,12 +55,26 @@ public class LogCatReceiverTask implements Runnable {
     private final LogCatOutputReceiver mReceiver;
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
+    private final boolean mBinary;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task receiving the log of a device.
+     *
+     * @param device the device to read the log of
+     * @param binary whether to read the log in binary form with a {@link LogCatBinaryParser},
+     *            which is cheaper to parse than text. Devices with an API level below 24 are
+     *            always read as text.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean binary) {
         mDevice = device;
+        mBinary = binary;
 
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
@@ -72,7 +93,12 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mBinary && mDevice.getVersion().getFeatureLevel() >= BINARY_MIN_API_LEVEL) {
+                mDevice.executeShellCommand(LOGCAT_BINARY_COMMAND,
+                        new LogCatBinaryOutputReceiver(), 0);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -116,6 +142,30 @@ public class LogCatReceiverTask implements Runnable {
         }
     }
 
+    private class LogCatBinaryOutputReceiver implements IShellOutputReceiver {
+        private final LogCatBinaryParser mBinaryParser = new LogCatBinaryParser();
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (!mCancelled.get()) {
+                List<LogCatMessage> newMessages = mBinaryParser.processEntries(
+                        ByteBuffer.wrap(data, offset, length), mDevice);
+                if (!newMessages.isEmpty()) {
+                    notifyListeners(newMessages);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+    }
+
     public synchronized void addLogCatListener(LogCatListener l) {
         mListeners.add(l);
     }
@@ -101,6 +101,34 @@ public final class LogCatTimestamp {
         mMilli = milli;
     }
 
+    /**
+     * Returns the fields of this timestamp packed in a long, to store it compactly.
+     *
+     * @see #fromPackedValue(long)
+     */
+    long toPackedValue() {
+        return ((((mMonth * 32L + mDay) * 24 + mHour) * 60 + mMinute) * 60 + mSecond) * 1000
+                + mMilli;
+    }
+
+    /**
+     * Returns the timestamp whose fields were packed by {@link #toPackedValue()}.
+     */
+    @NonNull
+    static LogCatTimestamp fromPackedValue(long value) {
+        int milli = (int) (value % 1000);
+        value /= 1000;
+        int second = (int) (value % 60);
+        value /= 60;
+        int minute = (int) (value % 60);
+        value /= 60;
+        int hour = (int) (value % 24);
+        value /= 24;
+        int day = (int) (value % 32);
+        int month = (int) (value / 32);
+        return new LogCatTimestamp(month, day, hour, minute, second, milli);
+    }
+
     public boolean isBefore(@NonNull LogCatTimestamp other) {
         if (mMonth == 12 && other.mMonth == 1) {
             // Timestamps don't indicate year, so in practice, if you get two timestamps in short
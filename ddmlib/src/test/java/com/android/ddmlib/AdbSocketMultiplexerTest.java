@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class AdbSocketMultiplexerTest {
+
+    private ServerSocketChannel mServer;
+
+    private SocketChannel mClient;
+
+    private SocketChannel mPeer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mClient = AdbSocketMultiplexer.getDefault()
+                .connect((InetSocketAddress) mServer.socket().getLocalSocketAddress(), 5000)
+                .get(5, TimeUnit.SECONDS);
+        mPeer = mServer.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.close();
+        mPeer.close();
+        mServer.close();
+    }
+
+    @Test
+    public void readAndWrite() throws Exception {
+        AdbHelper.write(mClient, "hello".getBytes(AdbHelper.DEFAULT_CHARSET));
+        byte[] received = new byte[5];
+        readFully(mPeer, received);
+        assertEquals("hello", new String(received, AdbHelper.DEFAULT_CHARSET));
+
+        mPeer.write(ByteBuffer.wrap("world!".getBytes(AdbHelper.DEFAULT_CHARSET)));
+        byte[] data = new byte[6];
+        AdbHelper.read(mClient, data);
+        assertEquals("world!", new String(data, AdbHelper.DEFAULT_CHARSET));
+    }
+
+    @Test
+    public void readTimesOut() throws Exception {
+        try {
+            AdbHelper.read(mClient, new byte[4], -1, 50);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void readFailsAtEndOfChannel() throws Exception {
+        mPeer.write(ByteBuffer.wrap(new byte[2]));
+        mPeer.close();
+        try {
+            AdbHelper.read(mClient, new byte[4]);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void readAvailable() throws Exception {
+        AdbSocketMultiplexer multiplexer = AdbSocketMultiplexer.getDefault();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        mPeer.write(ByteBuffer.wrap(new byte[3]));
+        assertEquals(3, multiplexer.readAvailable(mClient, buffer, 5000).get().intValue());
+
+        mPeer.close();
+        assertEquals(-1, multiplexer.readAvailable(mClient, buffer, 5000).get().intValue());
+    }
+
+    @Test
+    public void executeRemoteCommandAsync() throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        AdbHelper.executeRemoteCommandAsync(
+                (InetSocketAddress) mServer.socket().getLocalSocketAddress(),
+                AdbHelper.AdbService.SHELL, "echo hi", null, receiver, 5, TimeUnit.SECONDS);
+
+        try (SocketChannel adb = mServer.accept()) {
+            byte[] request = new byte[17];
+            readFully(adb, request);
+            assertEquals("000Dshell:echo hi", new String(request, AdbHelper.DEFAULT_CHARSET));
+            adb.write(ByteBuffer.wrap("OKAYhi\n".getBytes(AdbHelper.DEFAULT_CHARSET)));
+        }
+
+        for (int i = 0; i < 100 && receiver.getOutput().isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("hi\n", receiver.getOutput());
+    }
+
+    @Test
+    public void executeRemoteCommandAsyncRejected() throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        ListenableFuture<Void> result =
+                AdbHelper.executeRemoteCommandAsync(
+                        (InetSocketAddress) mServer.socket().getLocalSocketAddress(),
+                        AdbHelper.AdbService.SHELL, "echo hi", null, receiver, 0, null);
+
+        try (SocketChannel adb = mServer.accept()) {
+            readFully(adb, new byte[17]);
+            adb.write(ByteBuffer.wrap("FAIL0004nope".getBytes(AdbHelper.DEFAULT_CHARSET)));
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AdbCommandRejectedException);
+                assertEquals("nope", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void executeRemoteCommandStopsWhenCancelled() throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> result = executor.submit(() -> {
+                AdbHelper.executeRemoteCommand(
+                        (InetSocketAddress) mServer.socket().getLocalSocketAddress(),
+                        "sleep 60", null, receiver, 0, TimeUnit.MILLISECONDS);
+                return null;
+            });
+
+            try (SocketChannel adb = mServer.accept()) {
+                readFully(adb, new byte[18]);
+                adb.write(ByteBuffer.wrap("OKAYhi\n".getBytes(AdbHelper.DEFAULT_CHARSET)));
+                for (int i = 0; i < 100 && receiver.getOutput().isEmpty(); i++) {
+                    Thread.sleep(50);
+                }
+                assertEquals("hi\n", receiver.getOutput());
+
+                // The connection stays open, only the cancellation ends the command.
+                receiver.cancel();
+                result.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void executeRemoteCommandUnresponsive() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> result = executor.submit(() -> {
+                AdbHelper.executeRemoteCommand(
+                        (InetSocketAddress) mServer.socket().getLocalSocketAddress(),
+                        "sleep 60", null, new CollectingOutputReceiver(), 100,
+                        TimeUnit.MILLISECONDS);
+                return null;
+            });
+
+            try (SocketChannel adb = mServer.accept()) {
+                readFully(adb, new byte[18]);
+                adb.write(ByteBuffer.wrap("OKAY".getBytes(AdbHelper.DEFAULT_CHARSET)));
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void readFully(SocketChannel chan, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (chan.read(buffer) < 0) {
+                throw new IOException("EOF");
+            }
+        }
+    }
+}
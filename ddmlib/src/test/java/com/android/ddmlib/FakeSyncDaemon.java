@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plays adb and the sync service of the device "serial", one connection at a time, until closed.
+ * <p>Pushed files are recorded. Pushes to paths starting with /fail are rejected, which ends the
+ * session. Stat and list requests are served from a local directory standing for the root of the
+ * device, with the sizes of {@link #mSizes} instead of the ones of the local files if given.
+ */
+final class FakeSyncDaemon extends Thread {
+
+    private static final int S_IFREG = 0x8000;
+    private static final int S_IFDIR = 0x4000;
+
+    private final ServerSocket mServer;
+
+    private final File mRoot;
+
+    final Map<String, byte[]> mFiles =
+            Collections.synchronizedMap(new LinkedHashMap<String, byte[]>());
+
+    final List<String> mListed = Collections.synchronizedList(new ArrayList<String>());
+
+    final List<String> mStated = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Sizes to reply for device paths, truncated to 32 bits like adb does. */
+    final Map<String, Long> mSizes = Collections.synchronizedMap(new HashMap<String, Long>());
+
+    FakeSyncDaemon(File root) throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mRoot = root;
+        setDaemon(true);
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) mServer.getLocalSocketAddress();
+    }
+
+    void close() throws Exception {
+        mServer.close();
+        join(5000);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = mServer.accept()) {
+                serve(socket);
+            } catch (IOException e) {
+                if (mServer.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        assertEquals("host:transport:serial", readRequest(in));
+        out.write("OKAY".getBytes(StandardCharsets.UTF_8));
+        assertEquals("sync:", readRequest(in));
+        out.write("OKAY".getBytes(StandardCharsets.UTF_8));
+
+        while (true) {
+            byte[] header = new byte[8];
+            try {
+                in.readFully(header);
+            } catch (IOException e) {
+                return;
+            }
+            String id = new String(header, 0, 4, StandardCharsets.UTF_8);
+            byte[] target = new byte[length(header)];
+            in.readFully(target);
+            String path = new String(target, StandardCharsets.UTF_8);
+            if (id.equals("STAT")) {
+                mStated.add(path);
+                out.write(stat("STAT", path));
+            } else if (id.equals("LIST")) {
+                mListed.add(path);
+                list(path, out);
+            } else {
+                assertEquals("SEND", id);
+                if (!receive(path.substring(0, path.lastIndexOf(',')), in, out)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean receive(String path, DataInputStream in, OutputStream out)
+            throws IOException {
+        byte[] header = new byte[8];
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            in.readFully(header);
+            String id = new String(header, 0, 4, StandardCharsets.UTF_8);
+            if (id.equals("DONE")) {
+                break;
+            }
+            assertEquals("DATA", id);
+            byte[] data = new byte[length(header)];
+            in.readFully(data);
+            content.write(data);
+        }
+
+        if (path.startsWith("/fail")) {
+            byte[] message = "permission denied".getBytes(StandardCharsets.UTF_8);
+            out.write(reply("FAIL", message.length));
+            out.write(message);
+            // like adbd, read what the client still sends until it closes the connection, so that
+            // it gets the failure rather than a connection reset.
+            byte[] discarded = new byte[1024];
+            while (in.read(discarded) >= 0) {
+                // discard the pipelined requests.
+            }
+            return false;
+        }
+        mFiles.put(path, content.toByteArray());
+        out.write(reply("OKAY", 0));
+        return true;
+    }
+
+    private void list(String path, OutputStream out) throws IOException {
+        String[] children = new File(mRoot, path).list();
+        if (children != null) {
+            List<String> names = new ArrayList<String>();
+            names.add(".");
+            names.add("..");
+            Collections.addAll(names, children);
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (String child : names) {
+                byte[] name = child.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer dent = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+                dent.put(stat("DENT", prefix + child)).putInt(name.length);
+                out.write(dent.array());
+                out.write(name);
+            }
+        }
+        // the end of the listing has the size of an entry.
+        ByteBuffer done = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        out.write(done.put("DONE".getBytes(StandardCharsets.UTF_8)).array());
+    }
+
+    private byte[] stat(String id, String path) {
+        File file = new File(mRoot, path);
+        int mode = 0;
+        if (file.isDirectory()) {
+            mode = S_IFDIR | 0755;
+        } else if (file.isFile()) {
+            mode = S_IFREG | 0644;
+        }
+        Long size = mSizes.get(path);
+        ByteBuffer stat = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        stat.put(id.getBytes(StandardCharsets.UTF_8))
+                .putInt(mode)
+                .putInt(mode == 0 ? 0 : (int) (size != null ? size : file.length()))
+                .putInt(mode == 0 ? 0 : (int) (file.lastModified() / 1000));
+        return stat.array();
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] request =
+                new byte[Integer.parseInt(new String(length, StandardCharsets.UTF_8), 16)];
+        in.readFully(request);
+        return new String(request, StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] header) {
+        return ByteBuffer.wrap(header, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static byte[] reply(String id, int length) {
+        ByteBuffer reply = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        reply.put(id.getBytes(StandardCharsets.UTF_8)).putInt(length);
+        return reply.array();
+    }
+}
@@ -15,6 +15,17 @@
  */
 package com.android.ddmlib;
 
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.ddmlib.FileListingService.TreeDiff;
+import com.android.ddmlib.IDevice.DeviceState;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import junit.framework.TestCase;
 
@@ -78,4 +89,188 @@ public class FileListingServiceTest extends TestCase {
                 "drwxrwx--x 12 root sdcard_r 4096 2015-07-20 23:01 /sdcard/");
         assertTrue(m.matches());
     }
+
+    public void testListTree() throws Exception {
+        File root = createTempDir();
+        try {
+            createFile(new File(root, "a/b/c"), 3);
+            createFile(new File(root, "a/d"), 1);
+            assertTrue(new File(root, "e").mkdir());
+
+            FakeSyncDaemon daemon = new FakeSyncDaemon(root);
+            daemon.start();
+            try {
+                FileEntry entry = createRoot();
+                listTree(daemon, entry, true);
+                assertEquals(Arrays.asList("/", "/a", "/e", "/a/b"), daemon.mListed);
+                assertEquals(Collections.singletonList("/"), daemon.mStated);
+
+                FileEntry a = entry.findChild("a");
+                assertEquals(FileListingService.TYPE_DIRECTORY, a.getType());
+                assertEquals("drwxr-xr-x", a.getPermissions());
+                FileEntry c = a.findChild("b").findChild("c");
+                assertEquals(FileListingService.TYPE_FILE, c.getType());
+                assertEquals("-rw-r--r--", c.getPermissions());
+                assertEquals(3, c.getSizeValue());
+                assertEquals(new File(root, "a/b/c").lastModified() / 1000, c.getLastModified());
+                assertEquals("/a/b/c", c.getFullPath());
+
+                // nothing changed: the directories are only checked.
+                daemon.mListed.clear();
+                daemon.mStated.clear();
+                listTree(daemon, entry, true);
+                assertTrue(daemon.mListed.isEmpty());
+                assertEquals(Arrays.asList("/", "/a", "/e", "/a/b"), daemon.mStated);
+                assertSame(c, a.findChild("b").findChild("c"));
+
+                // only the modified directory is listed again.
+                File b = new File(root, "a/b");
+                createFile(new File(b, "f"), 2);
+                assertTrue(b.setLastModified(b.lastModified() + 10000));
+                daemon.mListed.clear();
+                listTree(daemon, entry, true);
+                assertEquals(Collections.singletonList("/a/b"), daemon.mListed);
+                assertEquals(2, a.findChild("b").getCachedChildren().length);
+                assertSame(c, a.findChild("b").findChild("c"));
+
+                // everything is listed again without the cache.
+                daemon.mListed.clear();
+                listTree(daemon, entry, false);
+                assertEquals(Arrays.asList("/", "/a", "/e", "/a/b"), daemon.mListed);
+            } finally {
+                daemon.close();
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    public void testDiff() throws Exception {
+        File dir = createTempDir();
+        try {
+            File remote = new File(dir, "remote");
+            File local = new File(dir, "local");
+            long time = 1500000000000L;
+            createFile(new File(remote, "same"), 1).setLastModified(time);
+            createFile(new File(local, "same"), 1).setLastModified(time);
+            createFile(new File(remote, "resized"), 1).setLastModified(time);
+            createFile(new File(local, "resized"), 2).setLastModified(time);
+            createFile(new File(remote, "sub/touched"), 1).setLastModified(time);
+            createFile(new File(local, "sub/touched"), 1).setLastModified(time + 5000);
+            createFile(new File(local, "sub/added"), 1);
+            createFile(new File(local, "new/added"), 1);
+            createFile(new File(remote, "removed"), 1);
+            createFile(new File(remote, "old/removed"), 1);
+
+            FakeSyncDaemon daemon = new FakeSyncDaemon(dir);
+            daemon.start();
+            FileEntry root = createRoot();
+            try {
+                listTree(daemon, root, false);
+            } finally {
+                daemon.close();
+            }
+
+            FileEntry remoteEntry = root.findChild("remote");
+            TreeDiff diff = new FileListingService(null).diff(remoteEntry, local);
+            assertFalse(diff.isEmpty());
+            assertEquals(Arrays.asList("new/added", "sub/added"), sorted(diff.getAdded()));
+            assertEquals(Arrays.asList("resized", "sub/touched"), sorted(diff.getChanged()));
+            assertEquals(Arrays.asList("old/removed", "removed"), sorted(diff.getRemoved()));
+
+            Map<String, String> files = diff.getFilesToPush();
+            assertEquals(4, files.size());
+            assertEquals("/remote/sub/added",
+                    files.get(new File(local, "sub/added").getPath()));
+
+            assertTrue(new FileListingService(null).diff(remoteEntry, remote).isEmpty());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    public void testListLargeSizes() throws Exception {
+        File root = createTempDir();
+        try {
+            createFile(new File(root, "large"), 1);
+            createFile(new File(root, "huge"), 1);
+
+            FakeSyncDaemon daemon = new FakeSyncDaemon(root);
+            daemon.mSizes.put("/large", (1L << 31) + 1);
+            daemon.mSizes.put("/huge", (1L << 32) + 1);
+            daemon.start();
+            FileEntry entry = createRoot();
+            try {
+                listTree(daemon, entry, false);
+            } finally {
+                daemon.close();
+            }
+
+            // listed sizes are unsigned 32-bit values.
+            assertEquals("2147483649", entry.findChild("large").getSize());
+            assertEquals(Integer.MIN_VALUE + 1, entry.findChild("large").getSizeValue());
+            assertEquals("1", entry.findChild("huge").getSize());
+        } finally {
+            delete(root);
+        }
+    }
+
+    public void testIsSizeChanged() {
+        assertFalse(FileListingService.isSizeChanged(1, "1"));
+        assertTrue(FileListingService.isSizeChanged(1, "2"));
+        assertTrue(FileListingService.isSizeChanged(1, null));
+        // sizes of 2 GB or more may have been truncated when listed.
+        assertFalse(FileListingService.isSizeChanged((1L << 31) + 1, "2147483649"));
+        assertFalse(FileListingService.isSizeChanged((1L << 32) + 1, "1"));
+    }
+
+    private static FileEntry createRoot() {
+        return new FileEntry(null, "", FileListingService.TYPE_DIRECTORY, true);
+    }
+
+    private static void listTree(FakeSyncDaemon daemon, FileEntry entry, boolean useCache)
+            throws Exception {
+        SyncService sync = new SyncService(daemon.getAddress(),
+                new Device(null, "serial", DeviceState.ONLINE));
+        assertTrue(sync.openSync());
+        try {
+            FileListingService.listTree(entry, useCache, sync);
+        } finally {
+            sync.close();
+        }
+    }
+
+    private static List<String> sorted(List<String> paths) {
+        List<String> sorted = new ArrayList<String>(paths);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("listing", "test");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static File createFile(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link ScreenCapture}.
+ */
+public class ScreenCaptureTest extends TestCase {
+
+    public void testFramesReuseImage() throws Exception {
+        AtomicInteger reused = new AtomicInteger();
+        AtomicInteger frames = new AtomicInteger();
+        CountDownLatch fiveFrames = new CountDownLatch(5);
+        ScreenCapture capture = new ScreenCapture("device", image -> {
+            if (image == null) {
+                image = new RawImage();
+                image.data = new byte[16];
+            } else {
+                reused.incrementAndGet();
+            }
+            image.data[0]++;
+            return image;
+        }, 200, new TestListener() {
+            @Override
+            public void frameCaptured(RawImage frame, long latencyNanos) {
+                assertTrue(latencyNanos >= 0);
+                frames.incrementAndGet();
+                fiveFrames.countDown();
+            }
+        });
+        capture.start();
+        assertTrue(fiveFrames.await(5, TimeUnit.SECONDS));
+        capture.close();
+
+        int count = frames.get();
+        assertEquals(count, capture.getFrameCount());
+        assertEquals(count - 1, reused.get());
+        assertTrue(capture.getFrameRate() > 0);
+        assertTrue(capture.getMaxLatency(TimeUnit.NANOSECONDS)
+                >= capture.getAverageLatency(TimeUnit.NANOSECONDS));
+
+        // no frame once closed.
+        Thread.sleep(50);
+        assertEquals(count, frames.get());
+    }
+
+    public void testSlowFramesSkipped() throws Exception {
+        CountDownLatch threeFrames = new CountDownLatch(3);
+        ScreenCapture capture = new ScreenCapture("device", image -> {
+            try {
+                Thread.sleep(30);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new RawImage();
+        }, 100, new TestListener() {
+            @Override
+            public void frameCaptured(RawImage frame, long latencyNanos) {
+                assertTrue(latencyNanos >= TimeUnit.MILLISECONDS.toNanos(30));
+                threeFrames.countDown();
+            }
+        });
+        capture.start();
+        assertTrue(threeFrames.await(5, TimeUnit.SECONDS));
+        capture.close();
+
+        assertTrue(capture.getSkippedFrameCount() >= 2 * (capture.getFrameCount() - 1));
+        assertTrue(capture.getAverageLatency(TimeUnit.MILLISECONDS) >= 30);
+    }
+
+    public void testCaptureFailed() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        ScreenCapture capture = new ScreenCapture("device", image -> {
+            throw new IOException("device offline");
+        }, 10, new TestListener() {
+            @Override
+            public void captureFailed(Exception e) {
+                error.set(e);
+                failed.countDown();
+            }
+        });
+        capture.start();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        capture.close();
+
+        assertEquals("device offline", error.get().getMessage());
+        assertEquals(0, capture.getFrameCount());
+    }
+
+    private abstract static class TestListener implements ScreenCapture.Listener {
+        @Override
+        public void frameCaptured(RawImage frame, long latencyNanos) {
+            fail("unexpected frame");
+        }
+
+        @Override
+        public void captureFailed(Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
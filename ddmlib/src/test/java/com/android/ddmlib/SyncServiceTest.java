@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.SyncService.DirectoryEntry;
+import com.android.ddmlib.SyncService.FileStat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SyncServiceTest {
+
+    private FakeSyncDaemon mDaemon;
+
+    private Device mDevice;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDevice = new Device(null, "serial", DeviceState.ONLINE);
+        mDir = File.createTempFile("sync", "test");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mDaemon = new FakeSyncDaemon(mDir);
+        mDaemon.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDaemon.close();
+        delete(mDir);
+    }
+
+    @Test
+    public void pushFiles() throws Exception {
+        byte[] large = new byte[150 * 1024];
+        new Random(42).nextBytes(large);
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(createFile("large", large), "/data/large");
+        files.put(createFile("empty", new byte[0]), "/data/empty");
+        files.put(createFile("small", new byte[] { 1, 2, 3 }), "/data/small");
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFiles(files, SyncService.getNullProgressMonitor());
+        } finally {
+            sync.close();
+        }
+
+        assertEquals(3, mDaemon.mFiles.size());
+        assertArrayEquals(large, mDaemon.mFiles.get("/data/large"));
+        assertArrayEquals(new byte[0], mDaemon.mFiles.get("/data/empty"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mDaemon.mFiles.get("/data/small"));
+
+        SyncStats stats = mDevice.getSyncStats();
+        assertEquals(3, stats.getFilesPushed());
+        assertEquals(large.length + 3, stats.getBytesPushed());
+        assertTrue(stats.getPushTime(TimeUnit.NANOSECONDS) > 0);
+        assertTrue(stats.getPushThroughput() > 0);
+        assertEquals(0, stats.getFilesPulled());
+    }
+
+    @Test
+    public void pushFilesFails() throws Exception {
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(createFile("a", new byte[] { 1 }), "/data/a");
+        files.put(createFile("b", new byte[] { 2 }), "/fail/b");
+        files.put(createFile("c", new byte[] { 3 }), "/data/c");
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFiles(files, SyncService.getNullProgressMonitor());
+            fail();
+        } catch (SyncException e) {
+            assertEquals("permission denied", e.getMessage());
+        } finally {
+            sync.close();
+        }
+        assertEquals(0, mDevice.getSyncStats().getFilesPushed());
+    }
+
+    @Test
+    public void pushFile() throws Exception {
+        SyncService sync = openSync();
+        try {
+            sync.pushFile(createFile("one", new byte[] { 4, 5 }), "/data/one",
+                    SyncService.getNullProgressMonitor());
+        } finally {
+            sync.close();
+        }
+
+        assertArrayEquals(new byte[] { 4, 5 }, mDaemon.mFiles.get("/data/one"));
+        assertEquals(1, mDevice.getSyncStats().getFilesPushed());
+    }
+
+    @Test
+    public void statFiles() throws Exception {
+        createFile("file", new byte[] { 1, 2, 3 });
+        File dir = new File(mDir, "dir");
+        assertTrue(dir.mkdir());
+
+        SyncService sync = openSync();
+        List<FileStat> stats;
+        try {
+            stats = sync.statFiles(Arrays.asList("/file", "/dir", "/missing"));
+        } finally {
+            sync.close();
+        }
+
+        assertEquals(3, stats.size());
+        assertEquals(FileListingService.TYPE_FILE,
+                SyncService.getFileType(stats.get(0).getMode()));
+        assertEquals(3, stats.get(0).getSize());
+        assertEquals(FileListingService.TYPE_DIRECTORY,
+                SyncService.getFileType(stats.get(1).getMode()));
+        assertEquals(dir.lastModified() / 1000, stats.get(1).getLastModified().getTime() / 1000);
+        assertEquals(0, stats.get(2).getMode());
+    }
+
+    @Test
+    public void listDirectories() throws Exception {
+        File dir = new File(mDir, "dir");
+        assertTrue(dir.mkdir());
+        assertTrue(new File(dir, "sub").mkdir());
+        createFile("dir/a", new byte[] { 1 });
+        File empty = new File(mDir, "empty");
+        assertTrue(empty.mkdir());
+
+        SyncService sync = openSync();
+        List<List<DirectoryEntry>> listings;
+        try {
+            listings = sync.listDirectories(Arrays.asList("/dir", "/empty", "/missing"));
+        } finally {
+            sync.close();
+        }
+
+        assertEquals(3, listings.size());
+        List<DirectoryEntry> entries = listings.get(0);
+        assertEquals(2, entries.size());
+        for (DirectoryEntry entry : entries) {
+            if (entry.getName().equals("a")) {
+                assertEquals(1, entry.getSize());
+                assertEquals(FileListingService.TYPE_FILE,
+                        SyncService.getFileType(entry.getMode()));
+            } else {
+                assertEquals("sub", entry.getName());
+                assertEquals(FileListingService.TYPE_DIRECTORY,
+                        SyncService.getFileType(entry.getMode()));
+            }
+        }
+        assertTrue(listings.get(1).isEmpty());
+        assertTrue(listings.get(2).isEmpty());
+        assertEquals(Arrays.asList("/dir", "/empty", "/missing"), mDaemon.mListed);
+    }
+
+    @Test
+    public void listManyDirectories() throws Exception {
+        // more directories than the requests kept in flight.
+        String[] paths = new String[200];
+        for (int i = 0; i < paths.length; i++) {
+            assertTrue(new File(mDir, "dir" + i).mkdir());
+            createFile("dir" + i + "/file" + i, new byte[i]);
+            paths[i] = "/dir" + i;
+        }
+
+        SyncService sync = openSync();
+        List<List<DirectoryEntry>> listings;
+        try {
+            listings = sync.listDirectories(Arrays.asList(paths));
+        } finally {
+            sync.close();
+        }
+
+        assertEquals(paths.length, listings.size());
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(1, listings.get(i).size());
+            assertEquals("file" + i, listings.get(i).get(0).getName());
+            assertEquals(i, listings.get(i).get(0).getSize());
+        }
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(mDaemon.getAddress(), mDevice);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private String createFile(String name, byte[] content) throws IOException {
+        File file = new File(mDir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link LogCatBinaryParser}.
+ */
+public final class LogCatBinaryParserTest extends TestCase {
+
+    /** 2016-08-11 19:11:07 UTC. */
+    private static final int SECONDS =
+            (int) LocalDateTime.of(2016, 8, 11, 19, 11, 7).toEpochSecond(ZoneOffset.UTC);
+
+    public void testEntries() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        writeEntry(log, 28, 495, 496, SECONDS, 132000000, 3, "dtag", "debug message\n");
+        writeEntry(log, 0, 495, 234, SECONDS, 132500000, 6, "etag", "error message");
+        writeEntry(log, 24, 524, 524, SECONDS + 1, 0, 7, "wtftag", "first line\nsecond line\n");
+
+        List<LogCatMessage> messages = parse(log.toByteArray(), log.size());
+        assertEquals(4, messages.size());
+
+        LogCatMessage debug = messages.get(0);
+        assertEquals(LogLevel.DEBUG, debug.getLogLevel());
+        assertEquals(495, debug.getPid());
+        assertEquals(496, debug.getTid());
+        assertEquals("?", debug.getAppName());
+        assertEquals("dtag", debug.getTag());
+        assertEquals("debug message", debug.getMessage());
+        assertEquals(new LogCatTimestamp(8, 11, 19, 11, 7, 132), debug.getTimestamp());
+
+        LogCatMessage error = messages.get(1);
+        assertEquals(LogLevel.ERROR, error.getLogLevel());
+        assertEquals(234, error.getTid());
+        assertEquals("error message", error.getMessage());
+        assertSame(debug.getTimestamp(), error.getTimestamp());
+
+        assertEquals(LogLevel.ASSERT, messages.get(2).getLogLevel());
+        assertEquals("first line", messages.get(2).getMessage());
+        assertEquals("second line", messages.get(3).getMessage());
+        assertSame(messages.get(2).getHeader(), messages.get(3).getHeader());
+        assertEquals(new LogCatTimestamp(8, 11, 19, 11, 8, 0), messages.get(2).getTimestamp());
+    }
+
+    public void testEntriesSplitAcrossBuffers() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            writeEntry(log, 24, 100, 100 + i, SECONDS, 0, 4, "tag", "message " + i);
+        }
+
+        // feed the log in chunks of all sizes, cutting entries anywhere.
+        for (int chunkSize = 1; chunkSize < 64; chunkSize++) {
+            List<LogCatMessage> messages = parse(log.toByteArray(), chunkSize);
+            assertEquals(20, messages.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(100 + i, messages.get(i).getTid());
+                assertEquals("message " + i, messages.get(i).getMessage());
+            }
+            assertSame(messages.get(0).getTag(), messages.get(19).getTag());
+        }
+    }
+
+    public void testDirectBuffer() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        writeEntry(log, 24, 1, 2, SECONDS, 0, 5, "wtag", "warning message");
+        byte[] bytes = log.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        List<LogCatMessage> messages =
+                new LogCatBinaryParser(ZoneOffset.UTC).processEntries(buffer, null);
+        assertEquals(1, messages.size());
+        assertEquals(LogLevel.WARN, messages.get(0).getLogLevel());
+        assertEquals("wtag", messages.get(0).getTag());
+        assertEquals("warning message", messages.get(0).getMessage());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    private static List<LogCatMessage> parse(byte[] log, int chunkSize) {
+        LogCatBinaryParser parser = new LogCatBinaryParser(ZoneOffset.UTC);
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (int i = 0; i < log.length; i += chunkSize) {
+            messages.addAll(parser.processEntries(
+                    ByteBuffer.wrap(log, i, Math.min(chunkSize, log.length - i)), null));
+        }
+        return messages;
+    }
+
+    /**
+     * Writes a logger_entry. A header size of 0 writes a version 1 entry, otherwise the header is
+     * padded to the given size.
+     */
+    private static void writeEntry(ByteArrayOutputStream out, int headerSize, int pid, int tid,
+            int seconds, int nanos, int priority, String tag, String message) {
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int payloadSize = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+
+        ByteBuffer entry = ByteBuffer.allocate(Math.max(headerSize, 20) + payloadSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) payloadSize).putShort((short) headerSize)
+                .putInt(pid).putInt(tid).putInt(seconds).putInt(nanos);
+        entry.position(Math.max(headerSize, 20));
+        entry.put((byte) priority).put(tagBytes).put((byte) 0).put(messageBytes).put((byte) 0);
+        out.write(entry.array(), 0, entry.capacity());
+    }
+}
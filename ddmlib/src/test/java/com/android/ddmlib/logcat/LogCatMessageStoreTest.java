@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link LogCatMessageStore}.
+ */
+public final class LogCatMessageStoreTest extends TestCase {
+
+    private static final String[] TAGS = { "ActivityManager", "dalvikvm", "MyTag", "" };
+
+    private static final String[] APP_NAMES = { "com.example", "system_process", "?" };
+
+    public void testFind() {
+        LogCatMessageStore store = new LogCatMessageStore(1024);
+        LogCatMessage debug = createMessage(LogLevel.DEBUG, 10, 11, "MyTag", "debug message");
+        LogCatMessage error = createMessage(LogLevel.ERROR, 10, 12, "dalvikvm", "error message");
+        LogCatMessage info = createMessage(LogLevel.INFO, 20, 20, "MyTag", "info message");
+        store.log(Arrays.asList(debug, error, info));
+
+        assertEquals(3, store.size());
+        assertMessages(Arrays.asList(debug, error, info), store.getMessages());
+        assertMessages(Arrays.asList(error, info),
+                store.find(new LogCatFilter("", "", "", "", "", LogLevel.INFO)));
+        assertMessages(Arrays.asList(debug, error),
+                store.find(new LogCatFilter("", "", "", "10", "", LogLevel.VERBOSE)));
+        assertMessages(Arrays.asList(debug, info),
+                store.find(new LogCatFilter("", "mytag", "", "", "", LogLevel.VERBOSE)));
+        assertMessages(Collections.singletonList(info),
+                store.find(new LogCatFilter("", "", "info", "", "", LogLevel.VERBOSE)));
+        assertMessages(Collections.singletonList(error),
+                store.find(new LogCatFilter("", "", "", "", "", LogLevel.VERBOSE), 12));
+        assertMessages(Collections.<LogCatMessage>emptyList(),
+                store.find(new LogCatFilter("", "", "", "30", "", LogLevel.VERBOSE)));
+
+        store.clear();
+        assertEquals(0, store.size());
+    }
+
+    public void testOldestMessagesDropped() {
+        // room for the text of 3 messages, and for 4 messages.
+        LogCatMessageStore store = new LogCatMessageStore(30, 4);
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (int i = 0; i < 10; i++) {
+            LogCatMessage message = createMessage(LogLevel.INFO, i, i, "tag", "message " + i);
+            messages.add(message);
+            store.log(Collections.singletonList(message));
+        }
+        assertMessages(messages.subList(7, 10), store.getMessages());
+        assertMessages(Collections.singletonList(messages.get(8)),
+                store.find(new LogCatFilter("", "", "", "8", "", LogLevel.VERBOSE)));
+        assertMessages(Collections.<LogCatMessage>emptyList(),
+                store.find(new LogCatFilter("", "", "", "2", "", LogLevel.VERBOSE)));
+
+        // short messages are bound by the message count.
+        for (int i = 0; i < 6; i++) {
+            LogCatMessage message = createMessage(LogLevel.WARN, i, i, "tag", "" + i);
+            messages.add(message);
+            store.log(Collections.singletonList(message));
+        }
+        assertMessages(messages.subList(12, 16), store.getMessages());
+    }
+
+    public void testFindMatchesFilter() {
+        Random random = new Random(42);
+        LogCatMessageStore store = new LogCatMessageStore(4096, 200);
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder text = new StringBuilder("message " + i);
+            for (int j = random.nextInt(40); j > 0; j--) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            LogCatMessage message = new LogCatMessage(new LogCatHeader(
+                    LogLevel.values()[random.nextInt(LogLevel.values().length)],
+                    random.nextInt(5), random.nextInt(10), APP_NAMES[random.nextInt(3)],
+                    TAGS[random.nextInt(TAGS.length)], LogCatTimestamp.ZERO), text.toString());
+            messages.add(message);
+            store.log(Collections.singletonList(message));
+        }
+
+        List<LogCatMessage> kept = store.getMessages();
+        assertTrue(kept.size() > 0);
+        assertMessages(messages.subList(messages.size() - kept.size(), messages.size()), kept);
+
+        String[][] queries = {
+                { "", "", "", "", "" },
+                { "", "", "", "3", "" },
+                { "", "dalvik", "", "", "" },
+                { "", "Tag", "", "", "" },
+                { "", "", "abc", "", "" },
+                { "", "", "", "", "system" },
+                { "", "my", "", "2", "example" },
+                { "", "", "", "x", "" },
+        };
+        for (String[] query : queries) {
+            for (LogLevel minLevel : LogLevel.values()) {
+                LogCatFilter filter =
+                        new LogCatFilter("", query[1], query[2], query[3], query[4], minLevel);
+                for (int tid = -1; tid < 10; tid += 3) {
+                    List<LogCatMessage> expected = new ArrayList<LogCatMessage>();
+                    for (LogCatMessage message : kept) {
+                        if (filter.matches(message) && (tid == -1 || message.getTid() == tid)) {
+                            expected.add(message);
+                        }
+                    }
+                    assertMessages(expected, store.find(filter, tid));
+                }
+            }
+        }
+    }
+
+    private static LogCatMessage createMessage(LogLevel level, int pid, int tid, String tag,
+            String text) {
+        return new LogCatMessage(new LogCatHeader(level, pid, tid, "app", tag,
+                new LogCatTimestamp(8, 11, 19, 11, 7, pid)), text);
+    }
+
+    private static void assertMessages(List<LogCatMessage> expected, List<LogCatMessage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHeader(), actual.get(i).getHeader());
+            assertEquals(expected.get(i).getMessage(), actual.get(i).getMessage());
+        }
+    }
+}
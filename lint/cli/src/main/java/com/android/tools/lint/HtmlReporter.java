@@ -28,6 +28,8 @@ import com.android.resources.Density;
 import com.android.tools.lint.checks.BuiltinIssueRegistry;
 import com.android.tools.lint.client.api.Configuration;
 import com.android.tools.lint.client.api.IssueRegistry;
+import com.android.tools.lint.client.api.LintDriver;
+import com.android.tools.lint.client.api.LintProfiler;
 import com.android.tools.lint.detector.api.Category;
 import com.android.tools.lint.detector.api.Issue;
 import com.android.tools.lint.detector.api.LintUtils;
@@ -83,6 +85,9 @@ public class HtmlReporter extends Reporter {
     /** Number of lines to show around code snippets */
     static final int CODE_WINDOW_SIZE;
 
+    /** Maximum number of checks and of files listed in the performance card */
+    private static final int MAX_PERFORMANCE_ROWS = 20;
+
     private static final String REPORT_PREFERENCE_PROPERTY = "lint.html.prefs";
 
     private static final boolean USE_WAVY_UNDERLINES_FOR_ERRORS;
@@ -562,6 +567,11 @@ public class HtmlReporter extends Reporter {
             writeCard(() -> append("Congratulations!"), "No Issues Found", "NoIssuesCard");
         }
 
+        LintDriver driver = client.getDriver();
+        if (driver != null && driver.getProfiler() != null) {
+            writePerformanceCard(driver.getProfiler());
+        }
+
         finishReport();
         writeReport();
 
@@ -1062,6 +1072,73 @@ public class HtmlReporter extends Reporter {
         }
     }
 
+    private void writePerformanceCard(@NonNull LintProfiler profiler) {
+        append("\n<a name=\"Performance\"></a>\n");
+        writeCard(() -> {
+            append("Where the time of this lint run went.");
+            File profileFile = client.getFlags().getProfileFile();
+            if (profileFile != null) {
+                append(" The complete measurements were written to <code>");
+                append(XmlUtils.toXmlTextValue(stripPath(profileFile.getPath())));
+                append("</code>, which can be loaded in <code>chrome://tracing</code>.");
+            }
+            append('\n');
+            writePerformanceTable("Phase", profiler.getMeasurements(LintProfiler.Category.PHASE),
+                    Integer.MAX_VALUE, false);
+            writePerformanceTable("Check",
+                    profiler.getMeasurements(LintProfiler.Category.DETECTOR),
+                    MAX_PERFORMANCE_ROWS, true);
+            writePerformanceTable("File", profiler.getMeasurements(LintProfiler.Category.FILE),
+                    MAX_PERFORMANCE_ROWS, false);
+        }, "Performance", true, "PerformanceCard");
+    }
+
+    private void writePerformanceTable(@NonNull String title,
+            @NonNull List<LintProfiler.Measurement> measurements, int maxRows,
+            boolean includePhase) {
+        if (measurements.isEmpty()) {
+            return;
+        }
+        append("<br/><table class=\"overview\">\n");
+        append("<tr><th>");
+        append(title);
+        append("</th>");
+        if (includePhase) {
+            append("<th>Phase</th>");
+        }
+        append("<th>Count</th><th>Time (ms)</th><th>CPU (ms)</th><th>Allocated (MB)</th>"
+                + "</tr>\n");
+        int rows = Math.min(maxRows, measurements.size());
+        for (int i = 0; i < rows; i++) {
+            LintProfiler.Measurement measurement = measurements.get(i);
+            append("<tr><td class=\"issueColumn\">");
+            String name = measurement.getCategory() == LintProfiler.Category.FILE
+                    ? stripPath(measurement.getName()) : measurement.getName();
+            append(XmlUtils.toXmlTextValue(name));
+            append("</td>");
+            if (includePhase) {
+                append("<td>");
+                append(LintProfiler.getPhaseName(measurement.getPhase()));
+                append("</td>");
+            }
+            append("<td class=\"countColumn\">");
+            append(Integer.toString(measurement.getCount()));
+            append("</td><td class=\"countColumn\">");
+            append(Long.toString(measurement.getWallTime() / 1000000));
+            append("</td><td class=\"countColumn\">");
+            append(Long.toString(measurement.getCpuTime() / 1000000));
+            append("</td><td class=\"countColumn\">");
+            append(Long.toString(measurement.getAllocatedBytes() / (1024 * 1024)));
+            append("</td></tr>\n");
+        }
+        if (rows < measurements.size()) {
+            append("<tr><td class=\"issueColumn\">");
+            append(String.format("(%1$d more)", measurements.size() - rows));
+            append("</td></tr>\n");
+        }
+        append("</table>\n");
+    }
+
     private void writeOverview(List<List<Warning>> related, int missingCount) {
         // Write issue id summary
         append("<table class=\"overview\">\n");
@@ -54,6 +54,8 @@ import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.client.api.LintDriver;
 import com.android.tools.lint.client.api.LintListener;
 import com.android.tools.lint.client.api.LintRequest;
+import com.android.tools.lint.client.api.LintProfiler;
+import com.android.tools.lint.client.api.LintResultCache;
 import com.android.tools.lint.client.api.UastParser;
 import com.android.tools.lint.client.api.XmlParser;
 import com.android.tools.lint.detector.api.Category;
@@ -178,6 +180,12 @@ public class LintCliClient extends LintClient {
 
         driver.analyze();
 
+        LintProfiler profiler = driver.getProfiler();
+        File profileFile = flags.getProfileFile();
+        if (profiler != null && profileFile != null) {
+            profiler.writeChromeTrace(profileFile);
+        }
+
         Collections.sort(warnings);
 
         int baselineErrorCount = 0;
@@ -283,6 +291,16 @@ public class LintCliClient extends LintClient {
         driver.setCheckGeneratedSources(flags.isCheckGeneratedSources());
         driver.setFatalOnlyMode(flags.isFatalOnly());
         driver.setCheckDependencies(flags.isCheckDependencies());
+        driver.setThreadCount(flags.getThreadCount());
+
+        File cacheFile = flags.getCacheFile();
+        if (cacheFile != null) {
+            driver.setResultCache(new LintResultCache(this, registry, cacheFile));
+        }
+
+        if (flags.getProfileFile() != null) {
+            driver.setProfiler(new LintProfiler());
+        }
 
         File baselineFile = flags.getBaselineFile();
         if (baselineFile != null) {
@@ -67,6 +67,9 @@ public class LintCliFlags {
     private boolean showAll;
     private boolean removedFixedBaselineIssues;
     private boolean writeBaselineIfMissing = true;
+    private int threadCount = 1;
+    private File cacheFile;
+    private File profileFile;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -563,4 +566,59 @@ public class LintCliFlags {
     public void setWriteBaselineIfMissing(boolean writeBaselineIfMissing) {
         this.writeBaselineIfMissing = writeBaselineIfMissing;
     }
+
+    /**
+     * Returns the number of threads checking files with the thread safe detectors. Defaults
+     * to 1, which runs all the detectors on the analyzing thread.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /** Sets the number of threads checking files with the thread safe detectors */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the file caching the results of the cacheable detectors between runs, if any.
+     * Files which did not change since the previous run are not checked again by these
+     * detectors.
+     *
+     * @return the cache file, if any
+     */
+    @Nullable
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * Sets the file caching the results of the cacheable detectors, if any.
+     *
+     * @see #getCacheFile()
+     */
+    public void setCacheFile(@Nullable File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Returns the file to write the time spent by each detector, in each phase and on each
+     * file to, in the Chrome trace format, if any. When set, the reports also include where
+     * the time went.
+     *
+     * @return the profile file, if any
+     */
+    @Nullable
+    public File getProfileFile() {
+        return profileFile;
+    }
+
+    /**
+     * Sets the file to write the time spent by lint to, if any.
+     *
+     * @see #getProfileFile()
+     */
+    public void setProfileFile(@Nullable File profileFile) {
+        this.profileFile = profileFile;
+    }
 }
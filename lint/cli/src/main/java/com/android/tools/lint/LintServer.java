@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A lint server runs lint command lines sent by {@link #forward} over a local socket, one at a
+ * time, in the same process. This avoids paying for starting the JVM and setting up the
+ * {@link LintCoreApplicationEnvironment} on each run: the application environment, the issue
+ * registries, the SDK data and the opened jar files stay loaded from one run to the next.
+ * The project environments are still created and disposed on each run, since the sources they
+ * index may have changed in between.
+ * <p>
+ * The system properties of the client are set for the duration of its run. The server can't
+ * take on the environment of the client though, so when the variables lint reads differ, the
+ * client runs the command line itself.
+ * <p>
+ * The server writes its port and a secret to a file which only the current user can read;
+ * clients need both to connect. When the heap is getting full after a run, the application
+ * environment is disposed, to be set up again by the next run.
+ */
+public class LintServer {
+    /** Version of the protocol, to be incremented when it changes */
+    private static final int VERSION = 2;
+
+    private static final byte REQUEST_RUN = 1;
+    private static final byte REQUEST_STOP = 2;
+
+    private static final byte RESPONSE_EXIT = 0;
+    private static final byte RESPONSE_OUT = 1;
+    private static final byte RESPONSE_ERR = 2;
+    private static final byte RESPONSE_DENIED = 3;
+    private static final byte RESPONSE_RUN_LOCALLY = 4;
+
+    private static final String KEY_PORT = "port";
+    private static final String KEY_SECRET = "secret";
+
+    /**
+     * Prefixes of the environment variables read by lint. The server can't change its own
+     * environment, so it asks clients whose values differ to run the command line themselves.
+     */
+    private static final String[] ENVIRONMENT_PREFIXES = {
+            "ANDROID_", "LINT_", "SDK_", "JAVA_HOME", "GRADLE_USER_HOME", "com.android.tools.lint."
+    };
+
+    /** Prefixes of the system properties owned by the JVM, which are not forwarded */
+    private static final String[] JVM_PROPERTY_PREFIXES = {
+            "java.", "javax.", "jdk.", "sun.", "os.", "file.", "path.", "line.", "user.", "awt."
+    };
+
+    /** Fraction of the maximum heap size in use after a run above which caches are dropped */
+    private static final double MAX_HEAP_USAGE = 0.7;
+
+    /** Runs a lint command line in this process */
+    public interface Runner {
+        /** Runs lint with the given arguments, and returns its exit status */
+        int run(@NonNull String[] args);
+    }
+
+    private final ServerSocket serverSocket;
+    private final String secret;
+    private final Runner runner;
+    private final long maxHeapUsage;
+
+    /**
+     * Creates a new server listening on a free port of the loopback interface
+     *
+     * @param runner the runner to run the command lines with
+     * @param maxHeapUsage the number of bytes in use after a run above which caches are dropped
+     */
+    public LintServer(@NonNull Runner runner, long maxHeapUsage) throws IOException {
+        this.runner = runner;
+        this.maxHeapUsage = maxHeapUsage;
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        secret = sb.toString();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /** Creates a new server, dropping caches above the default share of the heap */
+    public LintServer(@NonNull Runner runner) throws IOException {
+        this(runner, (long) (Runtime.getRuntime().maxMemory() * MAX_HEAP_USAGE));
+    }
+
+    /** Returns the port the server listens on */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Writes the port and the secret of this server to the given file, readable only by the
+     * current user, for clients to {@link #forward} to it
+     */
+    public void writePortFile(@NonNull File portFile) throws IOException {
+        File parent = portFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        // Restrict the permissions before writing the secret
+        File temp = new File(portFile.getPath() + ".tmp");
+        Files.write(new byte[0], temp);
+        //noinspection ResultOfMethodCallIgnored
+        temp.setReadable(false, false);
+        //noinspection ResultOfMethodCallIgnored
+        temp.setReadable(true, true);
+        //noinspection ResultOfMethodCallIgnored
+        temp.setWritable(false, false);
+        //noinspection ResultOfMethodCallIgnored
+        temp.setWritable(true, true);
+        Properties properties = new Properties();
+        properties.setProperty(KEY_PORT, Integer.toString(getPort()));
+        properties.setProperty(KEY_SECRET, secret);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "Lint server");
+        }
+        if (!temp.renameTo(portFile) && !(portFile.delete() && temp.renameTo(portFile))) {
+            throw new IOException("Couldn't replace " + portFile);
+        }
+    }
+
+    /** Serves requests until a client stops the server, or the server is {@link #close}'d */
+    public void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            try (Socket s = socket) {
+                if (!handle(s)) {
+                    close();
+                }
+            } catch (IOException ignore) {
+                // The client went away; nothing to report it to
+            }
+        }
+    }
+
+    /** Stops accepting requests */
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /** Handles a connection, and returns false if the server should stop */
+    private boolean handle(@NonNull Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        if (in.readInt() != VERSION || !secret.equals(in.readUTF())) {
+            out.writeByte(RESPONSE_DENIED);
+            out.flush();
+            return true;
+        }
+        byte request = in.readByte();
+        if (request == REQUEST_STOP) {
+            out.writeByte(RESPONSE_EXIT);
+            out.writeInt(LintCliFlags.ERRNO_SUCCESS);
+            out.flush();
+            return false;
+        }
+
+        String workDir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        Map<String, String> environment = readMap(in);
+        Map<String, String> properties = readMap(in);
+
+        if (!isSameEnvironment(environment, System.getenv())) {
+            out.writeByte(RESPONSE_RUN_LOCALLY);
+            out.flush();
+            return true;
+        }
+
+        int status = run(workDir, args, properties, out);
+        out.writeByte(RESPONSE_EXIT);
+        out.writeInt(status);
+        out.flush();
+
+        if (getHeapUsage() > maxHeapUsage) {
+            // The next run has to set up the application environment again
+            LintCoreApplicationEnvironment.disposeApplicationEnvironment();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the environment variables read by lint have the same values in both
+     * environments
+     */
+    @VisibleForTesting
+    static boolean isSameEnvironment(@NonNull Map<String, String> client,
+            @NonNull Map<String, String> server) {
+        Set<String> names = new HashSet<>(client.keySet());
+        names.addAll(server.keySet());
+        for (String name : names) {
+            if (isLintVariable(name) && !Objects.equals(client.get(name), server.get(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLintVariable(@NonNull String name) {
+        for (String prefix : ENVIRONMENT_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the system properties to forward to the server, leaving out the JVM's own */
+    @NonNull
+    private static Map<String, String> getForwardedProperties(@NonNull Properties properties) {
+        Map<String, String> forwarded = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!isJvmProperty(name)) {
+                forwarded.put(name, properties.getProperty(name));
+            }
+        }
+        return forwarded;
+    }
+
+    private static boolean isJvmProperty(@NonNull String name) {
+        for (String prefix : JVM_PROPERTY_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a command line with the system properties of the client set and its output sent to
+     * the client
+     */
+    private int run(@NonNull String workDir, @NonNull String[] args,
+            @NonNull Map<String, String> properties, @NonNull DataOutputStream out) {
+        PrintStream prevOut = System.out;
+        PrintStream prevErr = System.err;
+        Map<String, String> prevProperties = new HashMap<>();
+        for (String name : properties.keySet()) {
+            prevProperties.put(name, System.getProperty(name));
+        }
+        prevProperties.put(Main.PROP_WORK_DIR, System.getProperty(Main.PROP_WORK_DIR));
+        System.setOut(new PrintStream(new ResponseStream(out, RESPONSE_OUT), true));
+        System.setErr(new PrintStream(new ResponseStream(out, RESPONSE_ERR), true));
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            System.setProperty(entry.getKey(), entry.getValue());
+        }
+        System.setProperty(Main.PROP_WORK_DIR, workDir);
+        try {
+            return runner.run(args);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return LintCliFlags.ERRNO_ERRORS;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(prevOut);
+            System.setErr(prevErr);
+            for (Map.Entry<String, String> entry : prevProperties.entrySet()) {
+                if (entry.getValue() != null) {
+                    System.setProperty(entry.getKey(), entry.getValue());
+                } else {
+                    System.clearProperty(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the heap in use, as of the last garbage collection where
+     * known, such that the garbage of the last run does not count
+     */
+    private static long getHeapUsage() {
+        long used = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage usage = pool.isCollectionUsageThresholdSupported()
+                    ? pool.getCollectionUsage() : pool.getUsage();
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        if (used == 0) {
+            Runtime runtime = Runtime.getRuntime();
+            used = runtime.totalMemory() - runtime.freeMemory();
+        }
+        return used;
+    }
+
+    /**
+     * Runs the given command line on the server described by the given port file, with the
+     * environment and system properties of this process, relaying its output to the given
+     * streams
+     *
+     * @return the exit status of the run, or null if it has to be run in this process instead
+     */
+    @Nullable
+    public static Integer forward(@NonNull File portFile, @NonNull File workDir,
+            @NonNull String[] args, @NonNull PrintStream stdout, @NonNull PrintStream stderr) {
+        return forward(portFile, workDir, args, System.getenv(), System.getProperties(), stdout,
+                stderr);
+    }
+
+    /**
+     * Runs the given command line on the server described by the given port file, relaying
+     * its output to the given streams
+     *
+     * @param environment the environment to run the command line in
+     * @param systemProperties the system properties to run the command line with
+     * @return the exit status of the run, or null if it has to be run in this process instead:
+     *     there is no server to run it, the server runs in another environment, or it could not
+     *     be reached before any output was relayed
+     */
+    @Nullable
+    public static Integer forward(@NonNull File portFile, @NonNull File workDir,
+            @NonNull String[] args, @NonNull Map<String, String> environment,
+            @NonNull Properties systemProperties, @NonNull PrintStream stdout,
+            @NonNull PrintStream stderr) {
+        Properties properties = readPortFile(portFile);
+        if (properties == null) {
+            return null;
+        }
+        int port = Integer.parseInt(properties.getProperty(KEY_PORT));
+        boolean relayed = false;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(VERSION);
+            out.writeUTF(properties.getProperty(KEY_SECRET));
+            out.writeByte(REQUEST_RUN);
+            out.writeUTF(workDir.getPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            writeMap(out, environment);
+            writeMap(out, getForwardedProperties(systemProperties));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                byte response = in.readByte();
+                if (response == RESPONSE_EXIT) {
+                    stdout.flush();
+                    stderr.flush();
+                    return in.readInt();
+                } else if (response == RESPONSE_DENIED || response == RESPONSE_RUN_LOCALLY) {
+                    return null;
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (response == RESPONSE_OUT ? stdout : stderr).write(bytes);
+                relayed = true;
+            }
+        } catch (IOException e) {
+            if (!relayed) {
+                // Stale port file, or the server went away before running anything
+                return null;
+            }
+            // Running it again here would repeat the output relayed so far
+            stdout.flush();
+            stderr.println("Lost the connection to the lint server: " + e.getMessage());
+            return LintCliFlags.ERRNO_ERRORS;
+        }
+    }
+
+    private static void writeMap(@NonNull DataOutputStream out, @NonNull Map<String, String> map)
+            throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> readMap(@NonNull DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+
+    /**
+     * Stops the server described by the given port file
+     *
+     * @return true if a server was stopped
+     */
+    public static boolean stop(@NonNull File portFile) {
+        Properties properties = readPortFile(portFile);
+        if (properties == null) {
+            return false;
+        }
+        int port = Integer.parseInt(properties.getProperty(KEY_PORT));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(VERSION);
+            out.writeUTF(properties.getProperty(KEY_SECRET));
+            out.writeByte(REQUEST_STOP);
+            out.flush();
+            return new DataInputStream(socket.getInputStream()).readByte() == RESPONSE_EXIT;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static Properties readPortFile(@NonNull File portFile) {
+        if (!portFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newReader(portFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            return null;
+        }
+        String port = properties.getProperty(KEY_PORT);
+        if (port == null || !port.matches("\\d+") || properties.getProperty(KEY_SECRET) == null) {
+            return null;
+        }
+        return properties;
+    }
+
+    /** Sends what is written to it to the client, as responses of the given kind */
+    private static class ResponseStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        ResponseStream(@NonNull DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
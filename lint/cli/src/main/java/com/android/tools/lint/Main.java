@@ -56,6 +56,7 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -105,6 +106,12 @@ public class Main {
     private static final String ARG_BUILD_API  = "--compile-sdk-version";
     private static final String ARG_BASELINE   = "--baseline";
     private static final String ARG_REMOVE_FIXED = "--remove-fixed";
+    private static final String ARG_THREADS    = "--threads";
+    private static final String ARG_CACHE      = "--cache";
+    private static final String ARG_PROFILE    = "--profile";
+    private static final String ARG_SERVER     = "--server";
+    private static final String ARG_CONNECT    = "--connect";
+    private static final String ARG_STOP_SERVER = "--stop-server";
 
     private static final String ARG_NO_WARN_2  = "--nowarn";
     // GCC style flag names for options
@@ -112,7 +119,7 @@ public class Main {
     private static final String ARG_WARN_ALL   = "-Wall";
     private static final String ARG_ALL_ERROR  = "-Werror";
 
-    private static final String PROP_WORK_DIR = "com.android.tools.lint.workdir";
+    static final String PROP_WORK_DIR = "com.android.tools.lint.workdir";
     private final LintCliFlags flags = new LintCliFlags();
     private IssueRegistry globalIssueRegistry;
     @Nullable private File sdkHome;
@@ -128,12 +135,61 @@ public class Main {
      */
     public static void main(String[] args) {
         try {
-            new Main().run(args);
+            if (args.length >= 2 && args[0].equals(ARG_SERVER)) {
+                serve(new File(args[1]));
+            } else if (args.length >= 2 && args[0].equals(ARG_STOP_SERVER)) {
+                exit(LintServer.stop(new File(args[1])) ? ERRNO_SUCCESS : ERRNO_ERRORS);
+            } else if (args.length >= 2 && args[0].equals(ARG_CONNECT)) {
+                String[] lintArgs = Arrays.copyOfRange(args, 2, args.length);
+                File workDir = getLintWorkDir();
+                if (workDir == null) {
+                    workDir = new File(System.getProperty("user.dir"));
+                }
+                Integer status = LintServer.forward(new File(args[1]),
+                        workDir.getAbsoluteFile(), lintArgs, System.out, System.err);
+                if (status != null) {
+                    exit(status);
+                }
+                // No server to run it: run it here instead
+                new Main().run(lintArgs);
+            } else {
+                new Main().run(args);
+            }
         } catch (ExitException exitException) {
             System.exit(exitException.getStatus());
         }
     }
 
+    /**
+     * Serves lint command lines forwarded by other invocations until stopped, keeping the lint
+     * infrastructure loaded in between
+     *
+     * @param portFile the file to write the address of the server to
+     */
+    private static void serve(@NonNull File portFile) {
+        try {
+            LintServer server = new LintServer(args -> {
+                try {
+                    new Main().run(args);
+                    return ERRNO_SUCCESS;
+                } catch (ExitException exitException) {
+                    return exitException.getStatus();
+                }
+            });
+            server.writePortFile(portFile);
+            try {
+                server.serve();
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                portFile.delete();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't run the lint server: " + e.getMessage());
+            exit(ERRNO_ERRORS);
+        }
+        exit(ERRNO_SUCCESS);
+    }
+
     /** Hook intended for tests */
     protected void initializeDriver(@NonNull LintDriver driver) {
     }
@@ -783,6 +839,39 @@ public class Main {
                 flags.setBaselineFile(input);
             } else if (arg.equals(ARG_REMOVE_FIXED)) {
                 flags.setRemovedFixedBaselineIssues(true);
+            } else if (arg.equals(ARG_THREADS)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing thread count");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String count = args[++index];
+                int threadCount = 0;
+                try {
+                    threadCount = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+                if (threadCount < 1) {
+                    System.err.println("Invalid thread count " + count);
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                flags.setThreadCount(threadCount);
+            } else if (arg.equals(ARG_CACHE)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing cache file path");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String path = args[++index];
+                File cache = getOutArgumentPath(path);
+                flags.setCacheFile(cache);
+            } else if (arg.equals(ARG_PROFILE)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing profile file path");
+                    exit(ERRNO_INVALID_ARGS);
+                }
+                String path = args[++index];
+                File profile = getOutArgumentPath(path);
+                flags.setProfileFile(profile);
             } else if (arg.startsWith("--")) {
                 System.err.println("Invalid argument " + arg + "\n");
                 printUsage(System.err);
@@ -1156,6 +1245,21 @@ public class Main {
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
             ARG_FATAL, "Only check for fatal severity issues",
+            ARG_THREADS + " <count>", "Check files on the given number of threads, with the " +
+                "checks which support it.",
+            ARG_CACHE + " <filename>", "Keep the results of the checks which support it in " +
+                "the given file, and only check the files which changed on the next run.",
+            ARG_PROFILE + " <filename>", "Write the time spent by each check, in each phase " +
+                "and on each file to the given file, in the Chrome trace format. The HTML and " +
+                "XML reports then also list the slowest checks and files.",
+            ARG_SERVER + " <filename>", "Keep running, and run the lint invocations sent with " +
+                ARG_CONNECT + ", writing the address to connect to in the given file. Must be " +
+                "the first flag.",
+            ARG_CONNECT + " <filename> <flags>", "Run lint with the given flags on the server " +
+                "whose address is in the given file, or here if there is none or it runs with " +
+                "other environment variables. Must be the first flag.",
+            ARG_STOP_SERVER + " <filename>", "Stop the server whose address is in the given " +
+                "file.",
 
             "", "\nEnabled Checks:",
             ARG_DISABLE + " <list>", "Disable the list of categories or " +
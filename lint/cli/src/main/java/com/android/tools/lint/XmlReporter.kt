@@ -17,6 +17,7 @@
 package com.android.tools.lint
 
 import com.android.tools.lint.checks.BuiltinIssueRegistry
+import com.android.tools.lint.client.api.LintProfiler
 import com.android.tools.lint.detector.api.Location
 import com.android.tools.lint.detector.api.TextFormat.RAW
 import com.android.utils.SdkUtils
@@ -68,6 +69,11 @@ constructor(client: LintCliClient, output: File) : Reporter(client, output) {
             writeIssues(issues)
         }
 
+        val profiler = client.getDriver()?.profiler
+        if (profiler != null && !isIntendedForBaseline) {
+            writePerformance(profiler)
+        }
+
         writer.write("\n</issues>\n")
         writer.close()
 
@@ -177,6 +183,39 @@ constructor(client: LintCliClient, output: File) : Reporter(client, output) {
         }
     }
 
+    private fun writePerformance(profiler: LintProfiler) {
+        writer.write("\n    <performance>\n")
+        for (measurement in profiler.getMeasurements(LintProfiler.Category.PHASE)) {
+            writeMeasurement("phase", measurement, measurement.name)
+        }
+        for (measurement in profiler.getMeasurements(LintProfiler.Category.DETECTOR)) {
+            writeMeasurement("detector", measurement, measurement.name)
+        }
+        // Only the slowest files; the full list is in the profile itself
+        for (measurement in profiler.getMeasurements(LintProfiler.Category.FILE)
+                .take(MAX_PERFORMANCE_FILES)) {
+            writeMeasurement("file", measurement, stripPath(measurement.name))
+        }
+        writer.write("    </performance>\n")
+    }
+
+    private fun writeMeasurement(tag: String, measurement: LintProfiler.Measurement,
+            name: String) {
+        indent(writer, 2)
+        writer.write("<")
+        writer.write(tag)
+        writeAttribute(writer, 3, "name", name)
+        if (measurement.category == LintProfiler.Category.DETECTOR) {
+            writeAttribute(writer, 3, "phase", LintProfiler.getPhaseName(measurement.phase))
+        }
+        writeAttribute(writer, 3, "count", Integer.toString(measurement.count))
+        writeAttribute(writer, 3, "wallTime", java.lang.Long.toString(measurement.wallTime))
+        writeAttribute(writer, 3, "cpuTime", java.lang.Long.toString(measurement.cpuTime))
+        writeAttribute(writer, 3, "allocatedBytes",
+                java.lang.Long.toString(measurement.allocatedBytes))
+        writer.write("/>\n")
+    }
+
     @Throws(IOException::class)
     private fun writeAttribute(writer: Writer, indent: Int, name: String, value: String) {
         writer.write('\n'.toInt())
@@ -194,4 +233,9 @@ constructor(client: LintCliClient, output: File) : Reporter(client, output) {
             writer.write("    ")
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+        /** Maximum number of files listed in the performance section */
+        private const val MAX_PERFORMANCE_FILES = 100
+    }
+}
@@ -21,6 +21,7 @@ import com.android.SdkConstants.SUPPORT_ANNOTATIONS_PREFIX
 import com.android.tools.lint.detector.api.AnnotationUsageType
 import com.android.tools.lint.detector.api.JavaContext
 import com.android.tools.lint.detector.api.LintUtils.skipParentheses
+import com.android.tools.lint.detector.api.Scope
 import com.android.tools.lint.detector.api.SourceCodeScanner
 import com.google.common.collect.Multimap
 import com.intellij.psi.PsiAnnotation
@@ -180,9 +181,11 @@ internal class AnnotationHandler(private val scanners: Multimap<String, SourceCo
             if (uastScanners != null) {
                 for (scanner in uastScanners) {
                     if (scanner.isApplicableAnnotationUsage(type)) {
-                        scanner.visitAnnotationUsage(context, argument, type, annotation,
-                                signature, method, annotations, allMethodAnnotations,
-                                allClassAnnotations, packageAnnotations)
+                        context.driver.measureDetector(scanner, Scope.JAVA_FILE) {
+                            scanner.visitAnnotationUsage(context, argument, type, annotation,
+                                    signature, method, annotations, allMethodAnnotations,
+                                    allClassAnnotations, packageAnnotations)
+                        }
                     }
                 }
             }
@@ -17,9 +17,11 @@
 package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.ClassContext;
 import com.android.tools.lint.detector.api.ClassScanner;
 import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Scope;
 import com.google.common.annotations.Beta;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -143,13 +145,17 @@ class AsmVisitor {
         ClassNode classNode = context.getClassNode();
 
         for (Detector detector : allDetectors) {
+            LintProfiler.Sample sample = startMeasuring(context);
             detector.beforeCheckFile(context);
+            endMeasuring(sample, context, detector);
         }
 
         for (Detector detector : fullClassChecks) {
+            LintProfiler.Sample sample = startMeasuring(context);
             ClassScanner scanner = (ClassScanner) detector;
             scanner.checkClass(context, classNode);
             detector.afterCheckFile(context);
+            endMeasuring(sample, context, detector);
         }
 
         if (!methodNameToChecks.isEmpty() || !methodOwnerToChecks.isEmpty() ||
@@ -168,7 +174,9 @@ class AsmVisitor {
                         List<ClassScanner> scanners = methodOwnerToChecks.get(owner);
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                LintProfiler.Sample sample = startMeasuring(context);
                                 scanner.checkCall(context, classNode, method, call);
+                                endMeasuring(sample, context, scanner);
                             }
                         }
 
@@ -176,7 +184,9 @@ class AsmVisitor {
                         scanners = methodNameToChecks.get(name);
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                LintProfiler.Sample sample = startMeasuring(context);
                                 scanner.checkCall(context, classNode, method, call);
+                                endMeasuring(sample, context, scanner);
                             }
                         }
                     }
@@ -185,7 +195,9 @@ class AsmVisitor {
                         List<ClassScanner> scanners = nodeTypeDetectors[type];
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                LintProfiler.Sample sample = startMeasuring(context);
                                 scanner.checkInstruction(context, classNode, method, instruction);
+                                endMeasuring(sample, context, scanner);
                             }
                         }
                     }
@@ -194,7 +206,27 @@ class AsmVisitor {
         }
 
         for (Detector detector : allDetectors) {
+            LintProfiler.Sample sample = startMeasuring(context);
             detector.afterCheckFile(context);
+            endMeasuring(sample, context, detector);
+        }
+    }
+
+    /** Starts measuring a detector if the driver has a profiler */
+    @Nullable
+    private static LintProfiler.Sample startMeasuring(@NonNull ClassContext context) {
+        LintProfiler profiler = context.getDriver().getProfiler();
+        return profiler != null ? profiler.start() : null;
+    }
+
+    /** Records the time spent by the given detector since {@link #startMeasuring} */
+    private static void endMeasuring(@Nullable LintProfiler.Sample sample,
+            @NonNull ClassContext context, @NonNull Object detector) {
+        if (sample != null) {
+            LintProfiler profiler = context.getDriver().getProfiler();
+            assert profiler != null;
+            profiler.end(sample, LintProfiler.Category.DETECTOR, detector.getClass().getName(),
+                    Scope.CLASS_FILE);
         }
     }
 }
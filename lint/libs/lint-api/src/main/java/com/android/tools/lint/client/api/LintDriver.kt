@@ -73,6 +73,8 @@ import com.google.common.base.Splitter
 import com.google.common.collect.ArrayListMultimap
 import com.google.common.collect.Iterables
 import com.google.common.collect.Sets
+import com.google.common.hash.Hashing
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.IndexNotReadyException
 import com.intellij.openapi.util.io.FileUtil
@@ -118,6 +120,10 @@ import java.util.HashMap
 import java.util.HashSet
 import java.util.IdentityHashMap
 import java.util.LinkedHashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import java.util.regex.Pattern
 
 /**
@@ -208,6 +214,36 @@ class LintDriver
     var baseline: LintBaseline? = null
     /** Whether dependent projects should be checked */
     var checkDependencies = true
+    /**
+     * Number of threads checking files with the [thread safe][Detector.isThreadSafe] detectors.
+     * With 1, the default, all detectors run on the thread calling [analyze]. Otherwise the
+     * [LintClient] is also called from the worker threads, one call at a time, except for
+     * [LintClient.runReadAction] which must allow concurrent read actions.
+     */
+    var threadCount: Int = 1
+    /**
+     * Cache of the issues reported by the [cacheable][Detector.isCacheable] detectors for
+     * each file, letting them skip the files which have not changed since the previous run.
+     * The other detectors always check all the files.
+     */
+    var resultCache: LintResultCache? = null
+    /**
+     * Profiler recording the time spent by each detector, in each phase and on each file,
+     * or null to not measure it
+     */
+    var profiler: LintProfiler? = null
+
+    /** Worker threads of the current analysis, if [threadCount] is more than 1 */
+    private var executor: ExecutorService? = null
+
+    /** Digests of the files of the projects analyzed with a [resultCache] */
+    private val projectFileDigests = HashMap<Project, ProjectFileDigest>()
+
+    /**
+     * Incidents and events of the file checked by a thread safe detector, which are replayed
+     * on the analyzing thread once the file is checked. See [checkInParallel].
+     */
+    private val deferredResults = ThreadLocal<CheckResults>()
 
     /** Cancels the current lint run as soon as possible  */
     fun cancel() {
@@ -280,6 +316,12 @@ class LintDriver
      * Note that the [LintDriver] is not multi thread safe or re-entrant;
      * if you want to run potentially overlapping lint jobs, create a separate driver
      * for each job.
+     *
+     * If [threadCount] is more than 1, the files are checked by the thread safe detectors
+     * on worker threads, but the issues are still reported to the [LintClient] from the
+     * calling thread, in the same order on every run. If there is a [resultCache], the
+     * cacheable detectors only check the files which changed since the run which wrote the
+     * cache.
      */
     fun analyze() {
         isCanceled = false
@@ -328,6 +370,10 @@ class LintDriver
 
         fireEvent(EventType.STARTING, null)
 
+        if (threadCount > 1) {
+            executor = Executors.newFixedThreadPool(threadCount,
+                    ThreadFactoryBuilder().setNameFormat("Lint worker %d").setDaemon(true).build())
+        }
         try {
             for (project in projects) {
                 phase = 1
@@ -354,6 +400,9 @@ class LintDriver
             if (!handleDetectorError(null, this, throwable)) {
                 cancel()
             }
+        } finally {
+            executor?.shutdownNow()
+            executor = null
         }
 
         val baseline = this.baseline
@@ -363,6 +412,11 @@ class LintDriver
             baseline.reportBaselineIssues(this, main)
         }
 
+        if (!isCanceled) {
+            resultCache?.close()
+        }
+        projectFileDigests.clear()
+
         fireEvent(if (isCanceled) EventType.CANCELED else EventType.COMPLETED, null)
         realClient.performDisposeProjects(projects)
     }
@@ -801,10 +855,12 @@ class LintDriver
 
         currentProject = project
 
-        for (check in applicableDetectors) {
-            check.beforeCheckProject(projectContext)
-            if (isCanceled) {
-                return
+        measurePhase(null) {
+            for (check in applicableDetectors) {
+                measureDetector(check, null) { check.beforeCheckProject(projectContext) }
+                if (isCanceled) {
+                    return
+                }
             }
         }
 
@@ -819,7 +875,7 @@ class LintDriver
                 currentProject = library
 
                 for (check in applicableDetectors) {
-                    check.beforeCheckLibraryProject(libraryContext)
+                    measureDetector(check, null) { check.beforeCheckLibraryProject(libraryContext) }
                     if (isCanceled) {
                         return
                     }
@@ -834,7 +890,7 @@ class LintDriver
                 assert(currentProject === library)
 
                 for (check in applicableDetectors) {
-                    check.afterCheckLibraryProject(libraryContext)
+                    measureDetector(check, null) { check.afterCheckLibraryProject(libraryContext) }
                     if (isCanceled) {
                         return
                     }
@@ -844,10 +900,14 @@ class LintDriver
 
         currentProject = project
 
-        for (check in applicableDetectors) {
-            client.runReadAction(Runnable { check.afterCheckProject(projectContext) })
-            if (isCanceled) {
-                return
+        measurePhase(null) {
+            for (check in applicableDetectors) {
+                client.runReadAction(Runnable {
+                    measureDetector(check, null) { check.afterCheckProject(projectContext) }
+                })
+                if (isCanceled) {
+                    return
+                }
             }
         }
 
@@ -886,7 +946,9 @@ class LintDriver
 
                                 val v = ResourceVisitor(parser, xmlDetectors, null)
                                 fireEvent(EventType.SCANNING_FILE, context)
-                                v.visitFile(context)
+                                measurePhase(Scope.MANIFEST) {
+                                    measureScannedFile(context) { v.visitFile(context) }
+                                }
                             }
                         }
                     } finally {
@@ -923,14 +985,48 @@ class LintDriver
                         || binaryChecks != null && !binaryChecks.isEmpty()) {
                     val files = project.subset
                     if (files != null) {
-                        checkIndividualResources(project, main, xmlDetectors, dirChecks,
-                                binaryChecks, files)
+                        measurePhase(Scope.RESOURCE_FILE) {
+                            checkIndividualResources(project, main, xmlDetectors, dirChecks,
+                                    binaryChecks, files)
+                        }
                     } else {
                         val resourceFolders = project.resourceFolders
                         if (!resourceFolders.isEmpty()) {
-                            for (res in resourceFolders) {
-                                checkResFolder(project, main, res, xmlDetectors, dirChecks,
-                                        binaryChecks)
+                            // Without worker threads, the files are only checked apart from
+                            // the folders to look them up in the result cache, which would
+                            // change the order of the folder and file checks
+                            val isolatedChecks = if (executor != null
+                                    || dirChecks == null || dirChecks.isEmpty()) {
+                                getIsolatedDetectors(xmlDetectors + (binaryChecks ?: emptyList()))
+                            } else {
+                                emptyList()
+                            }
+                            val parallelXmlDetectors = xmlDetectors.filter { it in isolatedChecks }
+                            val parallelBinaryChecks =
+                                    binaryChecks?.filter { it in isolatedChecks } ?: emptyList()
+                            val sequentialXmlDetectors = xmlDetectors - parallelXmlDetectors
+                            val sequentialBinaryChecks = binaryChecks?.minus(parallelBinaryChecks)
+                            measurePhase(Scope.RESOURCE_FILE) {
+                                for (res in resourceFolders) {
+                                    checkResFolder(project, main, res, sequentialXmlDetectors,
+                                            dirChecks, sequentialBinaryChecks)
+                                }
+                            }
+                            if (!parallelXmlDetectors.isEmpty()
+                                    || !parallelBinaryChecks.isEmpty()) {
+                                val fireEvents = sequentialXmlDetectors.isEmpty()
+                                        && (sequentialBinaryChecks == null
+                                        || sequentialBinaryChecks.isEmpty())
+                                measurePhase(Scope.RESOURCE_FILE) {
+                                    for (res in resourceFolders) {
+                                        checkResFolderInParallel(project, main, res,
+                                                parallelXmlDetectors, parallelBinaryChecks,
+                                                fireEvents)
+                                        if (isCanceled) {
+                                            break
+                                        }
+                                    }
+                                }
                             }
                         }
                     }
@@ -948,7 +1044,9 @@ class LintDriver
             if (checks != null && !checks.isEmpty()) {
                 val files = project.subset
                 if (files != null) {
-                    checkIndividualJavaFiles(project, main, checks, files)
+                    measurePhase(Scope.JAVA_FILE) {
+                        checkIndividualJavaFiles(project, main, checks, files)
+                    }
                 } else {
                     val sourceFolders = project.javaSourceFolders
                     val testFolders = if (scope.contains(Scope.TEST_SOURCES))
@@ -959,7 +1057,10 @@ class LintDriver
                         project.generatedSourceFolders
                     else
                         emptyList<File>()
-                    checkJava(project, main, sourceFolders, testFolders, generatedFolders, checks)
+                    measurePhase(Scope.JAVA_FILE) {
+                        checkJava(project, main, sourceFolders, testFolders, generatedFolders,
+                                checks)
+                    }
                 }
             }
         }
@@ -971,7 +1072,7 @@ class LintDriver
         if (scope.contains(Scope.CLASS_FILE)
                 || scope.contains(Scope.ALL_CLASS_FILES)
                 || scope.contains(Scope.JAVA_LIBRARIES)) {
-            checkClasses(project, main)
+            measurePhase(Scope.CLASS_FILE) { checkClasses(project, main) }
         }
 
         if (isCanceled) {
@@ -979,7 +1080,7 @@ class LintDriver
         }
 
         if (scope.contains(Scope.GRADLE_FILE)) {
-            checkBuildScripts(project, main)
+            measurePhase(Scope.GRADLE_FILE) { checkBuildScripts(project, main) }
         }
 
         if (isCanceled) {
@@ -990,7 +1091,7 @@ class LintDriver
             val checks = scopeDetectors[Scope.OTHER]
             if (checks != null) {
                 val visitor = OtherFileVisitor(checks)
-                visitor.scan(this, project, main)
+                measurePhase(Scope.OTHER) { visitor.scan(this, project, main) }
             }
         }
 
@@ -1000,11 +1101,11 @@ class LintDriver
 
         if (project === main && scope.contains(Scope.PROGUARD_FILE) &&
                 project.isAndroidProject) {
-            checkProGuard(project, main)
+            measurePhase(Scope.PROGUARD_FILE) { checkProGuard(project, main) }
         }
 
         if (project === main && scope.contains(Scope.PROPERTY_FILE)) {
-            checkProperties(project, main)
+            measurePhase(Scope.PROPERTY_FILE) { checkProperties(project, main) }
         }
     }
 
@@ -1026,10 +1127,14 @@ class LintDriver
                             context.setJavaFile(uFile.psi) // needed for getLocation
                             context.uastFile = uFile
                             fireEvent(EventType.SCANNING_FILE, context)
-                            for (detector in detectors) {
-                                detector.beforeCheckFile(context)
-                                detector.visitBuildScript(context)
-                                detector.afterCheckFile(context)
+                            measureScannedFile(context) {
+                                for (detector in detectors) {
+                                    measureDetector(detector, Scope.GRADLE_FILE) {
+                                        detector.beforeCheckFile(context)
+                                        detector.visitBuildScript(context)
+                                        detector.afterCheckFile(context)
+                                    }
+                                }
                             }
                             context.setJavaFile(null)
                             context.uastFile = null
@@ -1039,10 +1144,14 @@ class LintDriver
                 } else {
                     val context = Context(this, project, main, file)
                     fireEvent(EventType.SCANNING_FILE, context)
-                    for (detector in detectors) {
-                        detector.beforeCheckFile(context)
-                        detector.visitBuildScript(context)
-                        detector.afterCheckFile(context)
+                    measureScannedFile(context) {
+                        for (detector in detectors) {
+                            measureDetector(detector, Scope.GRADLE_FILE) {
+                                detector.beforeCheckFile(context)
+                                detector.visitBuildScript(context)
+                                detector.afterCheckFile(context)
+                            }
+                        }
                     }
                 }
             }
@@ -1056,10 +1165,14 @@ class LintDriver
             for (file in files) {
                 val context = Context(this, project, main, file)
                 fireEvent(EventType.SCANNING_FILE, context)
-                for (detector in detectors) {
-                    detector.beforeCheckFile(context)
-                    detector.run(context)
-                    detector.afterCheckFile(context)
+                measureScannedFile(context) {
+                    for (detector in detectors) {
+                        measureDetector(detector, Scope.PROGUARD_FILE) {
+                            detector.beforeCheckFile(context)
+                            detector.run(context)
+                            detector.afterCheckFile(context)
+                        }
+                    }
                 }
             }
         }
@@ -1071,10 +1184,14 @@ class LintDriver
             for (file in project.propertyFiles) {
                 val context = Context(this, project, main, file)
                 fireEvent(EventType.SCANNING_FILE, context)
-                for (detector in detectors) {
-                    detector.beforeCheckFile(context)
-                    detector.run(context)
-                    detector.afterCheckFile(context)
+                measureScannedFile(context) {
+                    for (detector in detectors) {
+                        measureDetector(detector, Scope.PROPERTY_FILE) {
+                            detector.beforeCheckFile(context)
+                            detector.run(context)
+                            detector.afterCheckFile(context)
+                        }
+                    }
                 }
             }
         }
@@ -1192,108 +1309,159 @@ class LintDriver
     }
 
     /**
-     * Stack of [ClassNode] nodes for outer classes of the currently
-     * processed class, including that class itself. Populated by
+     * Stack of [ClassNode] nodes for outer classes of the class currently
+     * processed by each thread, including that class itself. Populated by
      * [.runClassDetectors] and used by
      * [.getOuterClassNode]
      */
-    private var outerClasses: Deque<ClassNode>? = null
+    private val outerClasses = ThreadLocal<Deque<ClassNode>>()
 
     private fun runClassDetectors(scope: Scope, entries: List<ClassEntry>,
                                   project: Project, main: Project?) {
         if (this.scope.contains(scope)) {
             val classDetectors = scopeDetectors[scope]
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                val visitor = AsmVisitor(client, classDetectors)
-
-                var sourceContents: CharSequence? = null
-                var sourceName = ""
-                outerClasses = ArrayDeque<ClassNode>()
-                var prev: ClassEntry? = null
-                for (entry in entries) {
-                    if (prev != null && prev.compareTo(entry) == 0) {
-                        // Duplicate entries for some reason: ignore
-                        continue
+                val parallelDetectors = getIsolatedDetectors(classDetectors)
+                val sequentialDetectors = classDetectors - parallelDetectors
+                if (!sequentialDetectors.isEmpty()) {
+                    val visitor = AsmVisitor(client, sequentialDetectors)
+                    runClassDetectors(visitor, scope, entries, project, main)
+                }
+                if (!parallelDetectors.isEmpty() && !isCanceled) {
+                    // Inner classes are checked along with their outer class, such that
+                    // they can be looked up with getOuterClassNode
+                    val cacheContext = getCacheContext(project, parallelDetectors)
+                    checkInParallel(groupByOuterClass(entries), project, main, { group ->
+                        cacheContext?.createKey(group.map { it.file }, group.map { it.bytes })
+                    }) { group ->
+                        // The visitor holds the state of the class being visited
+                        val visitor = AsmVisitor(client, parallelDetectors)
+                        runClassDetectors(visitor, scope, group, project, main)
                     }
-                    prev = entry
+                }
+            }
+        }
+    }
 
-                    val reader: ClassReader
-                    val classNode: ClassNode
-                    try {
-                        reader = ClassReader(entry.bytes)
-                        classNode = ClassNode()
-                        reader.accept(classNode, 0 /* flags */)
-                    } catch (t: Throwable) {
-                        client.log(null,
-                            "Error processing ${entry.path()}: broken class file? (${t.message})")
-                        continue
-                    }
+    private fun runClassDetectors(visitor: AsmVisitor, scope: Scope, entries: List<ClassEntry>,
+                                  project: Project, main: Project?) {
+        var sourceContents: CharSequence? = null
+        var sourceName = ""
+        val outerClasses = ArrayDeque<ClassNode>()
+        this.outerClasses.set(outerClasses)
+        try {
+            var prev: ClassEntry? = null
+            for (entry in entries) {
+                if (prev != null && prev.compareTo(entry) == 0) {
+                    // Duplicate entries for some reason: ignore
+                    continue
+                }
+                prev = entry
 
-                    var peek: ClassNode?
-                    while (true) {
-                        peek = outerClasses?.peek()
-                        if (peek == null) {
-                            break
-                        }
-                        if (classNode.name.startsWith(peek.name)) {
-                            break
-                        } else {
-                            outerClasses?.pop()
-                        }
-                    }
-                    outerClasses?.push(classNode)
+                val reader: ClassReader
+                val classNode: ClassNode
+                try {
+                    reader = ClassReader(entry.bytes)
+                    classNode = ClassNode()
+                    reader.accept(classNode, 0 /* flags */)
+                } catch (t: Throwable) {
+                    client.log(null,
+                        "Error processing ${entry.path()}: broken class file? (${t.message})")
+                    continue
+                }
 
-                    if (isSuppressed(null, classNode)) {
-                        // Class was annotated with suppress all -- no need to look any further
-                        continue
+                var peek: ClassNode?
+                while (true) {
+                    peek = outerClasses.peek()
+                    if (peek == null) {
+                        break
                     }
-
-                    if (sourceContents != null) {
-                        // Attempt to reuse the source buffer if initialized
-                        // This means making sure that the source files
-                        //    foo/bar/MyClass and foo/bar/MyClass$Bar
-                        //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
-                        val newName = classNode.name
-                        var newRootLength = newName.indexOf('$')
-                        if (newRootLength == -1) {
-                            newRootLength = newName.length
-                        }
-                        var oldRootLength = sourceName.indexOf('$')
-                        if (oldRootLength == -1) {
-                            oldRootLength = sourceName.length
-                        }
-                        if (newRootLength != oldRootLength || !sourceName.regionMatches(0, newName, 0, newRootLength)) {
-                            sourceContents = null
-                        }
+                    if (classNode.name.startsWith(peek.name)) {
+                        break
+                    } else {
+                        outerClasses.pop()
                     }
+                }
+                outerClasses.push(classNode)
 
-                    val context = ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
-                            classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
-                            sourceContents)
+                if (isSuppressed(null, classNode)) {
+                    // Class was annotated with suppress all -- no need to look any further
+                    continue
+                }
 
-                    try {
-                        visitor.runClassDetectors(context)
-                    } catch (throwable: Throwable) {
-                        // Process canceled etc
-                        if (!handleDetectorError(context, this, throwable)) {
-                            cancel()
-                        }
+                if (sourceContents != null) {
+                    // Attempt to reuse the source buffer if initialized
+                    // This means making sure that the source files
+                    //    foo/bar/MyClass and foo/bar/MyClass$Bar
+                    //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
+                    val newName = classNode.name
+                    var newRootLength = newName.indexOf('$')
+                    if (newRootLength == -1) {
+                        newRootLength = newName.length
+                    }
+                    var oldRootLength = sourceName.indexOf('$')
+                    if (oldRootLength == -1) {
+                        oldRootLength = sourceName.length
+                    }
+                    if (newRootLength != oldRootLength || !sourceName.regionMatches(0, newName, 0, newRootLength)) {
+                        sourceContents = null
                     }
+                }
 
-                    if (isCanceled) {
-                        return
+                val context = ClassContext(this, project, main,
+                        entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                        classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                        sourceContents)
+
+                try {
+                    measureFile(context) { visitor.runClassDetectors(context) }
+                } catch (throwable: Throwable) {
+                    // Process canceled etc
+                    if (!handleDetectorError(context, this, throwable)) {
+                        cancel()
                     }
+                }
 
-                    sourceContents = context.getSourceContents(false/*read*/)
-                    sourceName = classNode.name
+                if (isCanceled) {
+                    return
                 }
 
-                outerClasses = null
+                sourceContents = context.getSourceContents(false/*read*/)
+                sourceName = classNode.name
             }
+        } finally {
+            this.outerClasses.remove()
         }
     }
 
+    /**
+     * Splits sorted class entries into runs of classes sharing the same outermost class
+     */
+    private fun groupByOuterClass(entries: List<ClassEntry>): List<List<ClassEntry>> {
+        val groups = ArrayList<List<ClassEntry>>()
+        var group = ArrayList<ClassEntry>()
+        var outerName: String? = null
+        for (entry in entries) {
+            val path = entry.file.path
+            val nameStart = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar)) + 1
+            var nameEnd = path.indexOf('$', nameStart)
+            if (nameEnd == -1) {
+                nameEnd = path.indexOf('.', nameStart)
+            }
+            val name = if (nameEnd == -1) path else path.substring(0, nameEnd)
+            if (name != outerName && !group.isEmpty()) {
+                groups.add(group)
+                group = ArrayList()
+            }
+            outerName = name
+            group.add(entry)
+        }
+        if (!group.isEmpty()) {
+            groups.add(group)
+        }
+        return groups
+    }
+
     /** Returns the outer class node of the given class node
      * @param classNode the inner class node
      *
@@ -1302,7 +1470,7 @@ class LintDriver
     fun getOuterClassNode(classNode: ClassNode): ClassNode? {
         val outerName = classNode.outerClass
 
-        val iterator = outerClasses?.iterator() ?: return null
+        val iterator = outerClasses.get()?.iterator() ?: return null
         while (iterator.hasNext()) {
             val node = iterator.next()
             if (outerName != null) {
@@ -1466,14 +1634,30 @@ class LintDriver
             for (context in allContexts) {
                 context.uastParser = parser
             }
-            val uElementVisitor = UElementVisitor(parser, uastScanners)
+            // Detectors needing the call graph see all the files at once in visitGroups
+            val parallelScanners = getIsolatedDetectors(uastScanners) {
+                !it.isCallGraphRequired()
+            }
+            val sequentialScanners = uastScanners - parallelScanners
+            val uElementVisitor = UElementVisitor(parser, sequentialScanners)
 
             parserErrors = !uElementVisitor.prepare(srcContexts, testContexts)
 
-            for (context in srcContexts) {
-                fireEvent(EventType.SCANNING_FILE, context)
-                // TODO: Don't hold read lock around the entire process?
-                client.runReadAction(Runnable { uElementVisitor.visitFile(context) })
+            if (!sequentialScanners.isEmpty()) {
+                for (context in srcContexts) {
+                    fireEvent(EventType.SCANNING_FILE, context)
+                    // TODO: Don't hold read lock around the entire process?
+                    measureScannedFile(context) {
+                        client.runReadAction(Runnable { uElementVisitor.visitFile(context) })
+                    }
+                    if (isCanceled) {
+                        return
+                    }
+                }
+            }
+            if (!parallelScanners.isEmpty()) {
+                visitJavaFilesInParallel(project, main, parser, parallelScanners, srcContexts,
+                        sequentialScanners.isEmpty())
                 if (isCanceled) {
                     return
                 }
@@ -1484,14 +1668,16 @@ class LintDriver
             uElementVisitor.dispose()
 
             if (!testContexts.isEmpty()) {
-                val testScanners = filterTestScanners(uastScanners)
+                val testScanners = filterTestScanners(sequentialScanners)
                 if (!testScanners.isEmpty()) {
                     val uTestVisitor = UElementVisitor(parser, testScanners)
 
                     for (context in testContexts) {
                         fireEvent(EventType.SCANNING_FILE, context)
                         // TODO: Don't hold read lock around the entire process?
-                        client.runReadAction(Runnable { uTestVisitor.visitFile(context) })
+                        measureScannedFile(context) {
+                            client.runReadAction(Runnable { uTestVisitor.visitFile(context) })
+                        }
                         if (isCanceled) {
                             return
                         }
@@ -1499,6 +1685,36 @@ class LintDriver
 
                     uTestVisitor.dispose()
                 }
+                val parallelTestScanners = filterTestScanners(parallelScanners)
+                if (!parallelTestScanners.isEmpty()) {
+                    visitJavaFilesInParallel(project, main, parser, parallelTestScanners,
+                            testContexts, testScanners.isEmpty())
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits source files with thread safe detectors on the worker threads. Each file has
+     * its own [UElementVisitor], since the visitor keeps the state of the file being visited.
+     */
+    private fun visitJavaFilesInParallel(
+            project: Project,
+            main: Project?,
+            parser: UastParser,
+            scanners: List<Detector>,
+            contexts: List<JavaContext>,
+            fireEvents: Boolean) {
+        val cacheContext = getCacheContext(project, scanners)
+        checkInParallel(contexts, project, main, { context ->
+            cacheContext?.createKey(listOf(context.file), listOf(client.readBytes(context.file)))
+        }) { context ->
+            if (fireEvents) {
+                fireEvent(EventType.SCANNING_FILE, context)
+            }
+            val visitor = UElementVisitor(parser, scanners)
+            measureScannedFile(context, fireEvents) {
+                client.runReadAction(Runnable { visitor.visitFile(context) })
             }
         }
     }
@@ -1650,11 +1866,15 @@ class LintDriver
             val context = ResourceContext(this, project, main, dir, type, "")
             val folderName = dir.name
             fireEvent(EventType.SCANNING_FILE, context)
-            for (check in dirChecks) {
-                if (check.appliesTo(type)) {
-                    check.beforeCheckFile(context)
-                    check.checkFolder(context, folderName)
-                    check.afterCheckFile(context)
+            measureScannedFile(context) {
+                for (check in dirChecks) {
+                    if (check.appliesTo(type)) {
+                        measureDetector(check, Scope.RESOURCE_FILE) {
+                            check.beforeCheckFile(context)
+                            check.checkFolder(context, folderName)
+                            check.afterCheckFile(context)
+                        }
+                    }
                 }
             }
             if (binaryChecks == null && xmlChecks.isEmpty()) {
@@ -1679,7 +1899,7 @@ class LintDriver
                     val context = createXmlContext(project, main, file, type, parser) ?: continue
                     try {
                         fireEvent(EventType.SCANNING_FILE, context)
-                        visitor.visitFile(context)
+                        measureScannedFile(context) { visitor.visitFile(context) }
                     } finally {
                         disposeXmlContext(context)
                     }
@@ -1687,12 +1907,290 @@ class LintDriver
                         (isBitmapFile(file) || type == ResourceFolderType.RAW)) {
                     val context = ResourceContext(this, project, main, file, type, "")
                     fireEvent(EventType.SCANNING_FILE, context)
-                    visitor.visitBinaryResource(context)
+                    measureScannedFile(context) { visitor.visitBinaryResource(context) }
+                }
+                if (isCanceled) {
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the files of the resource folders in [res] with thread safe detectors on the
+     * worker threads. Folder checks are always run by [checkResFolder].
+     */
+    private fun checkResFolderInParallel(
+            project: Project,
+            main: Project?,
+            res: File,
+            xmlChecks: List<XmlScanner>,
+            binaryChecks: List<Detector>,
+            fireEvents: Boolean) {
+        val resourceDirs = res.listFiles() ?: return
+
+        // Same order as checkResFolder
+        Arrays.sort(resourceDirs)
+        for (dir in resourceDirs) {
+            val type = ResourceFolderType.getFolderType(dir.name) ?: continue
+            val applicableXmlChecks = xmlChecks.filter { it.appliesTo(type) }
+            val applicableBinaryChecks = binaryChecks.filter { it.appliesTo(type) }
+            if (applicableXmlChecks.isEmpty() && applicableBinaryChecks.isEmpty()) {
+                continue
+            }
+            val files = dir.listFiles() ?: continue
+            Arrays.sort(files)
+
+            val parser = client.xmlParser
+            val cacheContext = getCacheContext(project,
+                    applicableXmlChecks + applicableBinaryChecks)
+            checkInParallel(files.asList(), project, main, { file ->
+                cacheContext?.createKey(listOf(file), listOf(client.readBytes(file)))
+            }) { file ->
+                // The visitor holds the state of the file being visited
+                val visitor = ResourceVisitor(parser, applicableXmlChecks, applicableBinaryChecks)
+                if (LintUtils.isXmlFile(file)) {
+                    if (!applicableXmlChecks.isEmpty()) {
+                        val context = createXmlContext(project, main, file, type, parser)
+                        if (context != null) {
+                            try {
+                                if (fireEvents) {
+                                    fireEvent(EventType.SCANNING_FILE, context)
+                                }
+                                measureScannedFile(context, fireEvents) {
+                                    visitor.visitFile(context)
+                                }
+                            } finally {
+                                disposeXmlContext(context)
+                            }
+                        }
+                    }
+                } else if (!applicableBinaryChecks.isEmpty() &&
+                        (isBitmapFile(file) || type == ResourceFolderType.RAW)) {
+                    val context = ResourceContext(this, project, main, file, type, "")
+                    if (fireEvents) {
+                        fireEvent(EventType.SCANNING_FILE, context)
+                    }
+                    measureScannedFile(context, fireEvents) { visitor.visitBinaryResource(context) }
                 }
+            }
+            if (isCanceled) {
+                return
+            }
+        }
+    }
+
+    /**
+     * Returns the detectors among the given ones which check each file on its own, with
+     * [checkInParallel]. With worker threads, these are the thread safe detectors. Without,
+     * the detectors are only isolated to look up their results in the [resultCache], if all
+     * of them are cacheable, such that they still report their issues in the usual order.
+     */
+    private fun <T : Any> getIsolatedDetectors(
+            detectors: List<T>,
+            canIsolate: (T) -> Boolean = { true }): List<T> = when {
+        executor != null -> detectors.filter {
+            it is Detector && it.isThreadSafe() && canIsolate(it)
+        }
+        resultCache != null && detectors.all {
+            it is Detector && it.isCacheable() && canIsolate(it)
+        } -> detectors
+        else -> emptyList()
+    }
+
+    /**
+     * Returns what the results of the given detectors depend on besides the contents of
+     * the checked files, or null if they are not all cacheable or there is no [resultCache]
+     */
+    private fun getCacheContext(project: Project, detectors: List<Any>): CacheContext? {
+        if (resultCache == null || !detectors.all { it is Detector && it.isCacheable() }) {
+            return null
+        }
+        val detectorClasses: Set<Class<*>> = detectors.map { it.javaClass }.toSet()
+        val configuration = project.getConfiguration(this)
+        val sb = StringBuilder()
+        sb.append(realClient.getClientRevision()).append('\n')
+        detectorClasses.map { it.name }.sorted().forEach { sb.append(it).append('\n') }
+        for (issue in registry.issues) {
+            if (issue.implementation.detectorClass in detectorClasses) {
+                sb.append(issue.id).append('=').append(configuration.getSeverity(issue))
+                sb.append('\n')
+            }
+        }
+        sb.append(project.minSdkVersion.apiString).append('\n')
+        sb.append(project.targetSdkVersion.apiString).append('\n')
+        sb.append(project.buildSdk).append('\n')
+        val files = projectFileDigests.getOrPut(project) { ProjectFileDigest(project) }
+        return CacheContext(sb.toString(), files)
+    }
+
+    /** What the results of cacheable detectors depend on, see [getCacheContext] */
+    private class CacheContext(
+            private val description: String,
+            private val files: ProjectFileDigest) {
+        /**
+         * Returns the [LintResultCache] key of the given files, checked together, which also
+         * depends on all the other files of the project
+         */
+        fun createKey(checkedFiles: List<File>, contents: List<ByteArray>): String =
+                LintResultCache.createKey(description + files.digestWithout(checkedFiles),
+                        checkedFiles[0], contents)
+    }
+
+    /**
+     * Digest of the source files, class files and libraries of a project, which checked
+     * files may refer to. Each file is hashed from its path, size and modification time,
+     * and the digest is the sum of these hashes, such that the digest of all the files but
+     * the checked ones is quick to compute for each of them.
+     */
+    private class ProjectFileDigest(project: Project) {
+        private val hashes = HashMap<File, Long>()
+        private var total = 0L
+
+        init {
+            val roots = project.javaSourceFolders + project.generatedSourceFolders +
+                    project.testSourceFolders + project.javaClassFolders +
+                    project.getJavaLibraries(true)
+            for (root in roots) {
+                add(root)
+            }
+        }
+
+        private fun add(file: File) {
+            if (file.isDirectory) {
+                file.listFiles()?.forEach { add(it) }
+                return
+            }
+            val hash = Hashing.murmur3_128().newHasher()
+                    .putString(file.path, Charsets.UTF_8)
+                    .putLong(file.length())
+                    .putLong(file.lastModified())
+                    .hash().asLong()
+            if (hashes.put(file, hash) == null) {
+                total += hash
+            }
+        }
+
+        fun digestWithout(files: List<File>): String {
+            var digest = total
+            for (file in files.toSet()) {
+                digest -= hashes[file] ?: 0L
+            }
+            return java.lang.Long.toHexString(digest)
+        }
+    }
+
+    /**
+     * Runs [check] for each of the [items], on the worker threads if any. The issues
+     * reported and the events fired by each check are deferred, and replayed on the calling
+     * thread in the order of the items, such that the results do not depend on the
+     * scheduling of the threads.
+     *
+     * If there is a [resultCache], the issues of the items whose [cacheKey] is found in
+     * the cache are replayed without checking them, and the issues of the other items are
+     * added to the cache. Items without a key, such as those checked by detectors which are
+     * not cacheable, are always checked.
+     */
+    private fun <T> checkInParallel(
+            items: List<T>,
+            project: Project,
+            main: Project?,
+            cacheKey: (T) -> String?,
+            check: (T) -> Unit) {
+        val executor = this.executor
+        val cache = resultCache
+        if (cache == null && (executor == null || items.size < 2)) {
+            for (item in items) {
+                check(item)
                 if (isCanceled) {
                     return
                 }
             }
+            return
+        }
+
+        val checkItem = { item: T ->
+            val results = CheckResults()
+            if (!isCanceled) {
+                val key = if (cache != null) getCacheKey(item, cacheKey) else null
+                val incidents = if (cache != null && key != null) cache.getIncidents(key) else null
+                if (incidents != null) {
+                    for (incident in incidents) {
+                        results.actions.add { replay(incident, project, main) }
+                    }
+                } else {
+                    deferredResults.set(results)
+                    try {
+                        check(item)
+                    } finally {
+                        deferredResults.remove()
+                    }
+                    if (cache != null && key != null && results.isCacheable && !isCanceled) {
+                        cache.putIncidents(key, results.incidents)
+                    }
+                }
+            }
+            results
+        }
+
+        if (executor == null || items.size < 2) {
+            for (item in items) {
+                checkItem(item).replay()
+                if (isCanceled) {
+                    return
+                }
+            }
+            return
+        }
+
+        val futures = items.map { item ->
+            executor.submit(Callable<CheckResults> { checkItem(item) })
+        }
+        try {
+            for (future in futures) {
+                val results = try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+                results.replay()
+            }
+        } finally {
+            // Only stops the remaining checks after a failure
+            for (future in futures) {
+                future.cancel(true)
+            }
+        }
+    }
+
+    private fun <T> getCacheKey(item: T, cacheKey: (T) -> String?): String? =
+            try {
+                cacheKey(item)
+            } catch (e: IOException) {
+                // Checked as usual, which reports the problem if it persists
+                null
+            }
+
+    /** Reports an issue found in the [resultCache] */
+    private fun replay(incident: LintResultCache.Incident, project: Project, main: Project?) {
+        val context = Context(this, project, main, incident.location.file)
+        client.report(context, incident.issue, incident.severity, incident.location,
+                incident.message, incident.format, null)
+    }
+
+    /** What happened while checking an item in [checkInParallel] */
+    private class CheckResults {
+        /** Issues reported and events fired, in order */
+        val actions = ArrayList<() -> Unit>()
+        /** Issues reported, for the [resultCache] */
+        val incidents = ArrayList<LintResultCache.Incident>()
+        /** Whether the [incidents] describe all the results, which is not the case with fixes */
+        var isCacheable = true
+
+        fun replay() {
+            for (action in actions) {
+                action()
+            }
         }
     }
 
@@ -1751,7 +2249,7 @@ class LintDriver
                         if (context != null) {
                             try {
                                 fireEvent(EventType.SCANNING_FILE, context)
-                                visitor.visitFile(context)
+                                measureScannedFile(context) { visitor.visitFile(context) }
                             } finally {
                                 disposeXmlContext(context)
                             }
@@ -1767,7 +2265,7 @@ class LintDriver
                     if (visitor != null) {
                         val context = ResourceContext(this, project, main, file, type, "")
                         fireEvent(EventType.SCANNING_FILE, context)
-                        visitor.visitBinaryResource(context)
+                        measureScannedFile(context) { visitor.visitBinaryResource(context) }
                         if (isCanceled) {
                             return
                         }
@@ -1801,12 +2299,48 @@ class LintDriver
         }
     }
 
+    /** Runs [block], measured as the given phase if there is a [profiler] */
+    private inline fun <T> measurePhase(phase: Scope?, block: () -> T): T {
+        val profiler = profiler ?: return block()
+        return profiler.measure(LintProfiler.Category.PHASE, LintProfiler.getPhaseName(phase),
+                null, block)
+    }
+
+    /** Runs [block], measured as checking the file of the given context if there is a [profiler] */
+    internal inline fun <T> measureFile(context: Context, block: () -> T): T {
+        val profiler = profiler ?: return block()
+        return profiler.measure(LintProfiler.Category.FILE, context.file.path, null, block)
+    }
+
+    /**
+     * Runs [block] like [measureFile], and then fires [EventType.SCANNED_FILE] if there is a
+     * [profiler] and [fireEvents] is true
+     */
+    private inline fun measureScannedFile(context: Context, fireEvents: Boolean = true,
+            block: () -> Unit) {
+        measureFile(context, block)
+        if (fireEvents && profiler != null) {
+            fireEvent(EventType.SCANNED_FILE, context)
+        }
+    }
+
+    /** Runs [block], measured as the given detector in the given phase if there is a [profiler] */
+    internal inline fun <T> measureDetector(detector: Any, phase: Scope?, block: () -> T): T {
+        val profiler = profiler ?: return block()
+        return profiler.measure(detector, phase, block)
+    }
+
     /** Notifies listeners, if any, that the given event has occurred  */
     private fun fireEvent(
             type: LintListener.EventType,
             context: Context? = null,
             project: Project? = context?.project) {
         if (listeners != null) {
+            val deferred = deferredResults.get()
+            if (deferred != null) {
+                deferred.actions.add { fireEvent(type, context, project) }
+                return
+            }
             for (listener in listeners!!) {
                 listener.update(this, type, project, context)
             }
@@ -1821,6 +2355,13 @@ class LintDriver
      * filtered out warnings.
      */
     private inner class LintClientWrapper(private val delegate: LintClient) : LintClient(clientName) {
+        /**
+         * Serializes the calls to the [delegate], which is also called by the detectors
+         * checking files on the worker threads, see [threadCount]
+         */
+        private val lock = Any()
+
+        private inline fun <T> locked(call: () -> T): T = synchronized(lock) { call() }
 
         override fun getMergedManifest(project: Project): Document? =
                 delegate.getMergedManifest(project)
@@ -1844,6 +2385,20 @@ class LintDriver
                 message: String,
                 format: TextFormat,
                 fix: LintFix?) {
+            val deferred = deferredResults.get()
+            if (deferred != null) {
+                // Reported by the analyzing thread, see checkInParallel
+                if (fix == null) {
+                    deferred.incidents.add(LintResultCache.Incident(issue, severity, location,
+                            message, format))
+                } else {
+                    deferred.isCacheable = false
+                }
+                deferred.actions.add {
+                    report(context, issue, severity, location, message, format, fix)
+                }
+                return
+            }
 
             if (currentProject != null && currentProject?.reportIssues == false) {
                 return
@@ -1852,7 +2407,7 @@ class LintDriver
             val configuration = context.configuration
             if (!configuration.isEnabled(issue)) {
                 if (issue.category !== Category.LINT) {
-                    delegate.log(null, "Incorrect detector reported disabled issue %1\$s",
+                    log(null, "Incorrect detector reported disabled issue %1\$s",
                             issue.toString())
                 }
                 return
@@ -1874,7 +2429,7 @@ class LintDriver
                 }
             }
 
-            delegate.report(context, issue, severity, location, message, format, fix)
+            locked { delegate.report(context, issue, severity, location, message, format, fix) }
         }
 
         private fun unsupported(): Nothing =
@@ -1885,144 +2440,158 @@ class LintDriver
 
         override fun getConfiguration(project: Project,
                                       driver: LintDriver?): Configuration =
-                delegate.getConfiguration(project, driver)
+                locked { delegate.getConfiguration(project, driver) }
 
-        override fun getDisplayPath(file: File): String = delegate.getDisplayPath(file)
+        override fun getDisplayPath(file: File): String = locked { delegate.getDisplayPath(file) }
 
         override fun log(severity: Severity, exception: Throwable?,
-                         format: String?, vararg args: Any) = delegate.log(exception, format, *args)
+                         format: String?, vararg args: Any) =
+                locked { delegate.log(exception, format, *args) }
 
         override fun getTestLibraries(project: Project): List<File> =
-                delegate.getTestLibraries(project)
+                locked { delegate.getTestLibraries(project) }
 
-        override fun getClientRevision(): String? = delegate.getClientRevision()
+        override fun getClientRevision(): String? = locked { delegate.getClientRevision() }
 
+        // Not locked, since the worker threads check their files in concurrent read actions
         override fun runReadAction(runnable: Runnable) = delegate.runReadAction(runnable)
 
-        override fun readFile(file: File): CharSequence = delegate.readFile(file)
+        override fun readFile(file: File): CharSequence = locked { delegate.readFile(file) }
 
         @Throws(IOException::class)
-        override fun readBytes(file: File): ByteArray = delegate.readBytes(file)
+        override fun readBytes(file: File): ByteArray = locked { delegate.readBytes(file) }
 
         override fun getJavaSourceFolders(project: Project): List<File> =
-                delegate.getJavaSourceFolders(project)
+                locked { delegate.getJavaSourceFolders(project) }
 
         override fun getGeneratedSourceFolders(project: Project): List<File> =
-                delegate.getGeneratedSourceFolders(project)
+                locked { delegate.getGeneratedSourceFolders(project) }
 
         override fun getJavaClassFolders(project: Project): List<File> =
-                delegate.getJavaClassFolders(project)
+                locked { delegate.getJavaClassFolders(project) }
 
         override fun getJavaLibraries(project: Project, includeProvided: Boolean): List<File> =
-                delegate.getJavaLibraries(project, includeProvided)
+                locked { delegate.getJavaLibraries(project, includeProvided) }
 
         override fun getTestSourceFolders(project: Project): List<File> =
-                delegate.getTestSourceFolders(project)
+                locked { delegate.getTestSourceFolders(project) }
 
         override fun getBuildTools(project: Project): BuildToolInfo? =
-                delegate.getBuildTools(project)
+                locked { delegate.getBuildTools(project) }
 
         override fun createSuperClassMap(project: Project): Map<String, String> =
-                delegate.createSuperClassMap(project)
+                locked { delegate.createSuperClassMap(project) }
 
         override fun getResourceFolders(project: Project): List<File> =
-                delegate.getResourceFolders(project)
+                locked { delegate.getResourceFolders(project) }
 
         override val xmlParser: XmlParser
-            get() = delegate.xmlParser
+            get() = locked { delegate.xmlParser }
 
         override fun replaceDetector(
                 detectorClass: Class<out Detector>): Class<out Detector> =
-                delegate.replaceDetector(detectorClass)
+                locked { delegate.replaceDetector(detectorClass) }
 
-        override fun getSdkInfo(project: Project): SdkInfo = delegate.getSdkInfo(project)
+        override fun getSdkInfo(project: Project): SdkInfo = locked { delegate.getSdkInfo(project) }
 
         override fun getProject(dir: File, referenceDir: File): Project =
-                delegate.getProject(dir, referenceDir)
+                locked { delegate.getProject(dir, referenceDir) }
 
-        override fun getUastParser(project: Project?): UastParser = delegate.getUastParser(project)
+        override fun getUastParser(project: Project?): UastParser =
+                locked { delegate.getUastParser(project) }
 
-        override fun findResource(relativePath: String): File? = delegate.findResource(relativePath)
+        override fun findResource(relativePath: String): File? =
+                locked { delegate.findResource(relativePath) }
 
         override fun getCacheDir(name: String?, create: Boolean): File? =
-                delegate.getCacheDir(name, create)
+                locked { delegate.getCacheDir(name, create) }
 
         override fun getClassPath(project: Project): LintClient.ClassPathInfo =
-                delegate.performGetClassPath(project)
+                locked { delegate.performGetClassPath(project) }
 
         override fun log(exception: Throwable?, format: String?,
-                         vararg args: Any) = delegate.log(exception, format, *args)
+                         vararg args: Any) = locked { delegate.log(exception, format, *args) }
 
         override fun initializeProjects(knownProjects: Collection<Project>): Unit = unsupported()
 
         override fun disposeProjects(knownProjects: Collection<Project>): Unit = unsupported()
 
-        override fun getSdkHome(): File? = delegate.getSdkHome()
+        override fun getSdkHome(): File? = locked { delegate.getSdkHome() }
 
-        override fun getTargets(): Array<IAndroidTarget> = delegate.getTargets()
+        override fun getTargets(): Array<IAndroidTarget> = locked { delegate.getTargets() }
 
-        override fun getSdk(): AndroidSdkHandler? = delegate.getSdk()
+        override fun getSdk(): AndroidSdkHandler? = locked { delegate.getSdk() }
 
         override fun getCompileTarget(project: Project): IAndroidTarget? =
-                delegate.getCompileTarget(project)
+                locked { delegate.getCompileTarget(project) }
 
         override fun getSuperClass(project: Project, name: String): String? =
-                delegate.getSuperClass(project, name)
+                locked { delegate.getSuperClass(project, name) }
 
         override fun isSubclassOf(project: Project, name: String,
                                   superClassName: String): Boolean? =
-                delegate.isSubclassOf(project, name, superClassName)
+                locked { delegate.isSubclassOf(project, name, superClassName) }
 
-        override fun getProjectName(project: Project): String = delegate.getProjectName(project)
+        override fun getProjectName(project: Project): String =
+                locked { delegate.getProjectName(project) }
 
-        override fun isGradleProject(project: Project): Boolean = delegate.isGradleProject(project)
+        override fun isGradleProject(project: Project): Boolean =
+                locked { delegate.isGradleProject(project) }
 
         override fun createProject(dir: File, referenceDir: File): Project = unsupported()
 
-        override fun findGlobalRuleJars(): List<File> = delegate.findGlobalRuleJars()
+        override fun findGlobalRuleJars(): List<File> = locked { delegate.findGlobalRuleJars() }
 
-        override fun findRuleJars(project: Project): List<File> = delegate.findRuleJars(project)
+        override fun findRuleJars(project: Project): List<File> =
+                locked { delegate.findRuleJars(project) }
 
-        override fun isProjectDirectory(dir: File): Boolean = delegate.isProjectDirectory(dir)
+        override fun isProjectDirectory(dir: File): Boolean =
+                locked { delegate.isProjectDirectory(dir) }
 
         override fun registerProject(dir: File, project: Project): Unit = unsupported()
 
         override fun addCustomLintRules(registry: IssueRegistry): IssueRegistry =
-                delegate.addCustomLintRules(registry)
+                locked { delegate.addCustomLintRules(registry) }
 
         override fun getAssetFolders(project: Project): List<File> =
-                delegate.getAssetFolders(project)
+                locked { delegate.getAssetFolders(project) }
 
         override fun createUrlClassLoader(urls: Array<URL>, parent: ClassLoader): ClassLoader =
-                delegate.createUrlClassLoader(urls, parent)
+                locked { delegate.createUrlClassLoader(urls, parent) }
 
-        override fun checkForSuppressComments(): Boolean = delegate.checkForSuppressComments()
+        override fun checkForSuppressComments(): Boolean =
+                locked { delegate.checkForSuppressComments() }
 
-        override fun supportsProjectResources(): Boolean = delegate.supportsProjectResources()
+        override fun supportsProjectResources(): Boolean =
+                locked { delegate.supportsProjectResources() }
 
         override fun getResourceRepository(project: Project,
                                            includeModuleDependencies: Boolean,
                                            includeLibraries: Boolean): AbstractResourceRepository? =
-                delegate.getResourceRepository(project, includeModuleDependencies,
-                        includeLibraries)
+                locked {
+                    delegate.getResourceRepository(project, includeModuleDependencies,
+                            includeLibraries)
+                }
 
-        override fun getRepositoryLogger(): ProgressIndicator = delegate.getRepositoryLogger()
+        override fun getRepositoryLogger(): ProgressIndicator =
+                locked { delegate.getRepositoryLogger() }
 
         override fun getResourceVisibilityProvider(): ResourceVisibilityLookup.Provider =
-                delegate.getResourceVisibilityProvider()
+                locked { delegate.getResourceVisibilityProvider() }
 
         override fun createResourceItemHandle(item: ResourceItem): Location.Handle =
-                delegate.createResourceItemHandle(item)
+                locked { delegate.createResourceItemHandle(item) }
 
         @Throws(IOException::class)
-        override fun openConnection(url: URL): URLConnection? = delegate.openConnection(url)
+        override fun openConnection(url: URL): URLConnection? =
+                locked { delegate.openConnection(url) }
 
         @Throws(IOException::class)
         override fun openConnection(url: URL, timeout: Int): URLConnection? =
-                delegate.openConnection(url, timeout)
+                locked { delegate.openConnection(url, timeout) }
 
         override fun closeConnection(connection: URLConnection) =
-                delegate.closeConnection(connection)
+                locked { delegate.closeConnection(connection) }
     }
 
     /**
@@ -44,6 +44,12 @@ interface LintListener {
         /** Lint is about to check the given file, see [Context.file]  */
         SCANNING_FILE,
 
+        /**
+         * Lint is done checking the given file, see [Context.file]. Only fired when there is
+         * a [LintDriver.profiler], whose measurements then include the file.
+         */
+        SCANNED_FILE,
+
         /** A new pass was initiated  */
         NEW_PHASE,
 
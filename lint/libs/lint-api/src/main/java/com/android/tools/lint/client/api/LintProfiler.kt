@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.detector.api.Scope
+import com.google.common.annotations.Beta
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.Writer
+import java.lang.management.ManagementFactory
+import java.lang.management.ThreadMXBean
+import java.nio.charset.StandardCharsets
+import java.util.LinkedHashMap
+
+/**
+ * A lint profiler records where the time of a lint run goes: the wall clock time, CPU time
+ * and memory allocated by each detector in each phase, by each phase as a whole, and while
+ * checking each file. Set it as the [LintDriver.profiler] to have the driver record these.
+ *
+ * Measuring costs time too, so the driver only measures when there is a profiler. The
+ * measurements can be written out with [writeChromeTrace], for viewing in
+ * `chrome://tracing`.
+ *
+ * **NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.**
+ */
+@Beta
+class LintProfiler {
+    /** What a [Measurement] is about */
+    enum class Category {
+        /** A phase of the analysis, such as checking the resource files */
+        PHASE,
+
+        /** A file being checked, by all the detectors which apply to it */
+        FILE,
+
+        /** A detector, in a given phase */
+        DETECTOR
+    }
+
+    /** The time and memory spent on something, added up over all the times it was measured */
+    class Measurement(
+            /** What is measured */
+            val category: Category,
+            /** The detector class name, the file path or the phase name  */
+            val name: String,
+            /** The phase of a detector, or null  */
+            val phase: Scope?) {
+        /** Number of times measured  */
+        var count: Int = 0
+            internal set
+
+        /** Wall clock time spent, in nanoseconds  */
+        var wallTime: Long = 0
+            internal set
+
+        /** CPU time spent, in nanoseconds, or 0 if the JVM does not measure it  */
+        var cpuTime: Long = 0
+            internal set
+
+        /** Bytes allocated, or 0 if the JVM does not measure them  */
+        var allocatedBytes: Long = 0
+            internal set
+
+        override fun toString(): String = "$name: ${wallTime / 1000000} ms"
+    }
+
+    /** The state of the current thread when a measurement starts; see [start] */
+    class Sample internal constructor(
+            internal val wallTime: Long,
+            internal val cpuTime: Long,
+            internal val allocatedBytes: Long)
+
+    /** A measurement shown on its own in the trace written by [writeChromeTrace] */
+    private class TraceEvent(
+            val measurement: Measurement,
+            val start: Long,
+            val duration: Long,
+            val threadId: Long)
+
+    private val startTime = System.nanoTime()
+    private val measurements = LinkedHashMap<Any, Measurement>()
+    private val events = ArrayList<TraceEvent>()
+
+    /**
+     * Starts measuring on the current thread; pass the returned sample to [end], on the
+     * same thread, when done
+     */
+    fun start(): Sample = Sample(System.nanoTime(), getCpuTime(), getAllocatedBytes())
+
+    /**
+     * Adds the time and memory spent by the current thread since the given sample to the
+     * measurement of the given [category] and [name], and [phase] for detectors
+     */
+    fun end(sample: Sample, category: Category, name: String, phase: Scope?) {
+        val end = System.nanoTime()
+        val wallTime = end - sample.wallTime
+        val cpuTime = getCpuTime() - sample.cpuTime
+        val allocatedBytes = getAllocatedBytes() - sample.allocatedBytes
+        synchronized(this) {
+            val key = if (phase != null) Triple(category, name, phase) else Pair(category, name)
+            val measurement = measurements.getOrPut(key) { Measurement(category, name, phase) }
+            measurement.count++
+            measurement.wallTime += wallTime
+            measurement.cpuTime += cpuTime
+            measurement.allocatedBytes += allocatedBytes
+            // Detectors are called for each element they are interested in; only show the
+            // calls long enough to be seen
+            if (category != Category.DETECTOR || wallTime >= MIN_TRACE_TIME) {
+                events.add(TraceEvent(measurement, sample.wallTime - startTime, wallTime,
+                        Thread.currentThread().id))
+            }
+        }
+    }
+
+    /** Measures the given [block]; see [start] and [end] */
+    inline fun <T> measure(category: Category, name: String, phase: Scope?,
+            block: () -> T): T {
+        val sample = start()
+        try {
+            return block()
+        } finally {
+            end(sample, category, name, phase)
+        }
+    }
+
+    /** Measures the time the given [detector] spends in the given [phase] running [block] */
+    inline fun <T> measure(detector: Any, phase: Scope?, block: () -> T): T =
+            measure(Category.DETECTOR, detector.javaClass.name, phase, block)
+
+    /** Returns the measurements of the given category, the longest first */
+    @Synchronized
+    fun getMeasurements(category: Category): List<Measurement> =
+            measurements.values
+                    .filter { it.category == category }
+                    .sortedByDescending { it.wallTime }
+
+    /**
+     * Returns the measurement of the given category and name, and phase for detectors, or
+     * null if there is none
+     */
+    @Synchronized
+    fun getMeasurement(category: Category, name: String, phase: Scope? = null): Measurement? =
+            measurements[if (phase != null) Triple(category, name, phase)
+            else Pair(category, name)]
+
+    /**
+     * Writes the measurements to the given file in the Trace Event Format, which can be
+     * loaded in `chrome://tracing`
+     */
+    @Throws(IOException::class)
+    fun writeChromeTrace(file: File) {
+        val parent = file.absoluteFile.parentFile
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw IOException("Couldn't create $parent")
+        }
+        BufferedWriter(OutputStreamWriter(FileOutputStream(file), StandardCharsets.UTF_8)).use {
+            writeChromeTrace(it)
+        }
+    }
+
+    /** Writes the measurements to the given writer; see [writeChromeTrace] */
+    @Synchronized
+    fun writeChromeTrace(writer: Writer) {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[")
+        var first = true
+        for (event in events) {
+            if (!first) {
+                writer.write(",")
+            }
+            first = false
+            val measurement = event.measurement
+            writer.write("\n{\"name\":")
+            writeJsonString(writer, measurement.name)
+            writer.write(",\"cat\":")
+            writeJsonString(writer, measurement.category.name.toLowerCase())
+            writer.write(",\"ph\":\"X\",\"pid\":1,\"tid\":${event.threadId}")
+            // Microseconds, as floating point numbers to keep the precision
+            writer.write(",\"ts\":${formatMicros(event.start)}")
+            writer.write(",\"dur\":${formatMicros(event.duration)}")
+            val phase = measurement.phase
+            if (phase != null) {
+                writer.write(",\"args\":{\"phase\":")
+                writeJsonString(writer, getPhaseName(phase))
+                writer.write("}")
+            }
+            writer.write("}")
+        }
+        writer.write("\n]}\n")
+    }
+
+    companion object {
+        /** Shortest detector call shown on its own in the trace, in nanoseconds */
+        private const val MIN_TRACE_TIME = 100000L
+
+        private val threadBean: ThreadMXBean? = try {
+            val bean = ManagementFactory.getThreadMXBean()
+            if (bean.isCurrentThreadCpuTimeSupported) bean else null
+        } catch (e: Throwable) {
+            null
+        }
+
+        private val allocationBean: com.sun.management.ThreadMXBean? = try {
+            val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+            if (bean != null && bean.isThreadAllocatedMemorySupported
+                    && bean.isThreadAllocatedMemoryEnabled) bean else null
+        } catch (e: Throwable) {
+            // Not a HotSpot JVM
+            null
+        }
+
+        private fun getCpuTime(): Long = threadBean?.currentThreadCpuTime ?: 0L
+
+        private fun getAllocatedBytes(): Long =
+                allocationBean?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0L
+
+        /** Returns the name of the phase checking the files of the given scope */
+        @JvmStatic
+        fun getPhaseName(phase: Scope?): String = when (phase) {
+            null -> "Project"
+            Scope.MANIFEST -> "Manifest"
+            Scope.RESOURCE_FILE, Scope.ALL_RESOURCE_FILES, Scope.RESOURCE_FOLDER,
+            Scope.BINARY_RESOURCE_FILE -> "Resources"
+            Scope.JAVA_FILE, Scope.ALL_JAVA_FILES, Scope.TEST_SOURCES -> "Java"
+            Scope.CLASS_FILE, Scope.ALL_CLASS_FILES, Scope.JAVA_LIBRARIES -> "Classes"
+            Scope.GRADLE_FILE -> "Gradle"
+            Scope.PROGUARD_FILE -> "ProGuard"
+            Scope.PROPERTY_FILE -> "Properties"
+            Scope.OTHER -> "Other"
+        }
+
+        private fun formatMicros(nanos: Long): String =
+                "${nanos / 1000}.${String.format("%03d", nanos % 1000)}"
+
+        private fun writeJsonString(writer: Writer, string: String) {
+            writer.write("\"")
+            for (c in string) {
+                when {
+                    c == '"' -> writer.write("\\\"")
+                    c == '\\' -> writer.write("\\\\")
+                    c < ' ' -> writer.write(String.format("\\u%04x", c.toInt()))
+                    else -> writer.write(c.toInt())
+                }
+            }
+            writer.write("\"")
+        }
+    }
+}
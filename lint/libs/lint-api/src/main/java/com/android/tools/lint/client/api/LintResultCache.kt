@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.detector.api.DefaultPosition
+import com.android.tools.lint.detector.api.Issue
+import com.android.tools.lint.detector.api.Location
+import com.android.tools.lint.detector.api.Position
+import com.android.tools.lint.detector.api.Severity
+import com.android.tools.lint.detector.api.TextFormat
+import com.google.common.hash.Hashing
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.LinkedHashMap
+
+/**
+ * A lint result cache records the issues reported for each file by the
+ * [cacheable][com.android.tools.lint.detector.api.Detector.isCacheable] detectors,
+ * such that the next lint run can report them again without checking the file, as long
+ * as neither the file nor the configuration of the checks changed.
+ *
+ * The results are looked up by a key combining the contents of the file with
+ * everything else the detectors depend on; see [createKey]. The cache only keeps the
+ * results looked up or added during the last run, and is written back to [file]
+ * when [close]'ed.
+ *
+ * Unlike the [LintBaseline], this is not meant to be read by humans or checked in,
+ * so it is stored in a compact binary form.
+ */
+class LintResultCache(
+        /** Client to log to  */
+        private val client: LintClient,
+        /** Registry used to look up the issues of the cached results  */
+        private val registry: IssueRegistry,
+        /** The file to read the results from, and to write them to on [close]  */
+        val file: File) {
+
+    /** Results of the previous run, by key  */
+    private val previous = LinkedHashMap<String, List<Incident>>()
+
+    /** Results looked up or added during this run, by key  */
+    private val current = LinkedHashMap<String, List<Incident>>()
+
+    /** Returns the number of files whose results were found in the cache  */
+    var hitCount: Int = 0
+        private set
+
+    /** Returns the number of files whose results were not found in the cache  */
+    var missCount: Int = 0
+        private set
+
+    init {
+        readCacheFile()
+    }
+
+    /**
+     * Returns the results recorded for the given key, or null if the file has to be
+     * checked again.
+     */
+    @Synchronized
+    fun getIncidents(key: String): List<Incident>? {
+        val incidents = current[key] ?: previous[key]
+        if (incidents == null) {
+            missCount++
+            return null
+        }
+        hitCount++
+        current.put(key, incidents)
+        return incidents
+    }
+
+    /** Records the results of checking the file of the given key  */
+    @Synchronized
+    fun putIncidents(key: String, incidents: List<Incident>) {
+        current.put(key, incidents)
+    }
+
+    private fun readCacheFile() {
+        if (!file.exists()) {
+            return
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    // Written by another version of lint: start over
+                    return
+                }
+                val entryCount = input.readInt()
+                for (i in 0 until entryCount) {
+                    val key = input.readUTF()
+                    val incidentCount = input.readInt()
+                    val incidents = ArrayList<Incident>(incidentCount)
+                    var known = true
+                    for (j in 0 until incidentCount) {
+                        val incident = readIncident(input)
+                        if (incident == null) {
+                            known = false
+                        } else {
+                            incidents.add(incident)
+                        }
+                    }
+                    if (known) {
+                        previous.put(key, incidents)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            // A truncated cache only costs checking the files again
+            previous.clear()
+            client.log(Severity.INFORMATIONAL, e, "Ignoring lint result cache %1\$s",
+                    file.path)
+        }
+    }
+
+    /**
+     * Returns the next incident of the cache file, or null if its issue is not in the
+     * registry anymore or if it cannot be read back
+     */
+    private fun readIncident(input: DataInputStream): Incident? {
+        val id = input.readUTF()
+        val severity = Severity.values().getOrNull(input.readByte().toInt())
+        val format = TextFormat.values().getOrNull(input.readByte().toInt())
+        val message = readString(input)
+        val location = readLocation(input)
+        val issue = registry.getIssue(id) ?: return null
+        if (severity == null || format == null) {
+            return null
+        }
+        return Incident(issue, severity, location, message, format)
+    }
+
+    private fun readLocation(input: DataInputStream): Location {
+        val file = File(input.readUTF())
+        val start = readPosition(input)
+        val end = readPosition(input)
+        val location = if (start != null) Location.create(file, start, end)
+        else Location.create(file)
+        if (input.readBoolean()) {
+            location.setMessage(readString(input), input.readBoolean())
+        }
+        location.visible = input.readBoolean()
+        if (input.readBoolean()) {
+            location.secondary = readLocation(input)
+        }
+        return location
+    }
+
+    private fun readPosition(input: DataInputStream): Position? {
+        if (!input.readBoolean()) {
+            return null
+        }
+        return DefaultPosition(input.readInt(), input.readInt(), input.readInt())
+    }
+
+    /** Writes the results of this run to the cache file  */
+    @Synchronized
+    fun close() {
+        val parentFile = file.parentFile
+        if (parentFile != null && !parentFile.exists()) {
+            val mkdirs = parentFile.mkdirs()
+            if (!mkdirs) {
+                client.log(null, "Couldn't create %1\$s", parentFile)
+                return
+            }
+        }
+
+        // Write to a temporary file first, such that an interrupted lint run
+        // does not leave a truncated cache behind, and such that concurrent
+        // lint runs never write to the same file
+        val temp = try {
+            File.createTempFile(file.name, ".tmp", file.absoluteFile.parentFile)
+        } catch (ioe: IOException) {
+            client.log(ioe, null)
+            return
+        }
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+                output.writeInt(current.size)
+                for ((key, incidents) in current) {
+                    output.writeUTF(key)
+                    output.writeInt(incidents.size)
+                    for (incident in incidents) {
+                        writeIncident(output, incident)
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING)
+        } catch (ioe: IOException) {
+            client.log(ioe, null)
+        } finally {
+            temp.delete()
+        }
+    }
+
+    private fun writeIncident(output: DataOutputStream, incident: Incident) {
+        output.writeUTF(incident.issue.id)
+        output.writeByte(incident.severity.ordinal)
+        output.writeByte(incident.format.ordinal)
+        writeString(output, incident.message)
+        writeLocation(output, incident.location)
+    }
+
+    private fun writeLocation(output: DataOutputStream, location: Location) {
+        output.writeUTF(location.file.path)
+        writePosition(output, location.start)
+        writePosition(output, location.end)
+        val message = location.message
+        output.writeBoolean(message != null)
+        if (message != null) {
+            writeString(output, message)
+            output.writeBoolean(location.isSelfExplanatory())
+        }
+        output.writeBoolean(location.visible)
+        val secondary = location.secondary
+        output.writeBoolean(secondary != null)
+        if (secondary != null) {
+            writeLocation(output, secondary)
+        }
+    }
+
+    private fun writePosition(output: DataOutputStream, position: Position?) {
+        output.writeBoolean(position != null)
+        if (position != null) {
+            output.writeInt(position.line)
+            output.writeInt(position.column)
+            output.writeInt(position.offset)
+        }
+    }
+
+    /**
+     * An issue reported while checking a file, as passed to [LintClient.report]. Quick fixes
+     * are not cached: results with a fix are checked again on each run.
+     */
+    class Incident(
+            val issue: Issue,
+            val severity: Severity,
+            val location: Location,
+            val message: String,
+            val format: TextFormat)
+
+    companion object {
+        /** "LRC\u0001": lint result cache  */
+        private const val MAGIC = 0x4C524301
+
+        /** Version of the file format, to be incremented when it changes  */
+        private const val VERSION = 1
+
+        /**
+         * Creates the key of the results of checking [file], with [contents] being the
+         * contents checked, and [context] describing what else the results depend on,
+         * such as the detectors and their configuration.
+         */
+        @JvmStatic
+        fun createKey(context: String, file: File, contents: List<ByteArray>): String {
+            val hasher = Hashing.sha256().newHasher()
+            hasher.putString(context, StandardCharsets.UTF_8)
+            hasher.putString(file.path, StandardCharsets.UTF_8)
+            for (bytes in contents) {
+                hasher.putInt(bytes.size)
+                hasher.putBytes(bytes)
+            }
+            return hasher.hash().toString()
+        }
+
+        // Messages are not limited to the 64K of writeUTF
+        private fun writeString(output: DataOutputStream, string: String) {
+            val bytes = string.toByteArray(StandardCharsets.UTF_8)
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        }
+
+        private fun readString(input: DataInputStream): String {
+            val bytes = ByteArray(input.readInt())
+            input.readFully(bytes)
+            return String(bytes, StandardCharsets.UTF_8)
+        }
+    }
+}
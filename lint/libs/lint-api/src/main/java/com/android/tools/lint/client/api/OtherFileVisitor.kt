@@ -215,10 +215,14 @@ internal class OtherFileVisitor(private val detectors: List<Detector>) {
             if (!applicable.isEmpty()) {
                 for (file in files) {
                     val context = Context(driver, project, main, file)
-                    for (detector in applicable) {
-                        detector.beforeCheckFile(context)
-                        detector.run(context)
-                        detector.afterCheckFile(context)
+                    driver.measureFile(context) {
+                        for (detector in applicable) {
+                            driver.measureDetector(detector, Scope.OTHER) {
+                                detector.beforeCheckFile(context)
+                                detector.run(context)
+                                detector.afterCheckFile(context)
+                            }
+                        }
                     }
                     if (driver.isCanceled) {
                         return
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.ResourceContext;
+import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.XmlContext;
 import com.android.tools.lint.detector.api.XmlScanner;
 import com.google.common.annotations.Beta;
@@ -126,11 +127,15 @@ class ResourceVisitor {
     void visitFile(@NonNull XmlContext context) {
         try {
             for (XmlScanner check : allDetectors) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.beforeCheckFile(context);
+                endMeasuring(sample, context, check);
             }
 
             for (XmlScanner check : documentDetectors) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.visitDocument(context, context.document);
+                endMeasuring(sample, context, check);
             }
 
             if (!elementToCheck.isEmpty() || !attributeToCheck.isEmpty()
@@ -139,7 +144,9 @@ class ResourceVisitor {
             }
 
             for (XmlScanner check : allDetectors) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.afterCheckFile(context);
+                endMeasuring(sample, context, check);
             }
         } catch (RuntimeException e) {
             LintDriver.handleDetectorError(context, context.getDriver(), e);
@@ -151,12 +158,16 @@ class ResourceVisitor {
         if (elementChecks != null) {
             assert elementChecks instanceof RandomAccess;
             for (XmlScanner check : elementChecks) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.visitElement(context, element);
+                endMeasuring(sample, context, check);
             }
         }
         if (!allElementDetectors.isEmpty()) {
             for (XmlScanner check : allElementDetectors) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.visitElement(context, element);
+                endMeasuring(sample, context, check);
             }
         }
 
@@ -171,12 +182,16 @@ class ResourceVisitor {
                 List<XmlScanner> list = attributeToCheck.get(name);
                 if (list != null) {
                     for (XmlScanner check : list) {
+                        LintProfiler.Sample sample = startMeasuring(context);
                         check.visitAttribute(context, attribute);
+                        endMeasuring(sample, context, check);
                     }
                 }
                 if (!allAttributeDetectors.isEmpty()) {
                     for (XmlScanner check : allAttributeDetectors) {
+                        LintProfiler.Sample sample = startMeasuring(context);
                         check.visitAttribute(context, attribute);
+                        endMeasuring(sample, context, check);
                     }
                 }
             }
@@ -194,12 +209,16 @@ class ResourceVisitor {
         // Post hooks
         if (elementChecks != null) {
             for (XmlScanner check : elementChecks) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.visitElementAfter(context, element);
+                endMeasuring(sample, context, check);
             }
         }
         if (!allElementDetectors.isEmpty()) {
             for (XmlScanner check : allElementDetectors) {
+                LintProfiler.Sample sample = startMeasuring(context);
                 check.visitElementAfter(context, element);
+                endMeasuring(sample, context, check);
             }
         }
     }
@@ -214,9 +233,31 @@ class ResourceVisitor {
             return;
         }
         for (Detector check : binaryDetectors) {
+            LintProfiler.Sample sample = startMeasuring(context);
             check.beforeCheckFile(context);
             check.checkBinaryResource(context);
             check.afterCheckFile(context);
+            endMeasuring(sample, context, check);
+        }
+    }
+
+    /** Starts measuring a detector if the driver has a profiler */
+    @Nullable
+    private static LintProfiler.Sample startMeasuring(@NonNull ResourceContext context) {
+        LintProfiler profiler = context.getDriver().getProfiler();
+        return profiler != null ? profiler.start() : null;
+    }
+
+    /** Records the time spent by the given detector since {@link #startMeasuring} */
+    private static void endMeasuring(@Nullable LintProfiler.Sample sample,
+            @NonNull ResourceContext context, @NonNull Object detector) {
+        if (sample != null) {
+            LintProfiler profiler = context.getDriver().getProfiler();
+            assert profiler != null;
+            Scope phase = context.getResourceFolderType() != null
+                    ? Scope.RESOURCE_FILE : Scope.MANIFEST;
+            profiler.end(sample, LintProfiler.Category.DETECTOR, detector.getClass().getName(),
+                    phase);
         }
     }
 }
@@ -21,6 +21,7 @@ import com.android.tools.lint.detector.api.Context
 import com.android.tools.lint.detector.api.Detector
 import com.android.tools.lint.detector.api.JavaContext
 import com.android.tools.lint.detector.api.Location
+import com.android.tools.lint.detector.api.Scope
 import com.android.tools.lint.detector.api.SourceCodeScanner
 import com.android.tools.lint.detector.api.XmlScannerConstants
 import com.android.tools.lint.detector.api.interprocedural.CallGraphResult
@@ -123,6 +124,8 @@ internal class UElementVisitor constructor(private val parser: UastParser,
     private val superClassDetectors = HashMap<String, MutableList<VisitingDetector>>()
     private val annotationHandler: AnnotationHandler?
     private val callGraphDetectors = ArrayList<SourceCodeScanner>()
+    /** Profiler of the file being visited, if any */
+    private var profiler: LintProfiler? = null
 
     init {
         allDetectors = ArrayList(detectors.size)
@@ -230,13 +233,14 @@ internal class UElementVisitor constructor(private val parser: UastParser,
 
             val client = context.client
             try {
+                profiler = context.driver.profiler
                 context.setJavaFile(uFile.psi) // needed for getLocation
                 context.uastFile = uFile
 
                 client.runReadAction(Runnable {
                     for (v in allDetectors) {
                         v.setContext(context)
-                        v.detector.beforeCheckFile(context)
+                        measure(v.detector) { v.detector.beforeCheckFile(context) }
                     }
                 })
 
@@ -272,10 +276,11 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                 client.runReadAction(Runnable {
                     for (v in allDetectors) {
                         ProgressManager.checkCanceled()
-                        v.detector.afterCheckFile(context)
+                        measure(v.detector) { v.detector.afterCheckFile(context) }
                     }
                 })
             } finally {
+                profiler = null
                 parser.dispose(context, uFile)
                 context.setJavaFile(null)
                 context.uastFile = null
@@ -290,6 +295,12 @@ internal class UElementVisitor constructor(private val parser: UastParser,
 
     }
 
+    /** Runs [block], measured as the given detector if there is a [profiler] */
+    private inline fun <T> measure(detector: Detector, block: () -> T): T {
+        val profiler = profiler ?: return block()
+        return profiler.measure(detector, Scope.JAVA_FILE, block)
+    }
+
     fun prepare(contexts: List<JavaContext>, testContexts: List<JavaContext>): Boolean =
             parser.prepare(contexts, testContexts)
 
@@ -303,7 +314,9 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                 for (scanner in callGraphDetectors) {
                     projectContext.client.runReadAction(Runnable {
                         ProgressManager.checkCanceled()
-                        scanner.analyzeCallGraph(projectContext, callGraph)
+                        projectContext.driver.measureDetector(scanner, Scope.JAVA_FILE) {
+                            scanner.analyzeCallGraph(projectContext, callGraph)
+                        }
                     })
                 }
             }
@@ -433,10 +446,10 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                     for (v in list) {
                         val uastScanner = v.uastScanner
                         if (uClass != null) {
-                            uastScanner.visitClass(context, uClass)
+                            measure(v.detector) { uastScanner.visitClass(context, uClass) }
                         } else {
                             assert(lambda != null)
-                            uastScanner.visitClass(context, lambda!!)
+                            measure(v.detector) { uastScanner.visitClass(context, lambda!!) }
                         }
                     }
                 }
@@ -450,10 +463,10 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                             for (v in list) {
                                 val uastScanner = v.uastScanner
                                 if (uClass != null) {
-                                    uastScanner.visitClass(context, uClass)
+                                    measure(v.detector) { uastScanner.visitClass(context, uClass) }
                                 } else {
                                     assert(lambda != null)
-                                    uastScanner.visitClass(context, lambda!!)
+                                    measure(v.detector) { uastScanner.visitClass(context, lambda!!) }
                                 }
                             }
                         }
@@ -478,7 +491,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UAnnotation::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitAnnotation(node)
+                    measure(v.detector) { v.visitor.visitAnnotation(node) }
                 }
             }
             return super.visitAnnotation(node)
@@ -488,7 +501,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UArrayAccessExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitArrayAccessExpression(node)
+                    measure(v.detector) { v.visitor.visitArrayAccessExpression(node) }
                 }
             }
             return super.visitArrayAccessExpression(node)
@@ -498,7 +511,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UBinaryExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitBinaryExpression(node)
+                    measure(v.detector) { v.visitor.visitBinaryExpression(node) }
                 }
             }
             return super.visitBinaryExpression(node)
@@ -508,7 +521,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UBinaryExpressionWithType::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitBinaryExpressionWithType(node)
+                    measure(v.detector) { v.visitor.visitBinaryExpressionWithType(node) }
                 }
             }
             return super.visitBinaryExpressionWithType(node)
@@ -518,7 +531,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UBlockExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitBlockExpression(node)
+                    measure(v.detector) { v.visitor.visitBlockExpression(node) }
                 }
             }
             return super.visitBlockExpression(node)
@@ -528,7 +541,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UBreakExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitBreakExpression(node)
+                    measure(v.detector) { v.visitor.visitBreakExpression(node) }
                 }
             }
             return super.visitBreakExpression(node)
@@ -538,7 +551,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UCallExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitCallExpression(node)
+                    measure(v.detector) { v.visitor.visitCallExpression(node) }
                 }
             }
             return super.visitCallExpression(node)
@@ -548,7 +561,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UCallableReferenceExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitCallableReferenceExpression(node)
+                    measure(v.detector) { v.visitor.visitCallableReferenceExpression(node) }
                 }
             }
             return super.visitCallableReferenceExpression(node)
@@ -558,7 +571,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UCatchClause::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitCatchClause(node)
+                    measure(v.detector) { v.visitor.visitCatchClause(node) }
                 }
             }
             return super.visitCatchClause(node)
@@ -568,7 +581,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UClass::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitClass(node)
+                    measure(v.detector) { v.visitor.visitClass(node) }
                 }
             }
             return super.visitClass(node)
@@ -578,7 +591,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UClassLiteralExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitClassLiteralExpression(node)
+                    measure(v.detector) { v.visitor.visitClassLiteralExpression(node) }
                 }
             }
             return super.visitClassLiteralExpression(node)
@@ -588,7 +601,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UContinueExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitContinueExpression(node)
+                    measure(v.detector) { v.visitor.visitContinueExpression(node) }
                 }
             }
             return super.visitContinueExpression(node)
@@ -598,7 +611,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UDeclarationsExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitDeclarationsExpression(node)
+                    measure(v.detector) { v.visitor.visitDeclarationsExpression(node) }
                 }
             }
             return super.visitDeclarationsExpression(node)
@@ -608,7 +621,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UDoWhileExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitDoWhileExpression(node)
+                    measure(v.detector) { v.visitor.visitDoWhileExpression(node) }
                 }
             }
             return super.visitDoWhileExpression(node)
@@ -618,7 +631,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UElement::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitElement(node)
+                    measure(v.detector) { v.visitor.visitElement(node) }
                 }
             }
             return super.visitElement(node)
@@ -628,7 +641,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UEnumConstant::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitEnumConstant(node)
+                    measure(v.detector) { v.visitor.visitEnumConstant(node) }
                 }
             }
             return super.visitEnumConstant(node)
@@ -638,7 +651,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UExpressionList::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitExpressionList(node)
+                    measure(v.detector) { v.visitor.visitExpressionList(node) }
                 }
             }
             return super.visitExpressionList(node)
@@ -648,7 +661,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UField::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitField(node)
+                    measure(v.detector) { v.visitor.visitField(node) }
                 }
             }
             return super.visitField(node)
@@ -658,7 +671,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UFile::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitFile(node)
+                    measure(v.detector) { v.visitor.visitFile(node) }
                 }
             }
             return super.visitFile(node)
@@ -668,7 +681,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UForEachExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitForEachExpression(node)
+                    measure(v.detector) { v.visitor.visitForEachExpression(node) }
                 }
             }
             return super.visitForEachExpression(node)
@@ -678,7 +691,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UForExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitForExpression(node)
+                    measure(v.detector) { v.visitor.visitForExpression(node) }
                 }
             }
             return super.visitForExpression(node)
@@ -688,7 +701,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UIfExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitIfExpression(node)
+                    measure(v.detector) { v.visitor.visitIfExpression(node) }
                 }
             }
             return super.visitIfExpression(node)
@@ -698,7 +711,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UImportStatement::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitImportStatement(node)
+                    measure(v.detector) { v.visitor.visitImportStatement(node) }
                 }
             }
             return super.visitImportStatement(node)
@@ -708,7 +721,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UClassInitializer::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitInitializer(node)
+                    measure(v.detector) { v.visitor.visitInitializer(node) }
                 }
             }
             return super.visitInitializer(node)
@@ -718,7 +731,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[ULabeledExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitLabeledExpression(node)
+                    measure(v.detector) { v.visitor.visitLabeledExpression(node) }
                 }
             }
             return super.visitLabeledExpression(node)
@@ -728,7 +741,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[ULambdaExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitLambdaExpression(node)
+                    measure(v.detector) { v.visitor.visitLambdaExpression(node) }
                 }
             }
             return super.visitLambdaExpression(node)
@@ -738,7 +751,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[ULiteralExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitLiteralExpression(node)
+                    measure(v.detector) { v.visitor.visitLiteralExpression(node) }
                 }
             }
             return super.visitLiteralExpression(node)
@@ -748,7 +761,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[ULocalVariable::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitLocalVariable(node)
+                    measure(v.detector) { v.visitor.visitLocalVariable(node) }
                 }
             }
             return super.visitLocalVariable(node)
@@ -758,7 +771,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UMethod::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitMethod(node)
+                    measure(v.detector) { v.visitor.visitMethod(node) }
                 }
             }
             return super.visitMethod(node)
@@ -768,7 +781,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UObjectLiteralExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitObjectLiteralExpression(node)
+                    measure(v.detector) { v.visitor.visitObjectLiteralExpression(node) }
                 }
             }
             return super.visitObjectLiteralExpression(node)
@@ -778,7 +791,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UParameter::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitParameter(node)
+                    measure(v.detector) { v.visitor.visitParameter(node) }
                 }
             }
             return super.visitParameter(node)
@@ -788,7 +801,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UParenthesizedExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitParenthesizedExpression(node)
+                    measure(v.detector) { v.visitor.visitParenthesizedExpression(node) }
                 }
             }
             return super.visitParenthesizedExpression(node)
@@ -798,7 +811,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UPolyadicExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitPolyadicExpression(node)
+                    measure(v.detector) { v.visitor.visitPolyadicExpression(node) }
                 }
             }
             return super.visitPolyadicExpression(node)
@@ -808,7 +821,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UPostfixExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitPostfixExpression(node)
+                    measure(v.detector) { v.visitor.visitPostfixExpression(node) }
                 }
             }
             return super.visitPostfixExpression(node)
@@ -818,7 +831,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UPrefixExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitPrefixExpression(node)
+                    measure(v.detector) { v.visitor.visitPrefixExpression(node) }
                 }
             }
             return super.visitPrefixExpression(node)
@@ -828,7 +841,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UQualifiedReferenceExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitQualifiedReferenceExpression(node)
+                    measure(v.detector) { v.visitor.visitQualifiedReferenceExpression(node) }
                 }
             }
             return super.visitQualifiedReferenceExpression(node)
@@ -838,7 +851,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UReturnExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitReturnExpression(node)
+                    measure(v.detector) { v.visitor.visitReturnExpression(node) }
                 }
             }
             return super.visitReturnExpression(node)
@@ -848,7 +861,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[USimpleNameReferenceExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitSimpleNameReferenceExpression(node)
+                    measure(v.detector) { v.visitor.visitSimpleNameReferenceExpression(node) }
                 }
             }
             return super.visitSimpleNameReferenceExpression(node)
@@ -858,7 +871,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[USuperExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitSuperExpression(node)
+                    measure(v.detector) { v.visitor.visitSuperExpression(node) }
                 }
             }
             return super.visitSuperExpression(node)
@@ -868,7 +881,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[USwitchClauseExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitSwitchClauseExpression(node)
+                    measure(v.detector) { v.visitor.visitSwitchClauseExpression(node) }
                 }
             }
             return super.visitSwitchClauseExpression(node)
@@ -878,7 +891,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[USwitchExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitSwitchExpression(node)
+                    measure(v.detector) { v.visitor.visitSwitchExpression(node) }
                 }
             }
             return super.visitSwitchExpression(node)
@@ -888,7 +901,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UThisExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitThisExpression(node)
+                    measure(v.detector) { v.visitor.visitThisExpression(node) }
                 }
             }
             return super.visitThisExpression(node)
@@ -898,7 +911,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UThrowExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitThrowExpression(node)
+                    measure(v.detector) { v.visitor.visitThrowExpression(node) }
                 }
             }
             return super.visitThrowExpression(node)
@@ -908,7 +921,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UTryExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitTryExpression(node)
+                    measure(v.detector) { v.visitor.visitTryExpression(node) }
                 }
             }
             return super.visitTryExpression(node)
@@ -918,7 +931,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UTypeReferenceExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitTypeReferenceExpression(node)
+                    measure(v.detector) { v.visitor.visitTypeReferenceExpression(node) }
                 }
             }
             return super.visitTypeReferenceExpression(node)
@@ -928,7 +941,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UUnaryExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitUnaryExpression(node)
+                    measure(v.detector) { v.visitor.visitUnaryExpression(node) }
                 }
             }
             return super.visitUnaryExpression(node)
@@ -938,7 +951,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UVariable::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitVariable(node)
+                    measure(v.detector) { v.visitor.visitVariable(node) }
                 }
             }
             return super.visitVariable(node)
@@ -948,7 +961,7 @@ internal class UElementVisitor constructor(private val parser: UastParser,
             val list = nodePsiTypeDetectors[UWhileExpression::class.java]
             if (list != null) {
                 for (v in list) {
-                    v.visitor.visitWhileExpression(node)
+                    measure(v.detector) { v.visitor.visitWhileExpression(node) }
                 }
             }
             return super.visitWhileExpression(node)
@@ -975,7 +988,9 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                     if (referenced != null) {
                         for (v in list) {
                             val uastScanner = v.uastScanner
-                            uastScanner.visitReference(mContext, node, referenced)
+                            measure(v.detector) {
+                                uastScanner.visitReference(mContext, node, referenced)
+                            }
                         }
                     }
                 }
@@ -986,11 +1001,13 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                 if (reference != null) {
                     for (v in resourceFieldDetectors) {
                         val uastScanner = v.uastScanner
-                        uastScanner.visitResourceReference(mContext,
-                                reference.node,
-                                reference.type,
-                                reference.name,
-                                reference.`package` == ANDROID_PKG)
+                        measure(v.detector) {
+                            uastScanner.visitResourceReference(mContext,
+                                    reference.node,
+                                    reference.type,
+                                    reference.name,
+                                    reference.`package` == ANDROID_PKG)
+                        }
                     }
                 }
             }
@@ -1024,7 +1041,9 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                         if (function != null) {
                             for (v in list) {
                                 val scanner = v.uastScanner
-                                scanner.visitMethod(mContext, node, function)
+                                measure(v.detector) {
+                                    scanner.visitMethod(mContext, node, function)
+                                }
                             }
                         }
                     }
@@ -1042,7 +1061,9 @@ internal class UElementVisitor constructor(private val parser: UastParser,
                     if (list != null) {
                         for (v in list) {
                             val javaPsiScanner = v.uastScanner
-                            javaPsiScanner.visitConstructor(mContext, node, method)
+                            measure(v.detector) {
+                                javaPsiScanner.visitConstructor(mContext, node, method)
+                            }
                         }
                     }
                 }
@@ -212,6 +212,29 @@ abstract class Detector {
     @Deprecated("Slated for removal") // Slated for removal in Lint 2.0
     open fun getSpeed(issue: Issue): Speed = Speed.NORMAL
 
+    /**
+     * Returns true if this detector can check several files at the same time, from
+     * different threads. A thread safe detector keeps no state across files other than
+     * what it reports, since [beforeCheckFile], the visit methods and [afterCheckFile]
+     * may run concurrently for different files. The project level callbacks such as
+     * [beforeCheckProject] and [afterCheckProject] are still called on a single thread,
+     * before and after all the files.
+     *
+     * @return true if the detector can check files concurrently
+     */
+    open fun isThreadSafe(): Boolean = false
+
+    /**
+     * Returns true if the issues this detector reports for a file only depend on the file,
+     * the configuration of the project and the files it refers to in the project sources
+     * and class path. The issues of a cacheable detector are kept in the
+     * [LintDriver.resultCache] if any, and reported again without checking the file as long
+     * as none of these change. Its file level callbacks are then not called for that file.
+     *
+     * @return true if the issues reported for each file can be cached
+     */
+    open fun isCacheable(): Boolean = false
+
     // ---- Dummy implementations to make implementing XmlScanner easier: ----
 
     open fun visitDocument(context: XmlContext, document: Document) {
@@ -32,10 +32,12 @@ import com.google.common.io.ByteSink;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -57,12 +59,15 @@ import java.util.Set;
  * The {@link Api} class provides access to the full Android API along with version
  * information, initialized from an XML file. This lookup class adds a binary cache around
  * the API to make initialization faster and to require fewer objects. It creates
- * a binary cache data structure, which fits in a single byte array, which means that
- * to open the database you can just read in the byte array and go. On one particular
- * machine, this takes about 30-50 ms versus 600-800ms for the full parse. It also
+ * a binary cache data structure, which fits in a single file, which means that
+ * to open the database you can just map the file into memory and go; the lookups
+ * read the mapped file directly, so the data is not copied onto the heap, and is
+ * shared with the other processes using the same cache file. It also
  * helps memory by placing everything in a compact byte array instead of needing separate
  * strings (2 bytes per character in a char[] for the 25k method entries, 11k field entries
  * and 6k class entries) - and it also avoids the same number of Map.Entry objects.
+ * Classes are found with a hash table stored in the file, and their members with a binary
+ * search among the members of the class.
  * When creating the memory data structure it performs a few other steps to help memory:
  * <ul>
  * <li> It stores the strings as single bytes, since all the JVM signatures are in ASCII
@@ -78,7 +83,7 @@ public class ApiLookup {
     /** Database moved from platform-tools to SDK in API level 26 */
     public static final int SDK_DATABASE_MIN_VERSION = 26;
     private static final String FILE_HEADER = "API database used by Android lint\000";
-    private static final int BINARY_FORMAT_VERSION = 14;
+    private static final int BINARY_FORMAT_VERSION = 15;
     private static final boolean DEBUG_SEARCH = false;
     private static final boolean WRITE_STATS = false;
 
@@ -93,11 +98,25 @@ public class ApiLookup {
     @VisibleForTesting
     static final boolean DEBUG_FORCE_REGENERATE_BINARY = false;
 
+    /** Size in bytes of a slot of the class table: a container number and a class number */
+    private static final int CLASS_TABLE_SLOT_SIZE = 6;
+
     private final Api mInfo;
-    private byte[] mData;
-    private int[] mIndices;
+    /** The mapped database file, only read with absolute gets such that it can be shared */
+    private ByteBuffer mData;
+    /** Offset of the index table in {@link #mData} */
+    private int mIndexOffset;
+    /** Offset of the class hash table in {@link #mData} */
+    private int mClassTableOffset;
+    /** Number of slots of the class hash table minus one, the slot count being a power of 2 */
+    private int mClassTableMask;
 
-    private static final Map<AndroidVersion, WeakReference<ApiLookup>> instances = new HashMap<>();
+    /**
+     * The databases are shared between lint runs, since reopening them is wasted work, but
+     * only softly referenced such that their mappings are released when memory gets low.
+     */
+    private static final Map<AndroidVersion, SoftReference<ApiLookup>> instances =
+            new HashMap<>();
 
     private int containerCount;
     private final IAndroidTarget target;
@@ -132,7 +151,7 @@ public class ApiLookup {
     public static ApiLookup get(@NonNull LintClient client, @Nullable IAndroidTarget target) {
         synchronized (ApiLookup.class) {
             AndroidVersion version = target != null ? target.getVersion() : AndroidVersion.DEFAULT;
-            WeakReference<ApiLookup> reference = instances.get(version);
+            SoftReference<ApiLookup> reference = instances.get(version);
             ApiLookup db = reference != null ? reference.get() : null;
             if (db == null) {
                 // Fallbacks: Allow the API database to be read from a custom location
@@ -162,7 +181,7 @@ public class ApiLookup {
                 } else {
                     db = get(client, file, target);
                 }
-                instances.put(version, new WeakReference<>(db));
+                instances.put(version, new SoftReference<>(db));
             }
 
             return db;
@@ -313,15 +332,16 @@ public class ApiLookup {
      * 2. A file version number. If the binary file does not match the reader's expected
      *     version, it can ignore it (and regenerate the cache from XML).
      *
-     * 3. The index table. When the data file is read, this is used to initialize the
-     *    {@link #mIndices} array. The index table is built up like this:
-     *    a. The number of index entries (e.g. number of elements in the {@link #mIndices} array)
-     *        [a 4-byte integer]
+     * 3. The index table, mapping container, class and member numbers to the offsets of
+     *    their entries. The index table is built up like this:
+     *    a. The number of index entries [a 4-byte integer]
      *    b. The number of java/javax packages [a 4-byte integer]
-     *    c. Offsets to the container entries, one for each package or a class containing inner
+     *    c. The offset of the class table (7) [a 4-byte integer]
+     *    d. The number of slots of the class table, a power of 2 [a 4-byte integer]
+     *    e. Offsets to the container entries, one for each package or a class containing inner
      *       classes [a 4-byte integer].
-     *    d. Offsets to the class entries, one for each class [a 4-byte integer].
-     *    e. Offsets to the member entries, one for each member [a 4-byte integer].
+     *    f. Offsets to the class entries, one for each class [a 4-byte integer].
+     *    g. Offsets to the member entries, one for each member [a 4-byte integer].
      *
      * 4. The member entries -- one for each member. A given class entry will point to the
      *    first and last members in the index table above, and the offset of a given member
@@ -364,6 +384,11 @@ public class ApiLookup {
      *       class [a 3-byte integer.]
      *    d. The number of classes in the package or the number of inner classes in the outer class
      *       [a 2-byte integer].
+     *
+     * 7. The class table, an open addressing hash table of the classes of each container, indexed
+     *    by {@link #hashClassName} and probed linearly. Each slot holds:
+     *    a. The number of the container plus one, or 0 for an empty slot [a 3-byte integer].
+     *    b. The number of the class [a 3-byte integer].
      * </pre>
      */
     private void readData(
@@ -373,14 +398,18 @@ public class ApiLookup {
             return;
         }
         long start = WRITE_STATS ? System.currentTimeMillis() : 0;
-        try {
-            byte[] b = Files.toByteArray(binaryFile);
-
-            // First skip the header
-            int offset = 0;
+        boolean outdated = false;
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(),
+                StandardOpenOption.READ)) {
+            // First check the header, before mapping the file
             byte[] expectedHeader = FILE_HEADER.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer header = ByteBuffer.allocate(expectedHeader.length + 1);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read until the header is full or the end of the file
+            }
+            int offset = 0;
             for (byte anExpectedHeader : expectedHeader) {
-                if (anExpectedHeader != b[offset++]) {
+                if (anExpectedHeader != header.get(offset++)) {
                     client.log(null, "Incorrect file header: not an API database cache " +
                             "file, or a corrupt cache file");
                     return;
@@ -388,40 +417,43 @@ public class ApiLookup {
             }
 
             // Read in the format number.
-            if (b[offset++] != BINARY_FORMAT_VERSION) {
-                // Force regeneration of new binary data with up to date format.
-                if (createCache(client, xmlFile, binaryFile)) {
-                    readData(client, xmlFile, binaryFile); // Recurse
+            if (header.get(offset++) != BINARY_FORMAT_VERSION) {
+                // Force regeneration of new binary data with up to date format, once the
+                // file is closed.
+                outdated = true;
+            } else {
+                // The mapping stays valid once the channel is closed
+                ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int indexCount = b.getInt(offset);
+                offset += 4;
+                int containers = b.getInt(offset);
+                offset += 4;
+                int classTableOffset = b.getInt(offset);
+                offset += 4;
+                int classTableSize = b.getInt(offset);
+                offset += 4;
+                if (indexCount < containers || containers < 0
+                        || offset + 4L * indexCount > classTableOffset
+                        || Integer.bitCount(classTableSize) != 1
+                        || classTableOffset + (long) CLASS_TABLE_SLOT_SIZE * classTableSize
+                                > b.limit()) {
+                    throw new IOException("Truncated API database");
                 }
 
-                return;
-            }
-
-            int indexCount = get4ByteInt(b, offset);
-            offset += 4;
-            containerCount = get4ByteInt(b, offset);
-            offset += 4;
-
-            mIndices = new int[indexCount];
-            for (int i = 0; i < indexCount; i++) {
-                // TODO: Pack the offsets: They increase by a small amount for each entry, so
-                // no need to spend 4 bytes on each. These will need to be processed when read
-                // back in anyway, so consider storing the offset -deltas- as single bytes and
-                // adding them up cumulatively in readData().
-                mIndices[i] = get4ByteInt(b, offset);
-                offset += 4;
-            }
-            mData = b;
-            // TODO: We only need to keep the data portion here since we've initialized
-            // the offset array separately.
-            // TODO: Investigate (profile) accessing the byte buffer directly instead of
-            // accessing a byte array.
-
-            if (WRITE_STATS) {
-                long end = System.currentTimeMillis();
-                System.out.println("\nRead API database in " + (end - start) + " milliseconds.");
-                System.out.print("Size of data table: " + mData.length + " bytes");
-                System.out.println(String.format(" (%.3gMB)", mData.length / (1024. * 1024.)));
+                containerCount = containers;
+                mIndexOffset = offset;
+                mClassTableOffset = classTableOffset;
+                mClassTableMask = classTableSize - 1;
+                mData = b;
+
+                if (WRITE_STATS) {
+                    long end = System.currentTimeMillis();
+                    System.out.println("\nRead API database in " + (end - start)
+                            + " milliseconds.");
+                    System.out.print("Size of data table: " + mData.limit() + " bytes");
+                    System.out.println(String.format(" (%.3gMB)",
+                            mData.limit() / (1024. * 1024.)));
+                }
             }
         } catch (Throwable e) {
             client.log(null, "Failure reading binary cache file %1$s", binaryFile.getPath());
@@ -429,6 +461,10 @@ public class ApiLookup {
                     binaryFile.getPath());
             client.log(e, null);
         }
+
+        if (outdated && createCache(client, xmlFile, binaryFile)) {
+            readData(client, xmlFile, binaryFile); // Recurse
+        }
     }
 
     /** See the {@link #readData(LintClient,File,File)} for documentation on the data format. */
@@ -442,11 +478,13 @@ public class ApiLookup {
         // skip those that have the same since-level as the containing class. And we
         // also need to keep those entries that are marked deprecated or removed.
         int estimatedSize = 0;
+        int classEntryCount = 0;
         for (ApiClassOwner container : containers) {
             estimatedSize += 4; // offset entry
             estimatedSize += container.getName().length() + 20; // Container entry.
 
             for (ApiClass cls : container.getClasses()) {
+                classEntryCount++;
                 estimatedSize += 4; // offset entry
                 estimatedSize += cls.getName().length() + 20; // Class entry.
 
@@ -474,6 +512,13 @@ public class ApiLookup {
             Collections.sort(container.getClasses());
         }
 
+        // At most half full, to keep the probe sequences short
+        int classTableSize = 1;
+        while (classTableSize < 2 * classEntryCount) {
+            classTableSize <<= 1;
+        }
+        estimatedSize += CLASS_TABLE_SLOT_SIZE * classTableSize;
+
         // Write header
         ByteBuffer buffer = ByteBuffer.allocate(estimatedSize);
         buffer.order(ByteOrder.BIG_ENDIAN);
@@ -488,6 +533,10 @@ public class ApiLookup {
         // Write the number of containers in the containers index.
         buffer.putInt(containers.size());
 
+        int classTableOffsetOffset = buffer.position();
+        buffer.putInt(0); // placeholder
+        buffer.putInt(classTableSize);
+
         // Write container index.
         int newIndex = buffer.position();
         for (ApiClassOwner container : containers) {
@@ -590,11 +639,7 @@ public class ApiLookup {
                 buffer.position(cls.indexOffset);
                 buffer.putInt(index);
                 buffer.position(index);
-                String name = cls.getSimpleName();
-                int pos = name.lastIndexOf('$');
-                if (pos > 0) {
-                    name = name.substring(pos + 1);
-                }
+                String name = getEntryName(cls);
 
                 byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
                 assert nameBytes.length < 254 : name;
@@ -679,6 +724,32 @@ public class ApiLookup {
             }
         }
 
+        // Write the class table, pointing to each class from the hash of its full name
+        int classTableOffset = buffer.position();
+        buffer.position(classTableOffsetOffset);
+        buffer.putInt(classTableOffset);
+        int[] slotContainers = new int[classTableSize];
+        int[] slotClasses = new int[classTableSize];
+        for (int containerNumber = 0; containerNumber < containers.size(); containerNumber++) {
+            ApiClassOwner container = containers.get(containerNumber);
+            String containerName = container.getName();
+            for (ApiClass cls : container.getClasses()) {
+                String name = getEntryName(cls);
+                int slot = hashClassName(containerName, containerName.length(), name, 0,
+                        name.length()) & (classTableSize - 1);
+                while (slotContainers[slot] != 0) {
+                    slot = (slot + 1) & (classTableSize - 1);
+                }
+                slotContainers[slot] = containerNumber + 1;
+                slotClasses[slot] = cls.index;
+            }
+        }
+        buffer.position(classTableOffset);
+        for (int slot = 0; slot < classTableSize; slot++) {
+            put3ByteInt(buffer, slotContainers[slot]);
+            put3ByteInt(buffer, slotClasses[slot]);
+        }
+
         int size = buffer.position();
         assert size <= buffer.limit();
         buffer.mark();
@@ -709,6 +780,36 @@ public class ApiLookup {
         }
     }
 
+    /** Returns the name of the class as stored in its entry, without its outer classes */
+    @NonNull
+    private static String getEntryName(@NonNull ApiClass cls) {
+        String name = cls.getSimpleName();
+        int pos = name.lastIndexOf('$');
+        if (pos > 0) {
+            name = name.substring(pos + 1);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the hash of a class name in the class table, computed from the name of its
+     * container and its own name such that names which only differ by separators have the same
+     * hash.
+     */
+    private static int hashClassName(@NonNull String container, int containerLength,
+            @NonNull String name, int nameOffset, int nameEnd) {
+        int h = 0;
+        for (int i = 0; i < containerLength; i++) {
+            h = 31 * h + normalizeSeparator(container.charAt(i));
+        }
+        h = 31 * h + '.';
+        for (int i = nameOffset; i < nameEnd; i++) {
+            h = 31 * h + normalizeSeparator(name.charAt(i));
+        }
+        // Spread the high bits over the low bits used to pick the slot
+        return h ^ (h >>> 16);
+    }
+
     private static void writeSinceDeprecatedInRemovedIn(
             ByteBuffer buffer, int since, int deprecatedIn, int removedIn) {
         assert since != 0 && since == (since & API_MASK); // Must fit in 7 bits.
@@ -737,8 +838,8 @@ public class ApiLookup {
     private String dumpEntry(int offset) {
         if (DEBUG_SEARCH) {
             StringBuilder sb = new StringBuilder(200);
-            for (int i = offset; i < mData.length; i++) {
-                byte b = mData[i];
+            for (int i = offset; i < mData.limit(); i++) {
+                byte b = mData.get(i);
                 if (b == 0 || b == 1) {
                     break;
                 }
@@ -752,12 +853,12 @@ public class ApiLookup {
         }
     }
 
-    private static int compare(byte[] data, int offset, byte terminator, String s, int sOffset,
-            int max) {
+    private static int compare(ByteBuffer data, int offset, byte terminator, String s,
+            int sOffset, int max) {
         int i = offset;
         int j = sOffset;
         for (; j < max; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             char c = s.charAt(j);
             if (c == '.' && (b == '/' || b == '$')) { // '.' matches both '/' and '$'.
                 continue;
@@ -771,7 +872,7 @@ public class ApiLookup {
             }
         }
 
-        byte b = data[i];
+        byte b = data.get(i);
         if (terminator == 1 && b == 0) { // Terminator 1 matches both 0 and 1.
             return 0;
         }
@@ -806,7 +907,7 @@ public class ApiLookup {
     private int getClassVersion(int classNumber) {
         if (classNumber >= 0) {
             int offset = seekClassData(classNumber, CLASS_HEADER_API);
-            int api = Byte.toUnsignedInt(mData[offset]) & API_MASK;
+            int api = Byte.toUnsignedInt(mData.get(offset)) & API_MASK;
             return api > 0 ? api : -1;
         }
         return -1;
@@ -835,11 +936,11 @@ public class ApiLookup {
                 int interfaceNumber = findClass(destinationClass);
                 if (interfaceNumber >= 0) {
                     int offset = seekClassData(classNumber, CLASS_HEADER_INTERFACES);
-                    int interfaceCount = mData[offset++];
+                    int interfaceCount = mData.get(offset++);
                     for (int i = 0; i < interfaceCount; i++) {
                         int clsNumber = get3ByteInt(mData, offset);
                         offset += 3;
-                        int api = mData[offset++];
+                        int api = mData.get(offset++);
                         if (clsNumber == interfaceNumber) {
                            return api;
                         }
@@ -880,7 +981,7 @@ public class ApiLookup {
                     // Not deprecated
                     return -1;
                 }
-                int deprecatedIn = Byte.toUnsignedInt(mData[offset]) & API_MASK;;
+                int deprecatedIn = Byte.toUnsignedInt(mData.get(offset)) & API_MASK;;
                 return deprecatedIn != 0 ? deprecatedIn : -1;
             }
         }  else if (mInfo != null) {
@@ -910,7 +1011,7 @@ public class ApiLookup {
                     // Not removed
                     return -1;
                 }
-                int removedIn = Byte.toUnsignedInt(mData[offset]) & API_MASK;
+                int removedIn = Byte.toUnsignedInt(mData.get(offset)) & API_MASK;
                 return removedIn != 0 ? removedIn : -1;
             }
         } else if (mInfo != null) {
@@ -1110,11 +1211,11 @@ public class ApiLookup {
         List<ApiMember> result = null;
         int end = start + length;
         for (int index = start; index < end; index++) {
-            int offset = mIndices[index];
+            int offset = getIndex(index);
             boolean methodSignatureDetected = false;
             int i;
-            for (i = offset; i < mData.length; i++) {
-                byte b = mData[i];
+            for (i = offset; i < mData.limit(); i++) {
+                byte b = mData.get(i);
                 if (b == 0) {
                     break;
                 }
@@ -1122,7 +1223,7 @@ public class ApiLookup {
                     methodSignatureDetected = true;
                 }
             }
-            if (i >= mData.length) {
+            if (i >= mData.limit()) {
                 assert false;
                 break;
             }
@@ -1130,15 +1231,15 @@ public class ApiLookup {
                 continue;
             }
             int endOfSignature = i++;
-            int since = Byte.toUnsignedInt(mData[i++]);
+            int since = Byte.toUnsignedInt(mData.get(i++));
             if ((since & HAS_EXTRA_BYTE_FLAG) != 0) {
-                int deprecatedIn = Byte.toUnsignedInt(mData[i++]);
+                int deprecatedIn = Byte.toUnsignedInt(mData.get(i++));
                 if ((deprecatedIn & HAS_EXTRA_BYTE_FLAG) != 0) {
-                    int removedIn = Byte.toUnsignedInt(mData[i]);
+                    int removedIn = Byte.toUnsignedInt(mData.get(i));
                     if (removedIn != 0) {
                         StringBuilder sb = new StringBuilder(endOfSignature - offset);
                         for (i = offset; i < endOfSignature; i++) {
-                            sb.append((char) Byte.toUnsignedInt(mData[i]));
+                            sb.append((char) Byte.toUnsignedInt(mData.get(i)));
                         }
                         since &= API_MASK;
                         deprecatedIn &= API_MASK;
@@ -1273,12 +1374,12 @@ public class ApiLookup {
     private int findContainer(@NonNull String packageOrClassName, int containerNameLength,
             boolean packageOnly) {
         // The index array contains class indexes from 0 to classCount and
-        // member indices from classCount to mIndices.length.
+        // member indices from classCount to the end of the index table.
         int low = 0;
         int high = containerCount;
         while (low < high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string \""
@@ -1306,13 +1407,10 @@ public class ApiLookup {
         return -1;
     }
 
-    private static int get4ByteInt(@NonNull byte[] data, int offset) {
-        byte b1 = data[offset++];
-        byte b2 = data[offset++];
-        byte b3 = data[offset++];
-        byte b4 = data[offset];
-        // The byte data is always big endian.
-        return (b1 & 0xFF) << 24 | (b2 & 0xFF) << 16 | (b3 & 0xFF) << 8 | (b4 & 0xFF);
+    /** Returns the offset of the entry of the given container, class or member number */
+    private int getIndex(int number) {
+        // The byte data is always big endian, like the buffer.
+        return mData.getInt(mIndexOffset + 4 * number);
     }
 
     private static void put3ByteInt(@NonNull ByteBuffer buffer, int value) {
@@ -1336,17 +1434,17 @@ public class ApiLookup {
         buffer.put(b2);
     }
 
-    private static int get3ByteInt(@NonNull byte[] mData, int offset) {
-        byte b1 = mData[offset++];
-        byte b2 = mData[offset++];
-        byte b3 = mData[offset];
+    private static int get3ByteInt(@NonNull ByteBuffer data, int offset) {
+        byte b1 = data.get(offset++);
+        byte b2 = data.get(offset++);
+        byte b3 = data.get(offset);
         // The byte data is always big endian.
         return (b1 & 0xFF) << 16 | (b2 & 0xFF) << 8 | (b3 & 0xFF);
     }
 
-    private static int get2ByteInt(@NonNull byte[] data, int offset) {
-        byte b1 = data[offset++];
-        byte b2 = data[offset];
+    private static int get2ByteInt(@NonNull ByteBuffer data, int offset) {
+        byte b1 = data.get(offset++);
+        byte b2 = data.get(offset);
         // The byte data is always big endian.
         return (b1 & 0xFF) << 8 | (b2 & 0xFF);
     }
@@ -1355,53 +1453,40 @@ public class ApiLookup {
     private int findClass(@NonNull String className) {
         int lastSeparator = lastIndexOfDotOrSlashOrDollar(className);
         int containerNameLength = lastSeparator >= 0 ? lastSeparator : 0;
-        int containerNumber = findContainer(className, containerNameLength, false);
-        if (containerNumber < 0) {
-            return -1;
-        }
         int classNameLength = className.length();
         int classNameOffset = lastSeparator + 1;
 
-        int curr = mIndices[containerNumber];
-        // Skip the name of the container.
-        while ((mData[curr] & ~1) != 0) {  // Iterate until encountering 0 or 1.
-            curr++;
-        }
-        curr++;
-
-        // 3 bytes for first offset.
-        int low = get3ByteInt(mData, curr);
-        curr += 3;
-
-        int length = get2ByteInt(mData, curr);
-        int high = low + length;
-        while (low < high) {
-            int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
-            offset++; // Skip the byte which points to the metadata after the name.
+        int slot = hashClassName(className, containerNameLength, className, classNameOffset,
+                classNameLength) & mClassTableMask;
+        while (true) {
+            int curr = mClassTableOffset + slot * CLASS_TABLE_SLOT_SIZE;
+            int containerNumber = get3ByteInt(mData, curr) - 1;
+            if (containerNumber < 0) {
+                return -1;
+            }
+            int classNumber = get3ByteInt(mData, curr + 3);
 
             if (DEBUG_SEARCH) {
-                System.out.println("Comparing string " + className.substring(0, classNameLength)
-                        + " with entry at " + offset + ": " + dumpEntry(offset));
+                System.out.println("Comparing string " + className
+                        + " with entries at " + getIndex(containerNumber) + ": "
+                        + dumpEntry(getIndex(containerNumber)) + " and "
+                        + getIndex(classNumber) + ": " + dumpEntry(getIndex(classNumber) + 1));
             }
 
-            int c = compare(mData, offset, (byte) 0, className, classNameOffset, classNameLength);
-            if (c == 0) {
+            // Skip the byte which points to the metadata after the name.
+            int offset = getIndex(classNumber) + 1;
+            if (compare(mData, offset, (byte) 0, className, classNameOffset,
+                    classNameLength) == 0
+                    && compare(mData, getIndex(containerNumber), (byte) 1, className, 0,
+                            containerNameLength) == 0) {
                 if (DEBUG_SEARCH) {
                     System.out.println("Found " + dumpEntry(offset));
                 }
-                return middle;
+                return classNumber;
             }
 
-            if (c < 0) {
-                low = middle + 1;
-            } else {
-                assert c > 0;
-                high = middle;
-            }
+            slot = (slot + 1) & mClassTableMask;
         }
-
-        return -1;
     }
 
     private static int lastIndexOfDotOrSlashOrDollar(@NonNull String className) {
@@ -1483,8 +1568,8 @@ public class ApiLookup {
     }
 
     private int seekClassData(int classNumber, int field) {
-        int offset = mIndices[classNumber];
-        offset += mData[offset] & 0xFF;
+        int offset = getIndex(classNumber);
+        offset += mData.get(offset) & 0xFF;
         if (field == CLASS_HEADER_MEMBER_OFFSETS) {
             return offset;
         }
@@ -1492,13 +1577,13 @@ public class ApiLookup {
         if (field == CLASS_HEADER_API) {
             return offset;
         }
-        boolean hasDeprecatedIn = (mData[offset] & HAS_EXTRA_BYTE_FLAG) != 0;
+        boolean hasDeprecatedIn = (mData.get(offset) & HAS_EXTRA_BYTE_FLAG) != 0;
         boolean hasRemovedIn = false;
         offset++;
         if (field == CLASS_HEADER_DEPRECATED) {
             return hasDeprecatedIn ? offset : -1;
         } else if (hasDeprecatedIn) {
-            hasRemovedIn = (mData[offset] & HAS_EXTRA_BYTE_FLAG) != 0;
+            hasRemovedIn = (mData.get(offset) & HAS_EXTRA_BYTE_FLAG) != 0;
             offset++;
         }
         if (field == CLASS_HEADER_REMOVED) {
@@ -1526,7 +1611,7 @@ public class ApiLookup {
 
         while (low < high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + (name + ';' + desc) +
@@ -1551,7 +1636,7 @@ public class ApiLookup {
 
                         offset += argsEnd + 1;
 
-                        if (mData[offset++] == 0) {
+                        if (mData.get(offset++) == 0) {
                             // Yes, terminated argument list: get the API level
                             return getApiLevel(offset, apiLevelField);
                         }
@@ -1563,7 +1648,7 @@ public class ApiLookup {
                 compare = compare(mData, offset, (byte) 0, name, 0, nameLength);
                 if (compare == 0) {
                     offset += nameLength;
-                    if (mData[offset++] == 0) {
+                    if (mData.get(offset++) == 0) {
                         // Yes, terminated argument list: get the API level
                         return getApiLevel(offset, apiLevelField);
                     }
@@ -1584,14 +1669,14 @@ public class ApiLookup {
     }
 
     private int getApiLevel(int offset, int apiLevelField) {
-        int api = Byte.toUnsignedInt(mData[offset]);
+        int api = Byte.toUnsignedInt(mData.get(offset));
         if (apiLevelField == CLASS_HEADER_API) {
             return api & API_MASK;
         }
         if ((api & HAS_EXTRA_BYTE_FLAG) == 0) {
             return -1;
         }
-        api = Byte.toUnsignedInt(mData[++offset]);
+        api = Byte.toUnsignedInt(mData.get(++offset));
         if (apiLevelField == CLASS_HEADER_DEPRECATED) {
             api &= API_MASK;
             return api == 0 ? -1 : api;
@@ -1600,7 +1685,7 @@ public class ApiLookup {
         if ((api & HAS_EXTRA_BYTE_FLAG) == 0 || apiLevelField != CLASS_HEADER_REMOVED) {
             return -1;
         }
-        api = Byte.toUnsignedInt(mData[++offset]);
+        api = Byte.toUnsignedInt(mData.get(++offset));
         return api == 0 ? -1 : api;
     }
 
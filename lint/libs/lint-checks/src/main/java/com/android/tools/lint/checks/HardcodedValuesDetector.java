@@ -76,6 +76,16 @@ public class HardcodedValuesDetector extends LayoutDetector {
     public HardcodedValuesDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableAttributes() {
         return Arrays.asList(
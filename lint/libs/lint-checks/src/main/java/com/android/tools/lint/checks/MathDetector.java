@@ -62,6 +62,16 @@ public class MathDetector extends Detector implements SourceCodeScanner {
     public MathDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     // ---- implements SourceCodeScanner ----
 
     @Nullable
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+public class LintServerTest extends TestCase {
+    private static final String PROPERTY = "com.android.tools.lint.test.property";
+
+    private final List<String> runs = new ArrayList<>();
+    private final List<String> properties = new ArrayList<>();
+
+    private LintServer server;
+    private Thread thread;
+    private File portFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LintServer(args -> {
+            runs.add(System.getProperty(Main.PROP_WORK_DIR) + ": " + Arrays.toString(args));
+            properties.add(System.getProperty(PROPERTY));
+            System.out.println("Checked " + args.length + " files");
+            System.err.println("Warning");
+            return args.length == 0 ? LintCliFlags.ERRNO_USAGE : LintCliFlags.ERRNO_SUCCESS;
+        }, Long.MAX_VALUE);
+        portFile = new File(Files.createTempDir(), "lint.server");
+        server.writePortFile(portFile);
+        thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        thread.join(5000);
+        super.tearDown();
+    }
+
+    public void testForward() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        File workDir = new File("/work");
+        Integer status = LintServer.forward(portFile, workDir, new String[] { "a", "b" },
+                new PrintStream(out), new PrintStream(err));
+        assertEquals(Integer.valueOf(LintCliFlags.ERRNO_SUCCESS), status);
+        assertEquals("Checked 2 files\n", out.toString("UTF-8").replace("\r\n", "\n"));
+        assertEquals("Warning\n", err.toString("UTF-8").replace("\r\n", "\n"));
+
+        status = LintServer.forward(portFile, workDir, new String[0],
+                new PrintStream(out), new PrintStream(err));
+        assertEquals(Integer.valueOf(LintCliFlags.ERRNO_USAGE), status);
+        assertEquals(Arrays.asList(workDir.getPath() + ": [a, b]", workDir.getPath() + ": []"),
+                runs);
+    }
+
+    public void testForwardSystemProperties() throws Exception {
+        Properties systemProperties = new Properties();
+        systemProperties.setProperty(PROPERTY, "client");
+        systemProperties.setProperty("java.home", "/client/jdk");
+        Integer status = LintServer.forward(portFile, new File("/work"), new String[] { "a" },
+                System.getenv(), systemProperties, System.out, System.err);
+        assertEquals(Integer.valueOf(LintCliFlags.ERRNO_SUCCESS), status);
+        assertEquals(Collections.singletonList("client"), properties);
+        // Only set for the duration of the run, and the JVM's own are left alone
+        assertNull(System.getProperty(PROPERTY));
+        assertFalse("/client/jdk".equals(System.getProperty("java.home")));
+    }
+
+    public void testDifferentEnvironment() throws Exception {
+        Map<String, String> environment = new HashMap<>(System.getenv());
+        environment.put("ANDROID_HOME", "/client/sdk");
+        assertNull(LintServer.forward(portFile, new File("/work"), new String[] { "a" },
+                environment, System.getProperties(), System.out, System.err));
+        assertTrue(runs.isEmpty());
+    }
+
+    public void testIsSameEnvironment() {
+        Map<String, String> server = ImmutableMap.of("ANDROID_HOME", "/sdk", "PWD", "/server");
+        assertTrue(LintServer.isSameEnvironment(
+                ImmutableMap.of("ANDROID_HOME", "/sdk", "PWD", "/client"), server));
+        assertFalse(LintServer.isSameEnvironment(
+                ImmutableMap.of("ANDROID_HOME", "/other", "PWD", "/server"), server));
+        assertFalse(LintServer.isSameEnvironment(ImmutableMap.of("PWD", "/server"), server));
+        assertFalse(LintServer.isSameEnvironment(
+                ImmutableMap.of("ANDROID_HOME", "/sdk", "LINT_API_DATABASE", "/api.xml"),
+                server));
+    }
+
+    public void testConnectionLostAfterOutput() throws Exception {
+        // A server which relays some output, then goes away without an exit status
+        try (ServerSocket serverSocket = new ServerSocket(0, 1,
+                InetAddress.getLoopbackAddress())) {
+            Thread fake = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    byte[] bytes = "Scanning\n".getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(1);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.flush();
+                    socket.shutdownOutput();
+                    //noinspection StatementWithEmptyBody
+                    while (socket.getInputStream().read() != -1) {
+                        // Wait for the client to give up
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            fake.start();
+            Files.asCharSink(portFile, Charsets.UTF_8).write(
+                    "port=" + serverSocket.getLocalPort() + "\nsecret=secret\n");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            Integer status = LintServer.forward(portFile, new File("/work"),
+                    new String[] { "a" }, new PrintStream(out), new PrintStream(err));
+            fake.join(5000);
+            // Not run again locally, since that would repeat the output
+            assertEquals(Integer.valueOf(LintCliFlags.ERRNO_ERRORS), status);
+            assertEquals("Scanning\n", out.toString("UTF-8"));
+            assertTrue(err.toString("UTF-8").contains("Lost the connection to the lint server"));
+        }
+    }
+
+    public void testWrongSecret() throws Exception {
+        Files.asCharSink(portFile, Charsets.UTF_8).write(
+                "port=" + server.getPort() + "\nsecret=guess\n");
+        assertNull(LintServer.forward(portFile, new File("/work"), new String[] { "a" },
+                System.out, System.err));
+        assertTrue(runs.isEmpty());
+    }
+
+    public void testNoServer() throws Exception {
+        assertNull(LintServer.forward(new File(portFile.getPath() + ".missing"),
+                new File("/work"), new String[] { "a" }, System.out, System.err));
+    }
+
+    public void testStop() throws Exception {
+        assertTrue(LintServer.stop(portFile));
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(LintServer.forward(portFile, new File("/work"), new String[] { "a" },
+                System.out, System.err));
+    }
+}
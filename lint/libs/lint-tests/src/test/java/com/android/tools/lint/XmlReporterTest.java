@@ -17,13 +17,19 @@
 package com.android.tools.lint;
 
 import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
 import com.android.tools.lint.checks.HardcodedValuesDetector;
 import com.android.tools.lint.checks.ManifestDetector;
 import com.android.tools.lint.checks.TypographyDetector;
+import com.android.tools.lint.client.api.LintDriver;
+import com.android.tools.lint.client.api.LintProfiler;
+import com.android.tools.lint.client.api.LintProfiler.Category;
+import com.android.tools.lint.client.api.LintRequest;
 import com.android.tools.lint.detector.api.DefaultPosition;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.Severity;
 import com.android.tools.lint.detector.api.TextFormat;
 import com.android.utils.PositionXmlParser;
@@ -31,9 +37,11 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 @SuppressWarnings("javadoc")
 public class XmlReporterTest extends AbstractCheckTest {
@@ -369,6 +377,60 @@ public class XmlReporterTest extends AbstractCheckTest {
         }
     }
 
+    public void testPerformance() throws Exception {
+        File file = new File(getTargetDir(), "report");
+        try {
+            LintCliClient client = createClient();
+            client.driver = new LintDriver(new BuiltinIssueRegistry(), client,
+                    new LintRequest(client, Collections.emptyList()));
+            LintProfiler profiler = new LintProfiler();
+            client.driver.setProfiler(profiler);
+            profiler.end(profiler.start(), Category.PHASE, "Resources", null);
+            profiler.end(profiler.start(), Category.DETECTOR,
+                    HardcodedValuesDetector.class.getName(), Scope.RESOURCE_FILE);
+            profiler.end(profiler.start(), Category.FILE,
+                    new File(getTargetDir(), "res/layout/main.xml").getPath(), null);
+
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            XmlReporter reporter = new XmlReporter(client, file);
+            reporter.setStripPrefix(getTargetDir().getPath());
+            reporter.write(new Reporter.Stats(0, 0), Collections.emptyList());
+
+            String report = Files.toString(file, Charsets.UTF_8);
+            Document document = PositionXmlParser.parse(report);
+            assertNotNull(document);
+            NodeList performance = document.getElementsByTagName("performance");
+            assertEquals(1, performance.getLength());
+
+            Element phase = (Element) document.getElementsByTagName("phase").item(0);
+            assertEquals("Resources", phase.getAttribute("name"));
+            assertEquals("1", phase.getAttribute("count"));
+            assertTrue(Long.parseLong(phase.getAttribute("wallTime")) >= 0);
+            assertTrue(Long.parseLong(phase.getAttribute("cpuTime")) >= 0);
+            assertTrue(Long.parseLong(phase.getAttribute("allocatedBytes")) >= 0);
+
+            Element detector = (Element) document.getElementsByTagName("detector").item(0);
+            assertEquals(HardcodedValuesDetector.class.getName(), detector.getAttribute("name"));
+            assertEquals("Resources", detector.getAttribute("phase"));
+            assertEquals("1", detector.getAttribute("count"));
+
+            Element fileElement = (Element) document.getElementsByTagName("file").item(0);
+            assertEquals("res/layout/main.xml",
+                    fileElement.getAttribute("name").replace(File.separatorChar, '/'));
+
+            // Not written to baselines
+            reporter = new XmlReporter(client, file);
+            reporter.setIntendedForBaseline(true);
+            reporter.write(new Reporter.Stats(0, 0), Collections.emptyList());
+            report = Files.toString(file, Charsets.UTF_8);
+            assertFalse(report.contains("<performance>"));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
     @Override
     protected Detector getDetector() {
         fail("Not used in this test");
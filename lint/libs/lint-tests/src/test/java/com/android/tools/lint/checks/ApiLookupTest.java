@@ -21,10 +21,12 @@ import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Severity;
 import com.android.utils.Pair;
+import com.google.common.io.Files;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 
 @SuppressWarnings({"javadoc", "ConstantConditions"})
@@ -310,6 +312,115 @@ public class ApiLookupTest extends AbstractCheckTest {
         ApiLookup.dispose();
     }
 
+    public void testClassHashTable() throws Exception {
+        // Enough classes, spread over few packages, to get collisions in the class table
+        ApiLookup lookup = getCustomLookup(createApiXml(500));
+        try {
+            assertNotNull(lookup);
+            for (int i = 0; i < 500; i++) {
+                String className = getCustomClassName(i);
+                int since = 1 + i % 25;
+                assertEquals(className, since, lookup.getClassVersion(className));
+                assertEquals(since, lookup.getClassVersion(className.replace('/', '.')));
+                assertEquals(since + 1, lookup.getFieldVersion(className, "FIELD"));
+                assertEquals(since + 1, lookup.getMethodVersion(className, "method", "(I)V"));
+                assertEquals(since, lookup.getClassVersion(className + "$Inner"));
+                assertEquals(since, lookup.getClassVersion(
+                        className.replace('/', '.') + ".Inner"));
+                assertEquals(-1, lookup.getClassVersion(className + "X"));
+                assertEquals(-1, lookup.getClassVersion(className.replace("android/",
+                        "androidx/")));
+                assertEquals(-1, lookup.getClassVersion(className.contains("/app/")
+                        ? className.replace("/app/", "/view/")
+                        : className.replace("/view/", "/app/")));
+            }
+            assertEquals(-1, lookup.getClassVersion("android"));
+            assertEquals(-1, lookup.getClassVersion("android/app"));
+            assertEquals(-1, lookup.getClassVersion(""));
+            assertTrue(lookup.containsClass(getCustomClassName(42)));
+            assertFalse(lookup.containsClass("android/app/Unknown"));
+            assertEquals("", mLogBuffer.toString()); // No warnings
+        } finally {
+            System.clearProperty("LINT_API_DATABASE");
+            ApiLookup.dispose();
+        }
+    }
+
+    @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
+    public void testCorruptClassTable() throws Exception {
+        if (ApiLookup.DEBUG_FORCE_REGENERATE_BINARY) {
+            System.err.println("Skipping " + getName() + ": not valid while regenerating indices");
+            return;
+        }
+
+        File xml = createApiXml(20);
+        try {
+            ApiLookup lookup = getCustomLookup(xml);
+            assertNotNull(lookup);
+            assertEquals(1, lookup.getClassVersion(getCustomClassName(0)));
+            assertEquals("", mLogBuffer.toString()); // No warnings
+            ApiLookup.dispose();
+
+            // Make the class table size in the header something other than a power of two
+            File cacheFile = new File(mCacheDir, ApiLookup.getCacheFileName(xml.getName(),
+                    ApiLookup.getPlatformVersion(new LookupTestClient())));
+            assertTrue(cacheFile.exists());
+            RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+            // File header and format version, then index count, container count and
+            // class table offset
+            raf.seek("API database used by Android lint\000".length() + 1 + 3 * 4);
+            raf.writeInt(3);
+            raf.close();
+
+            lookup = getCustomLookup(xml);
+            assertNotNull(lookup);
+            String message = mLogBuffer.toString();
+            assertTrue(message.contains("Truncated API database"));
+            assertTrue(message.contains("Please delete the file and restart the IDE/lint:"));
+            assertEquals(-1, lookup.getClassVersion(getCustomClassName(0)));
+            assertFalse(lookup.containsClass(getCustomClassName(0)));
+        } finally {
+            System.clearProperty("LINT_API_DATABASE");
+            ApiLookup.dispose();
+        }
+    }
+
+    @NonNull
+    private static String getCustomClassName(int index) {
+        return (index % 3 == 0 ? "android/app/" : "android/view/") + "Class" + index;
+    }
+
+    @NonNull
+    private File createApiXml(int classCount) throws Exception {
+        StringBuilder sb = new StringBuilder("<api version=\"2\">\n");
+        for (int i = 0; i < classCount; i++) {
+            String className = getCustomClassName(i);
+            int since = 1 + i % 25;
+            sb.append("<class name=\"").append(className).append("\" since=\"").append(since)
+                    .append("\">\n");
+            sb.append("<method name=\"method(I)V\" since=\"").append(since + 1)
+                    .append("\"/>\n");
+            sb.append("<field name=\"FIELD\" since=\"").append(since + 1).append("\"/>\n");
+            sb.append("</class>\n");
+            sb.append("<class name=\"").append(className).append("$Inner\" since=\"")
+                    .append(since).append("\"/>\n");
+        }
+        sb.append("</api>\n");
+
+        File xml = new File(getTempDir(), "custom-api-versions.xml");
+        Files.write(sb, xml, StandardCharsets.UTF_8);
+        return xml;
+    }
+
+    @Nullable
+    private ApiLookup getCustomLookup(@NonNull File xml) {
+        mCacheDir = new File(getTempDir(), "custom-cache");
+        mLogBuffer.setLength(0);
+        System.setProperty("LINT_API_DATABASE", xml.getPath());
+        ApiLookup.dispose();
+        return ApiLookup.get(new LookupTestClient());
+    }
+
     private static final boolean CHECK_DEPRECATED = true;
 
     private static void assertSameApi(String desc, int expected, int actual) {
@@ -21,11 +21,15 @@ import static com.android.tools.lint.detector.api.LintUtilsTest.parse;
 import com.android.annotations.NonNull;
 import com.android.tools.lint.checks.AbstractCheckTest;
 import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.MathDetector;
+import com.android.tools.lint.checks.infrastructure.TestLintTask.LintDriverConfigurator;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.JavaContext;
 import com.android.tools.lint.detector.api.Project;
 import com.android.utils.Pair;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.util.Disposer;
 import java.io.File;
@@ -111,6 +115,97 @@ public class LintDriverTest extends AbstractCheckTest {
         Disposer.dispose(unit.getSecond());
     }
 
+    public void testThreadCount() {
+        // The thread safe detectors are run on the worker threads, along with the other
+        // detectors on the analyzing thread, and must report the same issues in the same order
+        String output = runMixedDetectors(driver -> {});
+        assertTrue(output, output.contains("[HardcodedText]"));
+        assertTrue(output, output.contains("[ContentDescription]"));
+        assertEquals(output, runMixedDetectors(driver -> driver.setThreadCount(4)));
+    }
+
+    public void testResultCache() throws Exception {
+        // Looking up the results of the cacheable detectors must not change the order of
+        // the issues, without worker threads as well as with them
+        File cacheFile = new File(Files.createTempDir(), "lint.cache");
+        String output = runMixedDetectors(driver -> {});
+        assertEquals(output, runMixedDetectors(driver -> driver.setResultCache(
+                new LintResultCache(driver.getClient(), driver.getRegistry(), cacheFile))));
+        assertTrue(cacheFile.exists());
+        assertEquals(output, runMixedDetectors(driver -> {
+            driver.setThreadCount(4);
+            driver.setResultCache(
+                    new LintResultCache(driver.getClient(), driver.getRegistry(), cacheFile));
+        }));
+    }
+
+    /**
+     * Runs thread safe and cacheable detectors along with other detectors, and returns the
+     * output of lint
+     */
+    private String runMixedDetectors(@NonNull LintDriverConfigurator configurator) {
+        //noinspection all // Sample code
+        TestFile[] files = {
+                xml("res/layout/layout1.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                        + "    android:layout_width=\"match_parent\"\n"
+                        + "    android:layout_height=\"match_parent\" >\n"
+                        + "\n"
+                        + "    <Button\n"
+                        + "        android:layout_width=\"wrap_content\"\n"
+                        + "        android:layout_height=\"wrap_content\"\n"
+                        + "        android:text=\"Button\" />\n"
+                        + "\n"
+                        + "    <ImageView\n"
+                        + "        android:layout_width=\"wrap_content\"\n"
+                        + "        android:layout_height=\"wrap_content\" />\n"
+                        + "\n"
+                        + "</LinearLayout>\n"),
+                xml("res/layout/layout2.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<TextView xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                        + "    android:layout_width=\"match_parent\"\n"
+                        + "    android:layout_height=\"match_parent\"\n"
+                        + "    android:text=\"Hello\" />\n"),
+                xml("res/layout-land/layout2.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<TextView xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                        + "    android:layout_width=\"match_parent\"\n"
+                        + "    android:layout_height=\"match_parent\"\n"
+                        + "    android:text=\"Hello landscape\" />\n"),
+                java(""
+                        + "package test.pkg;\n"
+                        + "\n"
+                        + "import android.util.FloatMath;\n"
+                        + "\n"
+                        + "public class Test1 {\n"
+                        + "    public float test(float x) {\n"
+                        + "        return FloatMath.cos(x);\n"
+                        + "    }\n"
+                        + "}\n"),
+                java(""
+                        + "package test.pkg;\n"
+                        + "\n"
+                        + "import android.util.FloatMath;\n"
+                        + "\n"
+                        + "public class Test2 {\n"
+                        + "    public float test(float x) {\n"
+                        + "        return FloatMath.sin(x);\n"
+                        + "    }\n"
+                        + "}\n")
+        };
+
+        String[] output = new String[1];
+        lint().files(files)
+                .issues(HardcodedValuesDetector.ISSUE, MathDetector.ISSUE,
+                        AccessibilityDetector.ISSUE)
+                .configureDriver(configurator)
+                .run()
+                .check(result -> output[0] = result);
+        return output[0];
+    }
+
     @Override
     protected TestLintClient createClient() {
         return new TestLintClient() {
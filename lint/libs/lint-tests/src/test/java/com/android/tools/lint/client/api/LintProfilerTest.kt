@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.client.api.LintProfiler.Category
+import com.android.tools.lint.detector.api.Scope
+import com.google.common.truth.Truth.assertThat
+import java.io.StringWriter
+import junit.framework.TestCase
+
+class LintProfilerTest : TestCase() {
+    fun testMeasure() {
+        val profiler = LintProfiler()
+        profiler.measure(Category.PHASE, "Resources", null) {
+            for (i in 0 until 3) {
+                profiler.measure(Category.FILE, "res/layout/main.xml", null) {
+                    profiler.measure(this, Scope.RESOURCE_FILE) { Thread.sleep(1) }
+                }
+            }
+        }
+        profiler.measure(this, Scope.JAVA_FILE) { }
+
+        val phase = profiler.getMeasurement(Category.PHASE, "Resources")!!
+        assertThat(phase.count).isEqualTo(1)
+        val file = profiler.getMeasurement(Category.FILE, "res/layout/main.xml")!!
+        assertThat(file.count).isEqualTo(3)
+        assertThat(file.wallTime).isAtLeast(3000000L)
+        assertThat(phase.wallTime).isAtLeast(file.wallTime)
+
+        val detectors = profiler.getMeasurements(Category.DETECTOR)
+        assertThat(detectors).hasSize(2)
+        assertThat(detectors[0].phase).isEqualTo(Scope.RESOURCE_FILE)
+        assertThat(detectors[0].name).isEqualTo(LintProfilerTest::class.java.name)
+        assertThat(detectors[0].count).isEqualTo(3)
+        assertThat(detectors[1].phase).isEqualTo(Scope.JAVA_FILE)
+        assertThat(profiler.getMeasurement(Category.DETECTOR,
+                LintProfilerTest::class.java.name, Scope.JAVA_FILE)).isSameAs(detectors[1])
+        assertThat(profiler.getMeasurement(Category.DETECTOR,
+                LintProfilerTest::class.java.name)).isNull()
+    }
+
+    fun testWriteChromeTrace() {
+        val profiler = LintProfiler()
+        profiler.measure(Category.FILE, "src/\"quoted\".java", null) { }
+        profiler.measure(Category.PHASE, "Java", null) { }
+        val writer = StringWriter()
+        profiler.writeChromeTrace(writer)
+        val trace = writer.toString()
+        assertThat(trace).startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n")
+        assertThat(trace).contains("{\"name\":\"src/\\\"quoted\\\".java\",\"cat\":\"file\"," +
+                "\"ph\":\"X\",\"pid\":1,\"tid\":${Thread.currentThread().id},\"ts\":")
+        assertThat(trace).contains("{\"name\":\"Java\",\"cat\":\"phase\",")
+        assertThat(trace).endsWith("}\n]}\n")
+    }
+
+    fun testPhaseNames() {
+        assertThat(LintProfiler.getPhaseName(null)).isEqualTo("Project")
+        assertThat(LintProfiler.getPhaseName(Scope.ALL_RESOURCE_FILES)).isEqualTo("Resources")
+        assertThat(LintProfiler.getPhaseName(Scope.TEST_SOURCES)).isEqualTo("Java")
+        assertThat(LintProfiler.getPhaseName(Scope.JAVA_LIBRARIES)).isEqualTo("Classes")
+    }
+}
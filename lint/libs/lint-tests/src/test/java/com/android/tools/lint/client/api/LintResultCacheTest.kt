@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api
+
+import com.android.tools.lint.checks.AbstractCheckTest
+import com.android.tools.lint.checks.BuiltinIssueRegistry
+import com.android.tools.lint.checks.HardcodedValuesDetector
+import com.android.tools.lint.detector.api.DefaultPosition
+import com.android.tools.lint.detector.api.Detector
+import com.android.tools.lint.detector.api.Location
+import com.android.tools.lint.detector.api.Severity
+import com.android.tools.lint.detector.api.TextFormat
+import com.google.common.base.Charsets
+import com.google.common.io.Files
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+
+class LintResultCacheTest : AbstractCheckTest() {
+    fun testRoundTrip() {
+        val cacheFile = File(Files.createTempDir(), "lint.cache")
+        val registry = BuiltinIssueRegistry()
+        val layout = File("res/layout/main.xml")
+        val secondary = Location.create(File("res/layout/main2.xml"),
+                DefaultPosition(3, 4, 50), null)
+        val location = Location.create(layout, DefaultPosition(11, 8, 420),
+                DefaultPosition(11, 27, 439))
+                .withSecondary(secondary, "Also here")
+
+        var cache = LintResultCache(createClient(), registry, cacheFile)
+        val key = LintResultCache.createKey("context", layout, listOf("<a/>".toByteArray()))
+        assertThat(cache.getIncidents(key)).isNull()
+        cache.putIncidents(key, listOf(LintResultCache.Incident(
+                HardcodedValuesDetector.ISSUE, Severity.WARNING, location,
+                "Hardcoded string \"Fooo\", should use `@string` resource", TextFormat.RAW)))
+        cache.putIncidents("empty", emptyList())
+        assertThat(cache.missCount).isEqualTo(1)
+        cache.close()
+        // The temporary file written first was moved over the cache file
+        assertThat(cacheFile.parentFile.list()).asList().containsExactly(cacheFile.name)
+
+        cache = LintResultCache(createClient(), registry, cacheFile)
+        val incidents = cache.getIncidents(key)!!
+        assertThat(incidents).hasSize(1)
+        val incident = incidents[0]
+        assertThat(incident.issue).isSameAs(HardcodedValuesDetector.ISSUE)
+        assertThat(incident.severity).isEqualTo(Severity.WARNING)
+        assertThat(incident.format).isEqualTo(TextFormat.RAW)
+        assertThat(incident.message).isEqualTo(
+                "Hardcoded string \"Fooo\", should use `@string` resource")
+        assertThat(incident.location.file).isEqualTo(layout)
+        assertThat(incident.location.start!!.line).isEqualTo(11)
+        assertThat(incident.location.start!!.column).isEqualTo(8)
+        assertThat(incident.location.end!!.offset).isEqualTo(439)
+        val cachedSecondary = incident.location.secondary!!
+        assertThat(cachedSecondary.file).isEqualTo(File("res/layout/main2.xml"))
+        assertThat(cachedSecondary.message).isEqualTo("Also here")
+        assertThat(cachedSecondary.end).isNull()
+        assertThat(cache.hitCount).isEqualTo(1)
+        cache.close()
+
+        // Only the results looked up are kept
+        cache = LintResultCache(createClient(), registry, cacheFile)
+        assertThat(cache.getIncidents("empty")).isNull()
+        assertThat(cache.getIncidents(key)).hasSize(1)
+    }
+
+    fun testCreateKey() {
+        val file = File("src/test/pkg/Test.java")
+        val key = LintResultCache.createKey("context", file, listOf("class Test {}".toByteArray()))
+        assertThat(LintResultCache.createKey("context", file,
+                listOf("class Test {}".toByteArray()))).isEqualTo(key)
+        assertThat(LintResultCache.createKey("context", file,
+                listOf("class Test { }".toByteArray()))).isNotEqualTo(key)
+        assertThat(LintResultCache.createKey("other context", file,
+                listOf("class Test {}".toByteArray()))).isNotEqualTo(key)
+        assertThat(LintResultCache.createKey("context", File("src/test/pkg/Test2.java"),
+                listOf("class Test {}".toByteArray()))).isNotEqualTo(key)
+    }
+
+    fun testInvalidCache() {
+        val cacheFile = File(Files.createTempDir(), "lint.cache")
+        Files.asCharSink(cacheFile, Charsets.UTF_8).write("<issues/>")
+        val cache = LintResultCache(createClient(), BuiltinIssueRegistry(), cacheFile)
+        assertThat(cache.getIncidents("key")).isNull()
+        cache.putIncidents("key", emptyList())
+        cache.close()
+
+        assertThat(LintResultCache(createClient(), BuiltinIssueRegistry(), cacheFile)
+                .getIncidents("key")).isEmpty()
+    }
+
+    fun testInvalidSeverity() {
+        val cacheFile = File(Files.createTempDir(), "lint.cache")
+        val registry = BuiltinIssueRegistry()
+        val layout = File("res/layout/main.xml")
+        var cache = LintResultCache(createClient(), registry, cacheFile)
+        val key = LintResultCache.createKey("context", layout, listOf("<a/>".toByteArray()))
+        cache.putIncidents(key, listOf(LintResultCache.Incident(HardcodedValuesDetector.ISSUE,
+                Severity.WARNING, Location.create(layout), "Hardcoded string", TextFormat.RAW)))
+        cache.close()
+
+        // The severity follows the header, the key, the incident count and the issue id
+        val bytes = cacheFile.readBytes()
+        val offset = 12 + 2 + key.length + 4 + 2 + HardcodedValuesDetector.ISSUE.id.length
+        assertThat(bytes[offset].toInt()).isEqualTo(Severity.WARNING.ordinal)
+        bytes[offset] = Severity.values().size.toByte()
+        cacheFile.writeBytes(bytes)
+
+        cache = LintResultCache(createClient(), registry, cacheFile)
+        assertThat(cache.getIncidents(key)).isNull()
+    }
+
+    override fun getDetector(): Detector? {
+        fail("Not used by this test")
+        return null
+    }
+}
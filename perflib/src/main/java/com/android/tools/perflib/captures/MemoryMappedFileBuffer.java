@@ -85,6 +85,28 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer source) {
+        mBufferSize = source.mBufferSize;
+        mPadding = source.mPadding;
+        mLength = source.mLength;
+        mByteBuffers = new ByteBuffer[source.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = source.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = source.mCurrentPosition;
+    }
+
+    /**
+     * Returns a buffer sharing the same mapping but with its own read position, so that different
+     * threads can read from the file concurrently. The returned buffer must not be disposed, it
+     * becomes invalid once this buffer is disposed.
+     */
+    @NonNull
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
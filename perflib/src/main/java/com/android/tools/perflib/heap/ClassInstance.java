@@ -59,6 +59,28 @@ public class ClassInstance extends Instance {
         return result;
     }
 
+    /**
+     * Returns the id of the instance the first reference field with the given name points to, or 0
+     * if there is no such field. Unlike {@link #getValues()}, the referenced instance does not need
+     * to be loaded, e.g. when streaming with a {@link HprofVisitor}.
+     */
+    public long getReferenceId(@NonNull String fieldName) {
+        Snapshot snapshot = mHeap.mSnapshot;
+        long position = mValuesOffset;
+        ClassObj clazz = getClassObj();
+        while (clazz != null) {
+            for (Field field : clazz.getFields()) {
+                if (field.getType() == Type.OBJECT && fieldName.equals(field.getName())) {
+                    getBuffer().setPosition(position);
+                    return readId();
+                }
+                position += snapshot.getTypeSize(field.getType());
+            }
+            clazz = clazz.getSuperClassObj();
+        }
+        return 0;
+    }
+
     @Override
     public final void resolveReferences() {
         for (FieldValue fieldValue : getValues()) {
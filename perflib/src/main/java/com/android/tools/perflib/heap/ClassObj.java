@@ -47,6 +47,9 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     private boolean mIsSoftReference = false;
 
+    //  Whether the instances recorded in the heaps' instance indices have been added to mHeapData.
+    private boolean mIndexedInstancesAdded = false;
+
     @NonNull
     TIntObjectHashMap<HeapData> mHeapData = new TIntObjectHashMap<HeapData>();
 
@@ -94,6 +97,10 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         heapData.mShallowSize += instance.getSize();
     }
 
+    final long getStaticFieldsOffset() {
+        return mStaticFieldsOffset;
+    }
+
     public final void setSuperClassId(long superClass) {
         mSuperClassId = superClass;
     }
@@ -124,6 +131,10 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         mFields = fields;
     }
 
+    public Field[] getStaticFields() {
+        return mStaticFields;
+    }
+
     public void setStaticFields(@NonNull Field[] staticFields) {
         mStaticFields = staticFields;
     }
@@ -138,7 +149,9 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     public int getShallowSize(int heapId) {
         HeapData heapData = mHeapData.get(heapId);
-        return heapData == null ? 0 : mHeapData.get(heapId).mShallowSize;
+        int size = heapData == null ? 0 : mHeapData.get(heapId).mShallowSize;
+        InstanceIndex index = getInstanceIndex(heapId);
+        return index == null ? size : size + index.getShallowSize(this);
     }
 
     public void setIsSoftReference() {
@@ -253,6 +266,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public List<Instance> getInstancesList() {
+        addIndexedInstances();
         int count = getInstanceCount();
         ArrayList<Instance> resultList = new ArrayList<Instance>(count);
         for (int heapId : mHeapData.keys()) {
@@ -263,13 +277,16 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     @NonNull
     public List<Instance> getHeapInstances(int heapId) {
+        addIndexedInstances();
         HeapData result = mHeapData.get(heapId);
         return result == null ? new ArrayList<Instance>(0) : result.mInstances;
     }
 
     public int getHeapInstancesCount(int heapId) {
       HeapData result = mHeapData.get(heapId);
-      return result == null ? 0 : result.mInstances.size();
+      int count = result == null ? 0 : result.mInstances.size();
+      InstanceIndex index = getInstanceIndex(heapId);
+      return index == null ? count : count + index.getInstanceCount(this);
     }
 
     public int getInstanceCount() {
@@ -277,6 +294,13 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         for (Object heapStat : mHeapData.getValues()) {
             count += ((HeapData)heapStat).mInstances.size();
         }
+        if (!mIndexedInstancesAdded && mHeap != null && mHeap.mSnapshot != null) {
+            for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+                if (heap.mInstanceIndex != null) {
+                    count += heap.mInstanceIndex.getInstanceCount(this);
+                }
+            }
+        }
         return count;
     }
 
@@ -285,9 +309,50 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         for (Object heapStat : mHeapData.getValues()) {
             size += ((HeapData)heapStat).mShallowSize;
         }
+        if (!mIndexedInstancesAdded && mHeap != null && mHeap.mSnapshot != null) {
+            for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+                if (heap.mInstanceIndex != null) {
+                    size += heap.mInstanceIndex.getShallowSize(this);
+                }
+            }
+        }
         return size;
     }
 
+    /**
+     * Returns the instance index of the given heap if its instances of this class have not been
+     * added to {@link #mHeapData} yet, so that counts and sizes can be answered from the index.
+     */
+    @Nullable
+    private InstanceIndex getInstanceIndex(int heapId) {
+        if (mIndexedInstancesAdded || mHeap == null || mHeap.mSnapshot == null) {
+            return null;
+        }
+        Heap heap = mHeap.mSnapshot.getHeap(heapId);
+        return heap == null ? null : heap.mInstanceIndex;
+    }
+
+    /**
+     * Instances of snapshots with instance indexing enabled are only materialized on demand, so
+     * they get added to their class the first time the instances of the class are queried. Their
+     * counts and shallow sizes are read from the index without materializing them.
+     */
+    private void addIndexedInstances() {
+        if (mIndexedInstancesAdded || mHeap == null || mHeap.mSnapshot == null) {
+            return;
+        }
+        mIndexedInstancesAdded = true;
+        for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+            if (heap.mInstanceIndex != null) {
+                final int heapId = heap.getId();
+                heap.mInstanceIndex.forEachInstanceOf(this, instance -> {
+                    addInstance(heapId, instance);
+                    return true;
+                });
+            }
+        }
+    }
+
     @NonNull
     public static String getReferenceClassName() {
         return "java.lang.ref.Reference";
@@ -17,6 +17,7 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -46,6 +47,11 @@ public class Heap {
     //  List of instances of above class definitions
     private final TLongObjectHashMap<Instance> mInstances = new TLongObjectHashMap<Instance>();
 
+    //  Compact index of instances that have not necessarily been materialized yet, only used by
+    //  snapshots created with instance indexing enabled.
+    @Nullable
+    InstanceIndex mInstanceIndex;
+
     //  The snapshot that this heap is part of
     Snapshot mSnapshot;
 
@@ -76,7 +82,11 @@ public class Heap {
     }
 
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        Instance instance = mInstances.get(id);
+        if (instance == null && mInstanceIndex != null) {
+            instance = mInstanceIndex.getInstance(id);
+        }
+        return instance;
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
@@ -146,10 +156,20 @@ public class Heap {
     }
 
     public void forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
+        if (mInstances.forEachValue(procedure) && mInstanceIndex != null) {
+            mInstanceIndex.forEachInstance(procedure);
+        }
+    }
+
+    /**
+     * Visits the instances that were added as objects, skipping the ones only recorded in the
+     * instance index so that they don't get materialized.
+     */
+    void forEachAddedInstance(@NonNull TObjectProcedure<Instance> procedure) {
         mInstances.forEachValue(procedure);
     }
 
     public int getInstancesCount() {
-        return mInstances.size();
+        return mInstances.size() + (mInstanceIndex != null ? mInstanceIndex.size() : 0);
     }
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.proguard.ProguardMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk index of a parsed heap dump, so that reopening the same dump does not require parsing
+ * it again.
+ *
+ * <p>The index holds what {@link HprofParser} extracts from the dump when instances are indexed
+ * (see {@link Snapshot#createSnapshot(DataBuffer, ProguardMap, List, boolean)}): a table of the
+ * strings used as class, field, method and heap names, the stack frames and traces, the classes of
+ * every heap, the columns of every {@link InstanceIndex} and the GC roots. Values of instances are
+ * not copied, they are still read from the dump through the offsets of the instance index. Names
+ * are stored as translated by the {@link ProguardMap} the dump was parsed with. Index files are
+ * named after a hash of the content of the dump and of the map, so they are found again whatever
+ * the dump is named and never used for a modified dump or with another map.
+ */
+final class HprofIndexFile {
+
+    private static final int MAGIC = 0x48504958; // "HPIX"
+
+    private static final int VERSION = 1;
+
+    private static final String EXTENSION = ".hprof-index";
+
+    //  String table index of null strings, e.g. unknown source files of stack frames.
+    private static final int NULL_STRING = -1;
+
+    //  Tags preceding stack trace references.
+    private static final byte NO_STACK = 0;
+
+    private static final byte WHOLE_STACK = 1;
+
+    private static final byte STACK_AT_DEPTH = 2;
+
+    private HprofIndexFile() {
+    }
+
+    /**
+     * Returns the file the index of the given heap dump parsed with the given map is stored in,
+     * within the given directory. Hashes the whole dump.
+     */
+    @NonNull
+    static File getIndexFile(@NonNull File hprofFile, @NonNull ProguardMap map,
+            @NonNull File directory) throws IOException {
+        HashCode dumpHash = Files.asByteSource(hprofFile).hash(Hashing.murmur3_128());
+        String hash = Hashing.murmur3_128().newHasher()
+                .putBytes(dumpHash.asBytes())
+                .putString(map.getContentHash(), StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+        return new File(directory, hash + EXTENSION);
+    }
+
+    /**
+     * Writes the index of a snapshot that was just parsed with instances indexed. The file is
+     * written to a temporary file next to its destination first and then moved into place, so
+     * that a partially written index is never read, even when two processes index the same dump.
+     */
+    static void write(@NonNull Snapshot snapshot, @NonNull File file) throws IOException {
+        assert snapshot.isIndexingInstances();
+        StringTable strings = new StringTable();
+        collectStrings(snapshot, strings);
+
+        File tempFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(snapshot.getDumpLength());
+                out.writeInt(snapshot.getTypeSize(Type.OBJECT));
+                strings.write(out);
+                writeStackFrames(out, snapshot, strings);
+                writeStackTraces(out, snapshot);
+
+                out.writeInt(snapshot.mHeaps.size());
+                for (Heap heap : snapshot.mHeaps) {
+                    out.writeInt(heap.getId());
+                    out.writeInt(strings.indexOf(heap.getName()));
+                    writeThreads(out, heap);
+                    writeClasses(out, heap, strings);
+                    assert heap.mInstanceIndex != null;
+                    heap.mInstanceIndex.writeColumns(out);
+                }
+
+                writeRoots(out, snapshot);
+            }
+            java.nio.file.Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            java.nio.file.Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Loads an index written by {@link #write} into a new snapshot of the given dump, in which
+     * instances are indexed. Returns false if the file is not an index of a dump of that size.
+     * Classes still need to be resolved, as after parsing.
+     */
+    static boolean read(@NonNull Snapshot snapshot, @NonNull File file) throws IOException {
+        DataBuffer in = new MemoryMappedFileBuffer(file);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != snapshot.getDumpLength()) {
+                return false;
+            }
+
+            snapshot.setIdSize(in.readInt());
+            String[] strings = StringTable.read(in);
+            readStackFrames(in, snapshot, strings);
+            readStackTraces(in, snapshot);
+
+            int heapCount = in.readInt();
+            for (int i = 0; i < heapCount; i++) {
+                int heapId = in.readInt();
+                Heap heap = snapshot.setHeapTo(heapId, readString(in, strings));
+                readThreads(in, heap);
+                readClasses(in, snapshot, strings);
+                assert heap.mInstanceIndex != null;
+                heap.mInstanceIndex.readColumns(in);
+            }
+
+            readRoots(in, snapshot);
+            snapshot.setToDefaultHeap();
+            return true;
+        } finally {
+            in.dispose();
+        }
+    }
+
+    private static void collectStrings(@NonNull Snapshot snapshot, @NonNull StringTable strings) {
+        for (Object value : snapshot.mFrames.getValues()) {
+            StackFrame frame = (StackFrame) value;
+            strings.add(frame.mMethodName);
+            strings.add(frame.mSignature);
+            strings.add(frame.mFilename);
+        }
+        for (Heap heap : snapshot.mHeaps) {
+            strings.add(heap.getName());
+            for (ClassObj classObj : heap.getClasses()) {
+                strings.add(classObj.mClassName);
+                for (Field field : classObj.mStaticFields) {
+                    strings.add(field.getName());
+                }
+                for (Field field : classObj.mFields) {
+                    strings.add(field.getName());
+                }
+            }
+        }
+    }
+
+    private static void writeStackFrames(@NonNull DataOutputStream out,
+            @NonNull Snapshot snapshot, @NonNull StringTable strings) throws IOException {
+        out.writeInt(snapshot.mFrames.size());
+        for (Object value : snapshot.mFrames.getValues()) {
+            StackFrame frame = (StackFrame) value;
+            out.writeLong(frame.mId);
+            out.writeInt(strings.indexOf(frame.mMethodName));
+            out.writeInt(strings.indexOf(frame.mSignature));
+            out.writeInt(strings.indexOf(frame.mFilename));
+            out.writeInt(frame.mSerialNumber);
+            out.writeInt(frame.mLineNumber);
+        }
+    }
+
+    private static void readStackFrames(@NonNull DataBuffer in, @NonNull Snapshot snapshot,
+            @NonNull String[] strings) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            String methodName = readString(in, strings);
+            String signature = readString(in, strings);
+            String filename = readString(in, strings);
+            int serial = in.readInt();
+            int lineNumber = in.readInt();
+            snapshot.addStackFrame(
+                    new StackFrame(id, methodName, signature, filename, serial, lineNumber));
+        }
+    }
+
+    private static void writeStackTraces(@NonNull DataOutputStream out,
+            @NonNull Snapshot snapshot) throws IOException {
+        out.writeInt(snapshot.mTraces.size());
+        for (Object value : snapshot.mTraces.getValues()) {
+            StackTrace trace = (StackTrace) value;
+            out.writeInt(trace.mSerialNumber);
+            out.writeInt(trace.mThreadSerialNumber);
+            out.writeInt(trace.mFrames.length);
+            for (StackFrame frame : trace.mFrames) {
+                out.writeBoolean(frame != null);
+                if (frame != null) {
+                    out.writeLong(frame.mId);
+                }
+            }
+        }
+    }
+
+    private static void readStackTraces(@NonNull DataBuffer in, @NonNull Snapshot snapshot) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int serial = in.readInt();
+            int threadSerial = in.readInt();
+            StackFrame[] frames = new StackFrame[in.readInt()];
+            for (int j = 0; j < frames.length; j++) {
+                if (in.readByte() != 0) {
+                    frames[j] = snapshot.getStackFrame(in.readLong());
+                }
+            }
+            snapshot.addStackTrace(new StackTrace(serial, threadSerial, frames));
+        }
+    }
+
+    private static void writeThreads(@NonNull DataOutputStream out, @NonNull Heap heap)
+            throws IOException {
+        out.writeInt(heap.mThreads.size());
+        for (int serial : heap.mThreads.keys()) {
+            ThreadObj thread = heap.mThreads.get(serial);
+            out.writeInt(serial);
+            out.writeLong(thread.mId);
+            out.writeInt(thread.mStackTrace);
+        }
+    }
+
+    private static void readThreads(@NonNull DataBuffer in, @NonNull Heap heap) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int serial = in.readInt();
+            long id = in.readLong();
+            heap.addThread(new ThreadObj(id, in.readInt()), serial);
+        }
+    }
+
+    private static void writeClasses(@NonNull DataOutputStream out, @NonNull Heap heap,
+            @NonNull StringTable strings) throws IOException {
+        out.writeInt(heap.getClasses().size());
+        for (ClassObj classObj : heap.getClasses()) {
+            out.writeLong(classObj.getId());
+            writeStack(out, classObj.getStack());
+            out.writeInt(strings.indexOf(classObj.mClassName));
+            out.writeLong(classObj.getStaticFieldsOffset());
+            out.writeLong(classObj.mSuperClassId);
+            out.writeLong(classObj.mClassLoaderId);
+            out.writeInt(classObj.getInstanceSize());
+            writeFields(out, classObj.mStaticFields, strings);
+            writeFields(out, classObj.mFields, strings);
+        }
+    }
+
+    private static void readClasses(@NonNull DataBuffer in, @NonNull Snapshot snapshot,
+            @NonNull String[] strings) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            StackTrace stack = readStack(in, snapshot);
+            String className = readString(in, strings);
+            ClassObj classObj = new ClassObj(id, stack, className, in.readLong());
+            classObj.setSuperClassId(in.readLong());
+            classObj.setClassLoaderId(in.readLong());
+            classObj.setInstanceSize(in.readInt());
+            classObj.setStaticFields(readFields(in, strings));
+            classObj.setFields(readFields(in, strings));
+            snapshot.addClass(id, classObj);
+        }
+    }
+
+    private static void writeFields(@NonNull DataOutputStream out, @NonNull Field[] fields,
+            @NonNull StringTable strings) throws IOException {
+        out.writeInt(fields.length);
+        for (Field field : fields) {
+            out.writeInt(strings.indexOf(field.getName()));
+            out.writeByte(field.getType().getTypeId());
+        }
+    }
+
+    @NonNull
+    private static Field[] readFields(@NonNull DataBuffer in, @NonNull String[] strings) {
+        Field[] fields = new Field[in.readInt()];
+        for (int i = 0; i < fields.length; i++) {
+            String name = readString(in, strings);
+            fields[i] = new Field(Type.getType(in.readByte()), name);
+        }
+        return fields;
+    }
+
+    private static void writeRoots(@NonNull DataOutputStream out, @NonNull Snapshot snapshot)
+            throws IOException {
+        out.writeInt(snapshot.mRoots.size());
+        for (RootObj root : snapshot.mRoots) {
+            out.writeInt(root.getHeap().getId());
+            out.writeInt(root.mType.ordinal());
+            out.writeLong(root.getId());
+            out.writeInt(root.mThread);
+            writeStack(out, root.getStack());
+        }
+    }
+
+    private static void readRoots(@NonNull DataBuffer in, @NonNull Snapshot snapshot) {
+        RootType[] types = RootType.values();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Heap heap = snapshot.getHeap(in.readInt());
+            assert heap != null;
+            snapshot.setHeapTo(heap.getId(), heap.getName());
+            RootType type = types[in.readInt()];
+            long id = in.readLong();
+            int thread = in.readInt();
+            snapshot.addRoot(new RootObj(type, id, thread, readStack(in, snapshot)));
+        }
+    }
+
+    //  Stack traces of thread roots may start at some depth of the trace of their thread, in
+    //  which case they are not registered in the snapshot and are recreated from their parent.
+    private static void writeStack(@NonNull DataOutputStream out, @Nullable StackTrace stack)
+            throws IOException {
+        if (stack == null) {
+            out.writeByte(NO_STACK);
+        } else if (stack.mParent == null) {
+            out.writeByte(WHOLE_STACK);
+            out.writeInt(stack.mSerialNumber);
+        } else {
+            out.writeByte(STACK_AT_DEPTH);
+            out.writeInt(stack.mParent.mSerialNumber);
+            out.writeInt(stack.mOffset);
+        }
+    }
+
+    @Nullable
+    private static StackTrace readStack(@NonNull DataBuffer in, @NonNull Snapshot snapshot) {
+        switch (in.readByte()) {
+            case WHOLE_STACK:
+                return snapshot.getStackTrace(in.readInt());
+            case STACK_AT_DEPTH:
+                int serial = in.readInt();
+                return snapshot.getStackTraceAtDepth(serial, in.readInt());
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static String readString(@NonNull DataBuffer in, @NonNull String[] strings) {
+        int index = in.readInt();
+        return index == NULL_STRING ? null : strings[index];
+    }
+
+    /**
+     * Strings of the index, stored once and referred to by their position in the table.
+     */
+    private static final class StringTable {
+
+        @NonNull
+        private final Map<String, Integer> mIndices = new HashMap<String, Integer>();
+
+        @NonNull
+        private final List<String> mStrings = new ArrayList<String>();
+
+        void add(@Nullable String string) {
+            if (string != null && !mIndices.containsKey(string)) {
+                mIndices.put(string, mStrings.size());
+                mStrings.add(string);
+            }
+        }
+
+        int indexOf(@Nullable String string) {
+            return string == null ? NULL_STRING : mIndices.get(string);
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeInt(mStrings.size());
+            for (String string : mStrings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @NonNull
+        static String[] read(@NonNull DataBuffer in) {
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.read(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return strings;
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.proguard.ProguardMap;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
@@ -25,6 +27,10 @@ import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 class HprofParser {
 
@@ -119,6 +125,13 @@ class HprofParser {
 
     private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    //  Stack depth of thread roots that use the whole stack trace of their thread.
+    private static final int WHOLE_STACK = -1;
+
+    //  Heap dump records are grouped into tasks of at least this many bytes when parsing in
+    //  parallel, to amortize the cost of merging the partial results.
+    static final long MIN_PARALLEL_TASK_BYTES = 8 * 1024 * 1024;
+
     @NonNull
     private final DataBuffer mInput;
 
@@ -129,6 +142,27 @@ class HprofParser {
     @NonNull
     private final ProguardMap mProguardMap;
 
+    //  The pool heap dump records are parsed on, or null to parse them sequentially.
+    @Nullable
+    private final ForkJoinPool mPool;
+
+    //  Minimum size of the batches of heap dump records parsed by each task of mPool.
+    private final long mMinParallelTaskBytes;
+
+    //  Where heap dump entries are collected when this parser only parses some heap dump records
+    //  on a worker thread, or null if they are added to the snapshot directly.
+    @Nullable
+    private final PartialHeapDump mPartialHeapDump;
+
+    //  Receives the instances when the dump is streamed, in which case they are not added to the
+    //  snapshot.
+    @Nullable
+    private final HprofVisitor mVisitor;
+
+    //  Whether the current pass over the heap dump records of a streamed dump visits the instances,
+    //  rather than loading the classes and roots.
+    private boolean mVisitingInstances;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
@@ -143,16 +177,73 @@ class HprofParser {
     TIntObjectHashMap<String> mClassNamesBySerial = new TIntObjectHashMap<String>();
 
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        new HprofParser(snapshot, buffer, map).parse();
+        parseBuffer(snapshot, buffer, map, null);
+    }
+
+    /**
+     * Parses the buffer into the snapshot. If a pool is given and the buffer can be read from
+     * several threads at once, the HEAP_DUMP and HEAP_DUMP_SEGMENT records are parsed in parallel
+     * on the pool once all the other records have been read.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ForkJoinPool pool) {
+        parseBuffer(snapshot, buffer, map, pool, MIN_PARALLEL_TASK_BYTES);
+    }
+
+    /**
+     * Like {@link #parseBuffer(Snapshot, DataBuffer, ProguardMap, ForkJoinPool)}, grouping the
+     * heap dump records into parallel tasks of at least {@code minParallelTaskBytes} bytes.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ForkJoinPool pool, long minParallelTaskBytes) {
+        if (!(buffer instanceof MemoryMappedFileBuffer)) {
+            pool = null;
+        }
+        new HprofParser(snapshot, buffer, map, pool, minParallelTaskBytes, null).parse();
+    }
+
+    /**
+     * Passes the instances of the buffer to the visitor instead of adding them to the snapshot.
+     * The heap dump records are read twice: once to load the classes and roots into the snapshot,
+     * then to visit the instances, so that the class of every instance is known by then.
+     */
+    static void streamBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull HprofVisitor visitor) {
+        new HprofParser(snapshot, buffer, map, null, MIN_PARALLEL_TASK_BYTES, visitor).parse();
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ForkJoinPool pool, long minParallelTaskBytes,
+            @Nullable HprofVisitor visitor) {
         mInput = buffer;
         mSnapshot = snapshot;
         mProguardMap = map;
+        mPool = pool;
+        mMinParallelTaskBytes = minParallelTaskBytes;
+        mPartialHeapDump = null;
+        mVisitor = visitor;
+    }
+
+    /**
+     * Creates a parser for heap dump records that reads from its own view of the buffer of
+     * {@code parent} and shares its (by then read only) string and class name tables.
+     */
+    private HprofParser(@NonNull HprofParser parent) {
+        mInput = ((MemoryMappedFileBuffer) parent.mInput).duplicate();
+        mSnapshot = parent.mSnapshot;
+        mProguardMap = parent.mProguardMap;
+        mPool = null;
+        mMinParallelTaskBytes = parent.mMinParallelTaskBytes;
+        mPartialHeapDump = new PartialHeapDump();
+        mVisitor = null;
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNamesById = parent.mClassNamesById;
+        mClassNamesBySerial = parent.mClassNamesBySerial;
     }
 
     private void parse() {
+        List<HeapDumpRecord> heapDumps = new ArrayList<HeapDumpRecord>();
         try {
             try {
                 readNullTerminatedString();  // Version, ignored for now.
@@ -186,13 +277,14 @@ class HprofParser {
                             break;
 
                         case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
                         case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
+                            if (mPool != null || mVisitor != null) {
+                                heapDumps.add(new HeapDumpRecord(mInput.position(), length));
+                                skipFully(length);
+                            } else {
+                                loadHeapDump(length);
+                                mSnapshot.setToDefaultHeap();
+                            }
                             break;
 
                         default:
@@ -203,8 +295,15 @@ class HprofParser {
             } catch (EOFException eof) {
                 //  this is fine
             }
-            mSnapshot.resolveClasses();
-            mSnapshot.identifySoftReferences();
+            if (mVisitor != null) {
+                streamHeapDumps(heapDumps);
+            } else {
+                if (!heapDumps.isEmpty()) {
+                    loadHeapDumpsInParallel(heapDumps);
+                }
+                mSnapshot.resolveClasses();
+                mSnapshot.identifySoftReferences();
+            }
             // TODO: enable this after the dominators computation is also optimized.
             // mSnapshot.computeRetainedSizes();
         } catch (Exception e) {
@@ -216,6 +315,69 @@ class HprofParser {
         mStrings.clear();
     }
 
+    private void loadHeapDumpsInParallel(@NonNull List<HeapDumpRecord> records) {
+        assert mPool != null;
+        List<ForkJoinTask<PartialHeapDump>> tasks = new ArrayList<ForkJoinTask<PartialHeapDump>>();
+        int start = 0;
+        long bytes = 0;
+        for (int i = 0; i < records.size(); i++) {
+            bytes += records.get(i).mLength;
+            if (bytes >= mMinParallelTaskBytes || i == records.size() - 1) {
+                final List<HeapDumpRecord> batch = records.subList(start, i + 1);
+                tasks.add(mPool.submit(() -> new HprofParser(this).loadHeapDumps(batch)));
+                start = i + 1;
+                bytes = 0;
+            }
+        }
+
+        // Merge in file order so that the result is the same as when parsing sequentially. Roots
+        // are added last since they may refer to threads of any record.
+        List<PartialHeapDump> partials = new ArrayList<PartialHeapDump>(tasks.size());
+        for (ForkJoinTask<PartialHeapDump> task : tasks) {
+            PartialHeapDump partial = task.join();
+            partial.addHeapsTo(mSnapshot);
+            partials.add(partial);
+        }
+        for (PartialHeapDump partial : partials) {
+            partial.addRootsTo(mSnapshot);
+        }
+        mSnapshot.setToDefaultHeap();
+    }
+
+    private void streamHeapDumps(@NonNull List<HeapDumpRecord> records) throws IOException {
+        assert mVisitor != null;
+        for (HeapDumpRecord record : records) {
+            mInput.setPosition(record.mPosition);
+            loadHeapDump(record.mLength);
+            mSnapshot.setToDefaultHeap();
+        }
+        mSnapshot.resolveClasses();
+        mSnapshot.identifySoftReferences();
+        mVisitor.visitSnapshot(mSnapshot);
+
+        mVisitingInstances = true;
+        do {
+            for (HeapDumpRecord record : records) {
+                mInput.setPosition(record.mPosition);
+                loadHeapDump(record.mLength);
+                mSnapshot.setToDefaultHeap();
+            }
+        } while (mVisitor.visitPassEnd());
+        mVisitor.visitEnd();
+    }
+
+    @NonNull
+    private PartialHeapDump loadHeapDumps(@NonNull List<HeapDumpRecord> records)
+            throws IOException {
+        assert mPartialHeapDump != null;
+        for (HeapDumpRecord record : records) {
+            mInput.setPosition(record.mPosition);
+            mPartialHeapDump.setToDefaultHeap();
+            loadHeapDump(record.mLength);
+        }
+        return mPartialHeapDump;
+    }
+
     @NonNull
     private String readNullTerminatedString() throws IOException {
         StringBuilder s = new StringBuilder();
@@ -383,7 +545,7 @@ class HprofParser {
                     long heapNameId = readId();
                     String heapName = mStrings.get(heapNameId);
 
-                    mSnapshot.setHeapTo(heapId, heapName);
+                    setHeapTo(heapId, heapName);
                     length -= 4 + mIdSize;
                     break;
 
@@ -428,11 +590,7 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -441,11 +599,7 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.JAVA_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -453,11 +607,7 @@ class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_STACK, id, threadSerialNumber, WHOLE_STACK);
 
         return mIdSize + 4;
     }
@@ -466,7 +616,7 @@ class HprofParser {
         long id = readId();
         RootObj root = new RootObj(type, id);
 
-        mSnapshot.addRoot(root);
+        addRoot(root);
 
         return mIdSize;
     }
@@ -474,11 +624,7 @@ class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
-
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.THREAD_BLOCK, id, threadSerialNumber, WHOLE_STACK);
 
         return mIdSize + 4;
     }
@@ -491,8 +637,8 @@ class HprofParser {
         StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
         RootObj root = new RootObj(RootType.THREAD_OBJECT, id, threadSerialNumber, stack);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
-        mSnapshot.addRoot(root);
+        addThread(thread, threadSerialNumber);
+        addRoot(root);
 
         return mIdSize + 4 + 4;
     }
@@ -561,7 +707,7 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        addClass(id, theClass);
 
         return bytesRead;
     }
@@ -569,14 +715,25 @@ class HprofParser {
     private int loadInstanceDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         long classId = readId();
         int remaining = mInput.readInt();
 
         long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        if (mVisitor != null) {
+            if (mVisitingInstances) {
+                ClassInstance instance =
+                        new ClassInstance(id, mSnapshot.getStackTrace(stackId), position);
+                instance.setClassId(classId);
+                visitInstance(instance);
+            }
+        } else if (mSnapshot.isIndexingInstances()) {
+            addIndexedClassInstance(id, stackId, classId, position);
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ClassInstance instance = new ClassInstance(id, stack, position);
+            instance.setClassId(classId);
+            addInstance(id, instance);
+        }
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -585,13 +742,25 @@ class HprofParser {
     private int loadObjectArrayDump() throws IOException {
         final long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        if (mVisitor != null) {
+            if (mVisitingInstances) {
+                ArrayInstance array = new ArrayInstance(id, mSnapshot.getStackTrace(stackId),
+                        Type.OBJECT, numElements, mInput.position());
+                array.setClassId(classId);
+                visitInstance(array);
+            }
+        } else if (mSnapshot.isIndexingInstances()) {
+            addIndexedArrayInstance(id, stackId, classId, Type.OBJECT, numElements,
+                    mInput.position());
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ArrayInstance array =
+                    new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
+            array.setClassId(classId);
+            addInstance(id, array);
+        }
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -601,12 +770,22 @@ class HprofParser {
     private int loadPrimitiveArrayDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        if (mVisitor != null) {
+            if (mVisitingInstances) {
+                visitInstance(new ArrayInstance(id, mSnapshot.getStackTrace(stackId), type,
+                        numElements, mInput.position()));
+            }
+        } else if (mSnapshot.isIndexingInstances()) {
+            addIndexedArrayInstance(id, stackId, 0, type, numElements, mInput.position());
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ArrayInstance array =
+                    new ArrayInstance(id, stack, type, numElements, mInput.position());
+            addInstance(id, array);
+        }
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -617,15 +796,129 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
-
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_MONITOR, id, threadSerialNumber, stackDepth);
 
         return mIdSize + 4 + 4;
     }
 
+    private void setHeapTo(int id, @NonNull String name) {
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.setHeapTo(id, name);
+        } else {
+            mSnapshot.setHeapTo(id, name);
+        }
+    }
+
+    private void addRoot(@NonNull RootObj root) {
+        if (mVisitingInstances) {
+            return;
+        }
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mRoots.add(new PendingRoot(mPartialHeapDump.mCurrentHeap, root));
+        } else {
+            mSnapshot.addRoot(root);
+        }
+    }
+
+    /**
+     * Adds a root whose stack trace comes from the thread it belongs to. When parsing in parallel
+     * the thread may be defined by another record, so the root is only created once all records
+     * have been merged.
+     */
+    private void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+            int stackDepth) {
+        if (mVisitingInstances) {
+            return;
+        }
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mRoots.add(new PendingRoot(mPartialHeapDump.mCurrentHeap, type, id,
+                    threadSerialNumber, stackDepth));
+        } else {
+            mSnapshot.addRoot(createThreadRoot(mSnapshot, type, id, threadSerialNumber,
+                    stackDepth));
+        }
+    }
+
+    @NonNull
+    private static RootObj createThreadRoot(@NonNull Snapshot snapshot, @NonNull RootType type,
+            long id, int threadSerialNumber, int stackDepth) {
+        ThreadObj thread = snapshot.getThread(threadSerialNumber);
+        StackTrace trace = stackDepth == WHOLE_STACK
+                ? snapshot.getStackTrace(thread.mStackTrace)
+                : snapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
+        return new RootObj(type, id, threadSerialNumber, trace);
+    }
+
+    private void addThread(@NonNull ThreadObj thread, int serialNumber) {
+        if (mVisitingInstances) {
+            return;
+        }
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mCurrentHeap.mThreads.put(serialNumber, thread);
+        } else {
+            mSnapshot.addThread(thread, serialNumber);
+        }
+    }
+
+    private void addClass(long id, @NonNull ClassObj theClass) {
+        if (mVisitingInstances) {
+            return;
+        }
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mCurrentHeap.mClasses.add(theClass);
+        } else {
+            mSnapshot.addClass(id, theClass);
+        }
+    }
+
+    /**
+     * Hands a streamed instance to the visitor. The instance belongs to the current heap but is
+     * not added to it. Reading its values moves the position of the buffer, so it is restored
+     * afterwards.
+     */
+    private void visitInstance(@NonNull Instance instance) {
+        assert mVisitor != null;
+        instance.setHeap(mSnapshot.mCurrentHeap);
+        if (instance instanceof ClassInstance) {
+            ClassObj classObj = instance.getClassObj();
+            if (classObj != null) {
+                instance.setSize(classObj.getInstanceSize());
+            }
+        }
+        long position = mInput.position();
+        mVisitor.visitInstance(instance);
+        mInput.setPosition(position);
+    }
+
+    private void addInstance(long id, @NonNull Instance instance) {
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mCurrentHeap.mInstances.add(instance);
+        } else {
+            mSnapshot.addInstance(id, instance);
+        }
+    }
+
+    private void addIndexedClassInstance(long id, int stackSerial, long classId,
+            long valuesOffset) {
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mCurrentHeap.getIndexedInstances()
+                    .addClassInstance(id, stackSerial, classId, valuesOffset);
+        } else {
+            mSnapshot.addIndexedClassInstance(id, stackSerial, classId, valuesOffset);
+        }
+    }
+
+    private void addIndexedArrayInstance(long id, int stackSerial, long classId,
+            @NonNull Type type, int length, long valuesOffset) {
+        if (mPartialHeapDump != null) {
+            mPartialHeapDump.mCurrentHeap.getIndexedInstances()
+                    .addArrayInstance(id, stackSerial, classId, type, length, valuesOffset);
+        } else {
+            mSnapshot.addIndexedArrayInstance(id, stackSerial, classId, type, length,
+                    valuesOffset);
+        }
+    }
+
     private int skipValue() throws IOException {
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
@@ -638,4 +931,151 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * Position and length of the body of a HEAP_DUMP or HEAP_DUMP_SEGMENT record.
+     */
+    private static final class HeapDumpRecord {
+        final long mPosition;
+
+        final long mLength;
+
+        HeapDumpRecord(long position, long length) {
+            mPosition = position;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Entries of one heap collected by a worker thread while parsing heap dump records in
+     * parallel.
+     */
+    private static final class PartialHeap {
+        final int mId;
+
+        @NonNull
+        final String mName;
+
+        @NonNull
+        final TIntObjectHashMap<ThreadObj> mThreads = new TIntObjectHashMap<ThreadObj>();
+
+        @NonNull
+        final List<ClassObj> mClasses = new ArrayList<ClassObj>();
+
+        @NonNull
+        final List<Instance> mInstances = new ArrayList<Instance>();
+
+        @Nullable
+        private InstanceIndex mIndexedInstances;
+
+        PartialHeap(int id, @NonNull String name) {
+            mId = id;
+            mName = name;
+        }
+
+        @NonNull
+        InstanceIndex getIndexedInstances() {
+            if (mIndexedInstances == null) {
+                mIndexedInstances = new InstanceIndex(null);
+            }
+            return mIndexedInstances;
+        }
+    }
+
+    /**
+     * A root found by a worker thread, added to the snapshot after all records have been merged.
+     */
+    private static final class PendingRoot {
+        @NonNull
+        final PartialHeap mHeap;
+
+        //  The root if it could be created right away, null if it needs its thread's stack trace.
+        @Nullable
+        final RootObj mRoot;
+
+        final RootType mType;
+
+        final long mId;
+
+        final int mThreadSerialNumber;
+
+        final int mStackDepth;
+
+        PendingRoot(@NonNull PartialHeap heap, @NonNull RootObj root) {
+            mHeap = heap;
+            mRoot = root;
+            mType = null;
+            mId = 0;
+            mThreadSerialNumber = 0;
+            mStackDepth = 0;
+        }
+
+        PendingRoot(@NonNull PartialHeap heap, @NonNull RootType type, long id,
+                int threadSerialNumber, int stackDepth) {
+            mHeap = heap;
+            mRoot = null;
+            mType = type;
+            mId = id;
+            mThreadSerialNumber = threadSerialNumber;
+            mStackDepth = stackDepth;
+        }
+    }
+
+    /**
+     * The result of parsing a batch of consecutive heap dump records on a worker thread.
+     */
+    private static final class PartialHeapDump {
+        @NonNull
+        private final List<PartialHeap> mHeaps = new ArrayList<PartialHeap>();
+
+        @NonNull
+        final List<PendingRoot> mRoots = new ArrayList<PendingRoot>();
+
+        PartialHeap mCurrentHeap;
+
+        void setToDefaultHeap() {
+            setHeapTo(Snapshot.DEFAULT_HEAP_ID, Snapshot.DEFAULT_HEAP_NAME);
+        }
+
+        void setHeapTo(int id, @NonNull String name) {
+            for (PartialHeap heap : mHeaps) {
+                if (heap.mId == id) {
+                    mCurrentHeap = heap;
+                    return;
+                }
+            }
+            mCurrentHeap = new PartialHeap(id, name);
+            mHeaps.add(mCurrentHeap);
+        }
+
+        void addHeapsTo(@NonNull Snapshot snapshot) {
+            for (PartialHeap heap : mHeaps) {
+                snapshot.setHeapTo(heap.mId, heap.mName);
+                for (int serialNumber : heap.mThreads.keys()) {
+                    snapshot.addThread(heap.mThreads.get(serialNumber), serialNumber);
+                }
+                for (ClassObj theClass : heap.mClasses) {
+                    snapshot.addClass(theClass.getId(), theClass);
+                }
+                for (Instance instance : heap.mInstances) {
+                    snapshot.addInstance(instance.getId(), instance);
+                }
+                if (heap.mIndexedInstances != null) {
+                    snapshot.addIndexedInstances(heap.mIndexedInstances);
+                }
+            }
+        }
+
+        void addRootsTo(@NonNull Snapshot snapshot) {
+            for (PendingRoot pending : mRoots) {
+                snapshot.setHeapTo(pending.mHeap.mId, pending.mHeap.mName);
+                RootObj root = pending.mRoot;
+                if (root == null) {
+                    root = createThreadRoot(snapshot, pending.mType, pending.mId,
+                            pending.mThreadSerialNumber, pending.mStackDepth);
+                }
+                snapshot.addRoot(root);
+            }
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Receives the content of a heap dump streamed by
+ * {@link Snapshot#streamHprof(com.android.tools.perflib.captures.DataBuffer,
+ * com.android.tools.proguard.ProguardMap, HprofVisitor)}, without the instances being kept in
+ * memory.
+ *
+ * <p>The {@link Snapshot} handed to {@link #visitSnapshot(Snapshot)} holds the heaps, classes,
+ * GC roots and stack traces of the dump, but none of its instances. Instances are then passed one
+ * at a time to {@link #visitInstance(Instance)}: their primitive fields and array elements can be
+ * read as usual, but references to other instances are not resolved and read as null. Use
+ * {@link ClassInstance#getReferenceId(String)} to find out which instance a field refers to.
+ * Reachability, dominators and retained sizes are not available.
+ */
+public abstract class HprofVisitor {
+
+    /**
+     * Called once all the classes and GC roots are loaded, before the first instance.
+     */
+    public void visitSnapshot(@NonNull Snapshot snapshot) {
+    }
+
+    /**
+     * Called for every {@link ClassInstance} and {@link ArrayInstance} of the dump, in file order.
+     * The instance is not registered in its heap or class. It may be kept, but its values can only
+     * be read until {@link #visitEnd()} returns.
+     */
+    public void visitInstance(@NonNull Instance instance) {
+    }
+
+    /**
+     * Called every time all the instances have been visited. Returns whether the instances should
+     * be visited again, e.g. to look up instances that were only found to be needed after they
+     * were visited.
+     */
+    public boolean visitPassEnd() {
+        return false;
+    }
+
+    /**
+     * Called once the last pass over the instances is over. The snapshot is disposed right after.
+     */
+    public void visitEnd() {
+    }
+}
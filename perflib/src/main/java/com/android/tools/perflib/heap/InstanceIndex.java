@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectProcedure;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Columnar, primitive-array backed index of the instances of a {@link Heap}.
+ *
+ * <p>Instead of allocating a {@link ClassInstance} or {@link ArrayInstance} per heap object while
+ * parsing, only the id, class id, stack serial number, array type/length and the offset of the
+ * object's values in the {@link com.android.tools.perflib.captures.DataBuffer} are recorded.
+ * {@link Instance} objects are materialized the first time they are requested and cached from then
+ * on, so an instance always maps to the same object once it has been handed out.
+ */
+final class InstanceIndex {
+
+    /** Marker stored in {@link #mTypes} for rows describing a {@link ClassInstance}. */
+    private static final byte CLASS_INSTANCE = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int NO_ROW = -1;
+
+    //  Null for indices that only collect rows before they get added to the index of a heap.
+    @Nullable
+    private final Heap mHeap;
+
+    private int mSize;
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+
+    private long[] mClassIds = new long[INITIAL_CAPACITY];
+
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+
+    private int[] mStackSerials = new int[INITIAL_CAPACITY];
+
+    //  Either CLASS_INSTANCE or the type id of the array elements.
+    private byte[] mTypes = new byte[INITIAL_CAPACITY];
+
+    //  Lazily allocated cache of the materialized instances, indexed by row.
+    @Nullable
+    private Instance[] mMaterialized;
+
+    private int mMaterializedCount;
+
+    //  Open addressing hash table of row + 1, keyed by instance id. 0 marks an empty slot.
+    private int[] mTable = new int[INITIAL_CAPACITY * 2];
+
+    //  The rows grouped by class, see groupRowsByClass(). Null until the rows have been grouped.
+    @Nullable
+    private int[] mGroupedRows;
+
+    //  Start of each group in mGroupedRows, followed by the end of the last group.
+    private int[] mGroupStarts;
+
+    //  Group + 1 of the class instances and object arrays of each class id.
+    private TLongIntHashMap mClassGroups;
+
+    //  Group + 1 of the primitive arrays, indexed by type id.
+    private int[] mPrimitiveArrayGroups;
+
+    InstanceIndex(@Nullable Heap heap) {
+        mHeap = heap;
+    }
+
+    void addClassInstance(long id, int stackSerial, long classId, long valuesOffset) {
+        addRow(id, stackSerial, classId, CLASS_INSTANCE, -1, valuesOffset);
+    }
+
+    void addArrayInstance(long id, int stackSerial, long classId, @NonNull Type type, int length,
+            long valuesOffset) {
+        addRow(id, stackSerial, classId, (byte) type.getTypeId(), length, valuesOffset);
+    }
+
+    /**
+     * Records all the rows of {@code other}, which must not have materialized any instance yet.
+     */
+    void addAll(@NonNull InstanceIndex other) {
+        assert other.mMaterializedCount == 0;
+        for (int row = 0; row < other.mSize; row++) {
+            addRow(other.mIds[row], other.mStackSerials[row], other.mClassIds[row],
+                    other.mTypes[row], other.mLengths[row], other.mOffsets[row]);
+        }
+    }
+
+    /**
+     * Returns whether an instance with the given id has been recorded, without materializing it.
+     */
+    boolean contains(long id) {
+        return findRow(id) != NO_ROW;
+    }
+
+    @Nullable
+    Instance getInstance(long id) {
+        int row = findRow(id);
+        return row == NO_ROW ? null : materialize(row);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int getMaterializedCount() {
+        return mMaterializedCount;
+    }
+
+    /**
+     * Visits every instance of the index in insertion order, materializing them as needed.
+     */
+    boolean forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
+        for (int row = 0; row < mSize; row++) {
+            if (!procedure.execute(materialize(row))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the instances of the given class only, materializing them as needed.
+     */
+    void forEachInstanceOf(@NonNull ClassObj classObj,
+            @NonNull TObjectProcedure<Instance> procedure) {
+        int group = findGroup(classObj);
+        if (group == NO_ROW) {
+            return;
+        }
+        for (int i = mGroupStarts[group]; i < mGroupStarts[group + 1]; i++) {
+            if (!procedure.execute(materialize(mGroupedRows[i]))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of instances of the given class, without materializing them.
+     */
+    int getInstanceCount(@NonNull ClassObj classObj) {
+        int group = findGroup(classObj);
+        return group == NO_ROW ? 0 : mGroupStarts[group + 1] - mGroupStarts[group];
+    }
+
+    /**
+     * Returns the sum of the shallow sizes of the instances of the given class, without
+     * materializing them.
+     */
+    int getShallowSize(@NonNull ClassObj classObj) {
+        int group = findGroup(classObj);
+        if (group == NO_ROW) {
+            return 0;
+        }
+        assert mHeap != null;
+        int size = 0;
+        for (int i = mGroupStarts[group]; i < mGroupStarts[group + 1]; i++) {
+            int row = mGroupedRows[i];
+            if (mTypes[row] == CLASS_INSTANCE) {
+                size += classObj.getInstanceSize();
+            } else {
+                size += mLengths[row] * mHeap.mSnapshot.getTypeSize(Type.getType(mTypes[row]));
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the group of the rows of the given class, or {@link #NO_ROW} if it has no instances.
+     * Primitive arrays carry no class id, so they are matched by the name of their array class.
+     */
+    private int findGroup(@NonNull ClassObj classObj) {
+        if (mGroupedRows == null) {
+            groupRowsByClass();
+        }
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT
+                    && (classObj.getClassName().equals(type.getClassNameOfPrimitiveArray(false))
+                    || classObj.getClassName().equals(type.getClassNameOfPrimitiveArray(true)))) {
+                return mPrimitiveArrayGroups[type.getTypeId()] - 1;
+            }
+        }
+        return mClassGroups.get(classObj.getId()) - 1;
+    }
+
+    /**
+     * Sorts the rows by class in one pass over the columns, keeping the insertion order within each
+     * class, so that the instances of a class can be found without scanning every row.
+     */
+    private void groupRowsByClass() {
+        TLongIntHashMap classGroups = new TLongIntHashMap();
+        int[] primitiveArrayGroups = new int[Byte.MAX_VALUE + 1];
+        int[] rowGroups = new int[mSize];
+        int[] counts = new int[16];
+        int groupCount = 0;
+        for (int row = 0; row < mSize; row++) {
+            byte type = mTypes[row];
+            boolean isClassInstance = type == CLASS_INSTANCE || type == Type.OBJECT.getTypeId();
+            int group = isClassInstance
+                    ? classGroups.get(mClassIds[row]) - 1
+                    : primitiveArrayGroups[type] - 1;
+            if (group == NO_ROW) {
+                group = groupCount++;
+                if (isClassInstance) {
+                    classGroups.put(mClassIds[row], group + 1);
+                } else {
+                    primitiveArrayGroups[type] = group + 1;
+                }
+                if (group == counts.length) {
+                    counts = Arrays.copyOf(counts, counts.length * 2);
+                }
+            }
+            rowGroups[row] = group;
+            counts[group]++;
+        }
+
+        int[] groupStarts = new int[groupCount + 1];
+        for (int group = 0; group < groupCount; group++) {
+            groupStarts[group + 1] = groupStarts[group] + counts[group];
+        }
+        int[] groupedRows = new int[mSize];
+        int[] next = Arrays.copyOf(groupStarts, groupCount);
+        for (int row = 0; row < mSize; row++) {
+            groupedRows[next[rowGroups[row]]++] = row;
+        }
+
+        mClassGroups = classGroups;
+        mPrimitiveArrayGroups = primitiveArrayGroups;
+        mGroupStarts = groupStarts;
+        mGroupedRows = groupedRows;
+    }
+
+    /**
+     * Shrinks the backing columns to the number of recorded rows and groups them by class. Called
+     * once parsing is done.
+     */
+    void trimToSize() {
+        if (mGroupedRows == null) {
+            groupRowsByClass();
+        }
+        if (mIds.length == mSize) {
+            return;
+        }
+        mIds = Arrays.copyOf(mIds, mSize);
+        mClassIds = Arrays.copyOf(mClassIds, mSize);
+        mOffsets = Arrays.copyOf(mOffsets, mSize);
+        mLengths = Arrays.copyOf(mLengths, mSize);
+        mStackSerials = Arrays.copyOf(mStackSerials, mSize);
+        mTypes = Arrays.copyOf(mTypes, mSize);
+        if (mMaterialized != null) {
+            mMaterialized = Arrays.copyOf(mMaterialized, mSize);
+        }
+    }
+
+    /**
+     * Writes the recorded rows column by column, see {@link HprofIndexFile}.
+     */
+    void writeColumns(@NonNull DataOutput out) throws IOException {
+        out.writeInt(mSize);
+        for (int row = 0; row < mSize; row++) {
+            out.writeLong(mIds[row]);
+        }
+        for (int row = 0; row < mSize; row++) {
+            out.writeLong(mClassIds[row]);
+        }
+        for (int row = 0; row < mSize; row++) {
+            out.writeLong(mOffsets[row]);
+        }
+        for (int row = 0; row < mSize; row++) {
+            out.writeInt(mLengths[row]);
+        }
+        for (int row = 0; row < mSize; row++) {
+            out.writeInt(mStackSerials[row]);
+        }
+        out.write(mTypes, 0, mSize);
+    }
+
+    /**
+     * Replaces the rows of this index, which must be empty, with rows written by
+     * {@link #writeColumns(DataOutput)}. The lookup table and the class groups are built once for
+     * all the rows.
+     */
+    void readColumns(@NonNull DataBuffer in) {
+        assert mSize == 0;
+        int size = in.readInt();
+        mIds = new long[size];
+        mClassIds = new long[size];
+        mOffsets = new long[size];
+        mLengths = new int[size];
+        mStackSerials = new int[size];
+        mTypes = new byte[size];
+        for (int row = 0; row < size; row++) {
+            mIds[row] = in.readLong();
+        }
+        for (int row = 0; row < size; row++) {
+            mClassIds[row] = in.readLong();
+        }
+        for (int row = 0; row < size; row++) {
+            mOffsets[row] = in.readLong();
+        }
+        for (int row = 0; row < size; row++) {
+            mLengths[row] = in.readInt();
+        }
+        for (int row = 0; row < size; row++) {
+            mStackSerials[row] = in.readInt();
+        }
+        in.read(mTypes);
+        mSize = size;
+
+        int tableSize = INITIAL_CAPACITY * 2;
+        while (tableSize < size * 2) {
+            tableSize *= 2;
+        }
+        rehash(tableSize);
+        groupRowsByClass();
+    }
+
+    @NonNull
+    private Instance materialize(int row) {
+        if (mMaterialized == null) {
+            mMaterialized = new Instance[mIds.length];
+        }
+        Instance instance = mMaterialized[row];
+        if (instance != null) {
+            return instance;
+        }
+
+        assert mHeap != null;
+        Snapshot snapshot = mHeap.mSnapshot;
+        StackTrace stack = snapshot.getStackTrace(mStackSerials[row]);
+        if (mTypes[row] == CLASS_INSTANCE) {
+            instance = new ClassInstance(mIds[row], stack, mOffsets[row]);
+            instance.setClassId(mClassIds[row]);
+            ClassObj classObj = snapshot.findClass(mClassIds[row]);
+            if (classObj != null) {
+                instance.setSize(classObj.getInstanceSize());
+            }
+        } else {
+            Type type = Type.getType(mTypes[row]);
+            instance = new ArrayInstance(mIds[row], stack, type, mLengths[row], mOffsets[row]);
+            if (type == Type.OBJECT) {
+                instance.setClassId(mClassIds[row]);
+            }
+        }
+        instance.setHeap(mHeap);
+        mMaterialized[row] = instance;
+        mMaterializedCount++;
+        return instance;
+    }
+
+    private void addRow(long id, int stackSerial, long classId, byte type, int length,
+            long valuesOffset) {
+        mGroupedRows = null;
+        int row = findRow(id);
+        if (row == NO_ROW) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            row = mSize++;
+            if (mSize * 2 > mTable.length) {
+                mIds[row] = id;
+                rehash(mTable.length * 2);
+            } else {
+                insert(mTable, id, row);
+            }
+        } else if (mMaterialized != null && mMaterialized[row] != null) {
+            // Duplicate entries exist in some dumps, the last one wins like in a hash map.
+            mMaterialized[row] = null;
+            mMaterializedCount--;
+        }
+        mIds[row] = id;
+        mStackSerials[row] = stackSerial;
+        mClassIds[row] = classId;
+        mTypes[row] = type;
+        mLengths[row] = length;
+        mOffsets[row] = valuesOffset;
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mClassIds = Arrays.copyOf(mClassIds, capacity);
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+        mStackSerials = Arrays.copyOf(mStackSerials, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        if (mMaterialized != null) {
+            mMaterialized = Arrays.copyOf(mMaterialized, capacity);
+        }
+    }
+
+    private void rehash(int tableSize) {
+        int[] table = new int[tableSize];
+        for (int row = 0; row < mSize; row++) {
+            insert(table, mIds[row], row);
+        }
+        mTable = table;
+    }
+
+    private void insert(@NonNull int[] table, long id, int row) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = row + 1;
+    }
+
+    private int findRow(long id) {
+        int mask = mTable.length - 1;
+        int slot = hash(id) & mask;
+        while (mTable[slot] != 0) {
+            int row = mTable[slot] - 1;
+            if (mIds[row] == id) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ROW;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -21,18 +21,25 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.perflib.heap.analysis.*;
 import com.android.tools.perflib.heap.ext.NativeRegistryPostProcessor;
 import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
 import com.android.tools.proguard.ProguardMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  * A snapshot of all of the heaps, and related meta-data, for the runtime at a given instant.
@@ -85,7 +92,9 @@ public class Snapshot extends Capture {
     //  Special root object used in dominator computation for objects reachable via multiple roots.
     public static final Instance SENTINEL_ROOT = new RootObj(RootType.UNKNOWN);
 
-    private static final int DEFAULT_HEAP_ID = 0;
+    static final int DEFAULT_HEAP_ID = 0;
+
+    static final String DEFAULT_HEAP_NAME = "default";
 
     @NonNull
     private final DataBuffer mBuffer;
@@ -112,6 +121,13 @@ public class Snapshot extends Capture {
 
     private DominatorsBase mDominators;
 
+    //  Whether the dominators were restored from a DominatorsFile rather than computed.
+    private boolean mDominatorsLoaded;
+
+    //  Hash of the content of the heap dump, computed the first time it is requested.
+    @Nullable
+    private String mDumpHash;
+
     private volatile DominatorComputationStage mDominatorComputationStage
             = DominatorComputationStage.INITIALIZING;
 
@@ -122,6 +138,9 @@ public class Snapshot extends Capture {
 
     private long mIdSizeMask = 0x00000000ffffffffL;
 
+    //  Whether instances are recorded in compact per-heap indices and only materialized on demand.
+    private final boolean mIndexInstances;
+
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer) {
         return createSnapshot(buffer, new ProguardMap());
@@ -137,9 +156,62 @@ public class Snapshot extends Capture {
             @NonNull DataBuffer buffer,
             @NonNull ProguardMap map,
             @NonNull List<SnapshotPostProcessor> postProcessors) {
+        return createSnapshot(buffer, map, postProcessors, false);
+    }
+
+    /**
+     * Creates a snapshot of the given hprof buffer.
+     *
+     * @param indexInstances if true, instances are only recorded as primitive columns (id, class
+     *     id, stack, buffer offset) while parsing and {@link Instance} objects are created the
+     *     first time they are looked up, through {@link #findInstance(long)}, the instance lists of
+     *     a {@link ClassObj} or by visiting them. This greatly reduces the memory needed to load
+     *     large dumps when only part of the heap is inspected.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            boolean indexInstances) {
+        return createSnapshot(buffer, map, postProcessors, indexInstances, null);
+    }
+
+    /**
+     * Creates a snapshot of the given hprof buffer.
+     *
+     * @param indexInstances see {@link #createSnapshot(DataBuffer, ProguardMap, List, boolean)}
+     * @param parsingPool if not null and {@code buffer} is a {@link MemoryMappedFileBuffer}, the
+     *     heap dump segments of the file are parsed in parallel on this pool. The resulting
+     *     snapshot is the same as when parsing sequentially.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            boolean indexInstances,
+            @Nullable ForkJoinPool parsingPool) {
+        return createSnapshot(buffer, map, postProcessors, indexInstances, parsingPool,
+                HprofParser.MIN_PARALLEL_TASK_BYTES);
+    }
+
+    /**
+     * Creates a snapshot of the given hprof buffer, parsing its heap dump segments in parallel
+     * tasks of at least {@code minParallelTaskBytes} bytes each.
+     */
+    @VisibleForTesting
+    @NonNull
+    static Snapshot createSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            boolean indexInstances,
+            @Nullable ForkJoinPool parsingPool,
+            long minParallelTaskBytes) {
         try {
-            Snapshot snapshot = new Snapshot(buffer);
-            HprofParser.parseBuffer(snapshot, buffer, map);
+            Snapshot snapshot = new Snapshot(buffer, indexInstances);
+            HprofParser.parseBuffer(snapshot, buffer, map, parsingPool, minParallelTaskBytes);
             for (SnapshotPostProcessor processor : postProcessors) {
                 processor.postProcess(snapshot);
             }
@@ -151,9 +223,82 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Creates a snapshot of the given hprof file, with instances indexed, using an index cached in
+     * {@code indexDirectory} by a previous call for a dump with the same content if there is one.
+     * Otherwise the dump is parsed and its index written to the directory for the next time, see
+     * {@link HprofIndexFile}. Loading an index only requires hashing the dump, rather than parsing
+     * all of its records.
+     *
+     * <p>Names are cached as translated by the {@code map}, indexes of the same dump opened with
+     * another map are stored separately.
+     */
+    @NonNull
+    public static Snapshot createCachedSnapshot(
+            @NonNull File hprofFile,
+            @NonNull File indexDirectory,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors) throws IOException {
+        File indexFile = HprofIndexFile.getIndexFile(hprofFile, map, indexDirectory);
+        if (indexFile.isFile()) {
+            Snapshot snapshot = new Snapshot(new MemoryMappedFileBuffer(hprofFile), true);
+            try {
+                if (HprofIndexFile.read(snapshot, indexFile)) {
+                    snapshot.resolveClasses();
+                    snapshot.identifySoftReferences();
+                    for (SnapshotPostProcessor processor : postProcessors) {
+                        processor.postProcess(snapshot);
+                    }
+                    return snapshot;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Unreadable index, parse the dump again and overwrite it.
+            }
+            snapshot.dispose();
+        }
+
+        Snapshot snapshot = createSnapshot(new MemoryMappedFileBuffer(hprofFile), map,
+                Collections.<SnapshotPostProcessor>emptyList(), true);
+        try {
+            if (indexDirectory.isDirectory() || indexDirectory.mkdirs()) {
+                HprofIndexFile.write(snapshot, indexFile);
+            }
+            for (SnapshotPostProcessor processor : postProcessors) {
+                processor.postProcess(snapshot);
+            }
+        } catch (IOException | RuntimeException e) {
+            snapshot.dispose();
+            throw e;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Streams the instances of the given hprof buffer to a visitor instead of creating a snapshot
+     * holding all of them, see {@link HprofVisitor}. Only the classes, GC roots and stack traces
+     * of the dump are kept in memory while it is visited, which bounds the memory needed by single
+     * pass analyses of large dumps. The buffer is disposed once the dump has been visited.
+     */
+    public static void streamHprof(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull HprofVisitor visitor) {
+        Snapshot snapshot = new Snapshot(buffer, false);
+        try {
+            HprofParser.streamBuffer(snapshot, buffer, map, visitor);
+        } finally {
+            snapshot.dispose();
+        }
+    }
+
     @VisibleForTesting
     public Snapshot(@NonNull DataBuffer buffer) {
+        this(buffer, false);
+    }
+
+    private Snapshot(@NonNull DataBuffer buffer, boolean indexInstances) {
         mBuffer = buffer;
+        mIndexInstances = indexInstances;
         setToDefaultHeap();
     }
 
@@ -166,9 +311,41 @@ public class Snapshot extends Capture {
         return mBuffer;
     }
 
+    /**
+     * Returns the size of the heap dump this snapshot was parsed from, in bytes.
+     */
+    public long getDumpLength() {
+        return mBuffer.position() + mBuffer.remaining();
+    }
+
+    /**
+     * Returns a hash of the content of the heap dump this snapshot was parsed from, so that files
+     * derived from the dump can tell whether it is the same dump. The whole dump is read the first
+     * time.
+     */
+    @NonNull
+    public synchronized String getDumpHash() {
+        if (mDumpHash == null) {
+            long position = mBuffer.position();
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            byte[] chunk = new byte[64 * 1024];
+            mBuffer.setPosition(0);
+            while (mBuffer.remaining() >= chunk.length) {
+                mBuffer.read(chunk);
+                hasher.putBytes(chunk);
+            }
+            byte[] rest = new byte[(int) mBuffer.remaining()];
+            mBuffer.read(rest);
+            hasher.putBytes(rest);
+            mBuffer.setPosition(position);
+            mDumpHash = hasher.hash().toString();
+        }
+        return mDumpHash;
+    }
+
     @NonNull
     public Heap setToDefaultHeap() {
-        return setHeapTo(DEFAULT_HEAP_ID, "default");
+        return setHeapTo(DEFAULT_HEAP_ID, DEFAULT_HEAP_NAME);
     }
 
     @NonNull
@@ -178,6 +355,9 @@ public class Snapshot extends Capture {
         if (heap == null) {
             heap = new Heap(id, name);
             heap.mSnapshot = this;
+            if (mIndexInstances) {
+                heap.mInstanceIndex = new InstanceIndex(heap);
+            }
             mHeaps.add(heap);
         }
 
@@ -291,6 +471,28 @@ public class Snapshot extends Capture {
         instance.setHeap(mCurrentHeap);
     }
 
+    public final boolean isIndexingInstances() {
+        return mIndexInstances;
+    }
+
+    final void addIndexedClassInstance(long id, int stackSerial, long classId,
+            long valuesOffset) {
+        assert mCurrentHeap.mInstanceIndex != null;
+        mCurrentHeap.mInstanceIndex.addClassInstance(id, stackSerial, classId, valuesOffset);
+    }
+
+    final void addIndexedArrayInstance(long id, int stackSerial, long classId, @NonNull Type type,
+            int length, long valuesOffset) {
+        assert mCurrentHeap.mInstanceIndex != null;
+        mCurrentHeap.mInstanceIndex.addArrayInstance(id, stackSerial, classId, type, length,
+                valuesOffset);
+    }
+
+    final void addIndexedInstances(@NonNull InstanceIndex instances) {
+        assert mCurrentHeap.mInstanceIndex != null;
+        mCurrentHeap.mInstanceIndex.addAll(instances);
+    }
+
     public final void addClass(long id, @NonNull ClassObj theClass) {
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
@@ -383,8 +585,13 @@ public class Snapshot extends Capture {
                 classObj.setSize(classSize);
             }
 
+            if (heap.mInstanceIndex != null) {
+                // Indexed instances are added to their class lazily, see ClassObj.
+                heap.mInstanceIndex.trimToSize();
+            }
+
             final int heapId = heap.getId();
-            heap.forEachInstance(instance -> {
+            heap.forEachAddedInstance(instance -> {
                 ClassObj classObj = instance.getClassObj();
                 if (classObj != null) {
                     classObj.addInstance(heapId, instance);
@@ -435,13 +642,66 @@ public class Snapshot extends Capture {
     }
 
     public void computeDominators() {
+        // Creating the computation resets retained sizes, so don't when they are already known.
+        if (mDominators != null || mDominatorsLoaded) {
+            return;
+        }
         prepareDominatorComputation();
         doComputeDominators(new LinkEvalDominators(this));
     }
 
+    /**
+     * Computes dominators with {@link ParallelDominators}, running the expensive parts of the
+     * computation on the given pool.
+     */
+    public void computeDominators(@NonNull ForkJoinPool pool) {
+        if (mDominators != null || mDominatorsLoaded) {
+            return;
+        }
+        prepareDominatorComputation();
+        doComputeDominators(new ParallelDominators(this, pool));
+    }
+
+    /**
+     * Saves the dominator tree and retained sizes of this snapshot, see {@link DominatorsFile}.
+     * Dominators must have been computed or loaded already.
+     */
+    public void saveDominators(@NonNull File file) throws IOException {
+        assert mDominators != null || mDominatorsLoaded;
+        DominatorsFile.write(this, file);
+    }
+
+    /**
+     * Restores dominators saved by {@link #saveDominators(File)} instead of computing them.
+     * References still get resolved, so the snapshot ends up in the same state as after
+     * {@link #computeDominators()}. Returns false if dominator computation already started, or if
+     * the file does not exist or was saved for a different heap dump.
+     */
+    public boolean loadDominators(@NonNull File file) throws IOException {
+        if (mTopSort != null) {
+            return false;
+        }
+
+        List<Instance> topSort = DominatorsFile.read(this, file);
+        if (topSort == null) {
+            return false;
+        }
+
+        mDominatorComputationStage = DominatorComputationStage.RESOLVING_REFERENCES;
+        resolveReferences();
+        compactMemory();
+        for (Instance instance : topSort) {
+            instance.dedupeReferences();
+        }
+        mTopSort = topSort;
+        mDominatorsLoaded = true;
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+        return true;
+    }
+
     @VisibleForTesting
     public void prepareDominatorComputation() {
-        if (mDominators != null) {
+        if (mDominators != null || mDominatorsLoaded) {
             return;
         }
 
@@ -462,7 +722,7 @@ public class Snapshot extends Capture {
 
     @VisibleForTesting
     public void doComputeDominators(@NonNull DominatorsBase computable) {
-        if (mDominators != null) {
+        if (mDominators != null || mDominatorsLoaded) {
             return;
         }
 
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Saves and restores the result of a dominator computation, i.e. the topological ordering, the
+ * immediate dominators, the shortest paths to the GC roots and the retained sizes, so that
+ * reopening a heap dump does not require computing them again.
+ *
+ * <p>Files are only restored into a snapshot of a heap dump with the same length and content hash,
+ * and with the same heaps, instance counts and GC roots as the one they were saved from; anything
+ * else is treated as stale, e.g. a dump captured again at the same path.
+ */
+public final class DominatorsFile {
+
+    private static final int MAGIC = 0x444f4d53; // "DOMS"
+
+    private static final int VERSION = 2;
+
+    private static final String EXTENSION = ".dominators";
+
+    //  Tags preceding instance references.
+    private static final byte NONE = 0;
+
+    private static final byte SENTINEL = 1;
+
+    private static final byte INSTANCE = 2;
+
+    private DominatorsFile() {
+    }
+
+    /**
+     * Returns the conventional location of the dominators file of a heap dump, next to it.
+     */
+    @NonNull
+    public static File getDefaultFile(@NonNull File hprofFile) {
+        return new File(hprofFile.getParentFile(), hprofFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Writes the dominator tree of a snapshot whose dominators have been computed. The file is
+     * written next to its destination first, so that a partially written file is never read.
+     */
+    public static void write(@NonNull Snapshot snapshot, @NonNull File file) throws IOException {
+        List<Instance> topSort = snapshot.getTopologicalOrdering();
+        assert topSort != null;
+        int heapCount = snapshot.getHeaps().size();
+
+        File tempFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(snapshot.getDumpLength());
+                out.writeUTF(snapshot.getDumpHash());
+                out.writeLong(computeFingerprint(snapshot));
+                out.writeInt(heapCount);
+                out.writeInt(topSort.size());
+                for (Instance instance : topSort) {
+                    out.writeLong(instance.getId());
+                    writeReference(out, instance.getImmediateDominator());
+                    out.writeInt(instance.getDistanceToGcRoot());
+                    writeReference(out, instance.getNextInstanceToGcRoot());
+                    for (int i = 0; i < heapCount; i++) {
+                        out.writeLong(instance.getRetainedSize(i));
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Restores a dominator tree written by {@link #write} into the instances of the snapshot, and
+     * returns the topological ordering. Returns null, leaving the snapshot untouched, if the file
+     * does not exist or was written for a different heap dump.
+     */
+    @Nullable
+    public static List<Instance> read(@NonNull Snapshot snapshot, @NonNull File file)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        int heapCount = snapshot.getHeaps().size();
+        Instance[] instances;
+        Instance[] dominators;
+        int[] distances;
+        Instance[] nextInstances;
+        long[] retainedSizes;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != snapshot.getDumpLength()
+                    || !in.readUTF().equals(snapshot.getDumpHash())
+                    || in.readLong() != computeFingerprint(snapshot)
+                    || in.readInt() != heapCount) {
+                return null;
+            }
+
+            int count = in.readInt();
+            instances = new Instance[count];
+            dominators = new Instance[count];
+            distances = new int[count];
+            nextInstances = new Instance[count];
+            retainedSizes = new long[count * heapCount];
+            for (int i = 0; i < count; i++) {
+                instances[i] = snapshot.findInstance(in.readLong());
+                if (instances[i] == null || !readReference(in, snapshot, dominators, i)) {
+                    return null;
+                }
+                distances[i] = in.readInt();
+                if (!readReference(in, snapshot, nextInstances, i)) {
+                    return null;
+                }
+                for (int j = 0; j < heapCount; j++) {
+                    retainedSizes[i * heapCount + j] = in.readLong();
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        // Only touch the snapshot once the whole file is known to match it.
+        for (Heap heap : snapshot.getHeaps()) {
+            for (Instance instance : heap.getClasses()) {
+                instance.resetRetainedSize();
+            }
+            heap.forEachInstance(instance -> {
+                instance.resetRetainedSize();
+                return true;
+            });
+        }
+
+        Snapshot.SENTINEL_ROOT.setTopologicalOrder(0);
+        for (int i = 0; i < instances.length; i++) {
+            Instance instance = instances[i];
+            instance.setTopologicalOrder(i + 1);
+            if (dominators[i] != null) {
+                instance.setImmediateDominator(dominators[i]);
+            }
+            if (distances[i] < instance.getDistanceToGcRoot()) {
+                instance.setDistanceToGcRoot(distances[i]);
+            }
+            instance.setNextInstanceToGcRoot(nextInstances[i]);
+            for (int j = 0; j < heapCount; j++) {
+                instance.addRetainedSize(j,
+                        retainedSizes[i * heapCount + j] - instance.getRetainedSize(j));
+            }
+        }
+        return new ArrayList<Instance>(Arrays.asList(instances));
+    }
+
+    private static void writeReference(@NonNull DataOutputStream out, @Nullable Instance instance)
+            throws IOException {
+        if (instance == null) {
+            out.writeByte(NONE);
+        } else if (instance == Snapshot.SENTINEL_ROOT) {
+            out.writeByte(SENTINEL);
+        } else {
+            out.writeByte(INSTANCE);
+            out.writeLong(instance.getId());
+        }
+    }
+
+    /**
+     * Reads a reference written by {@link #writeReference} into {@code result[index]}. Returns
+     * false if it refers to an instance that does not exist in the snapshot.
+     */
+    private static boolean readReference(@NonNull DataInputStream in, @NonNull Snapshot snapshot,
+            @NonNull Instance[] result, int index) throws IOException {
+        switch (in.readByte()) {
+            case NONE:
+                result[index] = null;
+                return true;
+            case SENTINEL:
+                result[index] = Snapshot.SENTINEL_ROOT;
+                return true;
+            case INSTANCE:
+                result[index] = snapshot.findInstance(in.readLong());
+                return result[index] != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Summarizes the shape of the snapshot, so that a file saved for another heap dump is not
+     * mistaken for this one.
+     */
+    private static long computeFingerprint(@NonNull Snapshot snapshot) {
+        long fingerprint = 17;
+        for (Heap heap : snapshot.getHeaps()) {
+            fingerprint = fingerprint * 31 + heap.getId();
+            fingerprint = fingerprint * 31 + heap.getClasses().size();
+            fingerprint = fingerprint * 31 + heap.getInstancesCount();
+        }
+        for (RootObj root : snapshot.getGCRoots()) {
+            fingerprint = fingerprint * 31 + root.getId();
+            fingerprint = fingerprint * 31 + root.getRootType().ordinal();
+        }
+        return fingerprint;
+    }
+}
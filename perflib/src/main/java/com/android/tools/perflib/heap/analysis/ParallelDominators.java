@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import gnu.trove.TIntStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Computes dominators with the iterative algorithm described in "A Simple, Fast Dominance
+ * Algorithm" by Cooper, Harvey and Kennedy, over a compact graph where every reachable instance is
+ * identified by its reverse postorder number in a depth-first search of the hard references (0
+ * being the sentinel root) and predecessors are stored in flat int arrays.
+ *
+ * <p>Building the graph and all the passes after the first one run on a {@link ForkJoinPool}. The
+ * first pass runs sequentially in reverse postorder, which is enough for most heaps to converge.
+ * Later passes update disjoint ranges of nodes concurrently; a pass that changes no dominator
+ * reads a stable state, so it proves that the fixed point has been reached.
+ *
+ * <p>Like {@link LinkEvalDominators}, this overwrites the topological order of the instances with
+ * the numbering of its own depth-first search.
+ */
+public final class ParallelDominators extends DominatorsBase {
+
+    private static final int UNDEFINED = -1;
+
+    //  Topological order of instances pushed on the depth-first search stack but not yet numbered.
+    private static final int VISITING = -1;
+
+    //  Number of nodes processed by a single task of a parallel pass.
+    private static final int NODES_PER_TASK = 64 * 1024;
+
+    @NonNull
+    private final ForkJoinPool mPool;
+
+    //  The reachable instances indexed by reverse postorder, with the sentinel root at 0.
+    @NonNull
+    private final Instance[] mInstances;
+
+    //  Predecessors of node i are mPredecessors[mPredecessorOffsets[i]..mPredecessorOffsets[i+1]).
+    @NonNull
+    private final int[] mPredecessorOffsets;
+
+    @NonNull
+    private final int[] mPredecessors;
+
+    @NonNull
+    private final int[] mDominators;
+
+    private volatile int mPass = 0;
+
+    private final AtomicInteger mProcessedNodes = new AtomicInteger();
+
+    public ParallelDominators(@NonNull Snapshot snapshot, @NonNull ForkJoinPool pool) {
+        super(snapshot);
+        mPool = pool;
+
+        for (Instance instance : mTopSort) {
+            instance.setTopologicalOrder(0);
+        }
+        Set<Instance> rootInstances = new LinkedHashSet<Instance>();
+        for (RootObj root : snapshot.getGCRoots()) {
+            Instance referredInstance = root.getReferredInstance();
+            if (referredInstance != null) {
+                rootInstances.add(referredInstance);
+            }
+        }
+
+        List<Instance> postorder = depthFirstSearch(rootInstances);
+        int nodeCount = postorder.size() + 1;
+        mInstances = new Instance[nodeCount];
+        mInstances[0] = Snapshot.SENTINEL_ROOT;
+        for (int i = 1; i < nodeCount; i++) {
+            Instance instance = postorder.get(nodeCount - 1 - i);
+            instance.setTopologicalOrder(i);
+            mInstances[i] = instance;
+        }
+
+        boolean[] isRoot = new boolean[nodeCount];
+        for (Instance rootInstance : rootInstances) {
+            isRoot[rootInstance.getTopologicalOrder()] = true;
+        }
+
+        // Count then fill the predecessors of every node, in parallel since it touches every
+        // reference of the heap. Instances that were not numbered are not reachable.
+        int[] counts = new int[nodeCount];
+        mPool.submit(() -> IntStream.range(1, nodeCount).parallel().forEach(node -> {
+            int count = isRoot[node] ? 1 : 0;
+            for (Instance predecessor : mInstances[node].getHardReverseReferences()) {
+                if (predecessor.getTopologicalOrder() > 0) {
+                    count++;
+                }
+            }
+            counts[node] = count;
+        })).join();
+
+        mPredecessorOffsets = new int[nodeCount + 1];
+        for (int node = 0; node < nodeCount; node++) {
+            mPredecessorOffsets[node + 1] = mPredecessorOffsets[node] + counts[node];
+        }
+
+        mPredecessors = new int[mPredecessorOffsets[nodeCount]];
+        mPool.submit(() -> IntStream.range(1, nodeCount).parallel().forEach(node -> {
+            int offset = mPredecessorOffsets[node];
+            if (isRoot[node]) {
+                mPredecessors[offset++] = 0;
+            }
+            for (Instance predecessor : mInstances[node].getHardReverseReferences()) {
+                if (predecessor.getTopologicalOrder() > 0) {
+                    mPredecessors[offset++] = predecessor.getTopologicalOrder();
+                }
+            }
+        })).join();
+
+        mDominators = new int[nodeCount];
+    }
+
+    /**
+     * Depth-first search of the hard references in loop form, since the recursive version blows
+     * the stack. Returns the reachable instances in postorder.
+     */
+    @NonNull
+    private static List<Instance> depthFirstSearch(@NonNull Collection<Instance> rootInstances) {
+        List<Instance> postorder = new ArrayList<Instance>();
+        Stack<Instance> nodeStack = new Stack<Instance>();
+        TIntStack childOffsetStack = new TIntStack();
+
+        for (Instance rootInstance : rootInstances) {
+            if (rootInstance.getTopologicalOrder() != 0) {
+                continue;
+            }
+            rootInstance.setTopologicalOrder(VISITING);
+            nodeStack.push(rootInstance);
+            childOffsetStack.push(0);
+
+            while (!nodeStack.empty()) {
+                Instance currentNode = nodeStack.peek();
+                int currentChildOffset = childOffsetStack.pop();
+                List<Instance> forwardReferences = currentNode.getHardForwardReferences();
+                while (currentChildOffset < forwardReferences.size()
+                        && forwardReferences.get(currentChildOffset).getTopologicalOrder() != 0) {
+                    currentChildOffset++;
+                }
+                if (currentChildOffset < forwardReferences.size()) {
+                    Instance successor = forwardReferences.get(currentChildOffset);
+                    successor.setTopologicalOrder(VISITING);
+                    childOffsetStack.push(currentChildOffset + 1);
+                    nodeStack.push(successor);
+                    childOffsetStack.push(0);
+                } else {
+                    nodeStack.pop();
+                    // Any positive value marks the instance as numbered until the real reverse
+                    // postorder is assigned.
+                    currentNode.setTopologicalOrder(1);
+                    postorder.add(currentNode);
+                }
+            }
+        }
+        return postorder;
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        int nodeCount = mInstances.length;
+        int processed = Math.min(mProcessedNodes.get(), nodeCount);
+        mCurrentProgress.setMessage(String.format("Calculating dominators (pass %d) %d/%d",
+                mPass + 1, processed, nodeCount));
+        // The first pass does most of the work, later passes only refine the result.
+        double passProgress = (double) processed / (double) nodeCount;
+        mCurrentProgress.setProgress(mPass == 0 ? 0.9 * passProgress : 0.9 + 0.09 * passProgress);
+        return mCurrentProgress;
+    }
+
+    @Override
+    public void computeDominators() {
+        int nodeCount = mInstances.length;
+        Arrays.fill(mDominators, UNDEFINED);
+        mDominators[0] = 0;
+
+        // The first pass defines the dominator of every node, since the DFS parent of a node always
+        // precedes it in reverse postorder.
+        boolean changed = false;
+        for (int node = 1; node < nodeCount; node++) {
+            changed |= updateDominator(node);
+            mProcessedNodes.lazySet(node);
+        }
+
+        int taskCount = (nodeCount - 1 + NODES_PER_TASK - 1) / NODES_PER_TASK;
+        while (changed) {
+            mPass++;
+            mProcessedNodes.set(0);
+            AtomicBoolean passChanged = new AtomicBoolean();
+            mPool.submit(() -> IntStream.range(0, taskCount).parallel().forEach(task -> {
+                int start = 1 + task * NODES_PER_TASK;
+                int end = Math.min(nodeCount, start + NODES_PER_TASK);
+                boolean taskChanged = false;
+                for (int node = start; node < end; node++) {
+                    taskChanged |= updateDominator(node);
+                }
+                mProcessedNodes.addAndGet(end - start);
+                if (taskChanged) {
+                    passChanged.set(true);
+                }
+            })).join();
+            changed = passChanged.get();
+        }
+
+        for (int node = 1; node < nodeCount; node++) {
+            mInstances[node].setImmediateDominator(mInstances[mDominators[node]]);
+        }
+    }
+
+    /**
+     * Intersects the dominators of the processed predecessors of the node. Returns whether its
+     * dominator changed.
+     */
+    private boolean updateDominator(int node) {
+        int newDominator = UNDEFINED;
+        for (int i = mPredecessorOffsets[node]; i < mPredecessorOffsets[node + 1]; i++) {
+            int predecessor = mPredecessors[i];
+            if (mDominators[predecessor] == UNDEFINED) {
+                continue;
+            }
+            newDominator = newDominator == UNDEFINED
+                    ? predecessor : intersect(predecessor, newDominator);
+        }
+        if (newDominator != UNDEFINED && newDominator != mDominators[node]) {
+            mDominators[node] = newDominator;
+            return true;
+        }
+        return false;
+    }
+
+    private int intersect(int finger1, int finger2) {
+        // The dominator of a node is never numbered higher than its DFS parent, so chains always
+        // decrease and the walk terminates even when other threads update them concurrently.
+        while (finger1 != finger2) {
+            while (finger1 > finger2) {
+                finger1 = mDominators[finger1];
+            }
+            while (finger2 > finger1) {
+                finger2 = mDominators[finger2];
+            }
+        }
+        return finger1;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import gnu.trove.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pairs streamed instances with the array one of their fields refers to, whichever of the two
+ * comes first in the heap dump. Only the referrers are kept until their array shows up, arrays
+ * are never kept: the referrers of arrays that were visited before them are joined during a
+ * second pass over the instances, requested by {@link #visitPassEnd()}.
+ */
+final class ArrayReferenceJoiner {
+
+    interface Callback {
+        void onJoined(@NonNull ClassInstance referrer, @NonNull ArrayInstance array);
+    }
+
+    @NonNull
+    private final Callback mCallback;
+
+    @NonNull
+    private final TLongObjectHashMap<List<ClassInstance>> mPendingReferrers =
+            new TLongObjectHashMap<List<ClassInstance>>();
+
+    private boolean mFirstPass = true;
+
+    ArrayReferenceJoiner(@NonNull Callback callback) {
+        mCallback = callback;
+    }
+
+    void addReferrer(@NonNull ClassInstance referrer, long arrayId) {
+        if (!mFirstPass) {
+            // Already pending since the first pass.
+            return;
+        }
+
+        List<ClassInstance> referrers = mPendingReferrers.get(arrayId);
+        if (referrers == null) {
+            referrers = new ArrayList<ClassInstance>(1);
+            mPendingReferrers.put(arrayId, referrers);
+        }
+        referrers.add(referrer);
+    }
+
+    void addArray(@NonNull ArrayInstance array) {
+        List<ClassInstance> referrers = mPendingReferrers.remove(array.getId());
+        if (referrers != null) {
+            for (ClassInstance referrer : referrers) {
+                mCallback.onJoined(referrer, array);
+            }
+        }
+    }
+
+    /**
+     * To be called at the end of every pass over the instances. Returns whether another pass is
+     * needed to join the referrers whose array was visited before them.
+     */
+    boolean visitPassEnd() {
+        if (!mFirstPass) {
+            // Whatever is still pending refers to arrays missing from the dump.
+            mPendingReferrers.clear();
+            return false;
+        }
+        mFirstPass = false;
+        return !mPendingReferrers.isEmpty();
+    }
+}
@@ -6,7 +6,10 @@ import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import gnu.trove.TLongObjectHashMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,7 +31,6 @@ public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
         }
 
         Map<ArrayInstance, Instance> byteArrayToBitmapMap = new HashMap<>();
-        Set<ArrayInstance> byteArrays = new HashSet<>();
 
         List<Instance> reachableInstances = new ArrayList<>();
         configuration.mHeaps.stream().forEach(heap ->
@@ -40,7 +42,21 @@ public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
                         .filter(fieldValue -> fieldValue.getField().getName()
                                 .equals("mBuffer"))
                         .findFirst().get().getValue(), instance));
-        byteArrays.addAll(byteArrayToBitmapMap.keySet());
+
+        return findDuplicates(byteArrayToBitmapMap);
+    }
+
+    @Override
+    protected StreamingAnalysis createStreamingAnalysis(Collection<String> heapNames) {
+        return new StreamingDuplicatedBitmapAnalysis(heapNames);
+    }
+
+    /**
+     * Finds the bitmaps whose buffers have the same content.
+     */
+    private static List<AnalysisResultEntry<?>> findDuplicates(
+            Map<ArrayInstance, Instance> byteArrayToBitmapMap) {
+        Set<ArrayInstance> byteArrays = new HashSet<>(byteArrayToBitmapMap.keySet());
 
         if (byteArrays.size() <= 1) {
             return Collections.emptyList();
@@ -132,6 +148,72 @@ public final class DuplicatedBitmapAnalyzerTask extends MemoryAnalyzerTask {
         return "Detects duplicated bitmaps in the application.";
     }
 
+    /**
+     * Pairs the bitmaps with their buffer as they are streamed, and compares the buffers once the
+     * whole dump has been visited.
+     */
+    private static final class StreamingDuplicatedBitmapAnalysis extends StreamingAnalysis {
+
+        private final Map<ArrayInstance, Instance> mByteArrayToBitmapMap = new HashMap<>();
+
+        // Bitmaps sharing a buffer may be joined with it in different passes, which visit
+        // different instances for the same buffer.
+        private final TLongObjectHashMap<ArrayInstance> mBuffers = new TLongObjectHashMap<>();
+
+        private final ArrayReferenceJoiner mJoiner = new ArrayReferenceJoiner((bitmap, buffer) -> {
+            ArrayInstance known = mBuffers.get(buffer.getId());
+            if (known == null) {
+                mBuffers.put(buffer.getId(), buffer);
+                known = buffer;
+            }
+            mByteArrayToBitmapMap.put(known, bitmap);
+        });
+
+        private ClassObj mBitmapClass;
+
+        private List<AnalysisResultEntry<?>> mResults = Collections.emptyList();
+
+        private StreamingDuplicatedBitmapAnalysis(Collection<String> heapNames) {
+            super(heapNames);
+        }
+
+        @Override
+        public void visitSnapshot(Snapshot snapshot) {
+            mBitmapClass = snapshot.findClass("android.graphics.Bitmap");
+        }
+
+        @Override
+        public void visitInstance(Instance instance) {
+            if (instance instanceof ArrayInstance) {
+                if (((ArrayInstance) instance).getArrayType() == Type.BYTE) {
+                    mJoiner.addArray((ArrayInstance) instance);
+                }
+            } else if (mBitmapClass != null && instance.getClassObj() == mBitmapClass
+                    && isAnalyzed(instance)) {
+                long bufferId = ((ClassInstance) instance).getReferenceId("mBuffer");
+                if (bufferId != 0) {
+                    mJoiner.addReferrer((ClassInstance) instance, bufferId);
+                }
+            }
+        }
+
+        @Override
+        public boolean visitPassEnd() {
+            return mJoiner.visitPassEnd();
+        }
+
+        @Override
+        public void visitEnd() {
+            // The buffers can only be read until the end of the dump.
+            mResults = findDuplicates(mByteArrayToBitmapMap);
+        }
+
+        @Override
+        public List<AnalysisResultEntry<?>> getResults() {
+            return mResults;
+        }
+    }
+
     /**
      * MemoryAnalysisResultEntry for DuplicatedBitmap task.
      */
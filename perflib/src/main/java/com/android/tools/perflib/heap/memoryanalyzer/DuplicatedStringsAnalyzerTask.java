@@ -16,15 +16,19 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.ArrayInstance;
 import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
 import com.google.common.collect.HashMultimap;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -34,8 +38,6 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
     @Override
     protected List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
                                                    @NonNull Snapshot snapshot) {
-        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
-
         HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
         ClassObj stringClass = snapshot.findClass("java.lang.String");
         if (stringClass == null) {
@@ -58,6 +60,19 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
             }
         }
 
+        return createEntries(stringIndex);
+    }
+
+    @Nullable
+    @Override
+    protected StreamingAnalysis createStreamingAnalysis(@NonNull Collection<String> heapNames) {
+        return new StreamingDuplicatedStringsAnalysis(heapNames);
+    }
+
+    @NonNull
+    private static List<AnalysisResultEntry<?>> createEntries(
+            @NonNull HashMultimap<String, ClassInstance> stringIndex) {
+        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
         for (String key : stringIndex.keySet()) {
             Set<ClassInstance> classInstanceSet = stringIndex.get(key);
             if (classInstanceSet.size() > 1) {
@@ -65,7 +80,6 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
                         new DuplicatedStringsEntry(key, new ArrayList<Instance>(classInstanceSet)));
             }
         }
-
         return results;
     }
 
@@ -81,6 +95,76 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
         return "Detects duplicate strings in the application.";
     }
 
+    /**
+     * Indexes strings as they are streamed. The char array of a string is not loaded when the
+     * string is visited, so strings are paired with their array by {@link ArrayReferenceJoiner}.
+     */
+    private static final class StreamingDuplicatedStringsAnalysis extends StreamingAnalysis
+            implements ArrayReferenceJoiner.Callback {
+
+        @NonNull
+        private final ArrayReferenceJoiner mJoiner = new ArrayReferenceJoiner(this);
+
+        @NonNull
+        private final HashMultimap<String, ClassInstance> mStringIndex = HashMultimap.create();
+
+        @Nullable
+        private ClassObj mStringClass;
+
+        private StreamingDuplicatedStringsAnalysis(@NonNull Collection<String> heapNames) {
+            super(heapNames);
+        }
+
+        @Override
+        public void visitSnapshot(@NonNull Snapshot snapshot) {
+            mStringClass = snapshot.findClass("java.lang.String");
+        }
+
+        @Override
+        public void visitInstance(@NonNull Instance instance) {
+            if (instance instanceof ArrayInstance) {
+                if (((ArrayInstance) instance).getArrayType() == Type.CHAR) {
+                    mJoiner.addArray((ArrayInstance) instance);
+                }
+            } else if (mStringClass != null && instance.getClassObj() == mStringClass
+                    && isAnalyzed(instance)) {
+                long valueId = ((ClassInstance) instance).getReferenceId("value");
+                if (valueId != 0) {
+                    mJoiner.addReferrer((ClassInstance) instance, valueId);
+                }
+            }
+        }
+
+        @Override
+        public boolean visitPassEnd() {
+            return mJoiner.visitPassEnd();
+        }
+
+        @Override
+        public void onJoined(@NonNull ClassInstance string, @NonNull ArrayInstance value) {
+            // Same decoding as ClassInstance#getStringChars, which needs the array to be loaded.
+            int count = -1;
+            int offset = 0;
+            for (ClassInstance.FieldValue entry : string.getValues()) {
+                if ("count".equals(entry.getField().getName())
+                        && entry.getValue() instanceof Integer) {
+                    count = (Integer) entry.getValue();
+                } else if ("offset".equals(entry.getField().getName())
+                        && entry.getValue() instanceof Integer) {
+                    offset = (Integer) entry.getValue();
+                }
+            }
+            char[] characters = value.asCharArray(Math.max(offset, 0), Math.max(count, 0));
+            mStringIndex.put(new String(characters), string);
+        }
+
+        @NonNull
+        @Override
+        public List<AnalysisResultEntry<?>> getResults() {
+            return createEntries(mStringIndex);
+        }
+    }
+
     public static class DuplicatedStringsEntry extends MemoryAnalysisResultEntry {
 
         private DuplicatedStringsEntry(@NonNull String offendingString,
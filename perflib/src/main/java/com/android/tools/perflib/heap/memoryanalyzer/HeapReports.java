@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -66,4 +67,20 @@ public final class HeapReports {
         List<AnalysisResultEntry<?>> results = TaskRunner.runTasks(tasks, snapshot);
         report.generate(results);
     }
+
+    /**
+     * Compares two {@link Snapshot}s with {@link SnapshotDiff} and returns a
+     * {@link SnapshotDiffReport} with the changes. Retained sizes are only compared if
+     * computeDominators() has been called on both snapshots.
+     *
+     * @param before    the earlier heap dump.
+     * @param after     the later heap dump.
+     * @param heapNames the names of the heaps whose instances are compared, e.g. "app".
+     */
+    public static SnapshotDiffReport generateDiffReport(@NonNull Snapshot before,
+            @NonNull Snapshot after, @NonNull Collection<String> heapNames) {
+        SnapshotDiffReport report = new SnapshotDiffReport();
+        report.generate(SnapshotDiff.compute(before, after, heapNames));
+        return report;
+    }
 }
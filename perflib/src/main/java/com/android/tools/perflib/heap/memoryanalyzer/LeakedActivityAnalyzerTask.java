@@ -16,14 +16,17 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
+import gnu.trove.TLongHashSet;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -53,16 +56,9 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
                     continue;
                 }
 
-                for (ClassInstance.FieldValue value : ((ClassInstance) instance).getValues()) {
-                    if ("mFinished".equals(value.getField().getName()) || "mDestroyed"
-                            .equals(value.getField().getName())) {
-                        if (instance.getDistanceToGcRoot() != Integer.MAX_VALUE && value
-                                .getValue() instanceof Boolean &&
-                                (Boolean) value.getValue()) {
-                            leakingInstances.add(instance);
-                            break;
-                        }
-                    }
+                if (instance.getDistanceToGcRoot() != Integer.MAX_VALUE
+                        && isFinishedOrDestroyed((ClassInstance) instance)) {
+                    leakingInstances.add(instance);
                 }
             }
         }
@@ -76,6 +72,24 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
         return results;
     }
 
+    @Nullable
+    @Override
+    protected StreamingAnalysis createStreamingAnalysis(@NonNull Collection<String> heapNames) {
+        return new StreamingLeakedActivityAnalysis(heapNames);
+    }
+
+    private static boolean isFinishedOrDestroyed(@NonNull ClassInstance activity) {
+        for (ClassInstance.FieldValue value : activity.getValues()) {
+            if ("mFinished".equals(value.getField().getName()) || "mDestroyed"
+                    .equals(value.getField().getName())) {
+                if (value.getValue() instanceof Boolean && (Boolean) value.getValue()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @NonNull
     @Override
     public String getTaskName() {
@@ -88,6 +102,51 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
         return "Detects leaked activities in Android applications.";
     }
 
+    /**
+     * Reports finished or destroyed activities as they are streamed. Whether they are still
+     * reachable is not known, so activities that are about to be collected are reported too.
+     */
+    private static final class StreamingLeakedActivityAnalysis extends StreamingAnalysis {
+
+        @NonNull
+        private final TLongHashSet mActivityClassIds = new TLongHashSet();
+
+        @NonNull
+        private final List<AnalysisResultEntry<?>> mResults =
+                new ArrayList<AnalysisResultEntry<?>>();
+
+        private StreamingLeakedActivityAnalysis(@NonNull Collection<String> heapNames) {
+            super(heapNames);
+        }
+
+        @Override
+        public void visitSnapshot(@NonNull Snapshot snapshot) {
+            for (ClassObj activityClass :
+                    snapshot.findAllDescendantClasses("android.app.Activity")) {
+                mActivityClassIds.add(activityClass.getId());
+            }
+        }
+
+        @Override
+        public void visitInstance(@NonNull Instance instance) {
+            if (!(instance instanceof ClassInstance) || !isAnalyzed(instance)) {
+                return;
+            }
+
+            ClassObj classObj = instance.getClassObj();
+            if (classObj != null && mActivityClassIds.contains(classObj.getId())
+                    && isFinishedOrDestroyed((ClassInstance) instance)) {
+                mResults.add(new LeakedActivityEntry(classObj.getClassName(), instance));
+            }
+        }
+
+        @NonNull
+        @Override
+        public List<AnalysisResultEntry<?>> getResults() {
+            return mResults;
+        }
+    }
+
     public static class LeakedActivityEntry extends MemoryAnalysisResultEntry {
 
         private LeakedActivityEntry(@NonNull String offenseDescription,
@@ -16,6 +16,7 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.heap.Heap;
@@ -37,4 +38,15 @@ public abstract class MemoryAnalyzerTask implements AnalyzerTask {
 
     protected abstract List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
                                                             @NonNull Snapshot snapshot);
+
+    /**
+     * Returns an analysis computing the results of this task while a heap dump is streamed, or null
+     * if the task needs a complete {@link Snapshot}. See {@link StreamingMemoryAnalyzer}.
+     *
+     * @param heapNames names of the heaps to report results for
+     */
+    @Nullable
+    protected StreamingAnalysis createStreamingAnalysis(@NonNull Collection<String> heapNames) {
+        return null;
+    }
 }
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.Offender;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.StackFrame;
+import com.android.tools.perflib.heap.StackTrace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two snapshots of the same process, e.g. taken before and after some scenario, and
+ * reports the classes whose instance count, shallow size or retained size changed.
+ *
+ * <p>Instance ids are not stable across heap dumps, so classes are matched by name and by the
+ * names and types of their fields, which also tells apart classes of the same name loaded by
+ * different class loaders. Instances are matched by class and allocation stack where the dumps
+ * were taken with allocation tracking, which tells which allocation sites the growth comes from.
+ *
+ * <p>Each snapshot is read in a single pass over the instances of the compared heaps, keeping only
+ * per-class and per-allocation-site totals. Retained sizes are only compared if the dominators of
+ * both snapshots have been computed, and take one more pass over the dominator tree. The retained
+ * size of a class is the one of its instances that are not retained by another instance of the
+ * class, so that nested instances, e.g. the nodes of a linked list, are not counted several times.
+ */
+public final class SnapshotDiff {
+
+    private SnapshotDiff() {
+    }
+
+    /**
+     * Returns a {@link ClassDiffEntry} per class that changed between the two snapshots, largest
+     * changes first. Only the instances of the heaps with the given names are compared.
+     */
+    @NonNull
+    public static List<AnalysisResultEntry<?>> compute(@NonNull Snapshot before,
+            @NonNull Snapshot after, @NonNull Collection<String> heapNames) {
+        Map<String, ClassTotals> beforeTotals = collectTotals(before, heapNames);
+        Map<String, ClassTotals> afterTotals = collectTotals(after, heapNames);
+
+        List<ClassDiffEntry> entries = new ArrayList<ClassDiffEntry>();
+        for (Map.Entry<String, ClassTotals> entry : afterTotals.entrySet()) {
+            ClassDiffEntry diff = new ClassDiffEntry(beforeTotals.get(entry.getKey()),
+                    entry.getValue());
+            if (diff.hasChanged()) {
+                entries.add(diff);
+            }
+        }
+        for (Map.Entry<String, ClassTotals> entry : beforeTotals.entrySet()) {
+            if (!afterTotals.containsKey(entry.getKey())) {
+                entries.add(new ClassDiffEntry(entry.getValue(), null));
+            }
+        }
+
+        Collections.sort(entries, (a, b) -> {
+            int result = Long.compare(Math.abs(b.getRetainedSizeDelta()),
+                    Math.abs(a.getRetainedSizeDelta()));
+            if (result == 0) {
+                result = Long.compare(Math.abs(b.getShallowSizeDelta()),
+                        Math.abs(a.getShallowSizeDelta()));
+            }
+            if (result == 0) {
+                result = Integer.compare(Math.abs(b.getCountDelta()),
+                        Math.abs(a.getCountDelta()));
+            }
+            return result != 0 ? result : a.getClassName().compareTo(b.getClassName());
+        });
+        return new ArrayList<AnalysisResultEntry<?>>(entries);
+    }
+
+    @NonNull
+    private static Map<String, ClassTotals> collectTotals(@NonNull Snapshot snapshot,
+            @NonNull Collection<String> heapNames) {
+        Map<String, ClassTotals> totals = new HashMap<String, ClassTotals>();
+        Map<ClassObj, ClassTotals> classTotals = new HashMap<ClassObj, ClassTotals>();
+        // Classes are loaded in one heap but may have instances in any of them.
+        for (Heap classHeap : snapshot.getHeaps()) {
+            for (ClassObj classObj : classHeap.getClasses()) {
+                for (Heap heap : snapshot.getHeaps()) {
+                    int heapId = heap.getId();
+                    if (heapNames.contains(heap.getName())
+                            && classObj.getHeapInstancesCount(heapId) > 0) {
+                        classTotals.put(classObj, totals.computeIfAbsent(getClassKey(classObj),
+                                key -> new ClassTotals(classObj)));
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Heap heap : snapshot.getHeaps()) {
+            int heapId = heap.getId();
+            if (!heapNames.contains(heap.getName())) {
+                continue;
+            }
+
+            for (Map.Entry<ClassObj, ClassTotals> entry : classTotals.entrySet()) {
+                entry.getValue().mCount += entry.getKey().getHeapInstancesCount(heapId);
+                entry.getValue().mShallowSize += entry.getKey().getShallowSize(heapId);
+            }
+            heap.forEachInstance(instance -> {
+                ClassTotals totalsOfClass = classTotals.get(instance.getClassObj());
+                String site = getAllocationSite(instance.getStack());
+                if (totalsOfClass != null && site != null) {
+                    totalsOfClass.mAllocationSites.merge(site, 1, Integer::sum);
+                }
+                return true;
+            });
+        }
+
+        if (snapshot.getTopologicalOrdering() != null) {
+            collectRetainedSizes(snapshot, heapNames, classTotals);
+        }
+        return totals;
+    }
+
+    /**
+     * Adds the retained sizes of the instances that are not retained by another instance of a
+     * class with the same totals, whose retained size already includes theirs.
+     *
+     * <p>An instance comes after its dominator in the topological ordering, so the dominator tree
+     * is built in one pass over the ordering, and then walked depth first while counting how many
+     * instances of each class enclose the current one.
+     */
+    private static void collectRetainedSizes(@NonNull Snapshot snapshot,
+            @NonNull Collection<String> heapNames,
+            @NonNull Map<ClassObj, ClassTotals> classTotals) {
+        List<Instance> roots = new ArrayList<Instance>();
+        Map<Instance, List<Instance>> dominated = new HashMap<Instance, List<Instance>>();
+        for (Instance instance : snapshot.getTopologicalOrdering()) {
+            Instance dominator = instance.getImmediateDominator();
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                roots.add(instance);
+            } else if (dominator != null) {
+                dominated.computeIfAbsent(dominator, key -> new ArrayList<Instance>(1))
+                        .add(instance);
+            }
+        }
+
+        Deque<Instance> stack = new ArrayDeque<Instance>(roots);
+        //  The instances from a root to the last visited one.
+        Deque<Instance> path = new ArrayDeque<Instance>();
+        while (!stack.isEmpty()) {
+            Instance instance = stack.pop();
+            while (!path.isEmpty() && path.peek() != instance.getImmediateDominator()) {
+                leave(path.pop(), classTotals);
+            }
+
+            ClassTotals totalsOfClass = classTotals.get(instance.getClassObj());
+            if (totalsOfClass != null) {
+                Heap heap = instance.getHeap();
+                if (totalsOfClass.mEnclosingInstances == 0 && heap != null
+                        && heapNames.contains(heap.getName())) {
+                    totalsOfClass.mRetainedSize += instance.getTotalRetainedSize();
+                }
+                totalsOfClass.mEnclosingInstances++;
+            }
+            path.push(instance);
+
+            List<Instance> children = dominated.get(instance);
+            if (children != null) {
+                for (Instance child : children) {
+                    stack.push(child);
+                }
+            }
+        }
+        while (!path.isEmpty()) {
+            leave(path.pop(), classTotals);
+        }
+    }
+
+    private static void leave(@NonNull Instance instance,
+            @NonNull Map<ClassObj, ClassTotals> classTotals) {
+        ClassTotals totalsOfClass = classTotals.get(instance.getClassObj());
+        if (totalsOfClass != null) {
+            totalsOfClass.mEnclosingInstances--;
+        }
+    }
+
+    /**
+     * Returns the key classes are matched by across snapshots: their name and the names and types
+     * of their static and instance fields.
+     */
+    @NonNull
+    static String getClassKey(@NonNull ClassObj classObj) {
+        StringBuilder key = new StringBuilder(classObj.getClassName());
+        key.append('{');
+        for (Field field : classObj.getStaticFields()) {
+            key.append("static ").append(field.getType()).append(' ').append(field.getName())
+                    .append(';');
+        }
+        for (Field field : classObj.getFields()) {
+            key.append(field.getType()).append(' ').append(field.getName()).append(';');
+        }
+        return key.append('}').toString();
+    }
+
+    @Nullable
+    private static String getAllocationSite(@Nullable StackTrace stack) {
+        if (stack == null || stack.getFrames() == null || stack.getFrames().length == 0) {
+            return null;
+        }
+        StringBuilder site = new StringBuilder();
+        for (StackFrame frame : stack.getFrames()) {
+            if (site.length() > 0) {
+                site.append(" <- ");
+            }
+            site.append(frame);
+        }
+        return site.toString();
+    }
+
+    private static final class ClassTotals {
+
+        //  One of the matched classes, to report the class by.
+        @NonNull
+        final ClassObj mClassObj;
+
+        int mCount;
+
+        long mShallowSize;
+
+        long mRetainedSize;
+
+        //  The number of instances with these totals that dominate the visited instance.
+        int mEnclosingInstances;
+
+        @NonNull
+        final Map<String, Integer> mAllocationSites = new HashMap<String, Integer>();
+
+        ClassTotals(@NonNull ClassObj classObj) {
+            mClassObj = classObj;
+        }
+    }
+
+    /**
+     * The changes of a class between two snapshots. The offenders are the class objects of the
+     * class in the snapshots it exists in, the one of the earlier snapshot first.
+     */
+    public static final class ClassDiffEntry implements AnalysisResultEntry<ClassObj> {
+
+        @NonNull
+        private final Offender<ClassObj> mOffender;
+
+        private final int mCountBefore;
+
+        private final int mCountAfter;
+
+        private final long mShallowSizeDelta;
+
+        private final long mRetainedSizeDelta;
+
+        @NonNull
+        private final Map<String, Integer> mAllocationSiteDeltas;
+
+        private ClassDiffEntry(@Nullable ClassTotals before, @Nullable ClassTotals after) {
+            assert before != null || after != null;
+            List<ClassObj> classes = new ArrayList<ClassObj>(2);
+            if (before != null) {
+                classes.add(before.mClassObj);
+            }
+            if (after != null) {
+                classes.add(after.mClassObj);
+            }
+            mOffender = new Offender<ClassObj>(classes.get(0).getClassName(), classes);
+
+            mCountBefore = before != null ? before.mCount : 0;
+            mCountAfter = after != null ? after.mCount : 0;
+            mShallowSizeDelta = (after != null ? after.mShallowSize : 0)
+                    - (before != null ? before.mShallowSize : 0);
+            mRetainedSizeDelta = (after != null ? after.mRetainedSize : 0)
+                    - (before != null ? before.mRetainedSize : 0);
+
+            Map<String, Integer> siteDeltas = new HashMap<String, Integer>();
+            if (after != null) {
+                siteDeltas.putAll(after.mAllocationSites);
+            }
+            if (before != null) {
+                for (Map.Entry<String, Integer> site : before.mAllocationSites.entrySet()) {
+                    siteDeltas.merge(site.getKey(), -site.getValue(), Integer::sum);
+                }
+            }
+            List<Map.Entry<String, Integer>> sites =
+                    new ArrayList<Map.Entry<String, Integer>>(siteDeltas.entrySet());
+            sites.removeIf(site -> site.getValue() == 0);
+            Collections.sort(sites, (a, b) -> {
+                int result = Integer.compare(Math.abs(b.getValue()), Math.abs(a.getValue()));
+                return result != 0 ? result : a.getKey().compareTo(b.getKey());
+            });
+            mAllocationSiteDeltas = new LinkedHashMap<String, Integer>();
+            for (Map.Entry<String, Integer> site : sites) {
+                mAllocationSiteDeltas.put(site.getKey(), site.getValue());
+            }
+        }
+
+        boolean hasChanged() {
+            return getCountDelta() != 0 || mShallowSizeDelta != 0 || mRetainedSizeDelta != 0
+                    || !mAllocationSiteDeltas.isEmpty();
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mOffender.getOffendingDescription();
+        }
+
+        public int getCountBefore() {
+            return mCountBefore;
+        }
+
+        public int getCountAfter() {
+            return mCountAfter;
+        }
+
+        public int getCountDelta() {
+            return mCountAfter - mCountBefore;
+        }
+
+        public long getShallowSizeDelta() {
+            return mShallowSizeDelta;
+        }
+
+        public long getRetainedSizeDelta() {
+            return mRetainedSizeDelta;
+        }
+
+        /**
+         * Returns the change of the instance count of the class per allocation stack, largest
+         * changes first. Empty if the dumps were taken without allocation tracking.
+         */
+        @NonNull
+        public Map<String, Integer> getAllocationSiteDeltas() {
+            return Collections.unmodifiableMap(mAllocationSiteDeltas);
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return getClassName() + ": " + formatDelta(getCountDelta()) + " instances, "
+                    + formatDelta(mShallowSizeDelta) + " bytes shallow, "
+                    + formatDelta(mRetainedSizeDelta) + " bytes retained.";
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Heap Diff";
+        }
+
+        @NonNull
+        @Override
+        public Offender<ClassObj> getOffender() {
+            return mOffender;
+        }
+
+        @NonNull
+        static String formatDelta(long delta) {
+            return delta > 0 ? "+" + delta : Long.toString(delta);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.memoryanalyzer.SnapshotDiff.ClassDiffEntry;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Displays the classes that changed between two snapshots, as computed by {@link SnapshotDiff},
+ * followed by the allocation sites the changes come from when they are known.
+ */
+public final class SnapshotDiffReport implements Report {
+
+    // Limits the number of classes and allocation sites shown.
+    private static final int MAX_ROWS = 50;
+
+    private List<AnalysisResultEntry<?>> mResults;
+
+    @Override
+    public void generate(@NonNull List<AnalysisResultEntry<?>> data) {
+        mResults = data;
+    }
+
+    @Override
+    public void print(@NonNull Printer printer) {
+        printer.addHeading(2, "Heap Diff Report");
+        printer.addParagraph("Compares the instances of each class between two heap dumps.");
+
+        if (mResults == null || mResults.isEmpty()) {
+            printer.addParagraph("No changes found.");
+            return;
+        }
+
+        printer.startTable("Class", "Count", "Count Delta", "Shallow Size Delta",
+                "Retained Size Delta");
+        int rows = 0;
+        for (AnalysisResultEntry<?> entry : mResults) {
+            if (rows++ == MAX_ROWS) {
+                break;
+            }
+            ClassDiffEntry diff = (ClassDiffEntry) entry;
+            printer.addRow(diff.getClassName(), Integer.toString(diff.getCountAfter()),
+                    ClassDiffEntry.formatDelta(diff.getCountDelta()),
+                    ClassDiffEntry.formatDelta(diff.getShallowSizeDelta()),
+                    ClassDiffEntry.formatDelta(diff.getRetainedSizeDelta()));
+        }
+        printer.endTable();
+
+        rows = 0;
+        classes:
+        for (AnalysisResultEntry<?> entry : mResults) {
+            ClassDiffEntry diff = (ClassDiffEntry) entry;
+            for (Map.Entry<String, Integer> site : diff.getAllocationSiteDeltas().entrySet()) {
+                if (rows == MAX_ROWS) {
+                    break classes;
+                }
+                if (rows++ == 0) {
+                    printer.addHeading(3, "Allocation Sites");
+                    printer.startTable("Class", "Count Delta", "Allocation Stack");
+                }
+                printer.addRow(diff.getClassName(), ClassDiffEntry.formatDelta(site.getValue()),
+                        site.getKey());
+            }
+        }
+        if (rows > 0) {
+            printer.endTable();
+        }
+    }
+}
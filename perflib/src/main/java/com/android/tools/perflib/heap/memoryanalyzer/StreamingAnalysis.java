@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Instance;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Computes the results of a {@link MemoryAnalyzerTask} over a streamed heap dump, see
+ * {@link StreamingMemoryAnalyzer}. Instances are visited again as long as
+ * {@link #visitPassEnd()} returns true.
+ *
+ * <p>Since reachability is not known while streaming, unreachable instances are analyzed too.
+ */
+public abstract class StreamingAnalysis extends HprofVisitor {
+
+    @NonNull
+    private final Collection<String> mHeapNames;
+
+    protected StreamingAnalysis(@NonNull Collection<String> heapNames) {
+        mHeapNames = heapNames;
+    }
+
+    /**
+     * Returns whether the instance belongs to one of the heaps the results are computed for.
+     * Instances of other heaps may still be needed, e.g. arrays referenced from analyzed heaps.
+     */
+    protected boolean isAnalyzed(@NonNull Instance instance) {
+        return mHeapNames.contains(instance.getHeap().getName());
+    }
+
+    /**
+     * Returns the results of the analysis, once the whole dump has been visited. Anything that
+     * needs to read values of the instances must be done in {@link #visitEnd()} instead.
+     */
+    @NonNull
+    public abstract List<AnalysisResultEntry<?>> getResults();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.proguard.ProguardMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs {@link MemoryAnalyzerTask}s while a heap dump is streamed, without creating a
+ * {@link Snapshot} holding all of its instances. Meant for automated checks of many or large
+ * dumps, where {@link MemoryAnalyzer} would need the memory of a fully loaded snapshot per dump.
+ *
+ * <p>Like {@link MemoryAnalyzer}, only the app heap is analyzed. Unlike it, reachability is not
+ * known while streaming, so instances waiting to be collected are reported too.
+ */
+public final class StreamingMemoryAnalyzer {
+
+    private static final Collection<String> ANALYZED_HEAPS = Collections.singleton("app");
+
+    private StreamingMemoryAnalyzer() {
+    }
+
+    /**
+     * Streams the given hprof buffer through the given tasks and returns their results. The
+     * buffer is disposed once it has been read.
+     *
+     * @throws IllegalArgumentException if one of the tasks cannot run on a streamed heap dump
+     */
+    @NonNull
+    public static List<AnalysisResultEntry<?>> analyze(@NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull Set<? extends MemoryAnalyzerTask> tasks) {
+        final List<StreamingAnalysis> analyses = new ArrayList<StreamingAnalysis>(tasks.size());
+        for (MemoryAnalyzerTask task : tasks) {
+            StreamingAnalysis analysis = task.createStreamingAnalysis(ANALYZED_HEAPS);
+            if (analysis == null) {
+                buffer.dispose();
+                throw new IllegalArgumentException(
+                        task.getTaskName() + " does not support streamed heap dumps");
+            }
+            analyses.add(analysis);
+        }
+
+        Snapshot.streamHprof(buffer, map, new HprofVisitor() {
+            // The analyses that asked for the current pass over the instances.
+            private List<StreamingAnalysis> mVisiting = analyses;
+
+            @Override
+            public void visitSnapshot(@NonNull Snapshot snapshot) {
+                for (StreamingAnalysis analysis : analyses) {
+                    analysis.visitSnapshot(snapshot);
+                }
+            }
+
+            @Override
+            public void visitInstance(@NonNull Instance instance) {
+                for (StreamingAnalysis analysis : mVisiting) {
+                    analysis.visitInstance(instance);
+                }
+            }
+
+            @Override
+            public boolean visitPassEnd() {
+                List<StreamingAnalysis> nextPass = new ArrayList<StreamingAnalysis>();
+                for (StreamingAnalysis analysis : mVisiting) {
+                    if (analysis.visitPassEnd()) {
+                        nextPass.add(analysis);
+                    }
+                }
+                mVisiting = nextPass;
+                return !nextPass.isEmpty();
+            }
+
+            @Override
+            public void visitEnd() {
+                for (StreamingAnalysis analysis : analyses) {
+                    analysis.visitEnd();
+                }
+            }
+        });
+
+        List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
+        for (StreamingAnalysis analysis : analyses) {
+            results.addAll(analysis.getResults());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inclusive and exclusive times of the calls of a thread, per method and per call path, for any
+ * time range of the thread, computed without walking its {@link Call} tree.
+ *
+ * <p>The calls of the thread are flattened into the intervals between consecutive method entries
+ * and exits, each of which is spent in the call path on top of the stack. The times of the
+ * intervals are summed per call path for blocks of {@link #BLOCK_SIZE} consecutive intervals, so
+ * a query only sums the intervals at the edges of the range and the blocks in between, then adds
+ * up the times of the call paths of the thread.
+ *
+ * <p>A call path is a method called from its parent call path, the top level call of the thread
+ * being the root path 0. Paths are numbered so that parents come before their children.
+ */
+public final class CallTable {
+
+    //  Number of consecutive intervals whose times are summed together.
+    private static final int BLOCK_SIZE = 1024;
+
+    private final long[] mPathMethodIds;
+
+    private final int[] mPathParents;
+
+    //  Whether the method of a path is called from none of its ancestor paths. Inclusive times of
+    //  methods only count those paths, so that recursive calls are not counted twice, as in
+    //  MethodProfileData.
+    private final boolean[] mOutermostPaths;
+
+    //  Interval i starts at boundary i and ends at boundary i + 1. Boundary times are in
+    //  VmTraceData.getDefaultTimeUnits().
+    private final long[] mThreadTimes;
+
+    private final long[] mGlobalTimes;
+
+    //  Path each interval is spent in, one per boundary but the last.
+    private final int[] mIntervalPaths;
+
+    //  Paths each block of intervals is spent in, sorted, and the time spent in each of them.
+    private final int[][] mBlockPaths;
+
+    private final long[][] mBlockThreadTimes;
+
+    private final long[][] mBlockGlobalTimes;
+
+    private CallTable(@NonNull Builder builder) {
+        int pathCount = builder.mPathMethodIds.size();
+        mPathMethodIds = new long[pathCount];
+        mPathParents = new int[pathCount];
+        mOutermostPaths = new boolean[pathCount];
+        for (int path = 0; path < pathCount; path++) {
+            mPathMethodIds[path] = builder.mPathMethodIds.get(path);
+            mPathParents[path] = builder.mPathParents.get(path);
+            mOutermostPaths[path] = !hasAncestorWithMethod(mPathParents[path],
+                    mPathMethodIds[path]);
+        }
+
+        int boundaryCount = builder.mBoundaryCount;
+        mThreadTimes = Arrays.copyOf(builder.mThreadTimes, boundaryCount);
+        mGlobalTimes = Arrays.copyOf(builder.mGlobalTimes, boundaryCount);
+        mIntervalPaths = Arrays.copyOf(builder.mIntervalPaths, boundaryCount - 1);
+
+        int blockCount = (mIntervalPaths.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        mBlockPaths = new int[blockCount][];
+        mBlockThreadTimes = new long[blockCount][];
+        mBlockGlobalTimes = new long[blockCount][];
+        for (int block = 0; block < blockCount; block++) {
+            sumBlock(block);
+        }
+    }
+
+    /**
+     * Creates the table of the calls under the given top level call of a thread.
+     */
+    @NonNull
+    public static CallTable create(@NonNull Call topLevelCall) {
+        Builder builder = new Builder();
+        builder.addCalls(topLevelCall);
+        return new CallTable(builder);
+    }
+
+    public int getPathCount() {
+        return mPathMethodIds.length;
+    }
+
+    public long getPathMethodId(int path) {
+        return mPathMethodIds[path];
+    }
+
+    /** Returns the path the given path is called from, or -1 for the root path. */
+    public int getPathParent(int path) {
+        return mPathParents[path];
+    }
+
+    /**
+     * Returns the times spent by the thread between the given times, measured with the given
+     * clock. Calls partly in the range only count for the part in the range.
+     */
+    @NonNull
+    public Range getRange(@NonNull ClockType clockType, long startTime, long endTime,
+            @NonNull TimeUnit unit) {
+        TimeUnit tableUnit = VmTraceData.getDefaultTimeUnits();
+        long start = tableUnit.convert(startTime, unit);
+        long end = tableUnit.convert(endTime, unit);
+        long[] times = clockType == ClockType.THREAD ? mThreadTimes : mGlobalTimes;
+        long[][] blockTimes = clockType == ClockType.THREAD ? mBlockThreadTimes
+                : mBlockGlobalTimes;
+        long[] exclusiveTimes = new long[mPathMethodIds.length];
+        if (start > end) {
+            return new Range(exclusiveTimes);
+        }
+
+        // Intervals first to last are entirely in the range.
+        int first = search(times, start, false);
+        int last = search(times, end, true) - 2;
+
+        addClippedInterval(exclusiveTimes, times, first - 1, start, end);
+        if (last + 1 != first - 1) {
+            addClippedInterval(exclusiveTimes, times, last + 1, start, end);
+        }
+
+        int interval = first;
+        while (interval <= last) {
+            if (interval % BLOCK_SIZE == 0 && interval + BLOCK_SIZE - 1 <= last) {
+                int block = interval / BLOCK_SIZE;
+                int[] paths = mBlockPaths[block];
+                for (int i = 0; i < paths.length; i++) {
+                    exclusiveTimes[paths[i]] += blockTimes[block][i];
+                }
+                interval += BLOCK_SIZE;
+            } else {
+                exclusiveTimes[mIntervalPaths[interval]] += times[interval + 1] - times[interval];
+                interval++;
+            }
+        }
+        return new Range(exclusiveTimes);
+    }
+
+    private void addClippedInterval(@NonNull long[] exclusiveTimes, @NonNull long[] times,
+            int interval, long start, long end) {
+        if (interval < 0 || interval >= mIntervalPaths.length) {
+            return;
+        }
+        long time = Math.min(times[interval + 1], end) - Math.max(times[interval], start);
+        if (time > 0) {
+            exclusiveTimes[mIntervalPaths[interval]] += time;
+        }
+    }
+
+    /**
+     * Returns the index of the first boundary after the given time, or at the given time if
+     * {@code after} is false.
+     */
+    private static int search(@NonNull long[] times, long time, boolean after) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time || (after && times[middle] == time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean hasAncestorWithMethod(int path, long methodId) {
+        for (; path >= 0; path = mPathParents[path]) {
+            if (mPathMethodIds[path] == methodId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sumBlock(int block) {
+        int start = block * BLOCK_SIZE;
+        int end = Math.min(start + BLOCK_SIZE, mIntervalPaths.length);
+        Map<Integer, long[]> sums = new HashMap<Integer, long[]>();
+        for (int interval = start; interval < end; interval++) {
+            long[] sum = sums.get(mIntervalPaths[interval]);
+            if (sum == null) {
+                sum = new long[2];
+                sums.put(mIntervalPaths[interval], sum);
+            }
+            sum[0] += mThreadTimes[interval + 1] - mThreadTimes[interval];
+            sum[1] += mGlobalTimes[interval + 1] - mGlobalTimes[interval];
+        }
+
+        List<Integer> paths = new ArrayList<Integer>(sums.keySet());
+        Collections.sort(paths);
+        mBlockPaths[block] = new int[paths.size()];
+        mBlockThreadTimes[block] = new long[paths.size()];
+        mBlockGlobalTimes[block] = new long[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            long[] sum = sums.get(paths.get(i));
+            mBlockPaths[block][i] = paths.get(i);
+            mBlockThreadTimes[block][i] = sum[0];
+            mBlockGlobalTimes[block][i] = sum[1];
+        }
+    }
+
+    /**
+     * Times spent by a thread in a time range, per call path and per method.
+     */
+    public final class Range {
+
+        private final long[] mExclusiveTimes;
+
+        private final long[] mInclusiveTimes;
+
+        private final Map<Long, long[]> mMethodTimes = new HashMap<Long, long[]>();
+
+        private Range(@NonNull long[] exclusiveTimes) {
+            mExclusiveTimes = exclusiveTimes;
+            mInclusiveTimes = Arrays.copyOf(exclusiveTimes, exclusiveTimes.length);
+            // Children come after their parents.
+            for (int path = mInclusiveTimes.length - 1; path > 0; path--) {
+                mInclusiveTimes[mPathParents[path]] += mInclusiveTimes[path];
+            }
+
+            for (int path = 0; path < mInclusiveTimes.length; path++) {
+                if (mInclusiveTimes[path] == 0) {
+                    continue;
+                }
+                long[] times = mMethodTimes.get(mPathMethodIds[path]);
+                if (times == null) {
+                    times = new long[2];
+                    mMethodTimes.put(mPathMethodIds[path], times);
+                }
+                times[0] += mExclusiveTimes[path];
+                if (mOutermostPaths[path]) {
+                    times[1] += mInclusiveTimes[path];
+                }
+            }
+        }
+
+        /** Returns the ids of the methods running in the range. */
+        @NonNull
+        public Set<Long> getMethodIds() {
+            return Collections.unmodifiableSet(mMethodTimes.keySet());
+        }
+
+        public long getExclusiveTime(long methodId, @NonNull TimeUnit unit) {
+            long[] times = mMethodTimes.get(methodId);
+            return times == null ? 0 : convert(times[0], unit);
+        }
+
+        public long getInclusiveTime(long methodId, @NonNull TimeUnit unit) {
+            long[] times = mMethodTimes.get(methodId);
+            return times == null ? 0 : convert(times[1], unit);
+        }
+
+        public long getPathExclusiveTime(int path, @NonNull TimeUnit unit) {
+            return convert(mExclusiveTimes[path], unit);
+        }
+
+        public long getPathInclusiveTime(int path, @NonNull TimeUnit unit) {
+            return convert(mInclusiveTimes[path], unit);
+        }
+
+        private long convert(long time, @NonNull TimeUnit unit) {
+            return unit.convert(time, VmTraceData.getDefaultTimeUnits());
+        }
+    }
+
+    private static final class Builder {
+
+        private final List<Long> mPathMethodIds = new ArrayList<Long>();
+
+        private final List<Integer> mPathParents = new ArrayList<Integer>();
+
+        private final List<Map<Long, Integer>> mPathChildren = new ArrayList<Map<Long, Integer>>();
+
+        private long[] mThreadTimes = new long[BLOCK_SIZE];
+
+        private long[] mGlobalTimes = new long[BLOCK_SIZE];
+
+        private int[] mIntervalPaths = new int[BLOCK_SIZE];
+
+        private int mBoundaryCount;
+
+        /**
+         * Adds the boundaries of the intervals of the given call and its callees, iteratively as
+         * call stacks can be deep.
+         */
+        void addCalls(@NonNull Call topLevelCall) {
+            List<Call> calls = new ArrayList<Call>();
+            List<Integer> paths = new ArrayList<Integer>();
+            List<Integer> nextCallees = new ArrayList<Integer>();
+
+            int rootPath = getPath(-1, topLevelCall.getMethodId());
+            addBoundary(topLevelCall, true, rootPath);
+            calls.add(topLevelCall);
+            paths.add(rootPath);
+            nextCallees.add(0);
+            while (!calls.isEmpty()) {
+                int top = calls.size() - 1;
+                Call call = calls.get(top);
+                int callee = nextCallees.get(top);
+                if (callee == call.getCallees().size()) {
+                    calls.remove(top);
+                    paths.remove(top);
+                    nextCallees.remove(top);
+                    // The caller runs again from the exit of this call.
+                    addBoundary(call, false, top > 0 ? paths.get(top - 1) : -1);
+                    continue;
+                }
+
+                nextCallees.set(top, callee + 1);
+                Call calleeCall = call.getCallees().get(callee);
+                int path = getPath(paths.get(top), calleeCall.getMethodId());
+                addBoundary(calleeCall, true, path);
+                calls.add(calleeCall);
+                paths.add(path);
+                nextCallees.add(0);
+            }
+        }
+
+        private int getPath(int parent, long methodId) {
+            if (parent >= 0) {
+                Integer path = mPathChildren.get(parent).get(methodId);
+                if (path != null) {
+                    return path;
+                }
+            }
+            int path = mPathMethodIds.size();
+            mPathMethodIds.add(methodId);
+            mPathParents.add(parent);
+            mPathChildren.add(new HashMap<Long, Integer>());
+            if (parent >= 0) {
+                mPathChildren.get(parent).put(methodId, path);
+            }
+            return path;
+        }
+
+        private void addBoundary(@NonNull Call call, boolean entry, int path) {
+            if (mBoundaryCount == mThreadTimes.length) {
+                mThreadTimes = Arrays.copyOf(mThreadTimes, mBoundaryCount * 2);
+                mGlobalTimes = Arrays.copyOf(mGlobalTimes, mBoundaryCount * 2);
+                mIntervalPaths = Arrays.copyOf(mIntervalPaths, mBoundaryCount * 2);
+            }
+            TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+            mThreadTimes[mBoundaryCount] = entry ? call.getEntryTime(ClockType.THREAD, unit)
+                    : call.getExitTime(ClockType.THREAD, unit);
+            mGlobalTimes[mBoundaryCount] = entry ? call.getEntryTime(ClockType.GLOBAL, unit)
+                    : call.getExitTime(ClockType.GLOBAL, unit);
+            mIntervalPaths[mBoundaryCount] = path;
+            mBoundaryCount++;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -30,6 +31,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,6 +46,7 @@ import java.util.concurrent.TimeUnit;
  *      <li>A mapping from thread ids to thread names.</li>
  *      <li>A mapping from method ids to {@link MethodInfo}</li>
  *      <li>A mapping from each thread to the top level call on that thread.</li>
+ *      <li>A mapping from each thread to the {@link CallTable} of its calls.</li>
  *  </ul>
  */
 public class VmTraceData {
@@ -57,6 +65,10 @@ public class VmTraceData {
     /** Map from thread name to thread info. */
     private final Map<String, ThreadInfo> mThreadInfo;
 
+    /** Map from thread id to the aggregated times of the calls of that thread, once computed. */
+    private final ConcurrentMap<Integer, CallTable> mCallTables =
+            new ConcurrentHashMap<Integer, CallTable>();
+
     private VmTraceData(Builder b) {
         mVersion = b.mVersion;
         mDataFileOverflow = b.mDataFileOverflow;
@@ -127,6 +139,52 @@ public class VmTraceData {
         return mThreadInfo.get(name);
     }
 
+    /**
+     * Returns the inclusive and exclusive times of the calls of the given thread, which can be
+     * queried for any time range, or null if the thread has no calls. The table of a thread is
+     * computed on the first call, unless {@link #computeCallTables(ForkJoinPool)} was called.
+     */
+    @Nullable
+    public CallTable getCallTable(ThreadInfo thread) {
+        Call topLevelCall = thread.getTopLevelCall();
+        if (topLevelCall == null) {
+            return null;
+        }
+        CallTable table = mCallTables.get(thread.getId());
+        if (table == null) {
+            // Not computed within the map, which would block other threads of the same bin.
+            table = CallTable.create(topLevelCall);
+            CallTable previous = mCallTables.putIfAbsent(thread.getId(), table);
+            if (previous != null) {
+                table = previous;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Computes the {@link CallTable} of every thread with calls in parallel on the given pool,
+     * for callers that are going to query most of them.
+     */
+    public void computeCallTables(@NonNull ForkJoinPool pool) {
+        List<ThreadInfo> threads = getThreads(true);
+        List<Callable<CallTable>> tasks = Lists.newArrayListWithCapacity(threads.size());
+        for (ThreadInfo thread : threads) {
+            tasks.add(() -> getCallTable(thread));
+        }
+
+        try {
+            for (Future<CallTable> table : pool.invokeAll(tasks)) {
+                table.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public Map<Long,MethodInfo> getMethods() {
         return mMethods;
     }
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.SparseArray;
+import com.google.common.primitives.UnsignedInts;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A method trace whose calls are reconstructed on demand, for a given thread and time range,
+ * rather than all at once like {@link VmTraceData} does. Meant for traces too long to hold a
+ * {@link Call} per method invocation in memory.
+ *
+ * <p>The records of the trace are memory mapped and only indexed when the trace is opened: the
+ * position of each record is kept per thread, along with a copy of the call stack of the thread
+ * every {@link #CHECKPOINT_INTERVAL} records. Reconstructing the calls of a range then only reads
+ * the records of that thread from the closest copy of its call stack to the end of the range.
+ * Calls still running at the end of the range are cut at the last record of the range, so a range
+ * covering the whole trace gives the same calls as {@link VmTraceData}.
+ */
+public final class VmTraceIndex {
+
+    //  Number of records of a thread between two copies of its call stack.
+    private static final int CHECKPOINT_INTERVAL = 4096;
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    private final int mVersion;
+
+    @NonNull
+    private final VmClockType mVmClockType;
+
+    private final int mRecordSize;
+
+    private final long mStartTimeUs;
+
+    /** Map from thread ids to thread names. */
+    @NonNull
+    private final SparseArray<String> mThreadNames;
+
+    /** Map from method id to method info. */
+    @NonNull
+    private final Map<Long, MethodInfo> mMethods;
+
+    /** Map from thread id to the index of the records of that thread. */
+    @NonNull
+    private final SparseArray<ThreadIndex> mThreads = new SparseArray<ThreadIndex>(10);
+
+    private VmTraceIndex(@NonNull ByteBuffer buffer, @NonNull VmTraceParser parser,
+            @NonNull HeaderHandler header) {
+        mBuffer = buffer;
+        mVersion = parser.getVersion();
+        mVmClockType = parser.getVmClockType() != null
+                ? parser.getVmClockType() : VmClockType.THREAD_CPU;
+        mRecordSize = parser.getRecordSize();
+        mStartTimeUs = header.mStartTimeUs;
+        mThreadNames = header.mThreads;
+        mMethods = header.mMethods;
+    }
+
+    /**
+     * Opens the given trace file and indexes its records.
+     */
+    @NonNull
+    public static VmTraceIndex create(@NonNull File traceFile) throws IOException {
+        HeaderHandler header = new HeaderHandler();
+        VmTraceParser parser = new VmTraceParser(traceFile, header);
+        ByteBuffer buffer = parser.parseHeaderAndOpenData().slice().order(ByteOrder.LITTLE_ENDIAN);
+        VmTraceIndex index = new VmTraceIndex(buffer, parser, header);
+        index.indexRecords();
+        return index;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    @NonNull
+    public VmClockType getVmClockType() {
+        return mVmClockType;
+    }
+
+    public long getStartTimeUs() {
+        return mStartTimeUs;
+    }
+
+    @NonNull
+    public Map<Long, MethodInfo> getMethods() {
+        return Collections.unmodifiableMap(mMethods);
+    }
+
+    @Nullable
+    public MethodInfo getMethod(long methodId) {
+        return mMethods.get(methodId);
+    }
+
+    /**
+     * Returns the ids of the threads of the trace, including those without any record.
+     */
+    @NonNull
+    public List<Integer> getThreadIds() {
+        List<Integer> ids = new ArrayList<Integer>(mThreadNames.size());
+        for (int i = 0; i < mThreadNames.size(); i++) {
+            ids.add(mThreadNames.keyAt(i));
+        }
+        return ids;
+    }
+
+    @Nullable
+    public String getThreadName(int threadId) {
+        return mThreadNames.get(threadId);
+    }
+
+    /**
+     * Returns the number of method entry and exit records of the given thread.
+     */
+    public int getRecordCount(int threadId) {
+        ThreadIndex thread = mThreads.get(threadId);
+        return thread == null ? 0 : thread.mSize;
+    }
+
+    /**
+     * Returns the given thread, with the calls it made between the given times, measured with the
+     * given clock since the start of the trace. The calls are nested under a top level call, as
+     * in {@link VmTraceData}. Returns null if the thread does not exist.
+     */
+    @Nullable
+    public ThreadInfo getThread(int threadId, @NonNull ClockType clockType, long startTime,
+            long endTime, @NonNull TimeUnit unit) {
+        String name = mThreadNames.get(threadId);
+        if (name == null) {
+            return null;
+        }
+
+        ThreadIndex thread = mThreads.get(threadId);
+        Call topLevelCall = null;
+        if (thread != null) {
+            TimeUnit traceUnit = VmTraceData.getDefaultTimeUnits();
+            topLevelCall = thread.reconstructCalls(clockType,
+                    traceUnit.convert(startTime, unit), traceUnit.convert(endTime, unit));
+        }
+        return new ThreadInfo(threadId, name, topLevelCall);
+    }
+
+    private void indexRecords() {
+        for (int position = 0; position + mRecordSize <= mBuffer.limit();
+                position += mRecordSize) {
+            int threadId = readThreadId(position);
+            ThreadIndex thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new ThreadIndex(threadId);
+                mThreads.put(threadId, thread);
+            }
+
+            int methodId = mBuffer.getInt(position + getThreadIdSize());
+            long id = UnsignedInts.toLong(methodId & ~0x03);
+            if (mMethods.get(id) == null) {
+                mMethods.put(id, new MethodInfo(id, "unknown", "unknown", "unknown", "unknown",
+                        -1));
+            }
+            thread.addRecord(position, methodId);
+        }
+
+        for (int i = 0; i < mThreads.size(); i++) {
+            mThreads.valueAt(i).trimToSize();
+        }
+    }
+
+    private int getThreadIdSize() {
+        return mVersion == 1 ? 1 : 2;
+    }
+
+    private int readThreadId(int position) {
+        return mVersion == 1 ? mBuffer.get(position) : mBuffer.getShort(position);
+    }
+
+    private int readThreadTime(int position) {
+        // Wall clock traces only record the global time, dual clock ones the thread time first.
+        return mBuffer.getInt(position + getThreadIdSize() + 4);
+    }
+
+    private int readGlobalTime(int position) {
+        int offset = mVmClockType == VmClockType.DUAL ? 8 : 4;
+        return mBuffer.getInt(position + getThreadIdSize() + offset);
+    }
+
+    private long readTime(int position, @NonNull ClockType clockType) {
+        return UnsignedInts.toLong(clockType == ClockType.THREAD
+                ? readThreadTime(position) : readGlobalTime(position));
+    }
+
+    /**
+     * Records of a thread, and copies of its call stack taken along the way.
+     */
+    private final class ThreadIndex {
+
+        private final int mThreadId;
+
+        //  Positions of the records of the thread in the buffer, in trace order.
+        @NonNull
+        private int[] mPositions = new int[CHECKPOINT_INTERVAL];
+
+        private int mSize;
+
+        //  The call stack before the records at multiples of CHECKPOINT_INTERVAL.
+        @NonNull
+        private final List<CallStack> mCheckpoints = new ArrayList<CallStack>();
+
+        //  The call stack after the last indexed record.
+        @NonNull
+        private final CallStack mStack = new CallStack();
+
+        ThreadIndex(int threadId) {
+            mThreadId = threadId;
+        }
+
+        void addRecord(int position, int methodId) {
+            if (mSize % CHECKPOINT_INTERVAL == 0) {
+                mCheckpoints.add(mStack.copy());
+            }
+            if (mSize == mPositions.length) {
+                mPositions = Arrays.copyOf(mPositions, mSize * 2);
+            }
+            mPositions[mSize++] = position;
+            mStack.apply(methodId, readThreadTime(position), readGlobalTime(position));
+        }
+
+        void trimToSize() {
+            mPositions = Arrays.copyOf(mPositions, mSize);
+        }
+
+        @Nullable
+        Call reconstructCalls(@NonNull ClockType clockType, long startTime, long endTime) {
+            int first = findFirstRecord(clockType, startTime);
+            if (first == mSize || readTime(mPositions[first], clockType) > endTime) {
+                return null;
+            }
+
+            // Find out which calls were running at the start of the range.
+            int checkpoint = first / CHECKPOINT_INTERVAL;
+            CallStack stack = mCheckpoints.get(checkpoint).copy();
+            for (int i = checkpoint * CHECKPOINT_INTERVAL; i < first; i++) {
+                int position = mPositions[i];
+                stack.apply(mBuffer.getInt(position + getThreadIdSize()),
+                        readThreadTime(position), readGlobalTime(position));
+            }
+
+            long topLevelCallId = getTopLevelCallId();
+            CallStackReconstructor reconstructor = new CallStackReconstructor(topLevelCallId);
+            for (int depth = 0; depth < stack.mDepth; depth++) {
+                reconstructor.addTraceAction(stack.mMethodIds[depth], TraceAction.METHOD_ENTER,
+                        stack.mThreadTimes[depth], stack.mGlobalTimes[depth]);
+            }
+
+            int lastThreadTime = 0;
+            int lastGlobalTime = 0;
+            int i = first;
+            for (; i < mSize; i++) {
+                int position = mPositions[i];
+                if (readTime(position, clockType) > endTime) {
+                    break;
+                }
+                int methodId = mBuffer.getInt(position + getThreadIdSize());
+                lastThreadTime = readThreadTime(position);
+                lastGlobalTime = readGlobalTime(position);
+                reconstructor.addTraceAction(UnsignedInts.toLong(methodId & ~0x03),
+                        VmTraceParser.decodeAction(methodId), lastThreadTime, lastGlobalTime);
+                stack.apply(methodId, lastThreadTime, lastGlobalTime);
+            }
+
+            // Cut the calls still running at the end of the range. Those still running at the end
+            // of the trace are closed by the reconstructor, as in VmTraceData.
+            while (i < mSize && stack.mDepth > 0) {
+                reconstructor.addTraceAction(stack.mMethodIds[stack.mDepth - 1],
+                        TraceAction.METHOD_EXIT, lastThreadTime, lastGlobalTime);
+                stack.mDepth--;
+            }
+            return reconstructor.getTopLevel();
+        }
+
+        private int findFirstRecord(@NonNull ClockType clockType, long time) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (readTime(mPositions[middle], clockType) < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private long getTopLevelCallId() {
+            // Same unique id as the top level calls of VmTraceData.
+            long id = Long.MAX_VALUE - mThreadId;
+            if (mMethods.get(id) == null) {
+                mMethods.put(id, new MethodInfo(id, getThreadName(mThreadId), "", "", "", 0));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * The methods a thread is in, with their entry times.
+     */
+    private static final class CallStack {
+
+        @NonNull
+        long[] mMethodIds = new long[16];
+
+        @NonNull
+        int[] mThreadTimes = new int[16];
+
+        @NonNull
+        int[] mGlobalTimes = new int[16];
+
+        int mDepth;
+
+        /**
+         * Updates the stack with a record. Exits from methods entered before tracing started are
+         * ignored.
+         */
+        void apply(int methodId, int threadTime, int globalTime) {
+            if (VmTraceParser.decodeAction(methodId) != TraceAction.METHOD_ENTER) {
+                if (mDepth > 0) {
+                    mDepth--;
+                }
+                return;
+            }
+
+            if (mDepth == mMethodIds.length) {
+                mMethodIds = Arrays.copyOf(mMethodIds, mDepth * 2);
+                mThreadTimes = Arrays.copyOf(mThreadTimes, mDepth * 2);
+                mGlobalTimes = Arrays.copyOf(mGlobalTimes, mDepth * 2);
+            }
+            mMethodIds[mDepth] = UnsignedInts.toLong(methodId & ~0x03);
+            mThreadTimes[mDepth] = threadTime;
+            mGlobalTimes[mDepth] = globalTime;
+            mDepth++;
+        }
+
+        @NonNull
+        CallStack copy() {
+            CallStack copy = new CallStack();
+            int capacity = Math.max(mDepth, 1);
+            copy.mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+            copy.mThreadTimes = Arrays.copyOf(mThreadTimes, capacity);
+            copy.mGlobalTimes = Arrays.copyOf(mGlobalTimes, capacity);
+            copy.mDepth = mDepth;
+            return copy;
+        }
+    }
+
+    /**
+     * Collects what the header of the trace tells about threads and methods.
+     */
+    private static final class HeaderHandler implements VmTraceHandler {
+
+        private long mStartTimeUs;
+
+        @NonNull
+        private final SparseArray<String> mThreads = new SparseArray<String>(10);
+
+        @NonNull
+        private final Map<Long, MethodInfo> mMethods = new HashMap<Long, MethodInfo>(100);
+
+        @Override
+        public void setVersion(int version) {
+        }
+
+        @Override
+        public void setProperty(String key, String value) {
+        }
+
+        @Override
+        public void addThread(int id, String name) {
+            mThreads.put(id, name);
+        }
+
+        @Override
+        public void addMethod(long id, MethodInfo info) {
+            mMethods.put(id, info);
+        }
+
+        @Override
+        public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+                int threadTime, int globalTime) {
+            throw new IllegalStateException("Records are indexed by VmTraceIndex");
+        }
+
+        @Override
+        public void setStartTimeUs(long startTimeUs) {
+            mStartTimeUs = startTimeUs;
+        }
+    }
+}
@@ -43,6 +43,8 @@ public class VmTraceParser {
 
     private VmClockType mVmClockType;
 
+    private int mRecordSize;
+
     public VmTraceParser(File traceFile, VmTraceHandler traceHandler) {
         if (!traceFile.exists()) {
             throw new IllegalArgumentException(
@@ -53,6 +55,16 @@ public class VmTraceParser {
     }
 
     public void parse() throws IOException {
+        ByteBuffer buffer = parseHeaderAndOpenData();
+        parseMethodTraceData(buffer, mRecordSize);
+    }
+
+    /**
+     * Parses everything but the method trace records, passing the header information to the
+     * handler, and returns the buffer of the records, positioned at the first one. The data
+     * section of regular traces is memory mapped, the one of streaming traces is read in memory.
+     */
+    ByteBuffer parseHeaderAndOpenData() throws IOException {
         ByteBuffer buffer;
         if (isStreamingTrace(mTraceFile)) {
             StreamingTraceParser streamingTraceParser = new StreamingTraceParser(mTraceFile);
@@ -61,7 +73,20 @@ public class VmTraceParser {
             long headerLength = parseHeader(mTraceFile);
             buffer = ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN);
         }
-        parseData(buffer);
+        mRecordSize = readDataFileHeader(buffer);
+        return buffer;
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    VmClockType getVmClockType() {
+        return mVmClockType;
+    }
+
+    int getRecordSize() {
+        return mRecordSize;
     }
 
     private static boolean isStreamingTrace(File file) throws IOException {
@@ -233,17 +258,6 @@ public class VmTraceParser {
         return pathname;
     }
 
-    /**
-     * Parses the data section of the trace. The data section comprises of a header followed
-     * by a list of records.
-     *
-     * All values are stored in little-endian order.
-     */
-    private void parseData(ByteBuffer buffer) {
-        int recordSize = readDataFileHeader(buffer);
-        parseMethodTraceData(buffer, recordSize);
-    }
-
     /**
      * Parses the list of records corresponding to each trace event (method entry, exit, ...)
      *  Record format v1:
@@ -299,22 +313,7 @@ public class VmTraceParser {
                 buffer.position(positionEnd + (recordSize - bytesRead));
             }
 
-            int action = methodId & 0x03;
-            TraceAction methodAction;
-            switch (action) {
-                case 0:
-                    methodAction = TraceAction.METHOD_ENTER;
-                    break;
-                case 1:
-                    methodAction = TraceAction.METHOD_EXIT;
-                    break;
-                case 2:
-                    methodAction = TraceAction.METHOD_EXIT_UNROLL;
-                    break;
-                default:
-                    throw new RuntimeException(
-                            "Invalid trace action, expected one of method entry, exit or unroll.");
-            }
+            TraceAction methodAction = decodeAction(methodId);
             methodId &= ~0x03;
 
             mTraceDataHandler.addMethodAction(
@@ -322,6 +321,21 @@ public class VmTraceParser {
         }
     }
 
+    /** Returns the action encoded in the low bits of the method id of a trace record. */
+    static TraceAction decodeAction(int methodId) {
+        switch (methodId & 0x03) {
+            case 0:
+                return TraceAction.METHOD_ENTER;
+            case 1:
+                return TraceAction.METHOD_EXIT;
+            case 2:
+                return TraceAction.METHOD_EXIT_UNROLL;
+            default:
+                throw new RuntimeException(
+                        "Invalid trace action, expected one of method entry, exit or unroll.");
+        }
+    }
+
     /**
      *  Parses the data header with the following format:
      *  u4  magic ('SLOW')
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
+import com.android.tools.proguard.ProguardMap;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class HprofIndexFileTest extends TestCase {
+
+    private File mFile;
+
+    private File mIndexDirectory;
+
+    private Snapshot mSnapshot;
+
+    private final List<Snapshot> mCachedSnapshots = new ArrayList<Snapshot>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mFile = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mIndexDirectory = Files.createTempDir();
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        for (Snapshot snapshot : mCachedSnapshots) {
+            snapshot.dispose();
+        }
+        for (File file : mIndexDirectory.listFiles()) {
+            file.delete();
+        }
+        mIndexDirectory.delete();
+    }
+
+    public void testIndexWrittenOnFirstOpen() throws Exception {
+        File indexFile = HprofIndexFile.getIndexFile(mFile, new ProguardMap(), mIndexDirectory);
+        assertFalse(indexFile.exists());
+
+        openCached();
+        assertTrue(indexFile.isFile());
+        assertEquals(1, mIndexDirectory.listFiles().length);
+
+        long modified = indexFile.lastModified();
+        openCached();
+        assertEquals(modified, indexFile.lastModified());
+    }
+
+    public void testCachedSnapshotMatchesParsedSnapshot() throws Exception {
+        openCached();
+        Snapshot cached = openCached();
+
+        assertTrue(cached.isIndexingInstances());
+        assertEquals(mSnapshot.getHeaps().size(), cached.getHeaps().size());
+        for (Heap heap : cached.getHeaps()) {
+            assertEquals(0, heap.mInstanceIndex.getMaterializedCount());
+        }
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap cachedHeap = cached.getHeap(heap.getId());
+            assertEquals(heap.getName(), cachedHeap.getName());
+            assertEquals(heap.getInstancesCount(), cachedHeap.getInstancesCount());
+            assertEquals(heap.getClasses().size(), cachedHeap.getClasses().size());
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj cachedClass = cachedHeap.getClass(classObj.getId());
+                assertEquals(classObj.getClassName(), cachedClass.getClassName());
+                assertEquals(classObj.getSize(), cachedClass.getSize());
+                assertEquals(classObj.getInstanceCount(), cachedClass.getInstanceCount());
+                assertEquals(classObj.getShallowSize(), cachedClass.getShallowSize());
+                assertEquals(classObj.getStaticFieldValues().size(),
+                        cachedClass.getStaticFieldValues().size());
+            }
+        }
+
+        List<RootObj> roots = new ArrayList<RootObj>(mSnapshot.getGCRoots());
+        List<RootObj> cachedRoots = new ArrayList<RootObj>(cached.getGCRoots());
+        assertEquals(roots.size(), cachedRoots.size());
+        for (int i = 0; i < roots.size(); i++) {
+            assertEquals(roots.get(i).toString(), cachedRoots.get(i).toString());
+            assertEquals(roots.get(i).getHeap().getId(), cachedRoots.get(i).getHeap().getId());
+            StackTrace stack = roots.get(i).getStack();
+            StackTrace cachedStack = cachedRoots.get(i).getStack();
+            assertEquals(stack == null, cachedStack == null);
+            if (stack != null) {
+                assertEquals(stack.getFrames().length, cachedStack.getFrames().length);
+            }
+        }
+
+        for (Instance instance : cached.findClass("java.lang.String").getInstancesList()) {
+            ClassInstance expected = (ClassInstance) mSnapshot.findInstance(instance.getId());
+            assertTrue(Arrays.equals(expected.getStringChars(),
+                    ((ClassInstance) instance).getStringChars()));
+        }
+
+        mSnapshot.computeDominators();
+        cached.computeDominators();
+        int appHeapIndex = mSnapshot.getHeapIndex(mSnapshot.getHeap("app"));
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            assertEquals(instance.getRetainedSize(appHeapIndex),
+                    cached.findInstance(instance.getId()).getRetainedSize(appHeapIndex));
+        }
+    }
+
+    public void testUnreadableIndexIsReplaced() throws Exception {
+        File indexFile = HprofIndexFile.getIndexFile(mFile, new ProguardMap(), mIndexDirectory);
+        Files.write(new byte[] {'H', 'P', 'I', 'X', 0, 0, 0, 1, 1, 2, 3}, indexFile);
+
+        Snapshot cached = openCached();
+        assertEquals(mSnapshot.getGCRoots().size(), cached.getGCRoots().size());
+        assertTrue(indexFile.length() > 11);
+    }
+
+    public void testIndexDependsOnMap() throws Exception {
+        ProguardMap map = new ProguardMap();
+        map.readFromReader(new StringReader("class.with.Methods -> d:\n"));
+        File indexFile = HprofIndexFile.getIndexFile(mFile, new ProguardMap(), mIndexDirectory);
+        File mappedIndexFile = HprofIndexFile.getIndexFile(mFile, map, mIndexDirectory);
+        assertFalse(indexFile.equals(mappedIndexFile));
+
+        openCached();
+        openCached(map);
+        assertTrue(indexFile.isFile());
+        assertTrue(mappedIndexFile.isFile());
+    }
+
+    private Snapshot openCached() throws Exception {
+        return openCached(new ProguardMap());
+    }
+
+    private Snapshot openCached(ProguardMap map) throws Exception {
+        Snapshot snapshot = Snapshot.createCachedSnapshot(mFile, mIndexDirectory, map,
+                Collections.<SnapshotPostProcessor>emptyList());
+        mCachedSnapshots.add(snapshot);
+        return snapshot;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
+import com.android.tools.proguard.ProguardMap;
+import java.io.File;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+public class InstanceIndexTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mIndexedSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mIndexedSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file),
+                new ProguardMap(), Collections.<SnapshotPostProcessor>emptyList(), true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        mIndexedSnapshot.dispose();
+    }
+
+    public void testNothingMaterializedAfterParsing() {
+        assertTrue(mIndexedSnapshot.isIndexingInstances());
+        for (Heap heap : mIndexedSnapshot.getHeaps()) {
+            assertNotNull(heap.mInstanceIndex);
+            assertEquals(0, heap.mInstanceIndex.getMaterializedCount());
+            assertEquals(mSnapshot.getHeap(heap.getId()).getInstancesCount(),
+                    heap.getInstancesCount());
+        }
+    }
+
+    public void testFindInstance() {
+        Instance instance = mIndexedSnapshot.findInstance(0xB0D60401);
+        assertTrue(instance instanceof ArrayInstance);
+        assertSame(instance, mIndexedSnapshot.findInstance(0xB0D60401));
+        assertEquals(43224, instance.getSize());
+        assertEquals("byte[]", instance.getClassObj().getClassName());
+
+        int materialized = 0;
+        for (Heap heap : mIndexedSnapshot.getHeaps()) {
+            materialized += heap.mInstanceIndex.getMaterializedCount();
+        }
+        assertEquals(1, materialized);
+
+        assertNull(mIndexedSnapshot.findInstance(0xDEADBEEF));
+    }
+
+    public void testClassInstances() {
+        ClassObj byteArray = mIndexedSnapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+
+        ClassObj stringArray = mIndexedSnapshot.findClass("java.lang.String[]");
+        assertEquals(1396, stringArray.getInstancesList().size());
+
+        ClassObj expected = mSnapshot.findClass("java.lang.Thread$State");
+        ClassObj actual = mIndexedSnapshot.findClass("java.lang.Thread$State");
+        assertEquals(expected.getInstanceCount(), actual.getInstanceCount());
+        assertEquals(expected.getShallowSize(), actual.getShallowSize());
+        for (Instance instance : actual.getInstancesList()) {
+            assertSame(instance, mIndexedSnapshot.findInstance(instance.getId()));
+        }
+    }
+
+    public void testCountsWithoutMaterializing() {
+        for (Heap classHeap : mSnapshot.getHeaps()) {
+            for (ClassObj expected : classHeap.getClasses()) {
+                ClassObj actual = mIndexedSnapshot.findClass(expected.getId());
+                assertNotNull(actual);
+                assertEquals(expected.getInstanceCount(), actual.getInstanceCount());
+                assertEquals(expected.getShallowSize(), actual.getShallowSize());
+                for (Heap heap : mSnapshot.getHeaps()) {
+                    assertEquals(expected.getHeapInstancesCount(heap.getId()),
+                            actual.getHeapInstancesCount(heap.getId()));
+                    assertEquals(expected.getShallowSize(heap.getId()),
+                            actual.getShallowSize(heap.getId()));
+                }
+            }
+        }
+
+        ClassObj byteArray = mIndexedSnapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstanceCount());
+        assertEquals(681489, byteArray.getShallowSize());
+
+        for (Heap heap : mIndexedSnapshot.getHeaps()) {
+            assertEquals(0, heap.mInstanceIndex.getMaterializedCount());
+        }
+    }
+
+    public void testDominators() {
+        mSnapshot.computeDominators();
+        mIndexedSnapshot.computeDominators();
+
+        assertEquals(mSnapshot.getReachableInstances().size(),
+                mIndexedSnapshot.getReachableInstances().size());
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            Instance indexed = mIndexedSnapshot.findInstance(instance.getId());
+            assertNotNull(indexed);
+            assertEquals(instance.getTotalRetainedSize(), indexed.getTotalRetainedSize());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
+import com.android.tools.proguard.ProguardMap;
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+
+public class ParallelHprofParserTest extends TestCase {
+
+    //  The test dump is much smaller than HprofParser.MIN_PARALLEL_TASK_BYTES, so use smaller tasks
+    //  to have its heap dump segments parsed by several tasks and merged.
+    private static final long TASK_BYTES = 64 * 1024;
+
+    private ForkJoinPool mPool;
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mParallelSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mPool = new ForkJoinPool(4);
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        if (mParallelSnapshot != null) {
+            mParallelSnapshot.dispose();
+        }
+        mPool.shutdown();
+    }
+
+    private void createParallelSnapshot(boolean indexInstances) throws Exception {
+        createParallelSnapshot(indexInstances, TASK_BYTES);
+    }
+
+    private void createParallelSnapshot(boolean indexInstances, long minParallelTaskBytes)
+            throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mParallelSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file),
+                new ProguardMap(), Collections.<SnapshotPostProcessor>emptyList(),
+                indexInstances, mPool, minParallelTaskBytes);
+    }
+
+    public void testSameHeaps() throws Exception {
+        createParallelSnapshot(false);
+        assertSameHeaps();
+    }
+
+    public void testSameHeapsWithIndexedInstances() throws Exception {
+        createParallelSnapshot(true);
+        assertSameHeaps();
+    }
+
+    public void testSameHeapsWithOneTaskPerSegment() throws Exception {
+        createParallelSnapshot(true, 1);
+        assertSameHeaps();
+    }
+
+    public void testSameHeapsWithDefaultTaskSize() throws Exception {
+        createParallelSnapshot(false, HprofParser.MIN_PARALLEL_TASK_BYTES);
+        assertSameHeaps();
+    }
+
+    public void testSameRoots() throws Exception {
+        createParallelSnapshot(false);
+
+        assertEquals(mSnapshot.getGCRoots().size(), mParallelSnapshot.getGCRoots().size());
+        Iterator<RootObj> expected = mSnapshot.getGCRoots().iterator();
+        Iterator<RootObj> actual = mParallelSnapshot.getGCRoots().iterator();
+        while (expected.hasNext()) {
+            RootObj expectedRoot = expected.next();
+            RootObj actualRoot = actual.next();
+            assertEquals(expectedRoot.getId(), actualRoot.getId());
+            assertEquals(expectedRoot.getRootType(), actualRoot.getRootType());
+            assertEquals(expectedRoot.getHeap().getId(), actualRoot.getHeap().getId());
+            assertEquals(expectedRoot.getStack() == null, actualRoot.getStack() == null);
+        }
+    }
+
+    public void testSameDominators() throws Exception {
+        createParallelSnapshot(false);
+
+        mSnapshot.computeDominators();
+        mParallelSnapshot.computeDominators();
+
+        assertEquals(mSnapshot.getReachableInstances().size(),
+                mParallelSnapshot.getReachableInstances().size());
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            Instance parallel = mParallelSnapshot.findInstance(instance.getId());
+            assertNotNull(parallel);
+            assertEquals(instance.getTotalRetainedSize(), parallel.getTotalRetainedSize());
+        }
+    }
+
+    private void assertSameHeaps() {
+        assertEquals(mSnapshot.getHeaps().size(), mParallelSnapshot.getHeaps().size());
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap parallelHeap = mParallelSnapshot.getHeap(heap.getName());
+            assertNotNull(parallelHeap);
+            assertEquals(heap.getId(), parallelHeap.getId());
+            assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+            assertEquals(heap.getClasses().size(), parallelHeap.getClasses().size());
+        }
+
+        ClassObj byteArray = mParallelSnapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+        ArrayInstance instance = (ArrayInstance) mParallelSnapshot.findInstance(0xB0D60401);
+        assertEquals(43224, instance.getSize());
+    }
+}
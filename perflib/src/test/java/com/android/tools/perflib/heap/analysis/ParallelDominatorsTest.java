@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+
+public class ParallelDominatorsTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mExpectedSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (mSnapshot != null) {
+            mSnapshot.dispose();
+        }
+        if (mExpectedSnapshot != null) {
+            mExpectedSnapshot.dispose();
+        }
+        mPool.shutdown();
+    }
+
+    public void testCyclicGraph() {
+        SnapshotBuilder builder = new SnapshotBuilder(4)
+                .addReferences(1, 2, 3, 4)
+                .addReferences(2, 3)
+                .addReferences(3, 4)
+                .addReferences(4, 2)
+                .addRoot(1);
+        mSnapshot = builder.build();
+        mSnapshot.computeDominators(mPool);
+
+        assertEquals(4, mSnapshot.getReachableInstances().size());
+        assertDominates(1, 2);
+        assertDominates(1, 3);
+        assertDominates(1, 4);
+    }
+
+    public void testMultipleRoots() {
+        mSnapshot = new SnapshotBuilder(6)
+                .addReferences(1, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .addRoot(2)
+                .build();
+        mSnapshot.computeDominators(mPool);
+
+        assertEquals(6, mSnapshot.getReachableInstances().size());
+        assertDominates(1, 3);
+        assertDominates(2, 4);
+        assertEquals(Snapshot.SENTINEL_ROOT, mSnapshot.findInstance(5).getImmediateDominator());
+        assertDominates(5, 6);
+    }
+
+    public void testDoublyLinkedList() {
+        mSnapshot = new SnapshotBuilder(9)
+                .addReferences(1, 2)
+                .addReferences(2, 3, 9)
+                .addReferences(3, 2, 4)
+                .addReferences(4, 3, 5)
+                .addReferences(5, 4, 6)
+                .addReferences(6, 5, 7)
+                .addReferences(7, 6, 8)
+                .addReferences(8, 7, 9)
+                .addReferences(9, 2, 8)
+                .addRoot(1)
+                .build();
+        mSnapshot.computeDominators(mPool);
+
+        assertEquals(45, mSnapshot.findInstance(1).getRetainedSize(1));
+        assertEquals(44, mSnapshot.findInstance(2).getRetainedSize(1));
+        for (int i = 3; i <= 9; i++) {
+            assertEquals(i, mSnapshot.findInstance(i).getRetainedSize(1));
+        }
+    }
+
+    public void testSampleHprof() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mExpectedSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mExpectedSnapshot.computeDominators();
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mSnapshot.computeDominators(mPool);
+
+        assertSameDominators();
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        File dominatorsFile = File.createTempFile("dialer", ".dominators");
+        try {
+            mExpectedSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+            mExpectedSnapshot.computeDominators(mPool);
+            mExpectedSnapshot.saveDominators(dominatorsFile);
+
+            mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+            assertTrue(mSnapshot.loadDominators(dominatorsFile));
+            assertSameDominators();
+            for (Instance instance : mExpectedSnapshot.getReachableInstances()) {
+                Instance loaded = mSnapshot.findInstance(instance.getId());
+                assertEquals(instance.getDistanceToGcRoot(), loaded.getDistanceToGcRoot());
+                assertEquals(instance.getHardReverseReferences().size(),
+                        loaded.getHardReverseReferences().size());
+            }
+
+            // Computing dominators again is a no-op once they have been loaded.
+            mSnapshot.computeDominators();
+            assertSameDominators();
+        } finally {
+            dominatorsFile.delete();
+        }
+    }
+
+    public void testLoadStaleFile() throws Exception {
+        File dominatorsFile = File.createTempFile("graph", ".dominators");
+        try {
+            mExpectedSnapshot = new SnapshotBuilder(2).addReferences(1, 2).addRoot(1).build();
+            mExpectedSnapshot.computeDominators(mPool);
+            mExpectedSnapshot.saveDominators(dominatorsFile);
+
+            mSnapshot = new SnapshotBuilder(3).addReferences(1, 2, 3).addRoot(1).build();
+            assertFalse(mSnapshot.loadDominators(dominatorsFile));
+            assertFalse(mSnapshot.loadDominators(new File(dominatorsFile.getPath() + ".missing")));
+
+            mSnapshot.computeDominators(mPool);
+            assertDominates(1, 3);
+        } finally {
+            dominatorsFile.delete();
+        }
+    }
+
+    public void testLoadFileOfAnotherDumpOfTheSameShape() throws Exception {
+        File dominatorsFile = File.createTempFile("graph", ".dominators");
+        try {
+            mExpectedSnapshot = new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3)
+                    .addRoot(1).build();
+            mExpectedSnapshot.computeDominators(mPool);
+            mExpectedSnapshot.saveDominators(dominatorsFile);
+
+            // Same heaps, classes, instance counts and roots, but node 3 hangs off node 1.
+            mSnapshot = new SnapshotBuilder(3).addReferences(1, 3).addReferences(2, 3)
+                    .addRoot(1).build();
+            assertFalse(mSnapshot.loadDominators(dominatorsFile));
+
+            mSnapshot.computeDominators(mPool);
+            assertDominates(1, 3);
+        } finally {
+            dominatorsFile.delete();
+        }
+    }
+
+    private void assertSameDominators() {
+        assertEquals(mExpectedSnapshot.getReachableInstances().size(),
+                mSnapshot.getReachableInstances().size());
+        for (Instance expected : mExpectedSnapshot.getReachableInstances()) {
+            Instance actual = mSnapshot.findInstance(expected.getId());
+            assertNotNull(actual);
+            Instance expectedDominator = expected.getImmediateDominator();
+            Instance actualDominator = actual.getImmediateDominator();
+            assertNotNull(actualDominator);
+            if (expectedDominator == Snapshot.SENTINEL_ROOT) {
+                assertSame(Snapshot.SENTINEL_ROOT, actualDominator);
+            } else {
+                assertEquals(expectedDominator.getId(), actualDominator.getId());
+            }
+            assertEquals(expected.getTotalRetainedSize(), actual.getTotalRetainedSize());
+        }
+    }
+
+    /**
+     * Asserts that nodeA dominates nodeB in mSnapshot.
+     */
+    private void assertDominates(int nodeA, int nodeB) {
+        assertEquals(mSnapshot.findInstance(nodeA),
+                mSnapshot.findInstance(nodeB).getImmediateDominator());
+    }
+}
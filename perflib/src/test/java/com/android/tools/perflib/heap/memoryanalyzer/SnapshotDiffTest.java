@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import com.android.tools.perflib.heap.hprof.Hprof;
+import com.android.tools.perflib.heap.hprof.HprofClassDump;
+import com.android.tools.perflib.heap.hprof.HprofConstant;
+import com.android.tools.perflib.heap.hprof.HprofDumpRecord;
+import com.android.tools.perflib.heap.hprof.HprofHeapDump;
+import com.android.tools.perflib.heap.hprof.HprofInstanceDump;
+import com.android.tools.perflib.heap.hprof.HprofInstanceField;
+import com.android.tools.perflib.heap.hprof.HprofLoadClass;
+import com.android.tools.perflib.heap.hprof.HprofRecord;
+import com.android.tools.perflib.heap.hprof.HprofRootUnknown;
+import com.android.tools.perflib.heap.hprof.HprofStaticField;
+import com.android.tools.perflib.heap.hprof.HprofStringBuilder;
+import com.android.tools.perflib.heap.hprof.HprofType;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.android.tools.perflib.heap.memoryanalyzer.SnapshotDiff.ClassDiffEntry;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link SnapshotDiff} and {@link SnapshotDiffReport}.
+ */
+@RunWith(JUnit4.class)
+public final class SnapshotDiffTest {
+
+    @Test
+    public void identicalSnapshots() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        Snapshot before = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        Snapshot after = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        try {
+            before.computeDominators();
+            after.computeDominators();
+            Assert.assertTrue(SnapshotDiff.compute(before, after, Arrays.asList("app", "zygote"))
+                    .isEmpty());
+
+            RecordingPrinter printer = new RecordingPrinter();
+            HeapReports.generateDiffReport(before, after, Collections.singleton("app"))
+                    .print(printer);
+            Assert.assertEquals(Arrays.asList("Heap Diff Report",
+                    "Compares the instances of each class between two heap dumps.",
+                    "No changes found."), printer.mLines);
+        } finally {
+            before.dispose();
+            after.dispose();
+        }
+    }
+
+    @Test
+    public void instanceCountDelta() throws Exception {
+        Snapshot before = new SnapshotBuilder(2).setDefaultHeapInstanceCount(2).build();
+        Snapshot after = new SnapshotBuilder(2).setDefaultHeapInstanceCount(5).build();
+
+        List<AnalysisResultEntry<?>> results =
+                SnapshotDiff.compute(before, after, Collections.singleton("default"));
+        Assert.assertEquals(1, results.size());
+        ClassDiffEntry diff = (ClassDiffEntry) results.get(0);
+        Assert.assertEquals("perflib.default.heap.clazz", diff.getClassName());
+        Assert.assertEquals(2, diff.getCountBefore());
+        Assert.assertEquals(5, diff.getCountAfter());
+        Assert.assertEquals(3, diff.getCountDelta());
+        Assert.assertEquals(2, diff.getOffender().getOffenders().size());
+        Assert.assertEquals("perflib.default.heap.clazz: +3 instances, 0 bytes shallow, "
+                + "0 bytes retained.", diff.getWarningMessage());
+    }
+
+    @Test
+    public void classesMatchedByFields() throws Exception {
+        // Node 1 gains a reference, so its class has one more field and is a different class.
+        Snapshot before = new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3)
+                .addRoot(1).build();
+        Snapshot after = new SnapshotBuilder(3).addReferences(1, 2, 3).addReferences(2, 3)
+                .addRoot(1).build();
+        before.computeDominators();
+        after.computeDominators();
+
+        List<AnalysisResultEntry<?>> results =
+                SnapshotDiff.compute(before, after, Collections.singleton("testHeap"));
+        // Node 1 is the only instance of Class0. Node 2 keeps its class but no longer retains
+        // node 3, which is now dominated by node 1.
+        Assert.assertEquals(3, results.size());
+        List<Integer> deltas = new ArrayList<Integer>();
+        for (AnalysisResultEntry<?> result : results) {
+            ClassDiffEntry diff = (ClassDiffEntry) result;
+            if (diff.getClassName().equals("Class0")) {
+                Assert.assertEquals(1, diff.getOffender().getOffenders().size());
+                deltas.add(diff.getCountDelta());
+            } else {
+                Assert.assertEquals("Class1", diff.getClassName());
+                Assert.assertEquals(2, diff.getOffender().getOffenders().size());
+                Assert.assertEquals(0, diff.getCountDelta());
+                Assert.assertEquals(-after.findInstance(3).getSize(), diff.getRetainedSizeDelta());
+            }
+        }
+        Collections.sort(deltas);
+        Assert.assertEquals(Arrays.asList(-1, 1), deltas);
+    }
+
+    @Test
+    public void retainedSizeDelta() throws Exception {
+        // Node 3 stops being a root, so node 2 now retains it.
+        Snapshot before = new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3)
+                .addRoot(1).addRoot(3).build();
+        Snapshot after = new SnapshotBuilder(3).addReferences(1, 2).addReferences(2, 3)
+                .addRoot(1).build();
+        before.computeDominators();
+        after.computeDominators();
+
+        List<AnalysisResultEntry<?>> results =
+                SnapshotDiff.compute(before, after, Collections.singleton("testHeap"));
+        Assert.assertEquals(2, results.size());
+        long node3Size = after.findInstance(3).getSize();
+        for (AnalysisResultEntry<?> result : results) {
+            ClassDiffEntry diff = (ClassDiffEntry) result;
+            Assert.assertEquals(0, diff.getCountDelta());
+            Assert.assertEquals(0, diff.getShallowSizeDelta());
+            Assert.assertEquals(node3Size, diff.getRetainedSizeDelta());
+        }
+        Assert.assertEquals("Class0", ((ClassDiffEntry) results.get(0)).getClassName());
+
+        RecordingPrinter printer = new RecordingPrinter();
+        SnapshotDiffReport report = new SnapshotDiffReport();
+        report.generate(results);
+        report.print(printer);
+        Assert.assertEquals("Heap Diff Report", printer.mLines.get(0));
+        Assert.assertEquals(
+                "Class | Count | Count Delta | Shallow Size Delta | Retained Size Delta",
+                printer.mLines.get(2));
+        Assert.assertEquals("Class0 | 1 | 0 | 0 | +" + node3Size, printer.mLines.get(3));
+    }
+
+    @Test
+    public void nestedInstancesRetainedOnce() throws Exception {
+        // Nodes 2 and 3 have the same class key, and node 2 retains node 3.
+        Snapshot before = new SnapshotBuilder(4).addReferences(1, 2).addReferences(2, 3)
+                .addReferences(3, 4).build();
+        Snapshot after = new SnapshotBuilder(4).addReferences(1, 2).addReferences(2, 3)
+                .addReferences(3, 4).addRoot(1).build();
+        before.computeDominators();
+        after.computeDominators();
+
+        List<AnalysisResultEntry<?>> results =
+                SnapshotDiff.compute(before, after, Collections.singleton("testHeap"));
+        ClassDiffEntry nodeDiff = null;
+        for (AnalysisResultEntry<?> result : results) {
+            if (((ClassDiffEntry) result).getClassName().equals("Class1")) {
+                nodeDiff = (ClassDiffEntry) result;
+            }
+        }
+        Assert.assertNotNull(nodeDiff);
+        Assert.assertEquals(2, nodeDiff.getCountAfter());
+        Assert.assertEquals(after.findInstance(2).getTotalRetainedSize(),
+                nodeDiff.getRetainedSizeDelta());
+    }
+
+    @Test(timeout = 30000)
+    public void deepChainRetainedOnce() throws Exception {
+        // Each node of a long linked list is dominated by all the nodes before it, and so is its
+        // payload, which has no dominator of its own class.
+        Snapshot before = createLinkedList(10);
+        Snapshot after = createLinkedList(100000);
+        before.computeDominators();
+        after.computeDominators();
+
+        List<AnalysisResultEntry<?>> results =
+                SnapshotDiff.compute(before, after, Collections.singleton("default"));
+        Assert.assertEquals(2, results.size());
+        long nodeSize = after.findInstance(1).getSize();
+        long payloadSize = after.findInstance(100001).getSize();
+        for (AnalysisResultEntry<?> result : results) {
+            ClassDiffEntry diff = (ClassDiffEntry) result;
+            Assert.assertEquals(99990, diff.getCountDelta());
+            if (diff.getClassName().equals("Node")) {
+                Assert.assertEquals(99990 * (nodeSize + payloadSize), diff.getRetainedSizeDelta());
+            } else {
+                Assert.assertEquals("Payload", diff.getClassName());
+                Assert.assertEquals(99990 * payloadSize, diff.getRetainedSizeDelta());
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of a linked list of instances of class Node, whose head is a root. Node
+     * {@code i} has the id {@code i} and references an instance of class Payload with the id
+     * {@code length + i}.
+     */
+    @NonNull
+    private static Snapshot createLinkedList(int length) throws IOException {
+        long nodeClassId = 0x40000000L;
+        long payloadClassId = 0x40000001L;
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        List<HprofRecord> records = new ArrayList<HprofRecord>();
+        List<HprofDumpRecord> dump = new ArrayList<HprofDumpRecord>();
+        dump.add(new HprofRootUnknown(1));
+        records.add(new HprofLoadClass(0, 0, nodeClassId, 0, strings.get("Node")));
+        dump.add(new HprofClassDump(nodeClassId, 0, 0, 0, 0, 0, 0, 0, 8, new HprofConstant[0],
+                new HprofStaticField[0], new HprofInstanceField[]{
+                        new HprofInstanceField(strings.get("next"), HprofType.TYPE_OBJECT),
+                        new HprofInstanceField(strings.get("payload"), HprofType.TYPE_OBJECT)}));
+        records.add(new HprofLoadClass(0, 1, payloadClassId, 0, strings.get("Payload")));
+        dump.add(new HprofClassDump(payloadClassId, 0, 0, 0, 0, 0, 0, 0, 4, new HprofConstant[0],
+                new HprofStaticField[0], new HprofInstanceField[]{
+                        new HprofInstanceField(strings.get("value"), HprofType.TYPE_INT)}));
+        for (int id = 1; id <= length; id++) {
+            ByteArrayDataOutput node = ByteStreams.newDataOutput();
+            node.writeInt(id < length ? id + 1 : 0);
+            node.writeInt(length + id);
+            dump.add(new HprofInstanceDump(id, 0, nodeClassId, node.toByteArray()));
+            ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+            payload.writeInt(id);
+            dump.add(new HprofInstanceDump(length + id, 0, payloadClassId, payload.toByteArray()));
+        }
+        records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
+
+        List<HprofRecord> allRecords = new ArrayList<HprofRecord>(strings.getStringRecords());
+        allRecords.addAll(records);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Hprof("JAVA PROFILE 1.0.3", 4, new Date(), allRecords).write(out);
+        return Snapshot.createSnapshot(new InMemoryBuffer(out.toByteArray()));
+    }
+
+    private static final class RecordingPrinter implements Printer {
+
+        final List<String> mLines = new ArrayList<String>();
+
+        @Override
+        public void addHeading(int level, @NonNull String content) {
+            mLines.add(content);
+        }
+
+        @Override
+        public void addParagraph(@NonNull String content) {
+            mLines.add(content);
+        }
+
+        @Override
+        public void startTable(@NonNull String... columnHeadings) {
+            addRow(columnHeadings);
+        }
+
+        @Override
+        public void addRow(@NonNull String... values) {
+            mLines.add(String.join(" | ", values));
+        }
+
+        @Override
+        public void endTable() {
+        }
+
+        @Override
+        public void addImage(@NonNull Instance instance) {
+        }
+
+        @Override
+        public String formatInstance(@NonNull Instance instance) {
+            return instance.toString();
+        }
+    }
+}
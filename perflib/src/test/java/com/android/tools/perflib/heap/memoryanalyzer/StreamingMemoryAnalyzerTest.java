@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.android.tools.perflib.heap.hprof.Hprof;
+import com.android.tools.perflib.heap.hprof.HprofClassDump;
+import com.android.tools.perflib.heap.hprof.HprofConstant;
+import com.android.tools.perflib.heap.hprof.HprofDumpRecord;
+import com.android.tools.perflib.heap.hprof.HprofHeapDump;
+import com.android.tools.perflib.heap.hprof.HprofHeapDumpInfo;
+import com.android.tools.perflib.heap.hprof.HprofInstanceDump;
+import com.android.tools.perflib.heap.hprof.HprofInstanceField;
+import com.android.tools.perflib.heap.hprof.HprofLoadClass;
+import com.android.tools.perflib.heap.hprof.HprofPrimitiveArrayDump;
+import com.android.tools.perflib.heap.hprof.HprofRecord;
+import com.android.tools.perflib.heap.hprof.HprofStaticField;
+import com.android.tools.perflib.heap.hprof.HprofStringBuilder;
+import com.android.tools.perflib.heap.hprof.HprofType;
+import com.android.tools.perflib.heap.memoryanalyzer.DuplicatedBitmapAnalyzerTask.DuplicatedBitmapEntry;
+import com.android.tools.proguard.ProguardMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link StreamingMemoryAnalyzer}.
+ */
+@RunWith(JUnit4.class)
+public final class StreamingMemoryAnalyzerTest {
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    @Before
+    public void getSnapshot() throws Exception {
+        mFile = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+    }
+
+    @After
+    public void dispose() {
+        mSnapshot.dispose();
+    }
+
+    @Test
+    public void streamedInstancesAreNotKept() throws Exception {
+        AtomicInteger instanceCount = new AtomicInteger();
+        Snapshot.streamHprof(new MemoryMappedFileBuffer(mFile), new ProguardMap(),
+                new HprofVisitor() {
+                    @Override
+                    public void visitSnapshot(Snapshot snapshot) {
+                        Assert.assertEquals(mSnapshot.getGCRoots().size(),
+                                snapshot.getGCRoots().size());
+                        for (Heap heap : snapshot.getHeaps()) {
+                            Assert.assertEquals(0, heap.getInstancesCount());
+                            Assert.assertEquals(mSnapshot.getHeap(heap.getId()).getClasses().size(),
+                                    heap.getClasses().size());
+                        }
+                    }
+
+                    @Override
+                    public void visitInstance(Instance instance) {
+                        instanceCount.incrementAndGet();
+                        Instance expected = mSnapshot.findInstance(instance.getId());
+                        Assert.assertEquals(expected.getSize(), instance.getSize());
+                        Assert.assertEquals(expected.getHeap().getId(), instance.getHeap().getId());
+                    }
+                });
+
+        int expectedCount = 0;
+        for (Heap heap : mSnapshot.getHeaps()) {
+            expectedCount += heap.getInstancesCount();
+        }
+        Assert.assertEquals(expectedCount, instanceCount.get());
+    }
+
+    @Test
+    public void duplicatedStrings() throws Exception {
+        // Streaming does not know about reachability, so count every string of the app heap.
+        Map<String, Integer> expected = new HashMap<>();
+        ClassObj stringClass = mSnapshot.findClass("java.lang.String");
+        for (Instance instance : stringClass.getHeapInstances(mSnapshot.getHeap("app").getId())) {
+            char[] characters = ((ClassInstance) instance).getStringChars();
+            if (characters != null) {
+                expected.merge(new String(characters), 1, Integer::sum);
+            }
+        }
+        expected.values().removeIf(count -> count <= 1);
+
+        List<AnalysisResultEntry<?>> results = StreamingMemoryAnalyzer.analyze(
+                new MemoryMappedFileBuffer(mFile), new ProguardMap(),
+                Collections.singleton(new DuplicatedStringsAnalyzerTask()));
+
+        Assert.assertFalse(results.isEmpty());
+        Assert.assertEquals(expected.size(), results.size());
+        for (AnalysisResultEntry<?> result : results) {
+            Assert.assertEquals("Duplicated Strings", result.getCategory());
+            Assert.assertEquals(expected.get(result.getOffender().getOffendingDescription()),
+                    Integer.valueOf(result.getOffender().getOffenders().size()));
+        }
+    }
+
+    @Test
+    public void duplicatedBitmaps() throws Exception {
+        // Buffers before and after their bitmap, so both passes of ArrayReferenceJoiner are used.
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        List<HprofRecord> records = new ArrayList<>();
+        List<HprofDumpRecord> dump = new ArrayList<>();
+
+        int bitmapClassId = 0x100;
+        records.add(new HprofLoadClass(0, 1, bitmapClassId, 0,
+                strings.get("android.graphics.Bitmap")));
+        dump.add(new HprofHeapDumpInfo(0x41, strings.get("app")));
+        dump.add(new HprofClassDump(bitmapClassId, 0, 0, 0, 0, 0, 0, 0, 4,
+                new HprofConstant[0], new HprofStaticField[0],
+                new HprofInstanceField[] {
+                        new HprofInstanceField(strings.get("mBuffer"), HprofType.TYPE_OBJECT)
+                }));
+
+        dump.add(new HprofPrimitiveArrayDump(0x200, 0, HprofType.TYPE_BYTE, new long[] {1, 2, 3}));
+        dump.add(bitmap(0x300, bitmapClassId, 0x200));
+        dump.add(bitmap(0x301, bitmapClassId, 0x201));
+        dump.add(bitmap(0x302, bitmapClassId, 0x202));
+        dump.add(new HprofPrimitiveArrayDump(0x201, 0, HprofType.TYPE_BYTE, new long[] {1, 2, 3}));
+        dump.add(new HprofPrimitiveArrayDump(0x202, 0, HprofType.TYPE_BYTE, new long[] {1, 2, 4}));
+        records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
+
+        List<HprofRecord> allRecords = new ArrayList<>(strings.getStringRecords());
+        allRecords.addAll(records);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Hprof("JAVA PROFILE 1.0.3", 4, new Date(), allRecords).write(os);
+
+        List<AnalysisResultEntry<?>> results = StreamingMemoryAnalyzer.analyze(
+                new InMemoryBuffer(os.toByteArray()), new ProguardMap(),
+                Collections.singleton(new DuplicatedBitmapAnalyzerTask()));
+
+        Assert.assertEquals(1, results.size());
+        DuplicatedBitmapEntry entry = (DuplicatedBitmapEntry) results.get(0);
+        Assert.assertEquals(3, entry.getByteArraySize());
+        Set<Long> bitmapIds = new HashSet<>();
+        for (Instance bitmap : entry.getOffender().getOffenders()) {
+            bitmapIds.add(bitmap.getId());
+        }
+        Assert.assertEquals(ImmutableSet.of(0x300L, 0x301L), bitmapIds);
+    }
+
+    @Test
+    public void leakedActivities() throws Exception {
+        List<AnalysisResultEntry<?>> results = StreamingMemoryAnalyzer.analyze(
+                new MemoryMappedFileBuffer(mFile), new ProguardMap(),
+                Collections.singleton(new LeakedActivityAnalyzerTask()));
+
+        mSnapshot.computeDominators();
+        List<AnalysisResultEntry<?>> expected = TaskRunner.runTasks(
+                Collections.singleton(new LeakedActivityAnalyzerTask()), mSnapshot);
+        Assert.assertEquals(expected.size(), results.size());
+    }
+
+    private static HprofInstanceDump bitmap(int id, int classId, int bufferId) {
+        ByteArrayDataOutput values = ByteStreams.newDataOutput();
+        values.writeInt(bufferId);
+        return new HprofInstanceDump(id, 0, classId, values.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTask() throws Exception {
+        StreamingMemoryAnalyzer.analyze(new MemoryMappedFileBuffer(mFile), new ProguardMap(),
+                Collections.singleton(new BasicAnalyzerTask()));
+    }
+}
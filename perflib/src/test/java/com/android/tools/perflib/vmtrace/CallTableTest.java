@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.testutils.TestResources;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+public class CallTableTest extends TestCase {
+
+    public void testFullRangeMatchesProfileData() throws IOException {
+        checkFullRange("/basic.trace");
+        checkFullRange("/mismatched.trace");
+        checkFullRange("/exception.trace");
+        checkFullRange("/streaming.trace");
+    }
+
+    public void testRanges() throws IOException {
+        VmTraceData traceData = getVmTraceData("/streaming.trace");
+        for (ThreadInfo thread : traceData.getThreads(true)) {
+            Call top = thread.getTopLevelCall();
+            CallTable table = traceData.getCallTable(thread);
+            assertNotNull(table);
+            for (ClockType clockType : ClockType.values()) {
+                long entry = top.getEntryTime(clockType, TimeUnit.MICROSECONDS);
+                long duration = top.getInclusiveTime(clockType, TimeUnit.MICROSECONDS);
+                for (int i = 0; i < 4; i++) {
+                    long start = entry + duration * i / 5;
+                    long end = start + duration / (i + 2);
+                    checkRange(table, top, clockType, start, end);
+                }
+                checkRange(table, top, clockType, entry + duration / 3, entry + duration / 3);
+            }
+        }
+    }
+
+    public void testCallPaths() throws IOException {
+        VmTraceData traceData = getVmTraceData("/basic.trace");
+        ThreadInfo thread = traceData.getThread("AsyncTask #1");
+        CallTable table = traceData.getCallTable(thread);
+        assertNotNull(table);
+
+        assertEquals(-1, table.getPathParent(0));
+        assertEquals(thread.getTopLevelCall().getMethodId(), table.getPathMethodId(0));
+        // The top level call, and one path per distinct call stack of the trace.
+        assertEquals(8, table.getPathCount());
+        CallTable.Range range = table.getRange(ClockType.GLOBAL, 0, Long.MAX_VALUE,
+                TimeUnit.MICROSECONDS);
+        assertEquals(thread.getTopLevelCall().getInclusiveTime(ClockType.GLOBAL,
+                TimeUnit.MICROSECONDS), range.getPathInclusiveTime(0, TimeUnit.MICROSECONDS));
+    }
+
+    public void testLazyTablesMatchPrecomputedTables() throws IOException {
+        VmTraceData traceData = getVmTraceData("/streaming.trace");
+        VmTraceData parallelData = getVmTraceData("/streaming.trace");
+        parallelData.computeCallTables(new ForkJoinPool(4));
+
+        for (ThreadInfo thread : traceData.getThreads(true)) {
+            CallTable table = traceData.getCallTable(thread);
+            assertSame(table, traceData.getCallTable(thread));
+            CallTable.Range range = table.getRange(ClockType.THREAD, 0, Long.MAX_VALUE,
+                    TimeUnit.MICROSECONDS);
+            CallTable.Range parallelRange = parallelData
+                    .getCallTable(parallelData.getThread(thread.getName()))
+                    .getRange(ClockType.THREAD, 0, Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+            assertEquals(range.getMethodIds(), parallelRange.getMethodIds());
+        }
+    }
+
+    private void checkFullRange(String traceName) throws IOException {
+        VmTraceData traceData = getVmTraceData(traceName);
+        for (ThreadInfo thread : traceData.getThreads(true)) {
+            CallTable table = traceData.getCallTable(thread);
+            assertNotNull(table);
+            for (ClockType clockType : ClockType.values()) {
+                CallTable.Range range = table.getRange(clockType, 0, Long.MAX_VALUE,
+                        TimeUnit.MICROSECONDS);
+                for (MethodInfo method : traceData.getMethods().values()) {
+                    MethodProfileData profile = method.getProfileData();
+                    long exclusiveTime = profile == null ? 0 : profile.getExclusiveTime(thread,
+                            clockType, TimeUnit.MICROSECONDS);
+                    long inclusiveTime = profile == null ? 0 : profile.getInclusiveTime(thread,
+                            clockType, TimeUnit.MICROSECONDS);
+                    assertEquals(exclusiveTime,
+                            range.getExclusiveTime(method.id, TimeUnit.MICROSECONDS));
+                    assertEquals(inclusiveTime,
+                            range.getInclusiveTime(method.id, TimeUnit.MICROSECONDS));
+                }
+            }
+        }
+    }
+
+    private static void checkRange(CallTable table, Call top, ClockType clockType, long start,
+            long end) {
+        Map<Long, Long> exclusiveTimes = new HashMap<Long, Long>();
+        Map<Long, Long> inclusiveTimes = new HashMap<Long, Long>();
+        Iterator<Call> it = top.getCallHierarchyIterator();
+        while (it.hasNext()) {
+            Call call = it.next();
+            long time = clip(call, clockType, start, end);
+            if (!call.isRecursive()) {
+                add(inclusiveTimes, call.getMethodId(), time);
+            }
+            for (Call callee : call.getCallees()) {
+                time -= clip(callee, clockType, start, end);
+            }
+            add(exclusiveTimes, call.getMethodId(), time);
+        }
+
+        CallTable.Range range = table.getRange(clockType, start, end, TimeUnit.MICROSECONDS);
+        for (Map.Entry<Long, Long> entry : exclusiveTimes.entrySet()) {
+            assertEquals(entry.getValue().longValue(),
+                    range.getExclusiveTime(entry.getKey(), TimeUnit.MICROSECONDS));
+        }
+        for (Map.Entry<Long, Long> entry : inclusiveTimes.entrySet()) {
+            assertEquals(entry.getValue().longValue(),
+                    range.getInclusiveTime(entry.getKey(), TimeUnit.MICROSECONDS));
+        }
+    }
+
+    private static long clip(Call call, ClockType clockType, long start, long end) {
+        long entry = Math.max(call.getEntryTime(clockType, TimeUnit.MICROSECONDS), start);
+        long exit = Math.min(call.getExitTime(clockType, TimeUnit.MICROSECONDS), end);
+        return Math.max(exit - entry, 0);
+    }
+
+    private static void add(Map<Long, Long> times, long methodId, long time) {
+        Long sum = times.get(methodId);
+        times.put(methodId, sum == null ? time : sum + time);
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
+        VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
+        VmTraceParser parser = new VmTraceParser(
+                TestResources.getFile(getClass(), traceFilePath), dataBuilder);
+        parser.parse();
+        return dataBuilder.build();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.testutils.TestResources;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class VmTraceIndexTest extends TestCase {
+
+    public void testFullRangeMatchesParsedTrace() throws IOException {
+        checkFullRange("/basic.trace");
+        checkFullRange("/basic-api10.trace");
+        checkFullRange("/mismatched.trace");
+        checkFullRange("/exception.trace");
+    }
+
+    public void testHeader() throws IOException {
+        VmTraceIndex index = VmTraceIndex.create(getFile("/streaming.trace"));
+        VmTraceData traceData = getVmTraceData("/streaming.trace");
+
+        assertEquals(3, index.getVersion());
+        assertEquals(VmClockType.DUAL, index.getVmClockType());
+        assertEquals(traceData.getThreads().size(), index.getThreadIds().size());
+        assertEquals("main", index.getThreadName(15362));
+        assertTrue(index.getRecordCount(15362) > 0);
+        assertNull(index.getThread(-1, ClockType.GLOBAL, 0, Long.MAX_VALUE,
+                TimeUnit.MICROSECONDS));
+    }
+
+    public void testRange() throws IOException {
+        VmTraceIndex index = VmTraceIndex.create(getFile("/basic.trace"));
+        int threadId = getThreadId(index, "AsyncTask #1");
+        Call foo = findCall(
+                index.getThread(threadId, ClockType.GLOBAL, 0, Long.MAX_VALUE,
+                        TimeUnit.MICROSECONDS).getTopLevelCall(),
+                index, "com/test/android/traceview/Basic.foo: ()V");
+        Call bar = foo.getCallees().get(0);
+
+        // Only the calls made while foo was running.
+        ThreadInfo thread = index.getThread(threadId, ClockType.GLOBAL,
+                foo.getEntryTime(ClockType.GLOBAL, TimeUnit.NANOSECONDS),
+                foo.getExitTime(ClockType.GLOBAL, TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        assertEquals(" -> AsyncTask #1.:  -> com/test/android/traceview/Basic.foo: ()V"
+                        + " -> com/test/android/traceview/Basic.bar: ()I",
+                thread.getTopLevelCall().format(new CallFormatter(index.getMethods())));
+
+        // Foo was entered before the range starts, and both calls are cut at its end.
+        long barEntry = bar.getEntryTime(ClockType.THREAD, TimeUnit.MICROSECONDS);
+        thread = index.getThread(threadId, ClockType.THREAD, barEntry, barEntry,
+                TimeUnit.MICROSECONDS);
+        Call top = thread.getTopLevelCall();
+        assertEquals(" -> AsyncTask #1.:  -> com/test/android/traceview/Basic.foo: ()V"
+                        + " -> com/test/android/traceview/Basic.bar: ()I",
+                top.format(new CallFormatter(index.getMethods())));
+        Call clippedFoo = top.getCallees().get(0);
+        assertEquals(foo.getEntryTime(ClockType.THREAD, TimeUnit.MICROSECONDS),
+                clippedFoo.getEntryTime(ClockType.THREAD, TimeUnit.MICROSECONDS));
+        assertEquals(barEntry, clippedFoo.getExitTime(ClockType.THREAD, TimeUnit.MICROSECONDS));
+
+        // No record in the range.
+        assertNull(index.getThread(threadId, ClockType.GLOBAL, Long.MAX_VALUE - 1,
+                Long.MAX_VALUE, TimeUnit.MICROSECONDS).getTopLevelCall());
+    }
+
+    private void checkFullRange(String traceName) throws IOException {
+        VmTraceData traceData = getVmTraceData(traceName);
+        VmTraceIndex index = VmTraceIndex.create(getFile(traceName));
+
+        for (ThreadInfo expected : traceData.getThreads()) {
+            ThreadInfo actual = index.getThread(expected.getId(), ClockType.GLOBAL, 0,
+                    Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+            assertNotNull(actual);
+            if (expected.getTopLevelCall() == null) {
+                assertNull(actual.getTopLevelCall());
+                continue;
+            }
+            assertEquals(
+                    expected.getTopLevelCall().format(new CallFormatter(traceData.getMethods())),
+                    actual.getTopLevelCall().format(new CallFormatter(index.getMethods())));
+            assertEquals(
+                    expected.getTopLevelCall().getInclusiveTime(ClockType.THREAD,
+                            TimeUnit.MICROSECONDS),
+                    actual.getTopLevelCall().getInclusiveTime(ClockType.THREAD,
+                            TimeUnit.MICROSECONDS));
+        }
+    }
+
+    private static int getThreadId(VmTraceIndex index, String name) {
+        for (int threadId : index.getThreadIds()) {
+            if (name.equals(index.getThreadName(threadId))) {
+                return threadId;
+            }
+        }
+        fail("Thread " + name + " not found");
+        return -1;
+    }
+
+    private static Call findCall(Call top, VmTraceIndex index, String name) {
+        Iterator<Call> it = top.getCallHierarchyIterator();
+        while (it.hasNext()) {
+            Call call = it.next();
+            if (name.equals(index.getMethod(call.getMethodId()).getFullName())) {
+                return call;
+            }
+        }
+        fail("Call " + name + " not found");
+        return null;
+    }
+
+    private static class CallFormatter implements Call.Formatter {
+        private final Map<Long, MethodInfo> mMethodInfo;
+
+        public CallFormatter(Map<Long, MethodInfo> methodInfo) {
+            mMethodInfo = methodInfo;
+        }
+
+        @Override
+        public String format(Call c) {
+            MethodInfo info = mMethodInfo.get(c.getMethodId());
+            return info == null ? Long.toString(c.getMethodId()) : info.getFullName();
+        }
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
+        VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
+        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), dataBuilder);
+        parser.parse();
+        return dataBuilder.build();
+    }
+
+    private File getFile(String path) {
+        return TestResources.getFile(getClass(), path);
+    }
+}